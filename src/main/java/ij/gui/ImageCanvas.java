@@ -53,6 +53,7 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
     private int mousePressedX, mousePressedY;
     private long mousePressedTime;
     private boolean overOverlayLabel;
+    private static final int MIN_INDEXED_OVERLAY_SIZE = 1000;
 
     /** If the mouse moves less than this in screen pixels, successive zoom operations are on the same image pixel */
 	protected final static int MAX_MOUSEMOVE_ZOOM = 10;
@@ -311,7 +312,10 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		font = overlay.getLabelFont();
 		Roi activeRoi = imp.getRoi();
 		boolean roiManagerShowAllMode = overlay==showAllOverlay && !Prefs.showAllSliceOnly;
-		for (int i=0; i<n; i++) {
+		int[] indexes = n>=MIN_INDEXED_OVERLAY_SIZE?overlay.getIndexes(getVisibleArea(drawLabels)):null;
+		int count = indexes!=null?indexes.length:n;
+		for (int k=0; k<count; k++) {
+			int i = indexes!=null?indexes[k]:k;
 			if (overlay==null) break;
 			Roi roi = overlay.get(i);
 			if (roi==null) break;
@@ -349,6 +353,47 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		drawOverlay(overlay, g);
 	}
 
+	/* Returns the part of the image shown in this canvas, enlarged by a margin
+		for labels, point markers and arrow heads, which can extend beyond
+		the bounds of their ROIs. */
+	private Rectangle getVisibleArea(boolean labels) {
+		int margin = (int)Math.ceil((labels?100:20)/magnification);
+		Rectangle r = new Rectangle(srcRect);
+		r.grow(margin, margin);
+		return r;
+	}
+
+	/* Returns, in ascending order, the indexes of the overlay ROIs with bounds that
+		contain (ox,oy), or with a label, drawn at screen position (sx,sy). */
+	private int[] getOverlayIndexes(Overlay o, int ox, int oy, int sx, int sy, boolean labels) {
+		int[] indexes = o.getIndexes(new Rectangle(ox, oy, 1, 1));
+		Rectangle[] rects = labelRects;
+		if (!labels || rects==null)
+			return indexes;
+		int n = indexes.length;
+		int[] indexes2 = new int[n+8];
+		System.arraycopy(indexes, 0, indexes2, 0, n);
+		for (int i=0; i<rects.length; i++) {
+			if (rects[i]!=null && rects[i].contains(sx,sy)) {
+				if (n==indexes2.length) {
+					int[] tmp = new int[n*2];
+					System.arraycopy(indexes2, 0, tmp, 0, n);
+					indexes2 = tmp;
+				}
+				indexes2[n++] = i;
+			}
+		}
+		Arrays.sort(indexes2, 0, n);
+		int count = 0;
+		for (int i=0; i<n; i++) {
+			if (count==0 || indexes2[i]!=indexes2[count-1])
+				indexes2[count++] = indexes2[i];
+		}
+		indexes = new int[count];
+		System.arraycopy(indexes2, 0, indexes, 0, count);
+		return indexes;
+	}
+
     private void initGraphics(Overlay overlay, Graphics g, Color textColor, Color defaultColor) {
 		if (smallFont==null) {
 			smallFont = new Font("SansSerif", Font.PLAIN, 9);
@@ -1352,6 +1397,8 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 	
 	public void setShowAllList(Overlay showAllList) {
 		this.showAllOverlay = showAllList;
+		if (showAllList!=null)
+			showAllList.invalidateIndex();
 		labelRects = null;
 	}
 	
@@ -1393,6 +1440,8 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 	/** Use ImagePlus.setOverlay(ij.gui.Overlay). */
 	public void setOverlay(Overlay overlay) {
 		this.overlay = overlay;
+		if (overlay!=null)
+			overlay.invalidateIndex();
 		labelRects = null;
 		repaint();
 	}
@@ -1541,7 +1590,10 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		boolean labels = o.getDrawLabels();
 		int sx = screenX(ox);
 		int sy = screenY(oy);
-		for (int i=o.size()-1; i>=0; i--) {
+		int[] indexes = o.size()>=MIN_INDEXED_OVERLAY_SIZE?getOverlayIndexes(o, ox, oy, sx, sy, labels):null;
+		int count = indexes!=null?indexes.length:o.size();
+		for (int k=count-1; k>=0; k--) {
+			int i = indexes!=null?indexes[k]:k;
 			Roi roi = o.get(i);
 			//IJ.log(".isAltDown: "+roi.contains(ox, oy));
 			if (roi.contains(ox, oy) || (labels&&labelRects!=null&&labelRects[i]!=null&&labelRects[i].contains(sx,sy))) {
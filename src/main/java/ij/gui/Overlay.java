@@ -14,6 +14,7 @@ public class Overlay {
     private Color labelColor;
     private Font labelFont;
     private boolean isCalibrationBar;
+    private RoiIndex index;
     
     /** Constructs an empty Overlay. */
     public Overlay() {
@@ -29,8 +30,10 @@ public class Overlay {
 
     /** Adds an ROI to this Overlay. */
     public void add(Roi roi) {
-    	if (roi!=null)
+    	if (roi!=null) {
     		list.add(roi);
+    		index = null;
+    	}
     }
         
     /** Adds an ROI to this Overlay using the specified name. */
@@ -41,18 +44,22 @@ public class Overlay {
 
     /** Adds an ROI to this Overlay. */
     public void addElement(Roi roi) {
-    	if (roi!=null)
+    	if (roi!=null) {
     		list.add(roi);
+    		index = null;
+    	}
     }
 
     /** Removes the ROI with the specified index from this Overlay. */
     public void remove(int index) {
     	list.remove(index);
+    	this.index = null;
     }
     
     /** Removes the specified ROI from this Overlay. */
     public void remove(Roi roi) {
     	list.remove(roi);
+    	index = null;
     }
 
     /** Removes all ROIs that have the specified name. */
@@ -67,6 +74,7 @@ public class Overlay {
    /** Removes all the ROIs in this Overlay. */
     public void clear() {
     	list.clear();
+    	index = null;
     }
 
     /** Returns the ROI with the specified index or null if the index is invalid. */
@@ -89,6 +97,26 @@ public class Overlay {
 		return -1;
     }
     
+    /** Returns, in ascending order, the indexes of the ROIs with bounds
+    	that intersect the specified rectangle. The spatial index (a RoiIndex)
+    	used to find them is created when needed and created again when ROIs
+    	have been added, removed, moved or resized. */
+    public int[] getIndexes(Rectangle r) {
+    	RoiIndex index = this.index;
+    	if (index==null || !index.isCurrent(list)) {
+    		index = new RoiIndex(toArray());
+    		this.index = index;
+    	}
+    	return index.getIndexes(r);
+    }
+
+    /** Discards the spatial index used by getIndexes(Rectangle),
+    	so that it is recreated with the current ROI bounds. This is
+    	not required after changing ROIs, but frees its memory. */
+    public void invalidateIndex() {
+    	index = null;
+    }
+
     /** Returns 'true' if this Overlay contains the specified ROI. */
     public boolean contains(Roi roi) {
     	return list.contains(roi);
@@ -121,6 +149,7 @@ public class Overlay {
 
 	/** Moves all the ROIs in this overlay. */
 	public void translate(int dx, int dy) {
+		index = null;
 		Roi[] rois = toArray();
 		for (int i=0; i<rois.length; i++) {
 			Roi roi = rois[i];
@@ -138,6 +167,7 @@ public class Overlay {
 	* Marcel Boeglin, October 2013
 	*/
 	public void translate(double dx, double dy) {
+		index = null;
 		Roi[] rois = toArray();
 		boolean intArgs = (int)dx==dx && (int)dy==dy;
 		for (int i=0; i<rois.length; i++) {
@@ -324,7 +354,7 @@ public class Overlay {
     	return isCalibrationBar;
     }
 
-    void setVector(Vector v) {list = v;}
+    void setVector(Vector v) {list=v; index=null;}
         
     Vector getVector() {return list;}
     
@@ -0,0 +1,160 @@
+package ij.gui;
+import java.awt.*;
+import java.util.Arrays;
+
+/** A uniform grid that indexes ROIs by their bounding rectangles. It is used
+	by Overlay to find the ROIs that intersect the visible part of the image
+	(for drawing) or the cursor location (for hit testing) without testing
+	every ROI. The index is a snapshot; it does not follow ROIs that are
+	moved or resized after it has been created. Use isCurrent() to find
+	out whether it is still valid.
+*/
+public class RoiIndex {
+	private static final int MAX_CELLS = 1<<20;
+	private Roi[] rois;
+	private Rectangle[] bounds;
+	private int xbase, ybase, cellSize, nx, ny;
+	private int[][] cells;
+	private int[] counts;
+	private int[] marks;
+	private int mark;
+
+	/** Creates an index of the specified ROIs; the indexes returned by
+		getIndexes() are indexes into this array. */
+	public RoiIndex(Roi[] rois) {
+		int n = rois.length;
+		this.rois = (Roi[])rois.clone();
+		bounds = new Rectangle[n];
+		marks = new int[n];
+		int xmin=Integer.MAX_VALUE, ymin=Integer.MAX_VALUE;
+		int xmax=Integer.MIN_VALUE, ymax=Integer.MIN_VALUE;
+		long area = 0;
+		for (int i=0; i<n; i++) {
+			Rectangle r = getBounds(rois[i]);
+			bounds[i] = r;
+			if (r.x<xmin) xmin = r.x;
+			if (r.y<ymin) ymin = r.y;
+			if (r.x+r.width>xmax) xmax = r.x+r.width;
+			if (r.y+r.height>ymax) ymax = r.y+r.height;
+			area += (long)r.width*r.height;
+		}
+		if (n==0) {
+			xmin = ymin = 0;
+			xmax = ymax = 1;
+		}
+		xbase = xmin;
+		ybase = ymin;
+		int width = xmax - xmin;
+		int height = ymax - ymin;
+		// cells about twice the size of an average ROI, but not more cells than ROIs
+		cellSize = (int)Math.ceil(2.0*Math.sqrt((double)area/Math.max(n,1)));
+		double minCellSize = Math.sqrt((double)width*height/Math.max(Math.min(n,MAX_CELLS),1));
+		if (cellSize<minCellSize) cellSize = (int)Math.ceil(minCellSize);
+		if (cellSize<1) cellSize = 1;
+		nx = (width+cellSize-1)/cellSize;
+		ny = (height+cellSize-1)/cellSize;
+		if (nx<1) nx = 1;
+		if (ny<1) ny = 1;
+		cells = new int[nx*ny][];
+		counts = new int[nx*ny];
+		for (int i=0; i<n; i++) {
+			Rectangle r = bounds[i];
+			int cx1 = (r.x-xbase)/cellSize;
+			int cy1 = (r.y-ybase)/cellSize;
+			int cx2 = (r.x+r.width-1-xbase)/cellSize;
+			int cy2 = (r.y+r.height-1-ybase)/cellSize;
+			for (int cy=cy1; cy<=cy2; cy++) {
+				for (int cx=cx1; cx<=cx2; cx++)
+					add(cy*nx+cx, i);
+			}
+		}
+	}
+
+	/* Returns the bounds of a ROI, enlarged to include the line width and
+		to be at least one pixel wide and high. */
+	private static Rectangle getBounds(Roi roi) {
+		Rectangle r = roi.getBounds();
+		int margin = (int)Math.ceil(roi.getStrokeWidth()/2.0) + 1;
+		r.grow(margin, margin);
+		return r;
+	}
+
+	private void add(int cell, int index) {
+		int[] list = cells[cell];
+		int count = counts[cell];
+		if (list==null)
+			list = cells[cell] = new int[4];
+		else if (count==list.length) {
+			int[] list2 = new int[count*2];
+			System.arraycopy(list, 0, list2, 0, count);
+			list = cells[cell] = list2;
+		}
+		list[count] = index;
+		counts[cell]++;
+	}
+
+	/** Returns the number of indexed ROIs. */
+	public int size() {
+		return bounds.length;
+	}
+
+	/** Returns 'true' if 'rois' are the indexed ROIs, in the same order
+		and with the same bounds as when they were indexed. */
+	public boolean isCurrent(java.util.List rois) {
+		int n = rois.size();
+		if (n!=bounds.length)
+			return false;
+		for (int i=0; i<n; i++) {
+			Roi roi = (Roi)rois.get(i);
+			if (roi!=this.rois[i] || !getBounds(roi).equals(bounds[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns, in ascending order, the indexes of the ROIs with
+		bounds (as they were when indexed) that intersect 'r'. */
+	public synchronized int[] getIndexes(Rectangle r) {
+		int cx1 = Math.max((r.x-xbase)/cellSize, 0);
+		int cy1 = Math.max((r.y-ybase)/cellSize, 0);
+		int cx2 = Math.min((r.x+r.width-1-xbase)/cellSize, nx-1);
+		int cy2 = Math.min((r.y+r.height-1-ybase)/cellSize, ny-1);
+		if (r.x+r.width<=xbase || r.y+r.height<=ybase || cx1>cx2 || cy1>cy2)
+			return new int[0];
+		if (++mark==Integer.MAX_VALUE) {
+			Arrays.fill(marks, 0);
+			mark = 1;
+		}
+		int[] indexes = new int[16];
+		int n = 0;
+		for (int cy=cy1; cy<=cy2; cy++) {
+			for (int cx=cx1; cx<=cx2; cx++) {
+				int cell = cy*nx + cx;
+				int[] list = cells[cell];
+				for (int j=0; j<counts[cell]; j++) {
+					int index = list[j];
+					if (marks[index]==mark || !bounds[index].intersects(r))
+						continue;
+					marks[index] = mark;
+					if (n==indexes.length) {
+						int[] indexes2 = new int[n*2];
+						System.arraycopy(indexes, 0, indexes2, 0, n);
+						indexes = indexes2;
+					}
+					indexes[n++] = index;
+				}
+			}
+		}
+		int[] result = new int[n];
+		System.arraycopy(indexes, 0, result, 0, n);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/** Returns, in ascending order, the indexes of the ROIs with
+		bounds (as they were when indexed) that contain (x,y). */
+	public int[] getIndexes(int x, int y) {
+		return getIndexes(new Rectangle(x, y, 1, 1));
+	}
+
+}
@@ -0,0 +1,651 @@
+package ij.gui;
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.ArrayList;
+import ij.IJ;
+import ij.process.*;
+
+/** This is an immutable, run-length encoded binary mask. Each row is stored as a
+	sorted list of horizontal runs (start inclusive, end exclusive), so the logical
+	operations used by ShapeRoi (or, and, xor, not) are a linear merge of the runs
+	of each row instead of a java.awt.geom.Area computation. The outline, as a
+	java.awt.Shape, is only created when it is needed, e.g., for drawing.
+*/
+public class RunLengthMask {
+	private static final int[] NO_RUNS = new int[0];
+	private static final int OR=0, AND=1, XOR=2, NOT=3;
+
+	private int xOffset, yOffset; // position of x=0 in 'rows' and of rows[0]
+	private int[][] rows;         // start,end pairs, relative to xOffset
+	private Rectangle bounds;
+
+	private RunLengthMask(int xOffset, int yOffset, int[][] rows) {
+		this.xOffset = xOffset;
+		this.yOffset = yOffset;
+		this.rows = rows;
+		int first=0, last=rows.length-1;
+		while (first<=last && rows[first].length==0) first++;
+		while (last>=first && rows[last].length==0) last--;
+		if (first>last) {
+			this.rows = new int[0][];
+			bounds = new Rectangle(xOffset, yOffset, 0, 0);
+			return;
+		}
+		if (first>0 || last<rows.length-1) {
+			this.rows = new int[last-first+1][];
+			System.arraycopy(rows, first, this.rows, 0, this.rows.length);
+			this.yOffset += first;
+		}
+		int xmin=Integer.MAX_VALUE, xmax=Integer.MIN_VALUE;
+		for (int i=0; i<this.rows.length; i++) {
+			int[] row = this.rows[i];
+			if (row.length==0) continue;
+			if (row[0]<xmin) xmin = row[0];
+			if (row[row.length-1]>xmax) xmax = row[row.length-1];
+		}
+		bounds = new Rectangle(this.xOffset+xmin, this.yOffset, xmax-xmin, this.rows.length);
+	}
+
+	/** Creates a RunLengthMask from the non-zero pixels of a mask
+		with its upper left corner at (x,y). */
+	public RunLengthMask(ImageProcessor mask, int x, int y) {
+		this(x, y, getRuns(mask));
+	}
+
+	/** Creates a rectangular RunLengthMask. */
+	public RunLengthMask(Rectangle r) {
+		this(r.x, r.y, getRuns(r.width, r.height));
+	}
+
+	/** Returns a RunLengthMask with the pixels of 'ip' that have values
+		in the range lower-upper, scanning the pixel arrays row by row. */
+	public static RunLengthMask createFromThreshold(ImageProcessor ip, float lower, float upper) {
+		return createFromThreshold(ip, lower, upper, 0.0);
+	}
+
+	/** Returns a RunLengthMask with the pixels of 'ip' that have values
+		in the range lower-upper. If 'progressFraction' is positive, the
+		progress bar is shown up to this value and the user can abort with
+		Escape. Returns null if aborted or if the thread is interrupted. */
+	public static RunLengthMask createFromThreshold(ImageProcessor ip, float lower, float upper, double progressFraction) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Object pixels = ip.getPixels();
+		byte[] bytes = pixels instanceof byte[]?(byte[])pixels:null;
+		short[] shorts = pixels instanceof short[]?(short[])pixels:null;
+		float[] floats = pixels instanceof float[]?(float[])pixels:null;
+		int[][] rows = new int[height][];
+		int[] runs = new int[width+1];
+		int progressInc = Math.max(height/50, 1);
+		for (int y=0, offset=0; y<height; y++, offset+=width) {
+			if (y%progressInc==0) {
+				if (Thread.currentThread().isInterrupted())
+					return null;
+				if (progressFraction>0.0) {
+					if (IJ.escapePressed())
+						return null;
+					IJ.showProgress(y*progressFraction/height);
+				}
+			}
+			int n = 0;
+			boolean inside = false;
+			for (int x=0; x<width; x++) {
+				float v;
+				if (bytes!=null)
+					v = bytes[offset+x]&255;
+				else if (shorts!=null)
+					v = shorts[offset+x]&0xffff;
+				else if (floats!=null)
+					v = floats[offset+x];
+				else
+					v = ip.getf(offset+x);
+				if ((v>=lower && v<=upper)!=inside) {
+					runs[n++] = x;
+					inside = !inside;
+				}
+			}
+			if (inside)
+				runs[n++] = width;
+			rows[y] = copy(runs, n);
+		}
+		return new RunLengthMask(0, 0, rows);
+	}
+
+	/** Returns a RunLengthMask with the pixels of the specified area ROI. */
+	public static RunLengthMask create(Roi roi) {
+		if (roi instanceof ShapeRoi) {
+			RunLengthMask runs = ((ShapeRoi)roi).getRunLengthMask();
+			if (runs!=null)
+				return runs;
+		}
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		if (mask==null)
+			return new RunLengthMask(r);
+		return new RunLengthMask(mask, r.x, r.y);
+	}
+
+	/** Returns 'true' if the mask of the specified ROI describes it exactly,
+		i.e., if the ROI outline only consists of horizontal and vertical
+		lines at integer coordinates, so that a logical operation on
+		RunLengthMasks gives the same result as on java.awt.geom.Areas. */
+	public static boolean isPixelExact(Roi roi) {
+		if (roi==null || !roi.isArea())
+			return false;
+		int type = roi.getType();
+		if (type==Roi.RECTANGLE) {
+			Rectangle2D.Double r = roi.getFloatBounds();
+			return roi.getCornerDiameter()==0 && !roi.subPixelResolution()
+				&& r.x==(int)r.x && r.y==(int)r.y && r.width==(int)r.width && r.height==(int)r.height;
+		}
+		if (roi instanceof ShapeRoi) {
+			ShapeRoi sr = (ShapeRoi)roi;
+			if (sr.getRunLengthMask()!=null)
+				return true;
+			return isPixelExact(sr.getShape().getPathIterator(null));
+		}
+		if (type==Roi.POLYGON || type==Roi.FREEROI || type==Roi.TRACED_ROI) {
+			FloatPolygon p = roi.getFloatPolygon();
+			int n = p.npoints;
+			for (int i=0; i<n; i++) {
+				float x1=p.xpoints[i], y1=p.ypoints[i];
+				float x2=p.xpoints[(i+1)%n], y2=p.ypoints[(i+1)%n];
+				if (x1!=(int)x1 || y1!=(int)y1 || (x1!=x2&&y1!=y2))
+					return false;
+			}
+			return n>0;
+		}
+		return false;
+	}
+
+	private static boolean isPixelExact(PathIterator pIter) {
+		float[] coords = new float[6];
+		float lastX=0f, lastY=0f, startX=0f, startY=0f;
+		while (!pIter.isDone()) {
+			int segType = pIter.currentSegment(coords);
+			switch (segType) {
+				case PathIterator.SEG_MOVETO:
+					startX = lastX = coords[0];
+					startY = lastY = coords[1];
+					if (lastX!=(int)lastX || lastY!=(int)lastY)
+						return false;
+					break;
+				case PathIterator.SEG_LINETO:
+					if (coords[0]!=(int)coords[0] || coords[1]!=(int)coords[1])
+						return false;
+					if (coords[0]!=lastX && coords[1]!=lastY)
+						return false;
+					lastX = coords[0];
+					lastY = coords[1];
+					break;
+				case PathIterator.SEG_CLOSE:
+					if (startX!=lastX && startY!=lastY)
+						return false;
+					lastX = startX;
+					lastY = startY;
+					break;
+				default:
+					return false;
+			}
+			pIter.next();
+		}
+		return true;
+	}
+
+	private static int[][] getRuns(ImageProcessor mask) {
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		byte[] pixels = (byte[])mask.convertToByte(false).getPixels();
+		int[][] rows = new int[height][];
+		int[] runs = new int[width+1];
+		for (int y=0, offset=0; y<height; y++, offset+=width) {
+			int n = 0;
+			boolean inside = false;
+			for (int x=0; x<width; x++) {
+				if ((pixels[offset+x]!=0)!=inside) {
+					runs[n++] = x;
+					inside = !inside;
+				}
+			}
+			if (inside)
+				runs[n++] = width;
+			rows[y] = copy(runs, n);
+		}
+		return rows;
+	}
+
+	private static int[][] getRuns(int width, int height) {
+		int[][] rows = new int[height][];
+		int[] row = width>0?new int[] {0, width}:NO_RUNS;
+		for (int y=0; y<height; y++)
+			rows[y] = row;
+		return rows;
+	}
+
+	private static int[] copy(int[] runs, int n) {
+		if (n==0)
+			return NO_RUNS;
+		int[] row = new int[n];
+		System.arraycopy(runs, 0, row, 0, n);
+		return row;
+	}
+
+	/** Returns the union of this mask and 'm'. */
+	public RunLengthMask or(RunLengthMask m) {
+		return combine(m, OR);
+	}
+
+	/** Returns the intersection of this mask and 'm'. */
+	public RunLengthMask and(RunLengthMask m) {
+		return combine(m, AND);
+	}
+
+	/** Returns the pixels that are in either this mask or 'm', but not both. */
+	public RunLengthMask xor(RunLengthMask m) {
+		return combine(m, XOR);
+	}
+
+	/** Returns the pixels of this mask that are not in 'm'. */
+	public RunLengthMask not(RunLengthMask m) {
+		return combine(m, NOT);
+	}
+
+	private RunLengthMask combine(RunLengthMask m, int op) {
+		Rectangle b1 = bounds, b2 = m.bounds;
+		Rectangle r = b1.union(b2);
+		if (b1.isEmpty()) r = b2;
+		if (b2.isEmpty()) r = b1;
+		int[][] rows = new int[r.height][];
+		int[] buffer = new int[16];
+		for (int y=r.y; y<r.y+r.height; y++) {
+			int[] row1 = getRow(y);
+			int[] row2 = m.getRow(y);
+			int n = row1.length + row2.length;
+			if (buffer.length<n) buffer = new int[n];
+			n = merge(row1, xOffset-r.x, row2, m.xOffset-r.x, op, buffer);
+			rows[y-r.y] = copy(buffer, n);
+		}
+		return new RunLengthMask(r.x, r.y, rows);
+	}
+
+	/* Merges two sorted lists of run boundaries, which are shifted
+		by 'offset1' and 'offset2', respectively. Returns the number
+		of boundaries written to 'out'. */
+	private static int merge(int[] row1, int offset1, int[] row2, int offset2, int op, int[] out) {
+		int i1=0, i2=0, n=0;
+		boolean in1=false, in2=false, inside=false;
+		while (i1<row1.length || i2<row2.length) {
+			int p1 = i1<row1.length?row1[i1]+offset1:Integer.MAX_VALUE;
+			int p2 = i2<row2.length?row2[i2]+offset2:Integer.MAX_VALUE;
+			int p = Math.min(p1, p2);
+			if (p1==p) {in1=!in1; i1++;}
+			if (p2==p) {in2=!in2; i2++;}
+			boolean in;
+			switch (op) {
+				case OR: in = in1||in2; break;
+				case AND: in = in1&&in2; break;
+				case XOR: in = in1!=in2; break;
+				default: in = in1&&!in2; break;
+			}
+			if (in!=inside) {
+				if (n>0 && out[n-1]==p)
+					n--; // adjacent runs
+				else
+					out[n++] = p;
+				inside = in;
+			}
+		}
+		return n;
+	}
+
+	/** Returns the runs of row 'y' as start,end pairs, relative to 'xOffset'. */
+	private int[] getRow(int y) {
+		int index = y - yOffset;
+		if (index<0 || index>=rows.length)
+			return NO_RUNS;
+		return rows[index];
+	}
+
+	/** Returns a copy of this mask moved by (dx,dy). */
+	public RunLengthMask translate(int dx, int dy) {
+		if (dx==0 && dy==0)
+			return this;
+		return new RunLengthMask(xOffset+dx, yOffset+dy, rows);
+	}
+
+	/** Returns the bounding rectangle of this mask. */
+	public Rectangle getBounds() {
+		return new Rectangle(bounds);
+	}
+
+	/** Returns 'true' if this mask does not contain any pixels. */
+	public boolean isEmpty() {
+		return bounds.isEmpty();
+	}
+
+	/** Returns 'true' if the pixel (x,y) is inside this mask. */
+	public boolean contains(int x, int y) {
+		int[] row = getRow(y);
+		x -= xOffset;
+		int lo=0, hi=row.length/2-1;
+		while (lo<=hi) {
+			int mid = (lo+hi)>>>1;
+			if (x<row[2*mid])
+				hi = mid - 1;
+			else if (x>=row[2*mid+1])
+				lo = mid + 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns the number of pixels in this mask. */
+	public int getPixelCount() {
+		int count = 0;
+		for (int i=0; i<rows.length; i++) {
+			int[] row = rows[i];
+			for (int j=0; j<row.length; j+=2)
+				count += row[j+1] - row[j];
+		}
+		return count;
+	}
+
+	/** Returns the number of runs in this mask. */
+	public int getRunCount() {
+		int count = 0;
+		for (int i=0; i<rows.length; i++)
+			count += rows[i].length/2;
+		return count;
+	}
+
+	/** Returns this mask as a ByteProcessor the size of the bounding rectangle,
+		with pixels inside set to 255 and pixels outside set to 0. */
+	public ImageProcessor getMask() {
+		int width = bounds.width;
+		byte[] pixels = new byte[width*bounds.height];
+		int x0 = xOffset - bounds.x;
+		for (int y=0, offset=0; y<rows.length; y++, offset+=width) {
+			int[] row = rows[y];
+			for (int j=0; j<row.length; j+=2) {
+				for (int x=row[j]+x0; x<row[j+1]+x0; x++)
+					pixels[offset+x] = (byte)255;
+			}
+		}
+		ImageProcessor mask = new ByteProcessor(width, bounds.height, pixels, null);
+		mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return mask;
+	}
+
+	/** Returns the outline of this mask as a GeneralPath with the
+		WIND_EVEN_ODD winding rule, in the coordinates of this mask. */
+	public GeneralPath getShape() {
+		GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+		Polygon[] polygons = getOutlines(Integer.MAX_VALUE);
+		for (int i=0; i<polygons.length; i++)
+			path.append(polygons[i], false);
+		return path;
+	}
+
+	/** Returns the outlines (outer boundaries and holes) of this mask as
+		polygons with pixel-edge vertices. Tracing stops when 'maxCount'
+		outlines have been closed, so getOutlines(2).length==1 is a fast
+		test for a mask that has a single outline. */
+	public Polygon[] getOutlines(int maxCount) {
+		ArrayList polygons = getOutlines(new ArrayList(), maxCount);
+		return (Polygon[])polygons.toArray(new Polygon[polygons.size()]);
+	}
+
+	/* Draws the outline (or fills the runs) of this mask, shifted by (dx,dy), on
+		a canvas with magnification 'mag' and showing 'srcRect' (if not null), without
+		creating polygons. Only the rows within 'srcRect' are drawn. */
+	void draw(Graphics g, int dx, int dy, double mag, Rectangle srcRect, boolean fill) {
+		int basex = srcRect!=null?srcRect.x:0;
+		int basey = srcRect!=null?srcRect.y:0;
+		int first = 0, last = rows.length; // last row drawn +1
+		if (srcRect!=null) {
+			first = Math.max(first, srcRect.y-yOffset-dy-1);
+			last = Math.min(last, srcRect.y+srcRect.height-yOffset-dy+1);
+		}
+		int x0 = xOffset + dx - basex;
+		int[] buffer = new int[16];
+		for (int i=first; i<=last && i<=rows.length; i++) {
+			int[] row = i<rows.length?rows[i]:NO_RUNS;
+			int sy1 = (int)((yOffset+dy+i-basey)*mag);
+			int sy2 = (int)((yOffset+dy+i+1-basey)*mag);
+			if (fill) {
+				for (int j=0; j<row.length; j+=2) {
+					int sx1 = (int)((row[j]+x0)*mag);
+					int sx2 = (int)((row[j+1]+x0)*mag);
+					g.fillRect(sx1, sy1, sx2-sx1, sy2-sy1);
+				}
+				continue;
+			}
+			int[] prev = i>0&&i-1<rows.length?rows[i-1]:NO_RUNS;
+			if (buffer.length<row.length+prev.length)
+				buffer = new int[row.length+prev.length];
+			int n = merge(prev, 0, row, 0, XOR, buffer);
+			for (int j=0; j<n; j+=2)
+				g.drawLine((int)((buffer[j]+x0)*mag), sy1, (int)((buffer[j+1]+x0)*mag), sy1);
+			for (int j=0; j<row.length; j++) {
+				int sx = (int)((row[j]+x0)*mag);
+				g.drawLine(sx, sy1, sx, sy2);
+			}
+		}
+	}
+
+	/*
+	 * Constructs all outlines simultaneously by traversing the rows
+	 * from top to bottom.
+	 * prevRow[x + 1] indicates if the pixel at (x, y - 1) is selected.
+	 * outline[x] is the outline which is currently unclosed at the
+	 * lower right corner of the previous row.
+	 */
+	private ArrayList getOutlines(ArrayList polygons, int maxCount) {
+		int w = bounds.width;
+		int h = bounds.height;
+		int x0 = bounds.x, y0 = bounds.y;
+		boolean[] prevRow = new boolean[w + 2];
+		boolean[] thisRow = new boolean[w + 2];
+		Outline[] outline = new Outline[w + 1];
+		for (int y = 0; y <= h; y++) {
+			boolean[] b = prevRow; prevRow = thisRow; thisRow = b;
+			for (int x = 0; x < w + 2; x++)
+				thisRow[x] = false;
+			if (y < h) {
+				int[] row = rows[y];
+				int shift = xOffset - x0 + 1;
+				for (int j=0; j<row.length; j+=2) {
+					for (int x=row[j]+shift; x<row[j+1]+shift; x++)
+						thisRow[x] = true;
+				}
+			}
+			for (int x = 0; x <= w; x++) {
+				if (thisRow[x + 1]) {
+					if (!prevRow[x + 1]) {
+						// upper edge
+						if (outline[x] == null) {
+							if (outline[x + 1] == null) {
+								outline[x + 1] = outline[x] = new Outline();
+								outline[x].push(x0 + x + 1, y0 + y);
+								outline[x].push(x0 + x, y0 + y);
+							} else {
+								outline[x] = outline[x + 1];
+								outline[x + 1] = null;
+								outline[x].push(x0 + x, y0 + y);
+							}
+						} else {
+							if (outline[x + 1] == null) {
+								outline[x + 1] = outline[x];
+								outline[x] = null;
+								outline[x + 1].shift(x0 + x + 1, y0 + y);
+							} else if (outline[x + 1] == outline[x]) {
+								polygons.add(outline[x].getPolygon());
+								if (polygons.size()>=maxCount) return polygons;
+								outline[x] = outline[x + 1] = null;
+							} else {
+								outline[x].shift(outline[x + 1]);
+								for (int x1 = 0; x1 <= w; x1++)
+									if (x1 != x + 1 && outline[x1] == outline[x + 1]) {
+										outline[x1] = outline[x];
+										outline[x] = outline[x + 1] = null;
+										break;
+									}
+								if (outline[x] != null)
+									throw new RuntimeException("assertion failed");
+							}
+						}
+					}
+					if (!thisRow[x]) {
+						// left edge
+						if (outline[x] == null)
+							throw new RuntimeException("assertion failed");
+						outline[x].push(x0 + x, y0 + y + 1);
+					}
+				} else {
+					if (prevRow[x + 1]) {
+						// lower edge
+						if (outline[x] == null) {
+							if (outline[x + 1] == null) {
+								outline[x] = outline[x + 1] = new Outline();
+								outline[x].push(x0 + x, y0 + y);
+								outline[x].push(x0 + x + 1, y0 + y);
+							} else {
+								outline[x] = outline[x + 1];
+								outline[x + 1] = null;
+								outline[x].shift(x0 + x, y0 + y);
+							}
+						} else if (outline[x + 1] == null) {
+							outline[x + 1] = outline[x];
+							outline[x] = null;
+							outline[x + 1].push(x0 + x + 1, y0 + y);
+						} else if (outline[x + 1] == outline[x]) {
+							polygons.add(outline[x].getPolygon());
+							if (polygons.size()>=maxCount) return polygons;
+							outline[x] = outline[x + 1] = null;
+						} else {
+							outline[x].push(outline[x + 1]);
+							for (int x1 = 0; x1 <= w; x1++)
+								if (x1 != x + 1 && outline[x1] == outline[x + 1]) {
+									outline[x1] = outline[x];
+									outline[x] = outline[x + 1] = null;
+									break;
+								}
+							if (outline[x] != null)
+								throw new RuntimeException("assertion failed");
+						}
+					}
+					if (thisRow[x]) {
+						// right edge
+						if (outline[x] == null)
+							throw new RuntimeException("assertion failed");
+						outline[x].shift(x0 + x, y0 + y + 1);
+					}
+				}
+			}
+		}
+		return polygons;
+	}
+
+	/*
+	 * A Cartesian polygon in progress, implemented as a deque so that
+	 * points can be added to both sides. The edges are of unit length and
+	 * parallel to one axis; the inner part is on the left.
+	 */
+	static class Outline {
+		int[] x, y;
+		int first, last, reserved;
+		final int GROW = 10;
+
+		Outline() {
+			reserved = GROW;
+			x = new int[reserved];
+			y = new int[reserved];
+			first = last = GROW / 2;
+		}
+
+		private void needs(int newCount, int offset) {
+			if (newCount > reserved || (offset > first)) {
+				if (newCount < reserved + GROW + 1)
+					newCount = reserved + GROW + 1;
+				int[] newX = new int[newCount];
+				int[] newY = new int[newCount];
+				System.arraycopy(x, 0, newX, offset, last);
+				System.arraycopy(y, 0, newY, offset, last);
+				x = newX;
+				y = newY;
+				first += offset;
+				last += offset;
+				reserved = newCount;
+			}
+		}
+
+		void push(int x, int y) {
+			needs(last + 1, 0);
+			this.x[last] = x;
+			this.y[last] = y;
+			last++;
+		}
+
+		void shift(int x, int y) {
+			needs(last + 1, GROW);
+			first--;
+			this.x[first] = x;
+			this.y[first] = y;
+		}
+
+		void push(Outline o) {
+			int count = o.last - o.first;
+			needs(last + count, 0);
+			System.arraycopy(o.x, o.first, x, last, count);
+			System.arraycopy(o.y, o.first, y, last, count);
+			last += count;
+		}
+
+		void shift(Outline o) {
+			int count = o.last - o.first;
+			needs(last + count + GROW, count + GROW);
+			first -= count;
+			System.arraycopy(o.x, o.first, x, first, count);
+			System.arraycopy(o.y, o.first, y, first, count);
+		}
+
+		Polygon getPolygon() {
+			// optimize out long straight lines
+			int i, j=first+1;
+			for (i=first+1; i+1<last; j++) {
+				int x1 = x[j] - x[j - 1];
+				int y1 = y[j] - y[j - 1];
+				int x2 = x[j + 1] - x[j];
+				int y2 = y[j + 1] - y[j];
+				if (x1 * y2 == x2 * y1) {
+					last--;
+					continue;
+				}
+				if (i != j) {
+					x[i] = x[j];
+					y[i] = y[j];
+				}
+				i++;
+			}
+			// wraparound
+			int x1 = x[j] - x[j-1];
+			int y1 = y[j] - y[j-1];
+			int x2 = x[first] - x[j];
+			int y2 = y[first] - y[j];
+			if (x1*y2==x2*y1)
+				last--;
+			else {
+				x[i] = x[j];
+				y[i] = y[j];
+			}
+			int count = last - first;
+			int[] xNew = new int[count];
+			int[] yNew = new int[count];
+			System.arraycopy(x, first, xNew, 0, count);
+			System.arraycopy(y, first, yNew, 0, count);
+			return new Polygon(xNew, yNew, count);
+		}
+	}
+
+}
@@ -44,6 +44,11 @@ public class ShapeRoi extends Roi {
 
 	/**The <code>java.awt.Shape</code> encapsulated by this object.*/
 	private Shape shape;
+
+	/**The pixels of this ROI, relative to (x,y), if it was created from a mask or by
+	 * logical operations on pixel-exact ROIs. In that case, the shape is only
+	 * created from the runs when it is needed.*/
+	private RunLengthMask runs;
 	
 	/**The instance value of the maximum tolerance (MAXERROR) allowed in calculating the 
 	 * length of the curve segments of this ROI's shape.
@@ -99,6 +104,13 @@ public class ShapeRoi extends Roi {
 		type = COMPOSITE;
 	}
 
+	/** Constructs a ShapeRoi from a RunLengthMask. The shape is only created
+		from the runs when it is needed, e.g., by getShape() or getRois(). */
+	public ShapeRoi(RunLengthMask mask) {
+		super(mask.getBounds());
+		setRunLengthMask(mask);
+	}
+
 	/**Creates a ShapeRoi object from a "classical" ImageJ ROI.
 	 * @param r An ij.gui.Roi object
 	 * @param flatness The flatness factor used in convertion of curve segments into line segments.
@@ -158,7 +170,9 @@ public class ShapeRoi extends Roi {
 		sr.forceAngle = forceAngle;
 		sr.forceTrace = forceTrace;
 		//sr.setImage(imp); //wsr
-		sr.setShape(ShapeRoi.cloneShape(shape));
+		if (shape!=null)
+			sr.setShape(ShapeRoi.cloneShape(shape));
+		sr.runs = runs;
 		return sr;
 	}
 	
@@ -203,6 +217,8 @@ public class ShapeRoi extends Roi {
 	public ShapeRoi not(ShapeRoi sr) {return unaryOp(sr, NOT);}
 
 	ShapeRoi unaryOp(ShapeRoi sr, int op) {
+		if (RunLengthMask.isPixelExact(this) && RunLengthMask.isPixelExact(sr))
+			return runsOp(sr, op);
 		AffineTransform at = new AffineTransform();
 		at.translate(x, y);
 		Area a1 = new Area(at.createTransformedShape(getShape()));
@@ -227,6 +243,45 @@ public class ShapeRoi extends Roi {
 		return this;
 	}
 
+	/* Logical operation on the pixels, for ROIs that are exactly described by
+		their masks. The result is the same as with java.awt.geom.Area, but the
+		cost is proportional to the number of runs instead of the number of
+		path segments squared. */
+	private ShapeRoi runsOp(ShapeRoi sr, int op) {
+		RunLengthMask m1 = RunLengthMask.create(this);
+		RunLengthMask m2 = RunLengthMask.create(sr);
+		RunLengthMask result = null;
+		switch (op) {
+			case OR: result = m1.or(m2); break;
+			case AND: result = m1.and(m2); break;
+			case XOR: result = m1.xor(m2); break;
+			case NOT: result = m1.not(m2); break;
+		}
+		setRunLengthMask(result);
+		return this;
+	}
+
+	/** Returns the pixels of this ROI as a RunLengthMask in image coordinates,
+		or null if this ROI was not created from a mask or by logical operations
+		on pixel-exact ROIs. */
+	public RunLengthMask getRunLengthMask() {
+		return runs!=null?runs.translate(x, y):null;
+	}
+
+	/** Sets the pixels of this ROI to those of a RunLengthMask in image coordinates.
+		The shape is created from the runs when it is needed, e.g., for drawing. */
+	public void setRunLengthMask(RunLengthMask mask) {
+		Rectangle r = mask.getBounds();
+		runs = mask.translate(-r.x, -r.y);
+		shape = null;
+		type = COMPOSITE;
+		x = r.x;
+		y = r.y;
+		width = r.width;
+		height = r.height;
+		cachedMask = null;
+	}
+
 	/**********************************************************************************/
 	/***         Interconversions between "regular" rois and shaped rois           ****/
 	/**********************************************************************************/
@@ -307,21 +362,19 @@ public class ShapeRoi extends Roi {
 					((GeneralPath)shape).lineTo((float)xCoords[i],(float)yCoords[i]);
 				break;
 			case Roi.POINT:
-				ImageProcessor mask = roi.getMask();
-				byte[] maskPixels = (byte[])mask.getPixels();
-				Rectangle maskBounds = roi.getBounds();
-				int maskWidth = mask.getWidth();
-				Area area = new Area();
-				for (int y=0; y<mask.getHeight(); y++) {
-					int yOffset = y*maskWidth;
-					for (int x=0; x<maskWidth; x++) {
-						if (maskPixels[x+yOffset]!=0)
-							area.add(new Area(new Rectangle(x+maskBounds.x, y+maskBounds.y, 1, 1)));
-					}
+				setRunLengthMask(RunLengthMask.create(roi));
+				startX = x;
+				startY = y;
+				return null;
+			case Roi.COMPOSITE:
+				ShapeRoi sr = (ShapeRoi)roi;
+				if (sr.runs!=null) {
+					setRunLengthMask(sr.getRunLengthMask());
+					startX = x;
+					startY = y;
+					return null;
 				}
-				shape = area;
-				break;
-			case Roi.COMPOSITE: shape = ShapeRoi.cloneShape(((ShapeRoi)roi).getShape());
+				shape = ShapeRoi.cloneShape(sr.getShape());
 				break;
 			default:
 				throw new IllegalArgumentException("Roi type not supported");
@@ -439,6 +492,7 @@ public class ShapeRoi extends Roi {
 	 * @return an array of ij.gui.Roi objects.
 	 */
 	public Roi[] getRois () {
+		Shape shape = getShape();
 		if (shape==null)
 			return new Roi[0];
 		if (savedRois!=null)
@@ -479,6 +533,7 @@ public class ShapeRoi extends Roi {
 	 * @return an ij.gui.Roi object or null
 	 */
 	public Roi shapeToRoi() {
+		Shape shape = getShape();
 		if (shape==null || !(shape instanceof GeneralPath))
 			return null;
 		PathIterator pIter = shape.getPathIterator(new AffineTransform());
@@ -589,6 +644,7 @@ public class ShapeRoi extends Roi {
 
 	/**Checks whether the specified coordinates are inside a on this ROI's shape boundaries.*/
 	public boolean contains(int x, int y) {
+		if (runs!=null) return runs.contains(x-this.x, y-this.y);
 		if(shape==null) return false;
 		return shape.contains(x-this.x, y-this.y);
 	}
@@ -792,6 +848,7 @@ public class ShapeRoi extends Roi {
 		and SEG_LINETO segments also include two coordinates, SEG_QUADTO segments include four 
 		coordinates and SEG_CUBICTO segments include six coordinates. */
 	public float[] getShapeAsArray() {
+		Shape shape = getShape();
 		if(shape==null) return null;
 		//if (savedRois!=null)
 		//	return getSavedRoisAsArray();
@@ -1023,7 +1080,9 @@ public class ShapeRoi extends Roi {
 		}
 		aTx.setTransform(mag, 0.0, 0.0, mag, -basex*mag, -basey*mag);
 		aTx.translate(x, y);
-		if (fillColor!=null) {
+		if (shape==null && runs!=null)
+			runs.draw(g, x, y, mag, ic!=null?ic.getSrcRect():null, fillColor!=null&&!isActiveOverlayRoi);
+		else if (fillColor!=null) {
 			if (isActiveOverlayRoi) {
 				g2d.setColor(Color.cyan);
 				g2d.draw(aTx.createTransformedShape(shape));
@@ -1059,6 +1118,7 @@ public class ShapeRoi extends Roi {
 	 * (i.e., all curve segments will be approximated by line segments).
 	 */
 	public void drawPixels(ImageProcessor ip) {
+		Shape shape = getShape();
 		PathIterator pIter = shape.getPathIterator(new AffineTransform(), flatness);
 		float[] coords = new float[6];
 		float sx=0f, sy=0f;
@@ -1085,10 +1145,14 @@ public class ShapeRoi extends Roi {
 	/** Returns this ROI's mask pixels as a ByteProcessor with pixels "in" the mask
 		set to white (255) and pixels "outside" the mask set to black (0). */
 	public ImageProcessor getMask() {
-		if (shape==null)
-			return null;
 		if (cachedMask!=null && cachedMask.getPixels()!=null)
 			return cachedMask;
+		if (runs!=null) {
+			cachedMask = runs.getMask();
+			return cachedMask;
+		}
+		if (shape==null)
+			return null;
 		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
 		Graphics2D g2d = bi.createGraphics();
 		g2d.setColor(Color.white);
@@ -1103,6 +1167,8 @@ public class ShapeRoi extends Roi {
 
 	/**Returns a reference to the Shape object encapsulated by this ShapeRoi. */
 	public Shape getShape() {
+		if (shape==null && runs!=null)
+			shape = runs.getShape();
 		return shape;
 	}
 
@@ -1116,8 +1182,9 @@ public class ShapeRoi extends Roi {
 	boolean setShape(Shape rhs) {
 		boolean result = true;
 		if (rhs==null) return false;
-		if (shape.equals(rhs)) return false;
+		if (rhs.equals(shape)) return false;
 		shape = rhs;
+		runs = null;
 		type = Roi.COMPOSITE;
 		Rectangle rect = shape.getBounds();
 		width = rect.width;
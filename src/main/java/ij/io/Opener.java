@@ -921,9 +921,14 @@ public class Opener {
 	}
 
 	/** Opens a single TIFF or DICOM contained in a ZIP archive,
-		or a ZIPed collection of ".roi" files created by the ROI manager. */	
+		or a ZIPed collection of ".roi" files or a ".rois" file created by the ROI manager. */
 	public ImagePlus openZip(String path) {
 		ImagePlus imp = null;
+		if (RoiSetFile.isRoiSetFile(path)) {
+			if (!silentMode)
+				IJ.runMacro("roiManager(\"Open\", getArgument());", path);
+			return null;
+		}
 		try {
 			ZipInputStream zis = new ZipInputStream(new FileInputStream(path));
 			ZipEntry entry = zis.getNextEntry();
@@ -1217,8 +1222,8 @@ public class Opener {
 		if (b0==137 && b1==80 && b2==78 && b3==71)
 			return PNG;
 				
-		// ZIP containing a TIFF
-		if (name.endsWith(".zip"))
+		// ZIP containing a TIFF, or ROI set
+		if (name.endsWith(".zip") || RoiSetFile.isRoiSetFile(name))
 			return ZIP;
 
 		// FITS ("SIMP")
@@ -0,0 +1,306 @@
+package ij.io;
+import ij.gui.Roi;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.*;
+
+/** Reads and writes ROI sets (".rois" files), a compact alternative to the
+	ZIP archives of ".roi" files created by the ROI Manager. The records
+	(in the RoiEncoder format, optionally deflated) are stored back to back
+	in a single data section, followed by an index with a table of record
+	offsets, a table of uncompressed record lengths and the ROI names.
+	Opening a file only reads the index; the data section is memory
+	mapped and records are decoded when getRoi() is called.
+	<pre>
+	0-3     "IJRS"
+	4-5     version (1)
+	6-7     flags (1=compressed)
+	8-11    number of ROIs (n)
+	12-19   index offset
+	20-31   reserved
+	32-     records
+	index:  (n+1) longs, record offsets relative to byte 32
+	        n ints, uncompressed record lengths
+	        (n+1) ints, name offsets relative to the name section
+	        name section (UTF-8)
+	</pre>
+	@see ij.io.RoiEncoder
+	@see ij.io.RoiDecoder
+*/
+public class RoiSetFile {
+	public static final String EXTENSION = ".rois";
+	public static final int COMPRESSED = 1;
+	static final int MAGIC = 0x494A5253; // "IJRS"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	private static final long MAX_SEGMENT_SIZE = 1L<<30;
+
+	private int count;
+	private int flags;
+	private long[] offsets;
+	private int[] lengths;
+	private String[] names;
+	private ByteBuffer[] segments;
+	private long[] segmentStarts;
+	private Inflater inflater;
+
+	private RoiSetFile() {
+	}
+
+	/** Returns 'true' if 'path' ends with ".rois". */
+	public static boolean isRoiSetFile(String path) {
+		return path!=null && path.toLowerCase().endsWith(EXTENSION);
+	}
+
+	/** Opens the ROI set at the specified path. Only the index is read;
+		the records are mapped into memory and decoded on demand. */
+	public static RoiSetFile open(String path) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			RoiSetFile rs = new RoiSetFile();
+			rs.read(raf.getChannel());
+			return rs;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void read(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		if (fileSize<HEADER_SIZE || header.getInt(0)!=MAGIC)
+			throw new IOException("This is not an ImageJ ROI set");
+		if (header.getShort(4)>VERSION)
+			throw new IOException("Unsupported ROI set version: "+header.getShort(4));
+		flags = header.getShort(6);
+		count = header.getInt(8);
+		long indexOffset = header.getLong(12);
+		if (count<0 || indexOffset<HEADER_SIZE || indexOffset>fileSize || fileSize-indexOffset>Integer.MAX_VALUE)
+			throw new IOException("ROI set index is corrupted");
+		ByteBuffer index = ByteBuffer.allocate((int)(fileSize-indexOffset));
+		readFully(channel, index, indexOffset);
+		index.rewind();
+		offsets = new long[count+1];
+		for (int i=0; i<=count; i++)
+			offsets[i] = index.getLong();
+		lengths = new int[count];
+		for (int i=0; i<count; i++)
+			lengths[i] = index.getInt();
+		int[] nameOffsets = new int[count+1];
+		for (int i=0; i<=count; i++)
+			nameOffsets[i] = index.getInt();
+		byte[] nameBytes = new byte[index.remaining()];
+		index.get(nameBytes);
+		names = new String[count];
+		for (int i=0; i<count; i++)
+			names[i] = new String(nameBytes, nameOffsets[i], nameOffsets[i+1]-nameOffsets[i], "UTF-8");
+		if (offsets[count]>indexOffset-HEADER_SIZE)
+			throw new IOException("ROI set index is corrupted");
+		mapRecords(channel);
+	}
+
+	/* Maps the data section in segments of at most 1 GB that start at record
+		boundaries, so that a record never spans two segments. */
+	private void mapRecords(FileChannel channel) throws IOException {
+		ArrayList starts = new ArrayList();
+		long start = 0;
+		starts.add(new Long(start));
+		for (int i=0; i<count; i++) {
+			if (offsets[i+1]-start>MAX_SEGMENT_SIZE && offsets[i]>start) {
+				start = offsets[i];
+				starts.add(new Long(start));
+			}
+		}
+		int n = starts.size();
+		segments = new ByteBuffer[n];
+		segmentStarts = new long[n];
+		for (int i=0; i<n; i++) {
+			segmentStarts[i] = ((Long)starts.get(i)).longValue();
+			long end = i<n-1?((Long)starts.get(i+1)).longValue():offsets[count];
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE+segmentStarts[i], end-segmentStarts[i]);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n<0)
+				throw new EOFException();
+			position += n;
+		}
+	}
+
+	/** Returns the number of ROIs in this set. */
+	public int size() {
+		return count;
+	}
+
+	/** Returns the name of the ROI with the specified index. */
+	public String getName(int index) {
+		return names[index];
+	}
+
+	/** Returns the names of the ROIs in this set. */
+	public String[] getNames() {
+		return (String[])names.clone();
+	}
+
+	/** Returns 'true' if the records are deflated. */
+	public boolean isCompressed() {
+		return (flags&COMPRESSED)!=0;
+	}
+
+	/** Returns the ROI with the specified index, as encoded by RoiEncoder. */
+	public byte[] getBytes(int index) throws IOException {
+		int segment = segments.length-1;
+		while (segmentStarts[segment]>offsets[index])
+			segment--;
+		byte[] bytes = new byte[(int)(offsets[index+1]-offsets[index])];
+		ByteBuffer buffer = segments[segment].duplicate();
+		buffer.position((int)(offsets[index]-segmentStarts[segment]));
+		buffer.get(bytes);
+		if (!isCompressed())
+			return bytes;
+		byte[] bytes2 = new byte[lengths[index]];
+		synchronized (this) {
+			if (inflater==null)
+				inflater = new Inflater();
+			inflater.reset();
+			inflater.setInput(bytes);
+			try {
+				int n = 0;
+				while (n<bytes2.length && !inflater.finished()) {
+					int len = inflater.inflate(bytes2, n, bytes2.length-n);
+					if (len==0 && inflater.needsInput())
+						break;
+					n += len;
+				}
+				if (n!=bytes2.length)
+					throw new IOException("ROI "+index+" is truncated");
+			} catch (DataFormatException e) {
+				throw new IOException("ROI "+index+": "+e.getMessage());
+			}
+		}
+		return bytes2;
+	}
+
+	/** Decodes and returns the ROI with the specified index. */
+	public Roi getRoi(int index) throws IOException {
+		return new RoiDecoder(getBytes(index), names[index]).getRoi();
+	}
+
+	/** Writes a ROI set. Use add() to write the ROIs, then close().
+		The data are written to a temporary file that replaces the file
+		at 'path' when closed, so an open RoiSetFile at the same path
+		can still be read while writing. */
+	public static class Writer {
+		private String path;
+		private File tempFile;
+		private DataOutputStream out;
+		private boolean compress;
+		private Deflater deflater;
+		private byte[] buffer;
+		private long position;
+		private ArrayList offsets = new ArrayList();
+		private ArrayList lengths = new ArrayList();
+		private ArrayList names = new ArrayList();
+
+		/** Creates a new ROI set at 'path'. The records are deflated
+			if 'compress' is true. */
+		public Writer(String path, boolean compress) throws IOException {
+			this.path = path;
+			this.compress = compress;
+			File file = new File(path).getAbsoluteFile();
+			tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(compress?COMPRESSED:0);
+			out.writeInt(0);
+			out.writeLong(0L);
+			out.write(new byte[HEADER_SIZE-20]);
+			if (compress) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				buffer = new byte[8192];
+			}
+		}
+
+		/** Adds a ROI. */
+		public void add(String name, Roi roi) throws IOException {
+			byte[] bytes = RoiEncoder.saveAsByteArray(roi);
+			if (bytes==null)
+				throw new IOException("Unable to encode ROI "+name);
+			add(name, bytes);
+		}
+
+		/** Adds a ROI that has already been encoded by RoiEncoder. */
+		public void add(String name, byte[] bytes) throws IOException {
+			offsets.add(new Long(position));
+			lengths.add(new Integer(bytes.length));
+			names.add(name!=null?name:"");
+			if (compress) {
+				deflater.reset();
+				deflater.setInput(bytes);
+				deflater.finish();
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					out.write(buffer, 0, n);
+					position += n;
+				}
+			} else {
+				out.write(bytes);
+				position += bytes.length;
+			}
+		}
+
+		/** Writes the index and closes the file. */
+		public void close() throws IOException {
+			int n = names.size();
+			for (int i=0; i<n; i++)
+				out.writeLong(((Long)offsets.get(i)).longValue());
+			out.writeLong(position);
+			for (int i=0; i<n; i++)
+				out.writeInt(((Integer)lengths.get(i)).intValue());
+			ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+			out.writeInt(0);
+			for (int i=0; i<n; i++) {
+				nameBytes.write(((String)names.get(i)).getBytes("UTF-8"));
+				out.writeInt(nameBytes.size());
+			}
+			nameBytes.writeTo(out);
+			out.close();
+			if (deflater!=null)
+				deflater.end();
+			RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+			try {
+				raf.seek(8);
+				raf.writeInt(n);
+				raf.writeLong(HEADER_SIZE+position);
+			} finally {
+				raf.close();
+			}
+			File file = new File(path);
+			if (!tempFile.renameTo(file)) {
+				file.delete();
+				if (!tempFile.renameTo(file)) {
+					tempFile.delete();
+					throw new IOException("Unable to replace "+path+" (file in use?)");
+				}
+			}
+		}
+
+		/** Closes and deletes the temporary file without writing the ROI set. */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {}
+			if (deflater!=null)
+				deflater.end();
+			tempFile.delete();
+		}
+	}
+
+}
@@ -0,0 +1,803 @@
+package ij.macro;
+import ij.Macro;
+import ij.process.ImageProcessor;
+import java.util.*;
+
+/** A for or while loop that has been compiled into a tree of statement and
+	expression objects, so that its iterations run without parsing tokens.
+	The Interpreter compiles loops that have been executed many times (see
+	Interpreter.COMPILE_THRESHOLD) and runs the remaining iterations with
+	run(). Supported are loops that only use numeric variables and arrays
+	of numbers, assignments (=, +=, -=, *=, /=, ++, --), if/else, for and
+	while statements, blocks, break, continue, the arithmetic, bitwise,
+	comparison and logical operators, the constants PI, NaN, true and false,
+	the functions abs, cos, exp, floor, log, round, sin, sqrt, tan, atan,
+	asin, acos, isNaN, minOf, maxOf, pow, atan2, getPixel(x,y) and
+	setPixel(x,y,value), and the array length. compile() returns null if
+	the loop uses anything else. Errors are reported as the Interpreter
+	would report them.
+*/
+class CompiledLoop implements MacroConstants {
+	private static final int NEG=-1, NOT=-2, BIT_NOT=-3;
+	private static final int NEXT=0, BREAK_LOOP=1, CONTINUE_LOOP=2; // results of Statement.execute()
+
+	private Interpreter interp;
+	private Functions func;
+	private int[] code;
+	private Symbol[] table;
+	private int pc; // the next token
+	private boolean unsupported;
+	private HashMap slotMap = new HashMap(); // symbol table address -> Slot
+	private ArrayList slots = new ArrayList();
+	private Variable[] vars; // the variables of the slots, looked up by run()
+	private Statement loop;
+
+	private CompiledLoop(Interpreter interp) {
+		this.interp = interp;
+		func = interp.func;
+		code = interp.pgm.getCode();
+		table = interp.pgm.getSymbolTable();
+	}
+
+	/** Compiles the loop starting at 'loopPC', the program counter of the
+		';' before the condition of a for loop, or of the 'while' keyword.
+		Returns null if the loop cannot be compiled. */
+	static CompiledLoop compile(Interpreter interp, int loopPC, boolean whileLoop) {
+		CompiledLoop cl = new CompiledLoop(interp);
+		cl.pc = loopPC + 1;
+		Statement loop = whileLoop?cl.parseWhile():cl.parseFor(null, false);
+		if (cl.unsupported)
+			return null;
+		cl.loop = loop;
+		cl.vars = new Variable[cl.slots.size()];
+		return cl;
+	}
+
+	/** Runs the loop, starting with the evaluation of the condition.
+		Returns false, without running it, if the variables used by the
+		loop do not exist or do not have the types it was compiled for. */
+	boolean run() {
+		for (int i=0; i<vars.length; i++) {
+			Slot slot = (Slot)slots.get(i);
+			Variable v = interp.lookupVariable(slot.address);
+			if (v==null || (slot.assigned && interp.lookupLocalVariable(slot.address)!=v))
+				return false;
+			if (slot.array?v.getDoubleArray()==null:v.getType()!=Variable.VALUE)
+				return false;
+			vars[i] = v;
+		}
+		int savePC = interp.pc;
+		try {
+			loop.execute();
+		} finally {
+			Arrays.fill(vars, null);
+		}
+		interp.pc = savePC;
+		return true;
+	}
+
+	private void error(int tokenPC, String message) {
+		interp.pc = tokenPC;
+		interp.error(message);
+		throw new RuntimeException(Macro.MACRO_CANCELED);
+	}
+
+	private void checkBoolean(int tokenPC, double value) {
+		if (!(value==0.0 || value==1.0))
+			error(tokenPC, "Boolean expression expected");
+	}
+
+	private void checkIndex(int tokenPC, int index, int length) {
+		if (index<0 || index>=length) {
+			interp.pc = tokenPC;
+			interp.checkIndex(index, length);
+			throw new RuntimeException(Macro.MACRO_CANCELED);
+		}
+	}
+
+	private int tokenType() {
+		return tokenType(pc);
+	}
+
+	private int tokenType(int pc) {
+		int tok = code[pc];
+		return tok>127?tok&TOK_MASK:tok;
+	}
+
+	private Symbol symbol() {
+		return table[code[pc]>>TOK_SHIFT];
+	}
+
+	private void expect(int tok) {
+		if (tokenType()!=tok)
+			unsupported = true;
+		else
+			pc++;
+	}
+
+	private boolean isAssignmentOperator(int tok) {
+		return tok=='=' || tok==PLUS_EQUAL || tok==MINUS_EQUAL || tok==MUL_EQUAL || tok==DIV_EQUAL;
+	}
+
+	/* Returns the slot of the variable with the specified symbol table address. */
+	private int slot(int address, boolean array, boolean assigned) {
+		Slot slot = (Slot)slotMap.get(new Integer(address));
+		if (slot==null) {
+			slot = new Slot(address, slots.size(), array);
+			slotMap.put(new Integer(address), slot);
+			slots.add(slot);
+		} else if (slot.array!=array)
+			unsupported = true;
+		slot.assigned |= assigned;
+		return slot.index;
+	}
+
+	/* Parses the rest of a for loop, starting with the condition. */
+	private Statement parseFor(Statement[] init, boolean checkFirst) {
+		Expression condition = null;
+		if (tokenType()!=';')
+			condition = parseLogical();
+		int condPC = pc-1;
+		expect(';');
+		ArrayList increments = new ArrayList();
+		while (!unsupported && tokenType()!=')') {
+			increments.add(parseAssignment());
+			if (tokenType()==',')
+				pc++;
+			else
+				break;
+		}
+		expect(')');
+		Statement body = parseStatement();
+		Statement[] inc = new Statement[increments.size()];
+		increments.toArray(inc);
+		return new For(init, condition, inc, body, checkFirst, condPC);
+	}
+
+	/* Parses a while loop, starting with the '(' before the condition. */
+	private Statement parseWhile() {
+		expect('(');
+		Expression condition = parseLogical();
+		int condPC = pc-1;
+		expect(')');
+		return new While(condition, parseStatement(), condPC);
+	}
+
+	private Statement parseStatement() {
+		if (unsupported) return null;
+		int start = pc;
+		switch (tokenType()) {
+			case ';':
+				pc++;
+				return new Block();
+			case '{':
+				pc++;
+				Block block = new Block();
+				while (!unsupported && tokenType()!='}' && tokenType()!=EOF)
+					block.add(parseStatement());
+				expect('}');
+				return block;
+			case IF:
+				pc++;
+				expect('(');
+				Expression condition = parseLogical();
+				int condPC = pc-1;
+				expect(')');
+				Statement s1 = parseStatement();
+				if (tokenType()==';')
+					pc++;
+				Statement s2 = null;
+				if (tokenType()==ELSE) {
+					pc++;
+					s2 = parseStatement();
+				}
+				return new If(condition, s1, s2, condPC);
+			case FOR:
+				pc++;
+				expect('(');
+				if (tokenType()==VAR)
+					pc++;
+				ArrayList init = new ArrayList();
+				while (!unsupported && tokenType()!=';') {
+					init.add(parseAssignment());
+					if (tokenType()==',')
+						pc++;
+					else
+						break;
+				}
+				expect(';');
+				Statement[] initArray = new Statement[init.size()];
+				init.toArray(initArray);
+				return parseFor(initArray, true);
+			case WHILE:
+				pc++;
+				return parseWhile();
+			case BREAK: case CONTINUE:
+				pc++;
+				expect(';');
+				return new Jump(tokenType(start)==BREAK?BREAK_LOOP:CONTINUE_LOOP);
+			case PREDEFINED_FUNCTION:
+				int function = symbol().type;
+				if (function!=SET_PIXEL && function!=PUT_PIXEL)
+					break;
+				pc++;
+				expect('(');
+				Expression x = parseExpression();
+				expect(',');
+				Expression y = parseExpression();
+				expect(',');
+				Expression value = parseExpression();
+				expect(')');
+				expect(';');
+				return new SetPixel(x, y, value);
+			case WORD:
+				Statement s;
+				if (tokenType(pc+1)=='[')
+					s = parseElementAssignment();
+				else
+					s = parseAssignment();
+				expect(';');
+				return s;
+		}
+		unsupported = true;
+		return null;
+	}
+
+	/* Parses 'v=expr', 'v+=expr', 'v-=expr', 'v*=expr', 'v/=expr', 'v++' or 'v--'. */
+	private Statement parseAssignment() {
+		if (tokenType()!=WORD) {
+			unsupported = true;
+			return null;
+		}
+		int address = code[pc]>>TOK_SHIFT;
+		pc++;
+		int op = tokenType();
+		pc++;
+		Expression value;
+		if (op==PLUS_PLUS || op==MINUS_MINUS) {
+			value = new Constant(1.0);
+			op = op==PLUS_PLUS?PLUS_EQUAL:MINUS_EQUAL;
+		} else if (isAssignmentOperator(op)) {
+			if (tokenType()==WORD && isAssignmentOperator(tokenType(pc+1)))
+				unsupported = true; // chained assignment
+			value = parseLogical();
+		} else {
+			unsupported = true;
+			return null;
+		}
+		return new Assignment(slot(address, false, true), op, value);
+	}
+
+	/* Parses 'a[index]=expr' (or +=, -=, *=, /=) and 'a[i]++' or 'a[i]--'. */
+	private Statement parseElementAssignment() {
+		int start = pc;
+		int address = code[pc]>>TOK_SHIFT;
+		pc += 2;
+		Expression index = parseExpression();
+		expect(']');
+		int opPC = pc;
+		int op = tokenType();
+		pc++;
+		if (op==PLUS_PLUS || op==MINUS_MINUS) {
+			// the Interpreter only supports this with single token indexes
+			if (code[start+5]!=';' || code[start+4]!=op)
+				unsupported = true;
+			return new ElementIncrement(slot(address, true, false), index, op==PLUS_PLUS?1.0:-1.0, start+3);
+		}
+		if (!isAssignmentOperator(op)) {
+			unsupported = true;
+			return null;
+		}
+		Expression value = parseExpression();
+		return new ElementAssignment(slot(address, true, true), index, op, value, opPC);
+	}
+
+	private Expression parseLogical() {
+		Expression e1 = parseBoolean();
+		int op = tokenType();
+		if (op!=LOGICAL_AND && op!=LOGICAL_OR)
+			return e1;
+		int pc1 = pc-1;
+		pc++;
+		Expression e2 = parseLogical();
+		return new Logical(op, e1, e2, pc1, pc-1);
+	}
+
+	private Expression parseBoolean() {
+		Expression e1 = parseExpression();
+		int op = tokenType();
+		if (op>=EQ && op<=LTE) {
+			pc++;
+			return new Binary(op, e1, parseExpression());
+		}
+		return e1;
+	}
+
+	private Expression parseExpression() {
+		Expression e = parseTerm();
+		while (!unsupported) {
+			int op = tokenType();
+			if (op!='+' && op!='-')
+				break;
+			pc++;
+			e = new Binary(op, e, parseTerm());
+		}
+		return e;
+	}
+
+	private Expression parseTerm() {
+		Expression e = parseFactor();
+		while (!unsupported) {
+			int op = tokenType();
+			if (!(op=='*' || op=='/' || op=='%' || op=='&' || op=='|' || op=='^'
+			|| op==SHIFT_RIGHT || op==SHIFT_LEFT))
+				break;
+			pc++;
+			e = new Binary(op, e, parseFactor());
+		}
+		return e;
+	}
+
+	private Expression parseFactor() {
+		if (unsupported)
+			return new Constant(0.0);
+		int start = pc;
+		int type = tokenType();
+		Symbol symbol = type>127?symbol():null;
+		pc++;
+		switch (type) {
+			case NUMBER: return new Constant(symbol.value);
+			case TRUE: return new Constant(1.0);
+			case FALSE: return new Constant(0.0);
+			case PI: return new Constant(Math.PI);
+			case NaN: return new Constant(Double.NaN);
+			case '(':
+				Expression e = parseLogical();
+				expect(')');
+				return e;
+			case '-': return new Unary(NEG, parseFactor(), start);
+			case '!':
+				Expression operand = parseFactor();
+				return new Unary(NOT, operand, pc-1);
+			case '~': return new Unary(BIT_NOT, parseFactor(), start);
+			case WORD:
+				int address = code[start]>>TOK_SHIFT;
+				Expression value;
+				if (tokenType()=='[') {
+					pc++;
+					Expression index = parseExpression();
+					value = new Element(slot(address, true, false), index, pc);
+					expect(']');
+				} else if (tokenType()=='.') {
+					pc++;
+					if (tokenType()!=WORD || !symbol().str.equals("length"))
+						break;
+					pc++;
+					value = new Length(slot(address, true, false));
+				} else
+					value = new VariableReference(slot(address, false, false));
+				if (tokenType()==PLUS_PLUS || tokenType()==MINUS_MINUS)
+					break;
+				return value;
+			case NUMERIC_FUNCTION:
+				int function = symbol.type;
+				switch (function) {
+					case ABS: case COS: case EXP: case FLOOR: case LOG: case ROUND:
+					case SIN: case SQRT: case TAN: case ATAN: case ASIN: case ACOS: case IS_NAN:
+						expect('(');
+						Expression arg = parseExpression();
+						expect(')');
+						return new Unary(function, arg, start);
+					case MIN_OF: case MAX_OF: case POW: case ATAN2: case GET_PIXEL:
+						expect('(');
+						Expression arg1 = parseExpression();
+						expect(',');
+						Expression arg2 = parseExpression();
+						expect(')');
+						return new Binary(function, arg1, arg2);
+				}
+				break;
+		}
+		unsupported = true;
+		return new Constant(0.0);
+	}
+
+	private static class Slot {
+		int address, index;
+		boolean array, assigned;
+
+		Slot(int address, int index, boolean array) {
+			this.address = address;
+			this.index = index;
+			this.array = array;
+		}
+	}
+
+	private abstract class Statement {
+		/** Executes this statement and returns BREAK_LOOP or CONTINUE_LOOP
+			if a 'break' or 'continue' statement was executed, NEXT otherwise. */
+		abstract int execute();
+	}
+
+	private class Block extends Statement {
+		private ArrayList list = new ArrayList();
+		private Statement[] statements = new Statement[0];
+
+		void add(Statement s) {
+			list.add(s);
+			statements = (Statement[])list.toArray(new Statement[list.size()]);
+		}
+
+		int execute() {
+			for (int i=0; i<statements.length; i++) {
+				int result = statements[i].execute();
+				if (result!=NEXT)
+					return result;
+			}
+			return NEXT;
+		}
+	}
+
+	// a 'break' or 'continue' statement
+	private class Jump extends Statement {
+		private int result;
+
+		Jump(int result) {
+			this.result = result;
+		}
+
+		int execute() {
+			return result;
+		}
+	}
+
+	private class For extends Statement {
+		private Statement[] init, increments;
+		private Expression condition;
+		private Statement body;
+		private boolean checkFirst;
+		private int condPC;
+
+		For(Statement[] init, Expression condition, Statement[] increments, Statement body, boolean checkFirst, int condPC) {
+			this.init = init;
+			this.condition = condition;
+			this.increments = increments;
+			this.body = body;
+			this.checkFirst = checkFirst;
+			this.condPC = condPC;
+		}
+
+		int execute() {
+			if (init!=null) {
+				for (int i=0; i<init.length; i++)
+					init[i].execute();
+			}
+			boolean first = checkFirst;
+			while (!interp.done) {
+				if (condition!=null) {
+					double cond = condition.evaluate();
+					if (first)
+						checkBoolean(condPC, cond);
+					if (cond!=1.0)
+						break;
+				}
+				first = false;
+				if (body.execute()==BREAK_LOOP)
+					break;
+				for (int i=0; i<increments.length; i++)
+					increments[i].execute();
+			}
+			return NEXT;
+		}
+	}
+
+	private class While extends Statement {
+		private Expression condition;
+		private Statement body;
+		private int condPC;
+
+		While(Expression condition, Statement body, int condPC) {
+			this.condition = condition;
+			this.body = body;
+			this.condPC = condPC;
+		}
+
+		int execute() {
+			while (!interp.done) {
+				double cond = condition.evaluate();
+				checkBoolean(condPC, cond);
+				if (cond==0.0)
+					break;
+				if (body.execute()==BREAK_LOOP)
+					break;
+			}
+			return NEXT;
+		}
+	}
+
+	private class If extends Statement {
+		private Expression condition;
+		private Statement s1, s2;
+		private int condPC;
+
+		If(Expression condition, Statement s1, Statement s2, int condPC) {
+			this.condition = condition;
+			this.s1 = s1;
+			this.s2 = s2;
+			this.condPC = condPC;
+		}
+
+		int execute() {
+			double cond = condition.evaluate();
+			checkBoolean(condPC, cond);
+			if (cond!=0.0)
+				return s1.execute();
+			else if (s2!=null)
+				return s2.execute();
+			return NEXT;
+		}
+	}
+
+	private class Assignment extends Statement {
+		private int slot;
+		private int op;
+		private Expression value;
+
+		Assignment(int slot, int op, Expression value) {
+			this.slot = slot;
+			this.op = op;
+			this.value = value;
+		}
+
+		int execute() {
+			Variable v = vars[slot];
+			switch (op) {
+				case '=': v.setValue(value.evaluate()); break;
+				case PLUS_EQUAL: v.setValue(v.getValue()+value.evaluate()); break;
+				case MINUS_EQUAL: v.setValue(v.getValue()-value.evaluate()); break;
+				case MUL_EQUAL: v.setValue(v.getValue()*value.evaluate()); break;
+				case DIV_EQUAL: v.setValue(v.getValue()/value.evaluate()); break;
+			}
+			return NEXT;
+		}
+	}
+
+	private class ElementAssignment extends Statement {
+		private int slot;
+		private Expression index, value;
+		private int op;
+		private int opPC;
+
+		ElementAssignment(int slot, Expression index, int op, Expression value, int opPC) {
+			this.slot = slot;
+			this.index = index;
+			this.op = op;
+			this.value = value;
+			this.opPC = opPC;
+		}
+
+		int execute() {
+			Variable v = vars[slot];
+			int i = (int)index.evaluate();
+			double[] values = v.getDoubleArray();
+			if (i<0 || i>=v.getArraySize()) {
+				interp.pc = opPC;
+				values = interp.prepareDoubleArrayElement(v, i);
+				if (i<0 || i>=values.length)
+					throw new RuntimeException(Macro.MACRO_CANCELED);
+			}
+			switch (op) {
+				case '=': values[i] = value.evaluate(); break;
+				case PLUS_EQUAL: values[i] = values[i]+value.evaluate(); break;
+				case MINUS_EQUAL: values[i] = values[i]-value.evaluate(); break;
+				case MUL_EQUAL: values[i] = values[i]*value.evaluate(); break;
+				case DIV_EQUAL: values[i] = values[i]/value.evaluate(); break;
+			}
+			return NEXT;
+		}
+	}
+
+	private class ElementIncrement extends Statement {
+		private int slot;
+		private Expression index;
+		private double delta;
+		private int indexPC;
+
+		ElementIncrement(int slot, Expression index, double delta, int indexPC) {
+			this.slot = slot;
+			this.index = index;
+			this.delta = delta;
+			this.indexPC = indexPC;
+		}
+
+		int execute() {
+			double[] values = vars[slot].getDoubleArray();
+			int i = (int)index.evaluate();
+			checkIndex(indexPC, i, values.length);
+			values[i] += delta;
+			return NEXT;
+		}
+	}
+
+	private class SetPixel extends Statement {
+		private Expression x, y, value;
+
+		SetPixel(Expression x, Expression y, Expression value) {
+			this.x = x;
+			this.y = y;
+			this.value = value;
+		}
+
+		int execute() {
+			int a1 = (int)x.evaluate();
+			double a2 = y.evaluate();
+			ImageProcessor ip = func.getProcessor();
+			func.setPixel(ip, a1, a2, value.evaluate());
+			return NEXT;
+		}
+	}
+
+	private abstract class Expression {
+		abstract double evaluate();
+	}
+
+	private class Constant extends Expression {
+		private double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		double evaluate() {
+			return value;
+		}
+	}
+
+	private class VariableReference extends Expression {
+		private int slot;
+
+		VariableReference(int slot) {
+			this.slot = slot;
+		}
+
+		double evaluate() {
+			return vars[slot].getValue();
+		}
+	}
+
+	private class Element extends Expression {
+		private int slot;
+		private Expression index;
+		private int indexPC;
+
+		Element(int slot, Expression index, int indexPC) {
+			this.slot = slot;
+			this.index = index;
+			this.indexPC = indexPC;
+		}
+
+		double evaluate() {
+			int i = (int)index.evaluate();
+			double[] values = vars[slot].getDoubleArray();
+			checkIndex(indexPC, i, values.length);
+			return values[i];
+		}
+	}
+
+	private class Length extends Expression {
+		private int slot;
+
+		Length(int slot) {
+			this.slot = slot;
+		}
+
+		double evaluate() {
+			return vars[slot].getArraySize();
+		}
+	}
+
+	private class Unary extends Expression {
+		private int op;
+		private Expression arg;
+		private int opPC;
+
+		Unary(int op, Expression arg, int opPC) {
+			this.op = op;
+			this.arg = arg;
+			this.opPC = opPC;
+		}
+
+		double evaluate() {
+			double a = arg.evaluate();
+			switch (op) {
+				case NEG: return -a;
+				case NOT:
+					if (!(a==0.0 || a==1.0))
+						error(opPC, "Boolean expected");
+					return a==0.0?1.0:0.0;
+				case BIT_NOT: return ~(int)a;
+				case ABS: return Math.abs(a);
+				case COS: return Math.cos(a);
+				case EXP: return Math.exp(a);
+				case FLOOR: return Math.floor(a);
+				case LOG: return Math.log(a);
+				case ROUND: return Math.floor(a + 0.5);
+				case SIN: return Math.sin(a);
+				case SQRT: return Math.sqrt(a);
+				case TAN: return Math.tan(a);
+				case ATAN: return Math.atan(a);
+				case ASIN: return Math.asin(a);
+				case ACOS: return Math.acos(a);
+				case IS_NAN: return Double.isNaN(a)?1:0;
+				default: return 0.0;
+			}
+		}
+	}
+
+	private class Binary extends Expression {
+		private int op;
+		private Expression arg1, arg2;
+
+		Binary(int op, Expression arg1, Expression arg2) {
+			this.op = op;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+		}
+
+		double evaluate() {
+			double a = arg1.evaluate();
+			if (op==GET_PIXEL) {
+				ImageProcessor ip = func.getProcessor();
+				return func.getPixel(ip, a, arg2.evaluate());
+			}
+			double b = arg2.evaluate();
+			switch (op) {
+				case '+': return a + b;
+				case '-': return a - b;
+				case '*': return a * b;
+				case '/': return a / b;
+				case '%': return a % b;
+				case '&': return (int)a & (int)b;
+				case '|': return (int)a | (int)b;
+				case '^': return (int)a ^ (int)b;
+				case SHIFT_RIGHT: return (int)a >> (int)b;
+				case SHIFT_LEFT: return (int)a << (int)b;
+				case EQ: return a==b?1.0:0.0;
+				case NEQ: return a!=b?1.0:0.0;
+				case GT: return a>b?1.0:0.0;
+				case GTE: return a>=b?1.0:0.0;
+				case LT: return a<b?1.0:0.0;
+				case LTE: return a<=b?1.0:0.0;
+				case MIN_OF: return Math.min(a, b);
+				case MAX_OF: return Math.max(a, b);
+				case POW: return Math.pow(a, b);
+				case ATAN2: return Math.atan2(a, b);
+				default: return 0.0;
+			}
+		}
+	}
+
+	// the && and || operators, which evaluate both operands as the Interpreter does
+	private class Logical extends Expression {
+		private int op;
+		private Expression arg1, arg2;
+		private int pc1, pc2; // the last tokens of the operands
+
+		Logical(int op, Expression arg1, Expression arg2, int pc1, int pc2) {
+			this.op = op;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+			this.pc1 = pc1;
+			this.pc2 = pc2;
+		}
+
+		double evaluate() {
+			double a = arg1.evaluate();
+			checkBoolean(pc1, a);
+			double b = arg2.evaluate();
+			checkBoolean(pc2, b);
+			return op==LOGICAL_AND?((int)a & (int)b):((int)a | (int)b);
+		}
+	}
+
+}
@@ -19,6 +19,7 @@ import java.net.URL;
 import java.awt.datatransfer.*;
 import java.awt.geom.*;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** This class implements the built-in macro functions. */
@@ -76,6 +77,7 @@ public class Functions implements MacroConstants, Measurements {
 	int pasteMode;
 	int lineWidth = 1;
 	boolean expandableArrays;
+	Profiler profile; // last started by Profiler.start()
 	int plotWidth;
 	int plotHeight;
 	int plotFontSize;
@@ -92,6 +94,20 @@ public class Functions implements MacroConstants, Measurements {
 	}
  
 	void doFunction(int type) {
+		Profiler profiler = interp.profiler;
+		if (profiler==null) {
+			doFunction2(type);
+			return;
+		}
+		profiler.enter(Profiler.BUILT_IN, pgm.table[interp.tokenAddress].str);
+		try {
+			doFunction2(type);
+		} finally {
+			profiler.exit();
+		}
+	}
+
+	private void doFunction2(int type) {
 		switch (type) {
 			case RUN: doRun(); break;
 			case SELECT: IJ.selectWindow(getStringArg()); resetImage(); interp.selectCount++; break;
@@ -191,6 +207,18 @@ public class Functions implements MacroConstants, Measurements {
 	}
 	
 	final double getFunctionValue(int type) {
+		Profiler profiler = interp.profiler;
+		if (profiler==null)
+			return getFunctionValue2(type);
+		profiler.enter(Profiler.BUILT_IN, pgm.table[interp.tokenAddress].str);
+		try {
+			return getFunctionValue2(type);
+		} finally {
+			profiler.exit();
+		}
+	}
+
+	private final double getFunctionValue2(int type) {
 		double value = 0.0;
 		switch (type) {
 			case GET_PIXEL: value = getPixel(); break;
@@ -244,6 +272,18 @@ public class Functions implements MacroConstants, Measurements {
 	}
 
 	String getStringFunction(int type) {
+		Profiler profiler = interp.profiler;
+		if (profiler==null)
+			return getStringFunction2(type);
+		profiler.enter(Profiler.BUILT_IN, pgm.table[interp.tokenAddress].str);
+		try {
+			return getStringFunction2(type);
+		} finally {
+			profiler.exit();
+		}
+	}
+
+	private String getStringFunction2(int type) {
 		String str;
 		switch (type) {
 			case D2S: str = d2s(); break;
@@ -278,6 +318,7 @@ public class Functions implements MacroConstants, Measurements {
 			case IJ_CALL: str = ijCall(); break;
 			case GET_RESULT_STRING: str = getResultString(); break;
 			case ROI: str = doRoi(); break;
+			case PROFILER: str = doProfiler(); break;
 			default:
 				str="";
 				interp.error("String function expected");
@@ -293,14 +334,15 @@ public class Functions implements MacroConstants, Measurements {
 	Variable[] getArrayFunction(int type) {
 		Variable[] array;
 		switch (type) {
-			case GET_PROFILE: array=getProfile(); break;
-			case NEW_ARRAY: array = newArray(); break;
+			case GET_PROFILE: case NEW_ARRAY: case ARRAY_FUNC:
+				Variable v = getArrayResult(type);
+				array = v!=null?v.getArray():null;
+				break;
 			case SPLIT: array = split(); break;
 			case GET_FILE_LIST: array = getFileList(); break;
 			case GET_FONT_LIST: array = getFontList(); break;
 			case NEW_MENU: array = newMenu(); break;
 			case GET_LIST: array = getList(); break;
-			case ARRAY_FUNC: array = doArray(); break;
 			default:
 				array = null;
 				interp.error("Array function expected");
@@ -308,6 +350,31 @@ public class Functions implements MacroConstants, Measurements {
 		return array;
 	}
 
+	/** Returns the array created by an array function as a Variable, which
+		avoids converting arrays of numbers into Variables. */
+	Variable getArrayResult(int type) {
+		Profiler profiler = interp.profiler;
+		if (profiler==null)
+			return getArrayResult2(type);
+		profiler.enter(Profiler.BUILT_IN, pgm.table[interp.tokenAddress].str);
+		try {
+			return getArrayResult2(type);
+		} finally {
+			profiler.exit();
+		}
+	}
+
+	private Variable getArrayResult2(int type) {
+		switch (type) {
+			case GET_PROFILE: return getProfile();
+			case NEW_ARRAY: return newArray();
+			case ARRAY_FUNC: return doArray();
+			default:
+				Variable[] array = getArrayFunction(type);
+				return array!=null?new Variable(0, 0.0, null, array):null;
+		}
+	}
+
 	final double math(int type) {
 		double arg = getArg();
 		switch (type) {
@@ -499,7 +566,11 @@ public class Functions implements MacroConstants, Measurements {
 	}
 
 	double[] getNumericArray() {
-		Variable[] a1 = getArray();
+		Variable v = getArrayArg();
+		double[] values = v.getDoubleArray();
+		if (values!=null)
+			return (double[])values.clone();
+		Variable[] a1 = v.getArray();
 		double[] a2 = new double[a1.length];
 		for (int i=0; i<a1.length; i++)
 			a2[i] = a1[i].getValue();
@@ -507,7 +578,15 @@ public class Functions implements MacroConstants, Measurements {
 	}
 
 	String[] getStringArray() {
-		Variable[] a1 = getArray();
+		Variable v = getArrayArg();
+		double[] values = v.getDoubleArray();
+		if (values!=null) {
+			String[] a2 = new String[values.length];
+			for (int i=0; i<values.length; i++)
+				a2[i] = "" + values[i];
+			return a2;
+		}
+		Variable[] a1 = v.getArray();
 		String[] a2 = new String[a1.length];
 		for (int i=0; i<a1.length; i++) {
 			String s = a1[i].getString();
@@ -518,31 +597,42 @@ public class Functions implements MacroConstants, Measurements {
 	}
 
 	Variable[] getArray() {
+		return getArrayArg().getArray();
+	}
+
+	/** Returns the array argument, trimmed to its size, as a Variable
+		that may be stored as doubles. */
+	Variable getArrayArg() {
 		interp.getToken();
 		boolean newArray = interp.token==ARRAY_FUNCTION && pgm.table[interp.tokenAddress].type==NEW_ARRAY;
 		boolean arrayFunction = interp.token==ARRAY_FUNCTION && pgm.table[interp.tokenAddress].type==ARRAY_FUNC;
 		if (!(interp.token==WORD||newArray||arrayFunction))
 			interp.error("Array expected");
-		Variable[] a;
+		Variable v;
 		if (newArray)
-			a = getArrayFunction(NEW_ARRAY);
+			v = getArrayResult(NEW_ARRAY);
 		else if (arrayFunction)
-			a = getArrayFunction(ARRAY_FUNC);
+			v = getArrayResult(ARRAY_FUNC);
 		else {
-			Variable v = interp.lookupVariable();
-			a= v.getArray();
+			v = interp.lookupVariable();
 			int size = v.getArraySize();
-			if (a!=null && a.length!=size) {
-				Variable[] a2 = new Variable[size];
-				for (int i=0; i<size; i++)
-					a2[i] = a[i];
-				v.setArray(a2);
-				a = v.getArray();
+			double[] values = v.getDoubleArray();
+			if (values!=null) {
+				if (values.length!=size)
+					v.setDoubleArray(Arrays.copyOf(values, size));
+			} else {
+				Variable[] a = v.getArray();
+				if (a!=null && a.length!=size) {
+					Variable[] a2 = new Variable[size];
+					for (int i=0; i<size; i++)
+						a2[i] = a[i];
+					v.setArray(a2);
+				}
 			}
 		}
-		if (a==null)
+		if (v==null || v.getType()!=Variable.ARRAY)
 			interp.error("Array expected");
-		return a;
+		return v;
 	}
 		
 	private Color getColor() {
@@ -597,10 +687,18 @@ public class Functions implements MacroConstants, Measurements {
 			arg2 = getString();
 			interp.getRightParen();
 		}
-		if (arg2!=null)
-			IJ.run(arg1, arg2);
-		else
-			IJ.run(arg1);
+		Profiler profiler = interp.profiler;
+		if (profiler!=null)
+			profiler.enter(Profiler.COMMAND, arg1);
+		try {
+			if (arg2!=null)
+				IJ.run(arg1, arg2);
+			else
+				IJ.run(arg1);
+		} finally {
+			if (profiler!=null)
+				profiler.exit();
+		}
 		resetImage();
 		IJ.setKeyUp(IJ.ALL_KEYS);
 		shiftKeyDown = altKeyDown = false;
@@ -825,17 +923,23 @@ public class Functions implements MacroConstants, Measurements {
 		if (interp.token==',') {
 			double a3 = interp.getExpression();
 			interp.getRightParen();
-			if (ip instanceof FloatProcessor)
-				ip.putPixelValue(a1, (int)a2, a3);
-			else
-				ip.putPixel(a1, (int)a2, (int)a3);
+			setPixel(ip, a1, a2, a3);
 		} else {
 			if (interp.token!=')') interp.error("')' expected");
 			if (ip instanceof ColorProcessor)
 				ip.set(a1, (int)a2);
 			else
 				ip.setf(a1, (float)a2);
+			updateNeeded = true;
 		}
+	}
+
+	/** Sets the pixel at (a1,a2) of 'ip' as setPixel(x,y,value) does. */
+	void setPixel(ImageProcessor ip, int a1, double a2, double a3) {
+		if (ip instanceof FloatProcessor)
+			ip.putPixelValue(a1, (int)a2, a3);
+		else
+			ip.putPixel(a1, (int)a2, (int)a3);
 		updateNeeded = true;
 	}
 
@@ -848,19 +952,7 @@ public class Functions implements MacroConstants, Measurements {
 		if (interp.token==',') {
 			double a2 = interp.getExpression();
 			interp.getRightParen();
-			int ia1 = (int)a1;
-			int ia2 = (int)a2;
-			if (a1==ia1 && a2==ia2) {
-				if (ip instanceof FloatProcessor)
-					value = ip.getPixelValue(ia1, ia2);
-				else
-					value = ip.getPixel(ia1, ia2);
-			} else {
-				if (ip instanceof ColorProcessor)
-					value = ip.getPixelInterpolated(a1, a2);
-				else
-					value = ip.getInterpolatedValue(a1, a2);
-			}
+			value = getPixel(ip, a1, a2);
 		} else {
 			if (interp.token!=')') interp.error("')' expected");
 			if (ip instanceof ColorProcessor)
@@ -870,6 +962,24 @@ public class Functions implements MacroConstants, Measurements {
 		}
 		return value;
 	}
+
+	/** Returns the value of the pixel at (a1,a2) of 'ip' as getPixel(x,y)
+		does, interpolated if the coordinates are not integers. */
+	double getPixel(ImageProcessor ip, double a1, double a2) {
+		int ia1 = (int)a1;
+		int ia2 = (int)a2;
+		if (a1==ia1 && a2==ia2) {
+			if (ip instanceof FloatProcessor)
+				return ip.getPixelValue(ia1, ia2);
+			else
+				return ip.getPixel(ia1, ia2);
+		} else {
+			if (ip instanceof ColorProcessor)
+				return ip.getPixelInterpolated(a1, a2);
+			else
+				return ip.getInterpolatedValue(a1, a2);
+		}
+	}
 	
 	void setZCoordinate() {
 		int z = (int)getArg();
@@ -1345,7 +1455,7 @@ public class Functions implements MacroConstants, Measurements {
 		yCoordinates.setArray(ya);
 	}
 	
-	Variable[] getProfile() {
+	Variable getProfile() {
 		interp.getParens();
 		ImagePlus imp = getImage();
 		if (imp.getRoi()==null)
@@ -1355,13 +1465,13 @@ public class Functions implements MacroConstants, Measurements {
 		if (array==null)
 			{interp.done=true; return null;}
 		else
-			return new Variable(array).getArray();
+			return new Variable(array);
 	}
 
-	Variable[] newArray() {
+	Variable newArray() {
 		if (interp.nextToken()!='(' || interp.nextNextToken()==')') {
 			interp.getParens();
-			return new Variable[0];
+			return new Variable(new double[0]);
 		}
 		interp.getLeftParen();
 		int next = interp.nextToken();
@@ -1372,10 +1482,7 @@ public class Functions implements MacroConstants, Measurements {
 		int size = (int)interp.getExpression();
 		if (size<0) interp.error("Negative array size");
 		interp.getRightParen();
-    	Variable[] array = new Variable[size];
-    	for (int i=0; i<size; i++)
-    		array[i] = new Variable();
-    	return array;
+    	return new Variable(new double[size]);
 	}
 	
 	Variable[] split() {
@@ -1441,14 +1548,16 @@ public class Functions implements MacroConstants, Measurements {
     	return array;
 	}
 	
-	Variable[] initNewArray() {
+	Variable initNewArray() {
 		Vector vector = new Vector();
 		int size = 0;
+		boolean strings = false;
 		do {
 			Variable v = new Variable();
-			if (isStringArg())
+			if (isStringArg()) {
 				v.setString(getString());
-			else
+				strings = true;
+			} else
 				v.setValue(interp.getExpression());
 			vector.addElement(v);
 			size++;
@@ -1461,12 +1570,14 @@ public class Functions implements MacroConstants, Measurements {
 		if (array.length==1 && array[0].getString()==null) {
 			size = (int)array[0].getValue();
 			if (size<0) interp.error("Negative array size");
-			Variable[] array2 = new Variable[size];
+			return new Variable(new double[size]);
+		} else if (!strings) {
+			double[] values = new double[size];
 			for (int i=0; i<size; i++)
-				array2[i] = new Variable();
-			return array2;
+				values[i] = array[i].getValue();
+			return new Variable(values);
 		} else
-			return array;
+			return new Variable(0, 0.0, null, array);
 	}
 
 	String fromCharCode() {
@@ -1701,8 +1812,7 @@ public class Functions implements MacroConstants, Measurements {
 				if (s!=null)
 					length = s.length();
 				else {
-					Variable[] array = v.getArray();
-					if (array!=null)
+					if (v.getType()==Variable.ARRAY)
 						length = v.getArraySize();
 					else
 						interp.error("String or array expected");
@@ -1787,17 +1897,11 @@ public class Functions implements MacroConstants, Measurements {
 		} else 
 			interp.getRightParen();
 		if (nBins==65536 && bitDepth==16) {
-			Variable[] array = counts.getArray();
 			ImageProcessor ip = imp.getProcessor();
 			Roi roi = imp.getRoi();
 			if (roi!=null)
 				ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			if (array!=null && array.length==nBins) {
-				for (int i=0; i<nBins; i++)
-					array[i].setValue(hist[i]);
-			} else
-				counts.setArray(new Variable(hist).getArray());
+			setArrayValues(counts, ip.getHistogram());
 			return;
 		}
 		ImageStatistics stats;
@@ -1823,14 +1927,27 @@ public class Functions implements MacroConstants, Measurements {
 				array[i] = value;
 				value += inc;
 			}
-			values.setArray(new Variable(array).getArray());
+			values.setDoubleArray(array);
+		}
+		setArrayValues(counts, stats.histogram);
+	}
+
+	/* Copies 'values' into the array of 'v' if it has the same
+		length, otherwise makes 'v' a new array. */
+	private void setArrayValues(Variable v, int[] values) {
+		int n = values.length;
+		double[] d = v.getDoubleArray();
+		if (d!=null && d.length==n) {
+			for (int i=0; i<n; i++)
+				d[i] = values[i];
+			return;
 		}
-		Variable[] array = counts.getArray();
-		if (array!=null && array.length==nBins) {
-			for (int i=0; i<nBins; i++)
-				array[i].setValue(stats.histogram[i]);
+		Variable[] array = d==null?v.getArray():null;
+		if (array!=null && array.length==n) {
+			for (int i=0; i<n; i++)
+				array[i].setValue(values[i]);
 		} else
-			counts.setArray(new Variable(stats.histogram).getArray());
+			v.shareArray(new Variable(values));
 	}
 	
 	void getLut() {
@@ -1854,9 +1971,9 @@ public class Functions implements MacroConstants, Measurements {
 		cm.getReds(rLUT); 
 		cm.getGreens(gLUT); 
 		cm.getBlues(bLUT);
-		reds.setArray(new Variable(rLUT).getArray());
-		greens.setArray(new Variable(gLUT).getArray());
-		blues.setArray(new Variable(bLUT).getArray());
+		reds.shareArray(new Variable(rLUT));
+		greens.shareArray(new Variable(gLUT));
+		blues.shareArray(new Variable(bLUT));
 	}
 
 	void setLut() {
@@ -2491,8 +2608,9 @@ public class Functions implements MacroConstants, Measurements {
 		boolean open = WindowManager.getWindow(title)!=null;
 		if (open)
 			return true;
-		else if (Interpreter.isBatchMode() && Interpreter.imageTable!=null) {
-			for (Enumeration en=Interpreter.imageTable.elements(); en.hasMoreElements();) {
+		Vector images = Interpreter.getBatchModeImages();
+		if (Interpreter.isBatchMode() && images!=null) {
+			for (Enumeration en=images.elements(); en.hasMoreElements();) {
 				ImagePlus imp = (ImagePlus)en.nextElement();
 				if (imp!=null && imp.getTitle().equals(title))
 					return true;
@@ -2511,6 +2629,8 @@ public class Functions implements MacroConstants, Measurements {
 		int type = v.getType();
 		if (type!=Variable.ARRAY)
 			return v.getType()==Variable.STRING;
+		if (v.getDoubleArray()!=null)
+			return false;
 		Variable[] array = v.getArray();
 		if (array.length==0) return false;
 		return array[0].getType()==Variable.STRING;
@@ -2524,7 +2644,10 @@ public class Functions implements MacroConstants, Measurements {
 				msg = getString();
 			interp.getRightParen();
 		}
-		interp.finishUp();
+		if (interp.parallelWorker)
+			interp.done = true; // the caller ends the macro
+		else
+			interp.finishUp();
 		if (msg!=null)
 			IJ.showMessage("Macro", msg);
 		throw new RuntimeException(Macro.MACRO_CANCELED);
@@ -2866,8 +2989,9 @@ public class Functions implements MacroConstants, Measurements {
 	
 	void selectImage(String title) {
 		if (Interpreter.isBatchMode()) {
-			if (Interpreter.imageTable!=null) {
-				for (Enumeration en=Interpreter.imageTable.elements(); en.hasMoreElements();) {
+			Vector images = Interpreter.getBatchModeImages();
+			if (images!=null) {
+				for (Enumeration en=images.elements(); en.hasMoreElements();) {
 					ImagePlus imp = (ImagePlus)en.nextElement();
 					if (imp!=null) {
 						if (imp.getTitle().equals(title)) {
@@ -2967,6 +3091,8 @@ public class Functions implements MacroConstants, Measurements {
 	}
 
  	void setBatchMode() {
+		if (interp.parallelWorker)
+			interp.error("setBatchMode() is not supported in parallelMap() functions");
 		boolean enterBatchMode = false;
 		String sarg = null;
 		interp.getLeftParen();
@@ -4194,6 +4320,8 @@ public class Functions implements MacroConstants, Measurements {
 			Wand.setAllPoints(state);
 		else if (arg1.startsWith("expandablearrays"))
 			expandableArrays = state;
+		else if (arg1.startsWith("compiledloops"))
+			interp.compileLoops = state;
 		else if (arg1.startsWith("loop"))
 			Calibration.setLoopBackAndForth(state);
 		else if (arg1.startsWith("jfilechooser"))
@@ -5204,7 +5332,7 @@ public class Functions implements MacroConstants, Measurements {
 		return null;
 	}
 	
-	Variable[] doArray() {
+	Variable doArray() {
 		interp.getToken();
 		if (interp.token!='.')
 			interp.error("'.' expected");
@@ -5244,14 +5372,22 @@ public class Functions implements MacroConstants, Measurements {
 			return showArray();
 		else if (name.equals("fourier"))
 			return fourierArray();
+		else if (name.equals("parallelMap"))
+			return parallelMap();
+		else if (name.equals("getPixels"))
+			return getPixelArray();
+		else if (name.equals("setPixels"))
+			return setPixelArray();
+		else if (name.equals("apply"))
+			return applyToArray();
 		else
 			interp.error("Unrecognized Array function");
 		return null;
 	}
 	
-	Variable[] fourierArray() {
+	Variable fourierArray() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		double[] a = getNumericArray();
 		int windowType = FHT.NO_WINDOW;
 		if (interp.nextToken()==',') {
 			interp.getComma();
@@ -5269,36 +5405,38 @@ public class Functions implements MacroConstants, Measurements {
 		int n = a.length;
 		float[] data = new float[n];
 		for (int i=0; i<n; i++)
-			data[i] = (float)a[i].getValue();
+			data[i] = (float)a[i];
 		float[] result = new FHT().fourier1D(data, windowType);
 		int n2 = result.length;
-		Variable[] a2 = new Variable[n2];
+		double[] a2 = new double[n2];
 		for (int i=0; i<n2; i++)
-			a2[i] = new Variable(result[i]);
-		return a2;
+			a2[i] = result[i];
+		return new Variable(a2);
 	}
 	
-	Variable[] printArray() {
+	Variable printArray() {
 		String prefix = null;
 		interp.getLeftParen();
 		if (!isArrayArg() && isStringArg()) {
 			prefix = getString();
 			interp.getComma();
 		}
-		Variable[] a = getArray();
+		Variable v = getArrayArg();
 		interp.getRightParen();
-		int len = a.length;
+		double[] values = v.getDoubleArray();
+		Variable[] a = values==null?v.getArray():null;
+		int len = values!=null?values.length:a.length;
 		StringBuffer sb = new StringBuffer(len);
 		if (prefix!=null)
 			sb.append(prefix+" ");
 		for (int i=0; i<len; i++) {
-			String s = a[i].getString();
+			String s = values!=null?null:a[i].getString();
 			if (s==null) {
-				double v = a[i].getValue();
-				if ((int)v==v)
-					s = IJ.d2s(v,0);
+				double value = values!=null?values[i]:a[i].getValue();
+				if ((int)value==value)
+					s = IJ.d2s(value,0);
 				else
-					s = ResultsTable.d2s(v,4);
+					s = ResultsTable.d2s(value,4);
 			}
 			sb.append(s);
 			if (i!=len-1)
@@ -5308,43 +5446,64 @@ public class Functions implements MacroConstants, Measurements {
 		return null;
 	}
 
-	Variable[] concatArray() {
+	Variable concatArray() {
 		interp.getLeftParen();
 		ArrayList list = new ArrayList();
-		int len = 0;
+		boolean numbers = true;
 		do {
 			if (isArrayArg()) {
-				Variable[] a = getArray();
-				for (int i=0; i<a.length; i++) {
-					list.add((Variable)a[i].clone());
-					len++;
-				}
-			} else if (isStringArg()) {
-				Variable v = new Variable();
-				v.setString(getString());
-				list.add(v);
-				len++;
-			} else {
-				Variable v = new Variable();
-				v.setValue(interp.getExpression());
+				Variable v = getArrayArg();
+				if (v.getDoubleArray()==null)
+					numbers = false;
 				list.add(v);
-				len++;
-			}
+			} else if (isStringArg()) {
+				list.add(getString());
+				numbers = false;
+			} else
+				list.add(new Double(interp.getExpression()));
 			interp.getToken();				
 		} while (interp.token==',');
+		int len = 0;
+		for (int i=0; i<list.size(); i++) {
+			Object item = list.get(i);
+			len += item instanceof Variable?((Variable)item).getArraySize():1;
+		}
+		if (numbers) {
+			double[] a2 = new double[len];
+			int index = 0;
+			for (int i=0; i<list.size(); i++) {
+				Object item = list.get(i);
+				if (item instanceof Variable) {
+					double[] values = ((Variable)item).getDoubleArray();
+					System.arraycopy(values, 0, a2, index, values.length);
+					index += values.length;
+				} else
+					a2[index++] = ((Double)item).doubleValue();
+			}
+			return new Variable(a2);
+		}
 		Variable[] a2 = new Variable[len];
 		int index = 0;
 		for (int i=0; i<list.size(); i++) {
-			Variable v = (Variable)list.get(i);
-			a2[index++] = v;
+			Object item = list.get(i);
+			if (item instanceof Variable) {
+				Variable[] a = ((Variable)item).getArray();
+				for (int j=0; j<a.length; j++)
+					a2[index++] = (Variable)a[j].clone();
+			} else if (item instanceof String) {
+				Variable v = new Variable();
+				v.setString((String)item);
+				a2[index++] = v;
+			} else
+				a2[index++] = new Variable(((Double)item).doubleValue());
 		}
-		return a2;
+		return new Variable(0, 0.0, null, a2);
 	}
 
-	Variable[] sliceArray() {
+	Variable sliceArray() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
-		int len = a.length;
+		Variable v = getArrayArg();
+		int len = v.getArraySize();
 		int i1 = (int)getNextArg();
 		int i2 = len;
 		if (interp.nextToken()==',') {
@@ -5358,17 +5517,27 @@ public class Functions implements MacroConstants, Measurements {
 		if (len2<0) len2=0;
 		if (len2>len) len2=len;
 		interp.getRightParen();
+		double[] values = v.getDoubleArray();
+		if (values!=null) {
+			double[] a2 = new double[len2];
+			System.arraycopy(values, i1, a2, 0, len2);
+			return new Variable(a2);
+		}
+		Variable[] a = v.getArray();
 		Variable[] a2 = new Variable[len2];
 		for (int i=0; i<len2; i++)
 			a2[i] = (Variable)a[i1++].clone();
-		return a2;
+		return new Variable(0, 0.0, null, a2);
 	}
 	
-	Variable[] copyArray() {
+	Variable copyArray() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		Variable v = getArrayArg();
 		interp.getRightParen();
-		return duplicate(a);
+		double[] values = v.getDoubleArray();
+		if (values!=null)
+			return new Variable((double[])values.clone());
+		return new Variable(0, 0.0, null, duplicate(v.getArray()));
 	}
 	
 	Variable[] duplicate(Variable[] a1) {
@@ -5378,23 +5547,33 @@ public class Functions implements MacroConstants, Measurements {
 		return a2;
 	}
 		
-	Variable[] trimArray() {
+	Variable trimArray() {
 		interp.getLeftParen();
-		Variable[] a1 = getArray();
-		int len = a1.length;
+		Variable v = getArrayArg();
+		int len = v.getArraySize();
 		int size = (int)getLastArg();
 		if (size<0) size = 0;
 		if (size>len) size = len;
+		double[] values = v.getDoubleArray();
+		if (values!=null)
+			return new Variable(Arrays.copyOf(values, size));
+		Variable[] a1 = v.getArray();
 		Variable[] a2 = new Variable[size];
 		for (int i=0; i<size; i++)
 			a2[i] = (Variable)a1[i].clone();
-		return a2;
+		return new Variable(0, 0.0, null, a2);
 	}
 
-	Variable[] sortArray() {
+	Variable sortArray() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		Variable v = getArrayArg();
 		interp.getRightParen();
+		double[] values = v.getDoubleArray();
+		if (values!=null) {
+			Arrays.sort(values);
+			return v;
+		}
+		Variable[] a = v.getArray();
 		int len = a.length;
 		int nNumbers = 0;
 		for (int i=0; i<len; i++) {
@@ -5417,13 +5596,17 @@ public class Functions implements MacroConstants, Measurements {
 				a[i].setString(s[i]);
 		} else
 			interp.error("Mixed strings and numbers");
-		return a;
+		return v;
 	}
 	
-	Variable[] getRankPositions() {
+	Variable getRankPositions() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		Variable v = getArrayArg();
 		interp.getRightParen();
+		double[] values = v.getDoubleArray();
+		if (values!=null)
+			return new Variable(Tools.rank(values));
+		Variable[] a = v.getArray();
 		int len = a.length;
 		int nNumbers = 0;
 		for (int i = 0; i < len; i++) {
@@ -5432,9 +5615,8 @@ public class Functions implements MacroConstants, Measurements {
 		}
 		if (nNumbers!=len && nNumbers!=0) {
 			interp.error("Mixed strings and numbers");
-			return a;
+			return v;
 		}
-		Variable[] varArray = new Variable[len];
 		int[] indexes;
 		if (nNumbers==len) {
 			double[] doubles = new double[len];
@@ -5447,14 +5629,12 @@ public class Functions implements MacroConstants, Measurements {
 				strings[i] = a[i].getString();
 			indexes = Tools.rank(strings);
 		}
-		for (int i=0; i<len; i++)
-			varArray[i] = new Variable((double) indexes[i]);
-		return varArray;
+		return new Variable(indexes);
 	}
     
-    Variable[] getArrayStatistics() {
+    Variable getArrayStatistics() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		Variable v = getArrayArg();
 		Variable minv = getNextVariable();
 		Variable maxv=null, mean=null, std=null;
 		interp.getToken();
@@ -5470,12 +5650,14 @@ public class Functions implements MacroConstants, Measurements {
 			interp.getToken();
 		}
 		if (interp.token!=')') interp.error("')' expected");
-		int n = a.length;
+		double[] values = v.getDoubleArray();
+		Variable[] a = values==null?v.getArray():null;
+		int n = values!=null?values.length:a.length;
 		double sum=0.0, sum2=0.0, value;
 		double min = Double.POSITIVE_INFINITY;
 		double max = Double.NEGATIVE_INFINITY;
 		for (int i=0; i<n; i++) {
-			value = a[i].getValue();
+			value = values!=null?values[i]:a[i].getValue();
 			sum += value;
 			sum2 += value*value;
 			if (value<min) min = value;
@@ -5489,41 +5671,39 @@ public class Functions implements MacroConstants, Measurements {
 			stdDev = Math.sqrt(stdDev/(n-1.0));
 			std.setValue(stdDev);
 		}
-		return a;
+		return v;
 	}
 
-	Variable[] getSequence() {
+	Variable getSequence() {
 		int n = (int)getArg();
-		Variable[] a = new Variable[n];
+		double[] a = new double[n];
 		for (int i=0; i<n; i++)
-			a[i] = new Variable(i);
-		return a;
+			a[i] = i;
+		return new Variable(a);
 	}
 	
-	Variable[] fillArray() {
+	Variable fillArray() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
-		double v = getLastArg();
-		for (int i=0; i<a.length; i++)
-			a[i].setValue(v);
-		return a;
+		Variable v = getArrayArg();
+		double value = getLastArg();
+		double[] values = v.getDoubleArray();
+		if (values!=null)
+			Arrays.fill(values, value);
+		else {
+			Variable[] a = v.getArray();
+			for (int i=0; i<a.length; i++)
+				a[i].setValue(value);
+		}
+		return v;
 	}
 	
-	Variable[] resampleArray() {
+	Variable resampleArray() {
 		interp.getLeftParen();
-		Variable[] a1 = getArray();
-		int len1 = a1.length;
+		double[] d1 = getNumericArray();
 		int len2 = (int)getLastArg();
 		if (len2<=0)
 			interp.error("Length<=0");
-		double[] d1 = new double[len1];
-		for (int i=0; i<len1; i++)
-			d1[i] = a1[i].getValue();
-		double[] d2 = resampleArray(d1, len2);
-		Variable[] a2 = new Variable[len2];
-		for (int i=0; i<len2; i++)
-			a2[i] = new Variable(d2[i]);
-		return a2;
+		return new Variable(resampleArray(d1, len2));
 	}
 
 	private static double[] resampleArray(double[] y1, int len2) {
@@ -5548,23 +5728,34 @@ public class Functions implements MacroConstants, Measurements {
 		return y2;
 	}	
 
-	Variable[] reverseArray() {
+	Variable reverseArray() {
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		Variable v = getArrayArg();
 		interp.getRightParen();
+		double[] values = v.getDoubleArray();
+		if (values!=null) {
+			int n = values.length;
+			for (int i=0; i<n/2; i++) {
+				double temp = values[i];
+				values[i] = values[n-i-1];
+				values[n-i-1] = temp;
+			}
+			return v;
+		}
+		Variable[] a = v.getArray();
 		int n = a.length;
 		for (int i=0; i<n/2; i++) {
 			Variable temp = a[i];
 			a[i] = a[n-i-1];
 			a[n-i-1] = temp;
 		}
-		return a;
+		return v;
 	}
 	
-	Variable[] findArrayMaxima(boolean minima) {
+	Variable findArrayMaxima(boolean minima) {
 		boolean excludeOnEdges = false;
 		interp.getLeftParen();
-		Variable[] a = getArray();
+		double[] d = getNumericArray();
 		double tolerance = getNextArg();
 		if (interp.nextToken()==',') {
 			interp.getComma();
@@ -5573,23 +5764,285 @@ public class Functions implements MacroConstants, Measurements {
 			excludeOnEdges = arg==0?false:true;
 		}
 		interp.getRightParen();
-		int n = a.length;
-		double[] d = new double[n];
-		for (int i=0; i<n; i++)
-			d[i] = a[i].getValue();
 		int[] maxima = null;
 		if (minima)
 			maxima = MaximumFinder.findMinima(d, tolerance, excludeOnEdges);
 		else
 			maxima = MaximumFinder.findMaxima(d, tolerance, excludeOnEdges);
-		int n2 = maxima.length;
-		Variable[] a2 = new Variable[n2];
-		for (int i=0; i<n2; i++)
-			a2[i] = new Variable(maxima[i]);
-		return a2;
+		return new Variable(maxima);
+	}
+
+	/* Array.parallelMap(n, "function") calls function(i) for i=0..n-1 on
+		Prefs.getThreads() threads and returns an array with the return values.
+		Each thread has its own interpreter, with copies of the global variables,
+		and its own current image, an ImagePlus over the stack of the current
+		image of the calling macro. setSlice(), selections and measurements
+		thus do not interfere between threads, while pixel changes are made
+		in the shared stack. Images opened in batch mode by a thread are kept
+		in its own table and added to the macro's images when all threads are
+		done; setBatchMode() cannot be called in the function. */
+	/* An ImagePlus with the same stack, dimensions, calibration, slice and ROI as 'imp' */
+	private static ImagePlus getWorkerImage(ImagePlus imp) {
+		ImagePlus imp2 = new ImagePlus(imp.getTitle(), imp.getStack());
+		imp2.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		imp2.setOpenAsHyperStack(imp.isHyperStack());
+		imp2.setCalibration(imp.getCalibration());
+		imp2.setSlice(imp.getCurrentSlice());
+		Roi roi = imp.getRoi();
+		if (roi!=null)
+			imp2.setRoi((Roi)roi.clone());
+		return imp2;
+	}
+
+	Variable parallelMap() {
+		interp.getLeftParen();
+		final int n = (int)interp.getExpression();
+		interp.getComma();
+		String name = getString();
+		interp.getRightParen();
+		int location = -1;
+		Symbol[] table = pgm.getSymbolTable();
+		for (int i=0; i<=pgm.stLoc; i++) {
+			if (table[i]!=null && table[i].type==USER_FUNCTION && name.equals(table[i].str))
+				location = (int)table[i].value;
+		}
+		if (location==-1)
+			interp.error("\""+name+"\" function not found");
+		if (n<0)
+			interp.error("Negative count");
+		final Variable[] results = new Variable[n];
+		final Interpreter[] workers = new Interpreter[Math.min(Prefs.getThreads(), Math.max(n,1))];
+		for (int t=0; t<workers.length; t++)
+			workers[t] = interp.createWorker();
+		final ImagePlus imp = WindowManager.getCurrentImage();
+		final int start = location;
+		final AtomicInteger next = new AtomicInteger(0);
+		final Throwable[] error = new Throwable[1];
+		final Interpreter[] failed = new Interpreter[1];
+		final Vector[] images = new Vector[workers.length];
+		Thread[] threads = new Thread[workers.length];
+		for (int t=0; t<threads.length; t++) {
+			final Interpreter worker = workers[t];
+			final ImagePlus workerImage = imp!=null?getWorkerImage(imp):null;
+			final Vector workerImages = images[t] = new Vector();
+			threads[t] = new Thread("Macro-"+t) {
+				public void run() {
+					if (workerImage!=null)
+						WindowManager.setTempCurrentImage(workerImage);
+					Interpreter.workerImageTables.put(Thread.currentThread(), workerImages);
+					try {
+						for (int i=next.getAndIncrement(); i<n && !worker.done; i=next.getAndIncrement())
+							results[i] = worker.callFunction(start, i);
+					} catch (Throwable e) {
+						synchronized (error) {
+							if (error[0]==null) {
+								error[0] = e;
+								failed[0] = worker;
+							}
+						}
+						for (int j=0; j<workers.length; j++)
+							workers[j].done = true;
+					} finally {
+						Interpreter.workerImageTables.remove(Thread.currentThread());
+						WindowManager.setTempCurrentImage(null);
+					}
+				}
+			};
+		}
+		interp.workers = workers;
+		try {
+			ThreadUtil.startAndJoin(threads);
+		} finally {
+			interp.workers = null;
+		}
+		for (int t=0; t<images.length; t++) {
+			for (int i=0; i<images[t].size(); i++)
+				Interpreter.addBatchModeImage((ImagePlus)images[t].elementAt(i));
+		}
+		if (error[0]!=null) {
+			if (failed[0].workerError!=null) {
+				interp.pc = failed[0].workerErrorPC;
+				interp.error(failed[0].workerError);
+			} else if (!Macro.MACRO_CANCELED.equals(error[0].getMessage())) {
+				String msg = error[0].getMessage();
+				interp.error(error[0].getClass().getName()+(msg!=null?": "+msg:""));
+			}
+			interp.done = true;
+			throw new RuntimeException(Macro.MACRO_CANCELED);
+		}
+		if (interp.done)
+			return new Variable(new double[0]);
+		boolean strings = false;
+		for (int i=0; i<n; i++) {
+			if (results[i]==null || results[i].getType()==Variable.ARRAY)
+				interp.error("\""+name+"\" must return a number or a string");
+			if (results[i].getType()==Variable.STRING)
+				strings = true;
+		}
+		if (strings)
+			return new Variable(0, 0.0, null, results);
+		double[] values = new double[n];
+		for (int i=0; i<n; i++)
+			values[i] = results[i].getValue();
+		return new Variable(values);
 	}
 
-	Variable[] showArray() {
+	/* Array.getPixels(x, y, width, height) returns the values of the pixels
+		in a rectangle, row by row, as getPixel(x,y) would return them. With
+		no arguments, returns the whole image. */
+	Variable getPixelArray() {
+		interp.getLeftParen();
+		ImageProcessor ip = getProcessor();
+		Rectangle r = getPixelRect(ip, false);
+		int width = ip.getWidth();
+		Object pixels = ip.getPixels();
+		double[] values = new double[r.width*r.height];
+		int i = 0;
+		for (int y=r.y; y<r.y+r.height; y++) {
+			int offset = y*width + r.x;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int x=0; x<r.width; x++)
+					values[i++] = p[offset+x]&255;
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int x=0; x<r.width; x++)
+					values[i++] = p[offset+x]&0xffff;
+			} else if (pixels instanceof float[]) {
+				float[] p = (float[])pixels;
+				for (int x=0; x<r.width; x++)
+					values[i++] = p[offset+x];
+			} else {
+				int[] p = (int[])pixels;
+				for (int x=0; x<r.width; x++)
+					values[i++] = p[offset+x]&0xffffff;
+			}
+		}
+		return new Variable(values);
+	}
+
+	/* Array.setPixels(array, x, y, width, height) sets the pixels in a
+		rectangle, row by row, as setPixel(x,y,value) would set them. With
+		only the array argument, sets the whole image. */
+	Variable setPixelArray() {
+		interp.getLeftParen();
+		Variable v = getArrayArg();
+		double[] values = v.getDoubleArray();
+		if (values==null) {
+			Variable[] a = v.getArray();
+			values = new double[a.length];
+			for (int i=0; i<a.length; i++) {
+				if (a[i].getType()!=Variable.VALUE)
+					interp.error("Numeric array expected");
+				values[i] = a[i].getValue();
+			}
+		}
+		ImageProcessor ip = getProcessor();
+		Rectangle r = getPixelRect(ip, true);
+		if (values.length!=r.width*r.height)
+			interp.error("Array length ("+values.length+") does not match rectangle size ("+r.width*r.height+")");
+		int width = ip.getWidth();
+		Object pixels = ip.getPixels();
+		int i = 0;
+		for (int y=r.y; y<r.y+r.height; y++) {
+			int offset = y*width + r.x;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int x=0; x<r.width; x++) {
+					int value = (int)values[i++];
+					if (value<0) value = 0;
+					if (value>255) value = 255;
+					p[offset+x] = (byte)value;
+				}
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int x=0; x<r.width; x++) {
+					int value = (int)values[i++];
+					if (value<0) value = 0;
+					if (value>65535) value = 65535;
+					p[offset+x] = (short)value;
+				}
+			} else if (pixels instanceof float[]) {
+				float[] p = (float[])pixels;
+				for (int x=0; x<r.width; x++)
+					p[offset+x] = (float)values[i++];
+			} else {
+				int[] p = (int[])pixels;
+				for (int x=0; x<r.width; x++)
+					p[offset+x] = (int)values[i++];
+			}
+		}
+		updateNeeded = true;
+		return null;
+	}
+
+	/* Reads the optional (x, y, width, height) arguments of Array.getPixels()
+		and Array.setPixels(), and the right parenthesis. */
+	private Rectangle getPixelRect(ImageProcessor ip, boolean afterArray) {
+		Rectangle r = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+		if (interp.nextToken()!=')') {
+			if (afterArray)
+				interp.getComma();
+			r.x = (int)interp.getExpression();
+			r.y = (int)getNextArg();
+			r.width = (int)getNextArg();
+			r.height = (int)getNextArg();
+			if (r.width<0 || r.height<0 || r.x<0 || r.y<0 || r.x+r.width>ip.getWidth() || r.y+r.height>ip.getHeight())
+				interp.error("Rectangle out of range");
+		}
+		interp.getRightParen();
+		return r;
+	}
+
+	/* Array.apply(array, code) returns a new array, the result of running
+		'code' for each element, with the element in 'v' and its index in 'i'.
+		The code is restricted to what Process>Math>Macro can compile: numeric
+		variables, operators, if/else and math functions. */
+	Variable applyToArray() {
+		interp.getLeftParen();
+		Variable v = getArrayArg();
+		String code = getNextString();
+		interp.getRightParen();
+		final PixelExpression pe = PixelExpression.compile((new Tokenizer()).tokenize(code+";\n"), 0, new String[] {"v","i"});
+		if (pe==null || pe.assigns("i"))
+			interp.error("Code not supported by Array.apply");
+		double[] values = v.getDoubleArray();
+		final double[] result = new double[v.getArraySize()];
+		if (values!=null)
+			System.arraycopy(values, 0, result, 0, result.length);
+		else {
+			Variable[] a = v.getArray();
+			for (int i=0; i<result.length; i++) {
+				if (a[i].getType()!=Variable.VALUE)
+					interp.error("Numeric array expected");
+				result[i] = a[i].getValue();
+			}
+		}
+		final int chunkSize = 4096;
+		final int nChunks = (result.length+chunkSize-1)/chunkSize;
+		final AtomicInteger nextChunk = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.max(1, Math.min(Prefs.getThreads(), nChunks))];
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("Array.apply-"+t) {
+				public void run() {
+					double[][] regs = pe.newRegisters(chunkSize);
+					for (int chunk=nextChunk.getAndIncrement(); chunk<nChunks; chunk=nextChunk.getAndIncrement()) {
+						int offset = chunk*chunkSize;
+						int n = Math.min(chunkSize, result.length-offset);
+						System.arraycopy(result, offset, regs[0], 0, n);
+						for (int i=0; i<n; i++)
+							regs[1][i] = offset + i;
+						pe.evaluate(regs, n);
+						System.arraycopy(regs[0], 0, result, offset, n);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		return new Variable(result);
+	}
+
+	Variable showArray() {
 		int maxLength = 0;
 		String title = "Arrays";
 		ArrayList arrays = new ArrayList();
@@ -6140,6 +6593,42 @@ public class Functions implements MacroConstants, Measurements {
 		}
 	}
 	
+	/* Profiler.start(), Profiler.stop(), Profiler.show() and
+		Profiler.reset() control the macro profiler. */
+	String doProfiler() {
+		interp.getToken();
+		if (interp.token!='.')
+			interp.error("'.' expected");
+		interp.getToken();
+		if (interp.token!=WORD)
+			interp.error("Function name expected: ");
+		String name = interp.tokenString;
+		interp.getParens();
+		if (name.equals("start")) {
+			if (profile==null)
+				profile = new Profiler(pgm);
+			profile.start();
+			interp.profiler = profile;
+		} else if (name.equals("stop")) {
+			if (profile!=null)
+				profile.stop();
+			interp.profiler = null;
+		} else if (name.equals("reset")) {
+			profile = null;
+			if (interp.profiler!=null) {
+				profile = new Profiler(pgm);
+				profile.start();
+				interp.profiler = profile;
+			}
+		} else if (name.equals("show")) {
+			if (profile==null)
+				interp.error("Profiler not started");
+			profile.getResultsTable().show("Macro Profile");
+		} else
+			interp.error("Unrecognized Profiler function");
+		return null;
+	}
+
 	String doRoi() {
 		interp.getToken();
 		if (interp.token!='.')
@@ -32,6 +32,8 @@ public class Interpreter implements MacroConstants {
 	int prefixValue;
 	
 	Variable[] stack;
+	int[] bindings; // symbol table address -> stack index of innermost variable, or -1
+	int[] shadowed; // stack index -> stack index of the variable it hides, or -1
 	int topOfStack = -1;
 	int topOfGlobals = -1;
 	int startOfLocals = 0;
@@ -39,7 +41,7 @@ public class Interpreter implements MacroConstants {
 	static Interpreter instance, previousInstance;
 	public static boolean batchMode;
 	static Vector imageTable; // images opened in batch mode
-	boolean done;
+	volatile boolean done; // set by abortMacro(), possibly on another thread
 	Program pgm;
 	Functions func;
 	boolean inFunction;
@@ -59,6 +61,15 @@ public class Interpreter implements MacroConstants {
 	ImagePlus batchMacroImage;
 	boolean inLoop;
 	int loopDepth;
+	boolean compileLoops = true;
+	HashMap compiledLoops; // loop pc -> CompiledLoop, or Boolean.FALSE if the loop cannot be compiled
+	static final int COMPILE_THRESHOLD = 100; // iterations before a loop is compiled
+	Interpreter[] workers; // interpreters running Array.parallelMap() iterations
+	boolean parallelWorker; // true if this interpreter is one of them
+	String workerError; // error message of a parallelMap() worker, reported by the caller
+	int workerErrorPC;
+	static Hashtable workerImageTables = new Hashtable(); // Thread -> images opened in batch mode by a worker
+	Profiler profiler; // not null while the macro is being profiled
 	static boolean tempShowMode;
 	boolean waitingForUser;
 	int selectCount;
@@ -78,8 +89,7 @@ public class Interpreter implements MacroConstants {
 				macro = macro + additionalFunctions;
 		}
 		IJ.resetEscape();
-		Tokenizer tok = new Tokenizer();
-		Program pgm = tok.tokenize(macro);
+		Program pgm = ProgramCache.get(macro);
 		if (pgm.hasVars && pgm.hasFunctions)
 			saveGlobals2(pgm);
 		run(pgm);
@@ -118,6 +128,7 @@ public class Interpreter implements MacroConstants {
 
 	/** Runs an existing macro starting at the specified program counter location. */
 	public void run(int location) {
+		unbindAbove(topOfGlobals);
 		topOfStack = topOfGlobals;
 		done = false;
 		pc = location-1;
@@ -179,6 +190,7 @@ public class Interpreter implements MacroConstants {
 		instance = null;
 		pgm.saveGlobals(this);
 		pc = -1;
+		unbindAbove(-1);
 		topOfStack = -1;
 		done = false;
 	}
@@ -220,6 +232,8 @@ public class Interpreter implements MacroConstants {
 
 	final void doStatement() {
 		getToken();
+		if (profiler!=null && token!=';')
+			profiler.line(pgm.lineNumbers[pc]);
 		if (debugMode!=Debugger.NOT_DEBUGGING && debugger!=null && !done && token!=';' && token!=FUNCTION)
 			debugger.debug(this, debugMode);
 		switch (token) {
@@ -283,7 +297,7 @@ public class Interpreter implements MacroConstants {
 				if (s!=null && s.length()>0 && !s.equals("NaN") && !s.equals("[aborted]"))
 					IJ.log(s);
 				return;
-			case ARRAY_FUNCTION: func.getArrayFunction(pgm.table[tokenAddress].type); break;
+			case ARRAY_FUNCTION: func.getArrayResult(pgm.table[tokenAddress].type); break;
 			case EOF: break;
 			default:
 				error("Statement cannot begin with '"+pgm.decodeToken(token, tokenAddress)+"'");
@@ -296,6 +310,21 @@ public class Interpreter implements MacroConstants {
 	}
 
 	Variable runUserFunction() {
+		Profiler profiler = this.profiler;
+		if (profiler==null)
+			return runUserFunction2();
+		profiler.enter(Profiler.FUNCTION, pgm.table[tokenAddress].str);
+		Variable value = null;
+		try {
+			value = runUserFunction2();
+		} finally {
+			profiler.exit();
+		}
+		profiler.setLine(pgm.lineNumbers[pc]);
+		return value;
+	}
+
+	private Variable runUserFunction2() {
 		int newPC = (int)tokenValue;
 		int saveStartOfLocals = startOfLocals;
 		startOfLocals = topOfStack+1;
@@ -310,9 +339,9 @@ public class Interpreter implements MacroConstants {
 		try {
 			doBlock();
 		} catch (ReturnException e) {
-			value = new Variable(0, e.value, e.str, e.array);
-			if (value.getArray()!=null && e.arraySize!=0)
-				value.setArraySize(e.arraySize);
+			value = new Variable(0, e.value, e.str, null);
+			if (e.array!=null)
+				value.shareArray(e.array);
 		}
 		inFunction = saveInFunction;
 		pc = savePC;
@@ -320,6 +349,48 @@ public class Interpreter implements MacroConstants {
 		return value;
 	}
 
+	/* Creates an interpreter that runs user-defined functions of this macro
+		on another thread. It has its own copies of the global variables. */
+	Interpreter createWorker() {
+		Interpreter worker = new Interpreter();
+		worker.pgm = pgm;
+		worker.calledMacro = true;
+		worker.parallelWorker = true;
+		worker.macroName = macroName;
+		worker.compileLoops = compileLoops;
+		worker.func = new Functions(worker, pgm);
+		worker.func.expandableArrays = func.expandableArrays;
+		worker.stack = new Variable[STACK_SIZE];
+		for (int i=0; i<=topOfGlobals; i++)
+			worker.push(stack[i].copy(), worker);
+		worker.topOfGlobals = worker.topOfStack;
+		return worker;
+	}
+
+	/* Calls the user-defined function with the name token at 'location',
+		passing it a single numeric argument. Returns the return value, or
+		null if the function does not return a value. */
+	Variable callFunction(int location, double arg) {
+		int saveStartOfLocals = startOfLocals;
+		startOfLocals = topOfStack+1;
+		int saveTOS = topOfStack;
+		push(0, arg, null, this);
+		pc = location;
+		setupArgs(1);
+		inFunction = true;
+		Variable value = null;
+		try {
+			doBlock();
+		} catch (ReturnException e) {
+			value = new Variable(0, e.value, e.str, null);
+			if (e.array!=null)
+				value.shareArray(e.array);
+		}
+		inFunction = false;
+		trimStack(saveTOS, saveStartOfLocals);
+		return value;
+	}
+
 	/** Push function arguments onto the stack. */
 	int pushArgs() {
 		getLeftParen();
@@ -349,8 +420,6 @@ public class Interpreter implements MacroConstants {
 						args[count] = new Variable(0, getExpression(), null);	
 				} else if (next==WORD && (nextPlus==',' || nextPlus==')')) {
 					value = 0.0;
-					Variable[] array = null;
-					int arraySize = 0;
 					String str = null;
 					getToken();
 					Variable v = lookupVariable();
@@ -358,14 +427,12 @@ public class Interpreter implements MacroConstants {
 						int type = v.getType();
 						if (type==Variable.VALUE)
 							value = v.getValue();
-						else if (type==Variable.ARRAY) {
-							array = v.getArray();
-							arraySize = v.getArraySize();
-						} else
+						else if (type==Variable.STRING)
 							str = v.getString();
 					}
-					args[count] = new Variable(0, value, str, array);
-					if (array!=null) args[count].setArraySize(arraySize);
+					args[count] = new Variable(0, value, str, null);
+					if (v!=null && v.getType()==Variable.ARRAY)
+						args[count].shareArray(v);
 				} else if (next==WORD && nextPlus=='[' ) {
 					int savePC = pc;
 					getToken();
@@ -405,6 +472,8 @@ public class Interpreter implements MacroConstants {
 		getLeftParen();
 		int i = topOfStack;
 		int count = nArgs;
+		int firstArg = Math.max(topOfStack-nArgs+1, 0);
+		unbindAbove(firstArg-1);
 		if (nextToken()!=')') {
 			do {
 			   getToken();
@@ -416,6 +485,8 @@ public class Interpreter implements MacroConstants {
 			} while (token==',');
 			putTokenBack();
 		}
+		for (int j=firstArg; j<=topOfStack; j++)
+			bind(j);
 		if (count!=0)
 		   error(nArgs+" argument"+(nArgs==1?"":"s")+" expected");
 		getRightParen();
@@ -428,8 +499,7 @@ public class Interpreter implements MacroConstants {
 	void doReturn() {
 		double value = 0.0;
 		String str = null;
-		Variable[] array = null;
-		int arraySize = 0;
+		Variable array = null;
 		getToken();
 		if (token!=';') {
 			boolean isString = token==STRING_CONSTANT || token==STRING_FUNCTION;
@@ -437,8 +507,8 @@ public class Interpreter implements MacroConstants {
 			if (token==WORD) {
 				Variable v = lookupLocalVariable(tokenAddress);
 				if (v!=null && nextToken()==';') {
-					array = v.getArray();
-					if (array!=null) arraySize=v.getArraySize();
+					if (v.getType()==Variable.ARRAY)
+						array = v;
 					isString = v.getString()!=null;
 				} else if (v!=null && nextToken()=='+')
 					isString = v.getType()==Variable.STRING;
@@ -448,7 +518,7 @@ public class Interpreter implements MacroConstants {
 				str = getString();
 			else if (isArrayFunction) {
 				getToken();
-				array = func.getArrayFunction(pgm.table[tokenAddress].type);
+				array = func.getArrayResult(pgm.table[tokenAddress].type);
 			} else if (array==null) {
 				if ((pgm.code[pc+2]&0xff)=='[' && nextToken()==WORD) {
 					int savePC = pc;
@@ -470,7 +540,6 @@ public class Interpreter implements MacroConstants {
 			returnException.value = value;
 			returnException.str = str;
 			returnException.array = array;
-			returnException.arraySize = arraySize;
 			//throw new ReturnException(value, str, array);
 			throw returnException;
 		} else {
@@ -504,6 +573,7 @@ public class Interpreter implements MacroConstants {
 		int condPC = pc;
 		int incPC2, startPC=0;
 		double cond = 1;
+		int iterations = 0;
 		while (true) {
 			if (pgm.code[pc+1]!=';')
 			   cond = getLogicalExpression();
@@ -546,6 +616,11 @@ public class Interpreter implements MacroConstants {
 				getToken();
 			} while (token==',');
 			pc = condPC;
+			if (++iterations==COMPILE_THRESHOLD && runCompiledLoop(condPC, false)) {
+				pc = startPC;
+				skipStatement();
+				break;
+			}
 		}
 		looseSyntax = saveLooseSyntax;
 		loopDepth--;
@@ -553,12 +628,31 @@ public class Interpreter implements MacroConstants {
 			inLoop = false;
 	}
 
+	/* Runs the remaining iterations of a loop that has been executed
+		COMPILE_THRESHOLD times as a CompiledLoop. 'loopPC' is the program
+		counter before the condition of a for loop or the parenthesis of
+		a while loop. Returns false if the loop has to be interpreted. */
+	private boolean runCompiledLoop(int loopPC, boolean whileLoop) {
+		if (!compileLoops || debugMode!=Debugger.NOT_DEBUGGING || done)
+			return false;
+		if (compiledLoops==null)
+			compiledLoops = new HashMap();
+		Integer key = new Integer(loopPC);
+		Object loop = compiledLoops.get(key);
+		if (loop==null) {
+			loop = CompiledLoop.compile(this, loopPC, whileLoop);
+			compiledLoops.put(key, loop!=null?loop:Boolean.FALSE);
+		}
+		return loop instanceof CompiledLoop && ((CompiledLoop)loop).run();
+	}
+
 	void doWhile() {
 		looseSyntax = false;
 		loopDepth++;
 		inLoop = true;
 		int savePC = pc;
 		boolean isTrue;
+		int iterations = 0;
 		do {
 			pc = savePC;
 			isTrue = getBoolean();
@@ -573,6 +667,12 @@ public class Interpreter implements MacroConstants {
 						break;
 					}
 				}
+				if (++iterations==COMPILE_THRESHOLD && runCompiledLoop(savePC, true)) {
+					pc = savePC;
+					getBoolean();
+					skipStatement();
+					break;
+				}
 			} else
 				skipStatement();
 		} while (isTrue && !done);
@@ -782,6 +882,8 @@ public class Interpreter implements MacroConstants {
 		checkingType = false;
 		pc = savePC-1;
 		getToken();
+		if (v.getDoubleArray()!=null)
+			return Variable.VALUE;
 		Variable[] array = v.getArray();
 		if (index<0 || index>=array.length)
 			return Variable.VALUE;
@@ -815,6 +917,10 @@ public class Interpreter implements MacroConstants {
 			{error("'=', '+=', '-=', '*=' or '/=' expected"); return;}
 		if (op!='=' && (expressionType==Variable.STRING||expressionType==Variable.ARRAY))
 			{error("'=' expected"); return;}
+		if (v.getDoubleArray()!=null && expressionType==Variable.VALUE) {
+			doDoubleArrayElementAssignment(v, index, op);
+			return;
+		}
 		Variable[] array = v.getArray();
 		if (array==null)
 			error("Array expected");
@@ -864,6 +970,46 @@ public class Interpreter implements MacroConstants {
 		}				
 	}
 
+	/* Assigns a number to an element of an array that is stored as doubles. */
+	private void doDoubleArrayElementAssignment(Variable v, int index, int op) {
+		double[] values = prepareDoubleArrayElement(v, index);
+		double value = op=='='?0.0:values[index];
+		switch (op) {
+			case '=': value = getExpression(); break;
+			case PLUS_EQUAL: value += getExpression(); break;
+			case MINUS_EQUAL: value -= getExpression(); break;
+			case MUL_EQUAL: value *= getExpression(); break;
+			case DIV_EQUAL: value /= getExpression(); break;
+		}
+		// the expression may have converted the array into Variables
+		values = v.getDoubleArray();
+		if (values!=null)
+			values[index] = value;
+		else
+			v.getArray()[index].setValue(value);
+	}
+
+	/* Checks the index of an assignment to an element of an array that is
+		stored as doubles, expands the array if needed and returns its storage. */
+	final double[] prepareDoubleArrayElement(Variable v, int index) {
+		double[] values = v.getDoubleArray();
+		if (index<0)
+			error("Negative index");
+		if (index>=values.length) {  // expand array
+			if (!func.expandableArrays)
+				error("Index ("+index+") out of range");
+			double[] values2 = new double[index+values.length/2+1];
+			System.arraycopy(values, 0, values2, 0, values.length);
+			Arrays.fill(values2, values.length, values2.length, Double.NaN);
+			v.setDoubleArray(values2);
+			v.setArraySize(index+1);
+			values = values2;
+		}
+		if (index+1>v.getArraySize())
+			v.setArraySize(index+1);
+		return values;
+	}
+
 	final void doUserFunctionAssignment() {
 		//IJ.log("doUserFunctionAssignment0: "+pgm.decodeToken(token, tokenAddress));
 		putTokenBack();
@@ -891,10 +1037,9 @@ public class Interpreter implements MacroConstants {
 			int type = v2.getType();
 			if (type==Variable.VALUE)
 				v1.setValue(v2.getValue());
-			else if (type==Variable.ARRAY) {
-				v1.setArray(v2.getArray());
-				v1.setArraySize(v2.getArraySize());
-			} else
+			else if (type==Variable.ARRAY)
+				v1.shareArray(v2);
+			else
 				v1.setString(v2.getString());
 		}	
 	}
@@ -949,13 +1094,15 @@ public class Interpreter implements MacroConstants {
 			return;
 		}
 		getToken();
-		if (token==ARRAY_FUNCTION)
-			v.setArray(func.getArrayFunction(pgm.table[tokenAddress].type));
-		else if (token==WORD) {
-			Variable v2 = lookupVariable();
-			v.setArray(v2.getArray());
-			v.setArraySize(v2.getArraySize());
-		} else
+		if (token==ARRAY_FUNCTION) {
+			Variable v2 = func.getArrayResult(pgm.table[tokenAddress].type);
+			if (v2!=null)
+				v.shareArray(v2);
+			else
+				v.setArray(null);
+		} else if (token==WORD)
+			v.shareArray(lookupVariable());
+		else
 			error("Array expected");
 	}
 
@@ -1052,6 +1199,8 @@ public class Interpreter implements MacroConstants {
 		Variable v = lookupVariable(token>>TOK_SHIFT);
 		if (v==null) return false;
 		if (pgm.code[pc+2]=='[') {
+			if (v.getDoubleArray()!=null)
+				return false;
 			Variable[] array = v.getArray();
 			if (array!=null && array.length>0)
 				return array[0].getType()==Variable.STRING;
@@ -1168,6 +1317,19 @@ public class Interpreter implements MacroConstants {
 	}
 
 	void error (String message) {
+		if (parallelWorker) {
+			// leave the state of the macro alone; the caller reports the error
+			token = EOF;
+			tokenString = "";
+			if (!done && message!=null) {
+				workerError = message;
+				workerErrorPC = pc;
+				done = true;
+				throw new RuntimeException(Macro.MACRO_CANCELED);
+			}
+			done = true;
+			return;
+		}
 		boolean showMessage = !done;
 		String[] variables = showMessage?getVariables():null;
 		token = EOF;
@@ -1415,7 +1577,20 @@ public class Interpreter implements MacroConstants {
 					return 0.0;
 				int next = nextToken();
 				if (next=='[') {
-					v = getArrayElement(v);
+					int index = getIndex();
+					double[] values = v.getDoubleArray();
+					if (values!=null) {
+						checkIndex(index, values.length);
+						value = values[index];
+						next = nextToken();
+						if (next==PLUS_PLUS || next==MINUS_MINUS) {
+							getToken();
+							if (!checkingType)
+								values[index] += token==PLUS_PLUS?1:-1;
+						}
+						break;
+					}
+					v = getArrayElement(v, index);
 					value = v.getValue();
 					next = nextToken();
 				} else if (next=='.') {
@@ -1469,17 +1644,31 @@ public class Interpreter implements MacroConstants {
 	}
 
 	final Variable getArrayElement(Variable v) {
-		int index = getIndex();
+		return getArrayElement(v, getIndex());
+	}
+
+	/* Returns the element at 'index'. Elements of arrays that are stored as
+		doubles are returned as new Variables; changing them has no effect. */
+	final Variable getArrayElement(Variable v, int index) {
+		double[] values = v.getDoubleArray();
+		if (values!=null) {
+			checkIndex(index, values.length);
+			return new Variable(values[index]);
+		}
 		Variable[] array = v.getArray();
 		if (array==null)
 			error("Array expected");
-		if (index<0 || index>=array.length) {
-			if (array.length==0)
+		checkIndex(index, array.length);
+		return array[index];
+	}
+
+	final void checkIndex(int index, int length) {
+		if (index<0 || index>=length) {
+			if (length==0)
 				error("Empty array");
 			else
-				error("Index ("+index+") out of 0-"+(array.length-1)+" range");
+				error("Index ("+index+") out of 0-"+(length-1)+" range");
 		}
-		return array[index];
 	}
 	
 	final double getArrayLength(Variable v) {
@@ -1487,7 +1676,7 @@ public class Interpreter implements MacroConstants {
 		getToken();
 		if (!(token==WORD && tokenString.equals("length")))
 			error("'length' expected");
-		if (v.getArray()==null)
+		if (v.getType()!=Variable.ARRAY)
 			error("Array expected");
 		return v.getArraySize();
 	}
@@ -1525,36 +1714,58 @@ public class Interpreter implements MacroConstants {
 
 	/** Searches the local and global sections of the stack for.
 		the specified variable. Returns null if it is not found. */
-		final Variable lookupLocalVariable(int symTabAddress) {
-		//IJ.log("lookupLocalVariable: "+topOfStack+" "+startOfLocals+" "+topOfGlobals);
-		Variable v = null;
-		for (int i=topOfStack; i>=startOfLocals; i--) {
-			if (stack[i].symTabIndex==symTabAddress) {
-				v = stack[i];
-				break;
-			}
-		}
-		if (v==null) {
-			for (int i=topOfGlobals; i>=0; i--) {
-				if (stack[i].symTabIndex==symTabAddress) {
-					v = stack[i];
-					break;
-				}
-			}
-		}
-		return v;
+	final Variable lookupLocalVariable(int symTabAddress) {
+		int i = getBinding(symTabAddress);
+		if (i>=startOfLocals)
+			return stack[i];
+		while (i>topOfGlobals)
+			i = shadowed[i];
+		return i>=0?stack[i]:null;
 	}
 
 	/** Searches the entire stack for the specified variable. Returns null if it is not found. */
 	final Variable lookupVariable(int symTabAddress) {
-		Variable v = null;
-		for (int i=topOfStack; i>=0; i--) {
-			if (stack[i].symTabIndex==symTabAddress) {
-				v = stack[i];
-				break;
-			}
+		int i = getBinding(symTabAddress);
+		return i>=0?stack[i]:null;
+	}
+
+	/* Returns the stack index of the most recently pushed variable with
+		the specified symbol table address, or -1. The bindings are updated
+		as variables are pushed and popped, so lookups do not need to
+		search the stack. */
+	private final int getBinding(int symTabAddress) {
+		if (bindings==null || symTabAddress>=bindings.length)
+			return -1;
+		return bindings[symTabAddress];
+	}
+
+	private void bind(int index) {
+		int address = stack[index].symTabIndex;
+		if (bindings==null || address>=bindings.length) {
+			int[] bindings2 = new int[Math.max(address+1, Math.max(pgm.table.length, bindings!=null?bindings.length*2:0))];
+			Arrays.fill(bindings2, -1);
+			if (bindings!=null)
+				System.arraycopy(bindings, 0, bindings2, 0, bindings.length);
+			bindings = bindings2;
+		}
+		if (shadowed==null)
+			shadowed = new int[STACK_SIZE];
+		shadowed[index] = bindings[address];
+		bindings[address] = index;
+	}
+
+	/* Removes the bindings of the variables above stack index 'tos'. */
+	private void unbindAbove(int tos) {
+		if (bindings==null)
+			return;
+		if (tos<0) {
+			Arrays.fill(bindings, -1);
+			return;
+		}
+		for (int i=topOfStack; i>tos; i--) {
+			if (stack[i]!=null)
+				bindings[stack[i].symTabIndex] = shadowed[i];
 		}
-		return v;
 	}
 
 	Variable push(Variable var, Interpreter interp) {
@@ -1565,6 +1776,7 @@ public class Interpreter implements MacroConstants {
 		else
 			topOfStack++;
 		stack[topOfStack] = var;
+		bind(topOfStack);
 		return var;
 	}
 
@@ -1576,6 +1788,7 @@ public class Interpreter implements MacroConstants {
 		for (int i=0; i<pgm.globals.length; i++) {
 			topOfStack++;
 			stack[topOfStack] = pgm.globals[i];
+			bind(topOfStack);
 		}
 		topOfGlobals = topOfStack;
 	}
@@ -1590,10 +1803,12 @@ public class Interpreter implements MacroConstants {
 		else
 			topOfStack++;
 		stack[topOfStack] = var;
+		bind(topOfStack);
 		return var;
 	}
 
 	void trimStack(int previousTOS, int previousStartOfLocals) {
+		unbindAbove(previousTOS);
 		for (int i=previousTOS+1; i<=topOfStack; i++)
 			stack[i] = null;
 		topOfStack = previousTOS;
@@ -1609,16 +1824,8 @@ public class Interpreter implements MacroConstants {
 			undefined();
 			return v;
 		}
-		boolean found = false;
-		for (int i=topOfStack; i>=0; i--) {
-			v = stack[i];
-			//IJ.log(I+"  "+v+"  "+v.symTabIndex+"  "+tokenAddress);
-			if (v.symTabIndex==tokenAddress) {
-				found = true;
-				break;
-			}
-		}
-		if (!found)
+		v = lookupVariable(tokenAddress);
+		if (v==null)
 			undefined();
 		return v;
 	}
@@ -1630,32 +1837,24 @@ public class Interpreter implements MacroConstants {
 		}
 		boolean found = false;
 		String str = null;
-		for (int i=topOfStack; i>=0; i--) {
-			if (stack[i].symTabIndex==tokenAddress) {
-				Variable v = stack[i];
-				found = true;
-				int next = nextToken();
-				if (next=='[') {
-					int savePC = pc;
-					int index = getIndex();
-					Variable[] array = v.getArray();
-					if (array==null)
-						error("Array expected");
-					if (index<0 || index>=array.length)
-						error("Index ("+index+") out of 0-"+(array.length-1)+" range");
-					str = array[index].getString();
-					if (str==null) {
-						pc = savePC-1;
-						getToken();
-					}
-				} else if (next=='.')
-						str = null;
-				else {
-					if (v.getArray()!=null)
-						{getToken(); error("'[' or '.' expected");}
-					str = v.getString();
+		Variable v = lookupVariable(tokenAddress);
+		if (v!=null) {
+			found = true;
+			int next = nextToken();
+			if (next=='[') {
+				int savePC = pc;
+				int index = getIndex();
+				str = getArrayElement(v, index).getString();
+				if (str==null) {
+					pc = savePC-1;
+					getToken();
 				}
-				break;
+			} else if (next=='.')
+					str = null;
+			else {
+				if (v.getType()==Variable.ARRAY)
+					{getToken(); error("'[' or '.' expected");}
+				str = v.getString();
 			}
 		}
 		if (!found)
@@ -1776,6 +1975,11 @@ public class Interpreter implements MacroConstants {
 			imageTable = null;
 		}
 		done = true;
+		Interpreter[] workers = this.workers;
+		if (workers!=null) {
+			for (int i=0; i<workers.length; i++)
+				if (workers[i]!=null) workers[i].done = true;
+		}
 		if (func!=null && !(macroName!=null&&macroName.indexOf(" Tool")!=-1))
 			func.abortDialog();
 		IJ.showStatus("Macro aborted");
@@ -1801,6 +2005,11 @@ public class Interpreter implements MacroConstants {
 	
 	public static void addBatchModeImage(ImagePlus imp) {
 		if (!batchMode || imp==null) return;
+		Vector images = (Vector)workerImageTables.get(Thread.currentThread());
+		if (images!=null) {
+			images.addElement(imp);
+			return;
+		}
 		if (imageTable==null)
 			imageTable = new Vector();
 		//IJ.log("add: "+imp+"  "+imageTable.size());
@@ -1808,6 +2017,9 @@ public class Interpreter implements MacroConstants {
 	}
 
 	public static void removeBatchModeImage(ImagePlus imp) {
+		Vector images = (Vector)workerImageTables.get(Thread.currentThread());
+		if (images!=null && images.removeElement(imp))
+			return;
 		if (imageTable!=null && imp!=null) {
 			int index = imageTable.indexOf(imp);
 			if (index!=-1)
@@ -1815,7 +2027,21 @@ public class Interpreter implements MacroConstants {
 		}
 	}
 	
+	/* Returns the images opened in batch mode that the current thread can
+		access, which, in a parallelMap() worker, include the images it opened. */
+	static Vector getBatchModeImages() {
+		Vector images = (Vector)workerImageTables.get(Thread.currentThread());
+		if (images==null)
+			return imageTable;
+		Vector all = new Vector();
+		if (imageTable!=null)
+			all.addAll(imageTable);
+		all.addAll(images);
+		return all;
+	}
+
 	public static int[] getBatchModeImageIDs() {
+		Vector imageTable = getBatchModeImages();
 		if (!batchMode || imageTable==null)
 			return new int[0];
 		int n = imageTable.size();
@@ -1828,6 +2054,7 @@ public class Interpreter implements MacroConstants {
 	}
 
 	public static int getBatchModeImageCount() {
+		Vector imageTable = getBatchModeImages();
 		if (!batchMode || imageTable==null)
 			return 0;
 		else
@@ -1835,9 +2062,10 @@ public class Interpreter implements MacroConstants {
 	}
 	
 	public static ImagePlus getBatchModeImage(int id) {
+		Vector imageTable = getBatchModeImages();
 		if (!batchMode || imageTable==null)
 			return null;
-		for (Enumeration en=Interpreter.imageTable.elements(); en.hasMoreElements();) {
+		for (Enumeration en=imageTable.elements(); en.hasMoreElements();) {
 			ImagePlus imp = (ImagePlus)en.nextElement();
 			if (id==imp.getID())
 				return imp;
@@ -1846,6 +2074,7 @@ public class Interpreter implements MacroConstants {
 	}
 	
 	public static ImagePlus getLastBatchModeImage() { 
+		Vector imageTable = getBatchModeImages();
 		if (!batchMode || imageTable==null)
 			return null; 
 		ImagePlus imp2 = null;
@@ -0,0 +1,502 @@
+package ij.macro;
+import java.util.*;
+
+/** Compiles a subset of the macro language into a kernel that evaluates
+	a sequence of statements for many pixels at once. It is used by the
+	Process/Math/Macro command. Supported are assignments (=, +=, -=, *=,
+	/=, ++, --) to numeric variables, if/else statements, blocks, the
+	arithmetic, bitwise, comparison and logical operators, the constants
+	PI, NaN, true and false and the functions abs, cos, exp, floor, log,
+	round, sin, sqrt, tan, atan, asin, acos, isNaN, minOf, maxOf, pow and
+	atan2. Conditions and the operands of !, && and || must be comparisons,
+	logical expressions or boolean constants. compile() returns null if the
+	code uses anything else, in which case it has to be run by the Interpreter.
+	<p>
+	Values are held in rows ("registers") of length 'n'. The first
+	registers are the input variables, in the order passed to compile();
+	evaluate() reads and updates them.
+*/
+public class PixelExpression implements MacroConstants {
+	private static final int NEG=-1, NOT=-2, BIT_NOT=-3;
+
+	private int[] code;
+	private Symbol[] table;
+	private int pc;
+	private boolean unsupported;
+	private HashMap variables = new HashMap(); // name -> register
+	private HashSet assigned = new HashSet();
+	private ArrayList constants = new ArrayList();
+	private int nRegisters;
+	private Statement body;
+
+	private PixelExpression() {
+	}
+
+	/** Compiles the statements of 'pgm', starting at program counter
+		'start' and ending at EOF. 'inputs' are the names of the variables
+		that are set before each evaluation. Other variables must be
+		assigned before they are used. Returns null if the code uses
+		features that are not supported. */
+	public static PixelExpression compile(Program pgm, int start, String[] inputs) {
+		PixelExpression pe = new PixelExpression();
+		pe.code = pgm.getCode();
+		pe.table = pgm.getSymbolTable();
+		pe.pc = start;
+		for (int i=0; i<inputs.length; i++)
+			pe.variables.put(inputs[i], new Integer(pe.newRegister()));
+		HashSet defined = new HashSet(pe.variables.keySet());
+		Block block = pe.new Block();
+		while (!pe.unsupported && pe.tokenType()!=EOF) {
+			Statement s = pe.parseStatement(defined);
+			if (s!=null)
+				block.add(s);
+		}
+		if (pe.unsupported)
+			return null;
+		pe.body = block;
+		return pe;
+	}
+
+	/** Returns 'true' if the code assigns a value to the specified variable. */
+	public boolean assigns(String name) {
+		return assigned.contains(name);
+	}
+
+	/** Creates the registers used by evaluate(), for rows of 'n' values.
+		Each thread needs its own set of registers. */
+	public double[][] newRegisters(int n) {
+		double[][] registers = new double[nRegisters][n];
+		for (int i=0; i<constants.size(); i++) {
+			Constant c = (Constant)constants.get(i);
+			Arrays.fill(registers[c.register], c.value);
+		}
+		return registers;
+	}
+
+	/** Runs the code for the first 'n' values of the registers created by
+		newRegisters(). The input variables must be set before calling this
+		method and hold the results afterwards. */
+	public void evaluate(double[][] registers, int n) {
+		body.execute(registers, null, n);
+	}
+
+	private int tokenType() {
+		int tok = code[pc];
+		return tok>127?tok&TOK_MASK:tok;
+	}
+
+	private Symbol symbol() {
+		return table[code[pc]>>TOK_SHIFT];
+	}
+
+	private void expect(int tok) {
+		if (tokenType()!=tok)
+			unsupported = true;
+		else
+			pc++;
+	}
+
+	private int newRegister() {
+		return nRegisters++;
+	}
+
+	private int variableRegister(String name) {
+		Integer register = (Integer)variables.get(name);
+		if (register==null) {
+			register = new Integer(newRegister());
+			variables.put(name, register);
+		}
+		return register.intValue();
+	}
+
+	private Statement parseStatement(HashSet defined) {
+		if (unsupported) return null;
+		int type = tokenType();
+		switch (type) {
+			case ';':
+				pc++;
+				return null;
+			case '{':
+				pc++;
+				Block block = new Block();
+				while (!unsupported && tokenType()!='}' && tokenType()!=EOF) {
+					Statement s = parseStatement(defined);
+					if (s!=null) block.add(s);
+				}
+				expect('}');
+				return block;
+			case MacroConstants.IF:
+				pc++;
+				expect('(');
+				Expression condition = parseLogical(defined);
+				expect(')');
+				if (!condition.isBoolean())
+					unsupported = true; // the Interpreter requires 0 or 1
+				HashSet defined1 = new HashSet(defined);
+				Statement s1 = parseStatement(defined1);
+				if (tokenType()==';' && tokenType2()==ELSE)
+					pc++;
+				Statement s2 = null;
+				HashSet defined2 = new HashSet(defined);
+				if (tokenType()==ELSE) {
+					pc++;
+					s2 = parseStatement(defined2);
+				}
+				defined1.retainAll(defined2);
+				defined.addAll(defined1);
+				return new If(condition, s1, s2);
+			case WORD:
+				String name = symbol().str;
+				pc++;
+				int op = tokenType();
+				Expression value = null;
+				if (op==PLUS_PLUS || op==MINUS_MINUS) {
+					pc++;
+					value = new Constant(1.0);
+					op = op==PLUS_PLUS?PLUS_EQUAL:MINUS_EQUAL;
+				} else if (op=='=' || op==PLUS_EQUAL || op==MINUS_EQUAL || op==MUL_EQUAL || op==DIV_EQUAL) {
+					pc++;
+					int type2 = tokenType();
+					if (type2==WORD && (tokenType2()=='=' || tokenType2()==PLUS_EQUAL
+					|| tokenType2()==MINUS_EQUAL || tokenType2()==MUL_EQUAL || tokenType2()==DIV_EQUAL))
+						unsupported = true; // chained assignment
+					value = parseLogical(defined);
+				} else
+					unsupported = true;
+				if (op!='=' && !defined.contains(name))
+					unsupported = true;
+				if (unsupported) return null;
+				defined.add(name);
+				assigned.add(name);
+				if (tokenType()==';')
+					pc++;
+				return new Assignment(variableRegister(name), op, value);
+			default:
+				unsupported = true;
+				return null;
+		}
+	}
+
+	private int tokenType2() {
+		int tok = code[pc+1];
+		return tok>127?tok&TOK_MASK:tok;
+	}
+
+	private Expression parseLogical(HashSet defined) {
+		Expression e1 = parseBoolean(defined);
+		int op = tokenType();
+		if (op!=LOGICAL_AND && op!=LOGICAL_OR)
+			return e1;
+		pc++;
+		Expression e2 = parseLogical(defined);
+		if (!e1.isBoolean() || !e2.isBoolean())
+			unsupported = true; // the Interpreter requires 0 or 1
+		return new Binary(op, e1, e2);
+	}
+
+	private Expression parseBoolean(HashSet defined) {
+		Expression e1 = parseExpression(defined);
+		int op = tokenType();
+		if (op>=EQ && op<=LTE) {
+			pc++;
+			return new Binary(op, e1, parseExpression(defined));
+		}
+		return e1;
+	}
+
+	private Expression parseExpression(HashSet defined) {
+		Expression e = parseTerm(defined);
+		while (!unsupported) {
+			int op = tokenType();
+			if (op!='+' && op!='-')
+				break;
+			pc++;
+			e = new Binary(op, e, parseTerm(defined));
+		}
+		return e;
+	}
+
+	private Expression parseTerm(HashSet defined) {
+		Expression e = parseFactor(defined);
+		while (!unsupported) {
+			int op = tokenType();
+			if (!(op=='*' || op=='/' || op=='%' || op=='&' || op=='|' || op=='^'
+			|| op==SHIFT_RIGHT || op==SHIFT_LEFT))
+				break;
+			pc++;
+			e = new Binary(op, e, parseFactor(defined));
+		}
+		return e;
+	}
+
+	private Expression parseFactor(HashSet defined) {
+		if (unsupported)
+			return new Constant(0.0);
+		int type = tokenType();
+		Symbol symbol = type>127?symbol():null;
+		pc++;
+		switch (type) {
+			case NUMBER: return new Constant(symbol.value);
+			case TRUE: return new Constant(1.0);
+			case FALSE: return new Constant(0.0);
+			case PI: return new Constant(Math.PI);
+			case NaN: return new Constant(Double.NaN);
+			case '(':
+				Expression e = parseLogical(defined);
+				expect(')');
+				return e;
+			case '-': return new Unary(NEG, parseFactor(defined));
+			case '!':
+				Expression operand = parseFactor(defined);
+				if (!operand.isBoolean())
+					unsupported = true; // the Interpreter requires 0 or 1
+				return new Unary(NOT, operand);
+			case '~': return new Unary(BIT_NOT, parseFactor(defined));
+			case WORD:
+				int next = tokenType();
+				if (next=='[' || next=='.' || next==PLUS_PLUS || next==MINUS_MINUS
+				|| !defined.contains(symbol.str))
+					break;
+				return new VariableReference(variableRegister(symbol.str));
+			case NUMERIC_FUNCTION:
+				int function = symbol.type;
+				switch (function) {
+					case ABS: case COS: case EXP: case FLOOR: case LOG: case ROUND:
+					case SIN: case SQRT: case TAN: case ATAN: case ASIN: case ACOS: case IS_NAN:
+						expect('(');
+						Expression arg = parseExpression(defined);
+						expect(')');
+						return new Unary(function, arg);
+					case MIN_OF: case MAX_OF: case POW: case ATAN2:
+						expect('(');
+						Expression arg1 = parseExpression(defined);
+						expect(',');
+						Expression arg2 = parseExpression(defined);
+						expect(')');
+						return new Binary(function, arg1, arg2);
+				}
+				break;
+		}
+		unsupported = true;
+		return new Constant(0.0);
+	}
+
+	private abstract class Statement {
+		/** Executes this statement for the values where 'mask' (if not null) is not zero. */
+		abstract void execute(double[][] r, double[] mask, int n);
+	}
+
+	private class Block extends Statement {
+		private ArrayList statements = new ArrayList();
+
+		void add(Statement s) {
+			statements.add(s);
+		}
+
+		void execute(double[][] r, double[] mask, int n) {
+			for (int i=0; i<statements.size(); i++)
+				((Statement)statements.get(i)).execute(r, mask, n);
+		}
+	}
+
+	private class Assignment extends Statement {
+		private int variable;
+		private int op;
+		private Expression value;
+
+		Assignment(int variable, int op, Expression value) {
+			this.variable = variable;
+			this.op = op;
+			this.value = value;
+		}
+
+		void execute(double[][] r, double[] mask, int n) {
+			double[] x = r[variable];
+			double[] y = r[value.evaluate(r, n)];
+			if (mask==null) {
+				switch (op) {
+					case '=': System.arraycopy(y, 0, x, 0, n); break;
+					case PLUS_EQUAL: for (int i=0; i<n; i++) x[i] += y[i]; break;
+					case MINUS_EQUAL: for (int i=0; i<n; i++) x[i] -= y[i]; break;
+					case MUL_EQUAL: for (int i=0; i<n; i++) x[i] *= y[i]; break;
+					case DIV_EQUAL: for (int i=0; i<n; i++) x[i] /= y[i]; break;
+				}
+			} else {
+				for (int i=0; i<n; i++) {
+					if (mask[i]==0.0) continue;
+					switch (op) {
+						case '=': x[i] = y[i]; break;
+						case PLUS_EQUAL: x[i] += y[i]; break;
+						case MINUS_EQUAL: x[i] -= y[i]; break;
+						case MUL_EQUAL: x[i] *= y[i]; break;
+						case DIV_EQUAL: x[i] /= y[i]; break;
+					}
+				}
+			}
+		}
+	}
+
+	private class If extends Statement {
+		private Expression condition;
+		private Statement s1, s2;
+		private int mask1, mask2;
+
+		If(Expression condition, Statement s1, Statement s2) {
+			this.condition = condition;
+			this.s1 = s1;
+			this.s2 = s2;
+			mask1 = newRegister();
+			mask2 = newRegister();
+		}
+
+		void execute(double[][] r, double[] mask, int n) {
+			double[] c = r[condition.evaluate(r, n)];
+			double[] m1 = r[mask1];
+			double[] m2 = r[mask2];
+			boolean any1=false, any2=false;
+			for (int i=0; i<n; i++) {
+				boolean active = mask==null || mask[i]!=0.0;
+				m1[i] = active && c[i]!=0.0?1.0:0.0;
+				m2[i] = active && c[i]==0.0?1.0:0.0;
+				any1 |= m1[i]!=0.0;
+				any2 |= m2[i]!=0.0;
+			}
+			if (s1!=null && any1)
+				s1.execute(r, m1, n);
+			if (s2!=null && any2)
+				s2.execute(r, m2, n);
+		}
+	}
+
+	private abstract class Expression {
+		/** Evaluates this expression and returns the index of the register holding the result. */
+		abstract int evaluate(double[][] r, int n);
+
+		/** Returns 'true' if the values of this expression are always 0 or 1,
+			as the Interpreter requires for conditions and logical operands. */
+		boolean isBoolean() {
+			return false;
+		}
+	}
+
+	// the registers of constants are filled by newRegisters()
+	private class Constant extends Expression {
+		private double value;
+		private int register;
+
+		Constant(double value) {
+			this.value = value;
+			register = newRegister();
+			constants.add(this);
+		}
+
+		boolean isBoolean() {
+			return value==0.0 || value==1.0;
+		}
+
+		int evaluate(double[][] r, int n) {
+			return register;
+		}
+	}
+
+	private class VariableReference extends Expression {
+		private int variable;
+
+		VariableReference(int variable) {
+			this.variable = variable;
+		}
+
+		int evaluate(double[][] r, int n) {
+			return variable;
+		}
+	}
+
+	private class Unary extends Expression {
+		private int op;
+		private Expression arg;
+		private int register;
+
+		Unary(int op, Expression arg) {
+			this.op = op;
+			this.arg = arg;
+			register = newRegister();
+		}
+
+		boolean isBoolean() {
+			return op==NOT || op==IS_NAN;
+		}
+
+		int evaluate(double[][] r, int n) {
+			double[] a = r[arg.evaluate(r, n)];
+			double[] x = r[register];
+			switch (op) {
+				case NEG: for (int i=0; i<n; i++) x[i] = -a[i]; break;
+				case NOT: for (int i=0; i<n; i++) x[i] = a[i]==0.0?1.0:0.0; break;
+				case BIT_NOT: for (int i=0; i<n; i++) x[i] = ~(int)a[i]; break;
+				case ABS: for (int i=0; i<n; i++) x[i] = Math.abs(a[i]); break;
+				case COS: for (int i=0; i<n; i++) x[i] = Math.cos(a[i]); break;
+				case EXP: for (int i=0; i<n; i++) x[i] = Math.exp(a[i]); break;
+				case FLOOR: for (int i=0; i<n; i++) x[i] = Math.floor(a[i]); break;
+				case LOG: for (int i=0; i<n; i++) x[i] = Math.log(a[i]); break;
+				case ROUND: for (int i=0; i<n; i++) x[i] = Math.floor(a[i]+0.5); break;
+				case SIN: for (int i=0; i<n; i++) x[i] = Math.sin(a[i]); break;
+				case SQRT: for (int i=0; i<n; i++) x[i] = Math.sqrt(a[i]); break;
+				case TAN: for (int i=0; i<n; i++) x[i] = Math.tan(a[i]); break;
+				case ATAN: for (int i=0; i<n; i++) x[i] = Math.atan(a[i]); break;
+				case ASIN: for (int i=0; i<n; i++) x[i] = Math.asin(a[i]); break;
+				case ACOS: for (int i=0; i<n; i++) x[i] = Math.acos(a[i]); break;
+				case IS_NAN: for (int i=0; i<n; i++) x[i] = Double.isNaN(a[i])?1.0:0.0; break;
+			}
+			return register;
+		}
+	}
+
+	private class Binary extends Expression {
+		private int op;
+		private Expression arg1, arg2;
+		private int register;
+
+		Binary(int op, Expression arg1, Expression arg2) {
+			this.op = op;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+			register = newRegister();
+		}
+
+		boolean isBoolean() {
+			return (op>=EQ && op<=LTE) || op==LOGICAL_AND || op==LOGICAL_OR;
+		}
+
+		int evaluate(double[][] r, int n) {
+			double[] a = r[arg1.evaluate(r, n)];
+			double[] b = r[arg2.evaluate(r, n)];
+			double[] x = r[register];
+			switch (op) {
+				case '+': for (int i=0; i<n; i++) x[i] = a[i] + b[i]; break;
+				case '-': for (int i=0; i<n; i++) x[i] = a[i] - b[i]; break;
+				case '*': for (int i=0; i<n; i++) x[i] = a[i] * b[i]; break;
+				case '/': for (int i=0; i<n; i++) x[i] = a[i] / b[i]; break;
+				case '%': for (int i=0; i<n; i++) x[i] = a[i] % b[i]; break;
+				case '&': for (int i=0; i<n; i++) x[i] = (int)a[i] & (int)b[i]; break;
+				case '|': for (int i=0; i<n; i++) x[i] = (int)a[i] | (int)b[i]; break;
+				case '^': for (int i=0; i<n; i++) x[i] = (int)a[i] ^ (int)b[i]; break;
+				case SHIFT_RIGHT: for (int i=0; i<n; i++) x[i] = (int)a[i] >> (int)b[i]; break;
+				case SHIFT_LEFT: for (int i=0; i<n; i++) x[i] = (int)a[i] << (int)b[i]; break;
+				case EQ: for (int i=0; i<n; i++) x[i] = a[i]==b[i]?1.0:0.0; break;
+				case NEQ: for (int i=0; i<n; i++) x[i] = a[i]!=b[i]?1.0:0.0; break;
+				case GT: for (int i=0; i<n; i++) x[i] = a[i]>b[i]?1.0:0.0; break;
+				case GTE: for (int i=0; i<n; i++) x[i] = a[i]>=b[i]?1.0:0.0; break;
+				case LT: for (int i=0; i<n; i++) x[i] = a[i]<b[i]?1.0:0.0; break;
+				case LTE: for (int i=0; i<n; i++) x[i] = a[i]<=b[i]?1.0:0.0; break;
+				case LOGICAL_AND: for (int i=0; i<n; i++) x[i] = (int)a[i] & (int)b[i]; break;
+				case LOGICAL_OR: for (int i=0; i<n; i++) x[i] = (int)a[i] | (int)b[i]; break;
+				case MIN_OF: for (int i=0; i<n; i++) x[i] = Math.min(a[i], b[i]); break;
+				case MAX_OF: for (int i=0; i<n; i++) x[i] = Math.max(a[i], b[i]); break;
+				case POW: for (int i=0; i<n; i++) x[i] = Math.pow(a[i], b[i]); break;
+				case ATAN2: for (int i=0; i<n; i++) x[i] = Math.atan2(a[i], b[i]); break;
+			}
+			return register;
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package ij.macro;
+import ij.measure.ResultsTable;
+import java.util.*;
+
+/** Records where a macro spends its time. It counts the statements executed
+	on each line and the time spent on the line, and the calls and time spent
+	in user-defined functions, built-in functions and the commands run by
+	run(). Profiling is started and stopped by the Profiler.start() and
+	Profiler.stop() macro functions, and Profiler.show() displays the
+	results. Lines are timed from one statement to the next, so the time of a
+	line includes the built-in functions and commands it calls, but not the
+	user-defined functions. Loops compiled by the interpreter are timed as a
+	whole, as part of the line that starts them.
+*/
+public class Profiler {
+	static final int FUNCTION=0, BUILT_IN=1, COMMAND=2;
+	private static final String[] types = {"Function", "Built-in", "Command"};
+	private Program pgm;
+	private long[] lineCounts, lineTimes;
+	private int line = -1;
+	private long lineStart;
+	private HashMap entries = new HashMap();
+	private Entry[] stack = new Entry[32];
+	private long[] starts = new long[32];
+	private long[] childTimes = new long[32];
+	private int depth;
+	private boolean running;
+	private long startTime, elapsedTime;
+
+	Profiler(Program pgm) {
+		this.pgm = pgm;
+		int maxLine = 0;
+		for (int i=0; i<pgm.code.length; i++) {
+			if (pgm.lineNumbers[i]>maxLine)
+				maxLine = pgm.lineNumbers[i];
+		}
+		lineCounts = new long[maxLine+1];
+		lineTimes = new long[maxLine+1];
+	}
+
+	void start() {
+		if (running)
+			return;
+		running = true;
+		startTime = lineStart = System.nanoTime();
+	}
+
+	void stop() {
+		if (!running)
+			return;
+		setLine(-1);
+		running = false;
+		elapsedTime += System.nanoTime() - startTime;
+	}
+
+	/** Returns 'true' if this profiler has been started and not stopped. */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/* Called at the start of each statement. */
+	final void line(int lineNumber) {
+		setLine(lineNumber);
+		if (running && lineNumber>=0 && lineNumber<lineCounts.length)
+			lineCounts[lineNumber]++;
+	}
+
+	/* Charges the time since the last call to the current line
+		and makes 'lineNumber' the current line. */
+	final void setLine(int lineNumber) {
+		if (!running)
+			return;
+		long now = System.nanoTime();
+		if (line>=0 && line<lineTimes.length)
+			lineTimes[line] += now - lineStart;
+		line = lineNumber;
+		lineStart = now;
+	}
+
+	/* Called when a function or command starts. Each call must
+		be followed by a call to exit(). */
+	void enter(int type, String name) {
+		String key = type+name;
+		Entry e = (Entry)entries.get(key);
+		if (e==null) {
+			e = new Entry(type, name);
+			entries.put(key, e);
+		}
+		if (depth==stack.length) {
+			stack = (Entry[])Arrays.copyOf(stack, depth*2);
+			starts = Arrays.copyOf(starts, depth*2);
+			childTimes = Arrays.copyOf(childTimes, depth*2);
+		}
+		stack[depth] = e;
+		starts[depth] = System.nanoTime();
+		childTimes[depth] = 0L;
+		depth++;
+	}
+
+	/* Called when the function or command started by the last enter() returns. */
+	void exit() {
+		if (depth==0)
+			return;
+		depth--;
+		long time = System.nanoTime() - starts[depth];
+		Entry e = stack[depth];
+		stack[depth] = null;
+		e.count++;
+		e.totalTime += time;
+		e.selfTime += time - childTimes[depth];
+		if (depth>0)
+			childTimes[depth-1] += time;
+	}
+
+	/** Returns the results as a table with one row for each line,
+		function and command, sorted by time. "Time" is the time
+		spent in a function itself, "Total" includes the time spent
+		in the functions it calls. */
+	public ResultsTable getResultsTable() {
+		ArrayList rows = new ArrayList(entries.values());
+		String[] text = getLines();
+		for (int i=0; i<lineCounts.length; i++) {
+			if (lineCounts[i]>0 || lineTimes[i]>0) {
+				Entry e = new Entry(-1, i+": "+text[i]);
+				e.count = lineCounts[i];
+				e.selfTime = e.totalTime = lineTimes[i];
+				rows.add(e);
+			}
+		}
+		Collections.sort(rows, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long t1=((Entry)o1).selfTime, t2=((Entry)o2).selfTime;
+				return t1>t2?-1:(t1<t2?1:0);
+			}
+		});
+		long elapsed = elapsedTime;
+		if (running)
+			elapsed += System.nanoTime() - startTime;
+		ResultsTable rt = new ResultsTable();
+		for (int i=0; i<rows.size(); i++) {
+			Entry e = (Entry)rows.get(i);
+			rt.incrementCounter();
+			rt.addValue("Type", e.type>=0?types[e.type]:"Line");
+			rt.addValue("Name", e.name);
+			rt.addValue("Count", e.count);
+			rt.addValue("Time (ms)", e.selfTime/1e6);
+			rt.addValue("Total (ms)", e.totalTime/1e6);
+			rt.addValue("%", elapsed>0?100.0*e.selfTime/elapsed:0.0);
+		}
+		if (rt.getCounter()>0) {
+			rt.setDecimalPlaces(rt.getColumnIndex("Count"), 0);
+			rt.setDecimalPlaces(rt.getColumnIndex("%"), 1);
+		}
+		return rt;
+	}
+
+	/* Reconstructs the source lines from the tokens. */
+	private String[] getLines() {
+		StringBuffer[] sb = new StringBuffer[lineCounts.length];
+		for (int pc=0; pc<pgm.code.length; pc++) {
+			int tok = pgm.code[pc];
+			if ((tok&MacroConstants.TOK_MASK)==MacroConstants.EOF)
+				break;
+			int n = pgm.lineNumbers[pc];
+			if (n<0 || n>=sb.length || (lineCounts[n]==0 && lineTimes[n]==0))
+				continue;
+			if (sb[n]==null)
+				sb[n] = new StringBuffer();
+			else if (sb[n].length()>80)
+				continue;
+			sb[n].append(pgm.decodeToken(tok));
+			sb[n].append(' ');
+		}
+		String[] lines = new String[sb.length];
+		for (int i=0; i<sb.length; i++)
+			lines[i] = sb[i]!=null?sb[i].toString().trim():"";
+		return lines;
+	}
+
+	private static class Entry {
+		int type;
+		String name;
+		long count;
+		long totalTime, selfTime;
+
+		Entry(int type, String name) {
+			this.type = type;
+			this.name = name;
+		}
+	}
+
+}
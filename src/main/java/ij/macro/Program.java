@@ -3,7 +3,7 @@ import ij.*;
 import java.util.Hashtable;
 
 /** An object of this type is a tokenized macro file and the associated symbol table. */
-public class Program implements MacroConstants {
+public class Program implements MacroConstants, Cloneable {
 
 	private int maxSymbols = 800; // will be increased as needed
 	private int maxProgramSize = 2000;  // well be increased as needed
@@ -43,6 +43,23 @@ public class Program implements MacroConstants {
 		}
 	}
 	
+	/* Returns a program that shares the code and symbol table with this
+		one, without the global variables, menus and extensions that are
+		created when a program runs. */
+	Program copy() {
+		Program pgm;
+		try {
+			pgm = (Program)clone();
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+		pgm.globals = null;
+		pgm.menus = null;
+		pgm.queueCommands = false;
+		pgm.extensionRegistry = null;
+		return pgm;
+	}
+
 	public int[] getCode() {
 		return code;
 	}
@@ -0,0 +1,37 @@
+package ij.macro;
+import java.util.*;
+
+/** Keeps the most recently tokenized macros, so that macros that are run
+	repeatedly, e.g. by runMacro() or Process>Batch>Macro, are only
+	tokenized once. Programs are looked up by their source code. Each call
+	to get() returns a new copy of the cached program, without the global
+	variables of previous runs.
+*/
+class ProgramCache {
+	static final int MAX_PROGRAMS = 32;
+	static final int MAX_LENGTH = 1000000;
+
+	private static LinkedHashMap cache = new LinkedHashMap(MAX_PROGRAMS, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size()>MAX_PROGRAMS;
+		}
+	};
+
+	/** Returns the tokenized version of 'macro'. */
+	static Program get(String macro) {
+		if (macro.length()>MAX_LENGTH)
+			return new Tokenizer().tokenize(macro);
+		Program pgm;
+		synchronized (cache) {
+			pgm = (Program)cache.get(macro);
+		}
+		if (pgm==null) {
+			pgm = new Tokenizer().tokenize(macro);
+			synchronized (cache) {
+				cache.put(macro, pgm);
+			}
+		}
+		return pgm.copy();
+	}
+
+}
@@ -4,8 +4,7 @@ package ij.macro;
 class ReturnException extends RuntimeException {
 	double value;
 	String str;
-	Variable[] array;
-	int arraySize;
+	Variable array;
 	
 	ReturnException() {
 	}
@@ -11,6 +11,7 @@ public class Tokenizer implements MacroConstants {
     private double tokenValue;
     private Program pgm;
     private int lineNumber;
+    private boolean hasProfiler;
 
     /** Uses a StreamTokenizer to convert an ImageJ macro file into a token stream. */
     public Program tokenize(String program) {
@@ -26,10 +27,13 @@ public class Tokenizer implements MacroConstants {
         st.slashStarComments(true);
         st.slashSlashComments(true);
         pgm = new Program();
+        hasProfiler = false;
         do {
             getToken();
             addToken();
         } while (token!=EOF);
+        if (hasProfiler)
+        	addProfilerWords();
         if (pgm.hasFunctions)
         	addUserFunctions();
         return pgm;
@@ -169,6 +173,8 @@ public class Tokenizer implements MacroConstants {
 						}
 					} else
 						tok = type;
+					if (symbol.type==PROFILER)
+						hasProfiler = true;
 					tok += pgm.symTabLoc<<TOK_SHIFT;
 				} else {
 					pgm.addSymbol(new Symbol(token, tokenString));
@@ -242,6 +248,27 @@ public class Tokenizer implements MacroConstants {
 		return false;
     }
 
+	/** Converts "Profiler" tokens that are not followed by a '.' into
+		ordinary words, so "Profiler" is only reserved as a prefix of the
+		Profiler.* functions and can still be used as a variable or
+		function name. */
+	void addProfilerWords() {
+		int[] code = pgm.getCode();
+		int address = -1;
+		for (int i=0; i<code.length-1; i++) {
+			token = code[i]&TOK_MASK;
+			if (token==STRING_FUNCTION && pgm.getSymbolTable()[code[i]>>TOK_SHIFT].type==PROFILER
+			&& (code[i+1]&TOK_MASK)!='.') {
+				if (address==-1) {
+					pgm.addSymbol(new Symbol(WORD, "Profiler"));
+					address = pgm.stLoc;
+				}
+				code[i] = WORD + (address<<TOK_SHIFT);
+			} else if (token==EOF)
+				break;
+		}
+	}
+
 	/** Adds user-defined functions to the symbol table. */
 	void addUserFunctions() {
 		int[] code = pgm.getCode();
@@ -6,6 +6,7 @@ class Variable implements MacroConstants, Cloneable {
     private double value;
     private String str;
     private Variable[] array;
+    private DoubleArray numbers;
     private int arraySize;
 
     Variable() {
@@ -29,21 +30,22 @@ class Variable implements MacroConstants, Cloneable {
     }
 
     Variable(byte[] array) {
-    	this.array = new Variable[array.length];
+    	double[] values = new double[array.length];
     	for (int i=0; i<array.length; i++)
-    		this.array[i] = new Variable(array[i]&255);
+    		values[i] = array[i]&255;
+    	numbers = new DoubleArray(values);
     }
 
     Variable(int[] array) {
-    	this.array = new Variable[array.length];
+    	double[] values = new double[array.length];
     	for (int i=0; i<array.length; i++)
-    		this.array[i] = new Variable(array[i]);
+    		values[i] = array[i];
+    	numbers = new DoubleArray(values);
     }
 
+    /** Creates a numeric array variable that uses 'array' as its storage. */
     Variable(double[] array) {
-    	this.array = new Variable[array.length];
-    	for (int i=0; i<array.length; i++)
-    		this.array[i] = new Variable(array[i]);
+    	numbers = new DoubleArray(array);
     }
 
     double getValue() {
@@ -66,6 +68,7 @@ class Variable implements MacroConstants, Cloneable {
         this.value = value;
         str = null;
         array = null;
+        numbers = null;
     }
 
     String getString() {
@@ -76,35 +79,69 @@ class Variable implements MacroConstants, Cloneable {
         this.str = str;
         value = 0.0;
         array = null;
+        numbers = null;
     }
 
+    /** Returns the elements of this array. Arrays stored as doubles are
+    	converted into Variables, for all variables that refer to them. */
     Variable[] getArray() {
+        if (numbers!=null)
+        	return numbers.getVariables();
         return array;
     }
 
     void setArray(Variable[] array) {
         this.array = array;
+        numbers = null;
         value = 0.0;
         str = null;
         arraySize = 0;
     }
-    
+
+    /** Returns the storage of this array if it is a numeric array that
+    	is stored as doubles, otherwise null. */
+    double[] getDoubleArray() {
+    	return numbers!=null?numbers.values:null;
+    }
+
+    /** Makes this variable a numeric array that uses 'values' as its storage. */
+    void setDoubleArray(double[] values) {
+    	setArray(null);
+    	numbers = new DoubleArray(values);
+    }
+
+    /** Makes this variable refer to the same array as 'v'. */
+    void shareArray(Variable v) {
+    	DoubleArray numbers = v.numbers;
+    	int size = v.arraySize;
+    	setArray(v.array);
+    	this.numbers = numbers;
+    	arraySize = size;
+    }
+
     void setArraySize(int size) {
-    	if (array==null)
+    	int length = getArrayLength();
+    	if (length==0)
     		size = 0;
-    	else if (size>array.length)
-    		size = array.length;
+    	else if (size>length)
+    		size = length;
     	arraySize = size;
     }
     
     int getArraySize() {
-    	int size = array!=null?array.length:0;
+    	int size = getArrayLength();
     	if (arraySize>0) size = arraySize;
     	return size;
     }
 
+    private int getArrayLength() {
+    	if (numbers!=null)
+    		return numbers.length();
+    	return array!=null?array.length:0;
+    }
+
     int getType() {
-    	if (array!=null)
+    	if (array!=null || numbers!=null)
     		return ARRAY;
     	else if (str!=null)
     		return STRING;
@@ -114,8 +151,8 @@ class Variable implements MacroConstants, Cloneable {
 
 	public String toString() {
 		String s = "";
-		if (array!=null)
-			s += "array["+array.length+"]";
+		if (array!=null || numbers!=null)
+			s += "array["+getArrayLength()+"]";
 		else if (str!=null) {
 			s = str;
 			if (s.length()>80)
@@ -136,4 +173,47 @@ class Variable implements MacroConstants, Cloneable {
 		catch (CloneNotSupportedException e) {return null;}
 	}
 
+	/** Returns a copy of this variable that does not share its array. */
+	Variable copy() {
+		Variable v = (Variable)clone();
+		double[] values = getDoubleArray();
+		if (values!=null)
+			v.numbers = new DoubleArray((double[])values.clone());
+		else if (getType()==ARRAY) {
+			Variable[] a = getArray();
+			Variable[] a2 = new Variable[a.length];
+			for (int i=0; i<a.length; i++)
+				a2[i] = (Variable)a[i].clone();
+			v.numbers = null;
+			v.array = a2;
+		}
+		return v;
+	}
+
+	/* Storage of a numeric array as doubles, shared by all variables that
+		refer to the array. It is converted into Variables when code that
+		works with Variable elements asks for them. */
+	private static class DoubleArray {
+		double[] values;
+		Variable[] variables;
+
+		DoubleArray(double[] values) {
+			this.values = values;
+		}
+
+		int length() {
+			return values!=null?values.length:variables.length;
+		}
+
+		Variable[] getVariables() {
+			if (variables==null) {
+				variables = new Variable[values.length];
+				for (int i=0; i<values.length; i++)
+					variables[i] = new Variable(values[i]);
+				values = null;
+			}
+			return variables;
+		}
+	}
+
 } // class Variable
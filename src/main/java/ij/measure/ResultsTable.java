@@ -41,14 +41,14 @@ public class ResultsTable implements Cloneable {
 		"Circ.", "Feret", "IntDen", "Median","Skew","Kurt", "%Area", "RawIntDen", "Ch", "Slice", "Frame", 
 		 "FeretX", "FeretY", "FeretAngle", "MinFeret", "AR", "Round", "Solidity", "MinThr", "MaxThr"};
 
-	private int maxRows = 100; // will be increased as needed
 	private int maxColumns = MAX_COLUMNS; // will be increased as needed
 	private String[] headings = new String[maxColumns];
+	private HashMap headingIndex = new HashMap(); // heading -> index of first column; guarded by 'this'
 	private boolean[] keep = new boolean[maxColumns];
 	private short[] decimalPlaces = new short[maxColumns];
 	private int counter;
-	private double[][] columns = new double[maxColumns][];
-	private String[] rowLabels;
+	private TableColumn[] columns = new TableColumn[maxColumns];
+	private TableColumn rowLabels;
 	private int lastColumn = -1;
 	private	StringBuilder sb;
 	private short precision = 3;
@@ -56,7 +56,6 @@ public class ResultsTable implements Cloneable {
 	private char delimiter = '\t';
 	private boolean headingSet; 
 	private boolean showRowNumbers = true;
-	private Hashtable stringColumns;
 	private boolean NaNEmptyCells;
 	private boolean quoteCommas;
 
@@ -90,23 +89,6 @@ public class ResultsTable implements Cloneable {
 	/** Increments the measurement counter by one. */
 	public synchronized void incrementCounter() {
 		counter++;
-		if (counter==maxRows) {
-			if (rowLabels!=null) {
-				String[] s = new String[maxRows*2];
-				System.arraycopy(rowLabels, 0, s, 0, maxRows);
-				rowLabels = s;
-			}
-			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] tmp = new double[maxRows*2];
-					if (NaNEmptyCells)
-						Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
-					System.arraycopy(columns[i], 0, tmp, 0, maxRows);
-					columns[i] = tmp;
-				}
-			}
-			maxRows *= 2;
-		}
 	}
 	
 	/** Obsolete; the addValue() method automatically adds columns as needed.
@@ -116,9 +98,8 @@ public class ResultsTable implements Cloneable {
 		String[] tmp1 = new String[maxColumns*2];
 		System.arraycopy(headings, 0, tmp1, 0, maxColumns);
 		headings = tmp1;
-		double[][] tmp2 = new double[maxColumns*2][];
-		for (int i=0; i<maxColumns; i++)
-			tmp2[i] = columns[i];
+		TableColumn[] tmp2 = new TableColumn[maxColumns*2];
+		System.arraycopy(columns, 0, tmp2, 0, maxColumns);
 		columns = tmp2;
 		boolean[] tmp3 = new boolean[maxColumns*2];
 		System.arraycopy(keep, 0, tmp3, 0, maxColumns);
@@ -150,14 +131,12 @@ public class ResultsTable implements Cloneable {
 		if (counter==0)
 			throw new IllegalArgumentException("Counter==0");
 		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
+			columns[column] = new TableColumn(NaNEmptyCells);
 			if (headings[column]==null)
-				headings[column] = "---";
+				setHeading2(column, "---");
 			if (column>lastColumn) lastColumn = column;
 		}
-		columns[column][counter-1] = value;
+		columns[column].set(counter-1, value);
 		if (counter<25) {
 			if ((int)value!=value && !Double.isNaN(value))
 				decimalPlaces[column] = (short)precision;
@@ -207,8 +186,8 @@ public class ResultsTable implements Cloneable {
 		if (counter==0)
 			throw new IllegalArgumentException("Counter==0");
 		if (rowLabels==null)
-			rowLabels = new String[maxRows];
-		rowLabels[counter-1] = label;
+			rowLabels = new TableColumn(false);
+		rowLabels.setString(counter-1, label);
 		if (columnHeading!=null)
 			rowLabelHeading = columnHeading;
 	}
@@ -221,10 +200,10 @@ public class ResultsTable implements Cloneable {
 		if (row<0||row>=counter)
 			throw new IllegalArgumentException("row>=counter");
 		if (rowLabels==null)
-			rowLabels = new String[maxRows];
+			rowLabels = new TableColumn(false);
 		if (rowLabelHeading.equals(""))
 			rowLabelHeading = "Label";
-		rowLabels[row] = label;
+		rowLabels.setString(row, label);
 	}
 	
 	/** Set the row label column to null if the column label is "Label". */
@@ -241,9 +220,10 @@ public class ResultsTable implements Cloneable {
 		if (columns[column]==null)
 			return null;
 		else {
+			double[] values = columns[column].getDoubles(counter);
 			float[] data = new float[counter];
 			for (int i=0; i<counter; i++)
-				data[i] = (float)columns[column][i];
+				data[i] = (float)values[i];
 			return data;
 		}
 	}
@@ -255,12 +235,8 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column);
 		if (columns[column]==null)
 			return null;
-		else {
-			double[] data = new double[counter];
-			for (int i=0; i<counter; i++)
-				data[i] = columns[column][i];
-			return data;
-		}
+		else
+			return columns[column].getDoubles(counter);
 	}
 	
 	/** Returns the contents of this ResultsTable as a FloatProcessor. */
@@ -308,38 +284,50 @@ public class ResultsTable implements Cloneable {
 
 	/** Returns the index of the first column with the given heading.
 		heading. If not found, returns COLUMN_NOT_FOUND. */
-	public int getColumnIndex(String heading) {
-		for (int i=0; i<headings.length; i++) {
-			if (headings[i]==null)
-				return COLUMN_NOT_FOUND;
-			else if (headings[i].equals(heading))
-				return i;
+	public synchronized int getColumnIndex(String heading) {
+		Integer column = (Integer)headingIndex.get(heading);
+		return column!=null?column.intValue():COLUMN_NOT_FOUND;
+	}
+
+	/* Sets headings[column] and keeps the heading index up to date. */
+	private synchronized void setHeading2(int column, String heading) {
+		String previous = headings[column];
+		headings[column] = heading;
+		if (previous!=null)
+			makeHeadingIndex();
+		else if (heading!=null) {
+			Integer first = (Integer)headingIndex.get(heading);
+			if (first==null || first.intValue()>column)
+				headingIndex.put(heading, new Integer(column));
+		}
+	}
+
+	private synchronized void makeHeadingIndex() {
+		headingIndex.clear();
+		for (int i=headings.length-1; i>=0; i--) {
+			if (headings[i]!=null)
+				headingIndex.put(headings[i], new Integer(i));
 		}
-		return COLUMN_NOT_FOUND;
 	}
 	
 	/** Sets the heading of the the first available column and
 		returns that column's index. Returns COLUMN_IN_USE
 		 if this is a duplicate heading. */
 	public int getFreeColumn(String heading) {
+		if (getColumnIndex(heading)!=COLUMN_NOT_FOUND)
+			return COLUMN_IN_USE;
 		for(int i=0; i<headings.length; i++) {
 			if (headings[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
-				headings[i] = heading;
+				columns[i] = new TableColumn(NaNEmptyCells);
+				setHeading2(i, heading);
 				if (i>lastColumn) lastColumn = i;
 				return i;
 			}
-			if (headings[i].equals(heading))
-				return COLUMN_IN_USE;
 		}
 		addColumns();
 		lastColumn++;
-		columns[lastColumn] = new double[maxRows];
-		if (NaNEmptyCells)
-			Arrays.fill(columns[lastColumn], Double.NaN);
-		headings[lastColumn] = heading;
+		columns[lastColumn] = new TableColumn(NaNEmptyCells);
+		setHeading2(lastColumn, heading);
 		return lastColumn;
 	}
 	
@@ -352,7 +340,7 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column+","+row);
 		if (columns[column]==null)
 			throw new IllegalArgumentException("Column not defined: "+column);
-		return columns[column][row];
+		return columns[column].get(row);
 	}
 	
 	/**
@@ -414,8 +402,8 @@ public class ResultsTable implements Cloneable {
 		if (row<0 || row>=size())
 			throw new IllegalArgumentException("Row out of range");
 		String label = null;
-		if (rowLabels!=null && rowLabels[row]!=null)
-				label = rowLabels[row];
+		if (rowLabels!=null)
+			label = rowLabels.getString(row);
 		return label;
 	}
 
@@ -448,12 +436,10 @@ public class ResultsTable implements Cloneable {
 				throw new IllegalArgumentException("row>counter");
 		}
 		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
+			columns[column] = new TableColumn(NaNEmptyCells);
 			if (column>lastColumn) lastColumn = column;
 		}
-		columns[column][row] = value;
+		columns[column].set(row, value);
 		if (counter<25) {
 			if ((int)value!=value && !Double.isNaN(value))
 				decimalPlaces[column] = (short)precision;
@@ -478,22 +464,7 @@ public class ResultsTable implements Cloneable {
 		where 0&lt;=column&lt;=(lastRow+1 and 0&lt;=row&lt;=counter. */
 	public void setValue(int column, int row, String value) {
 		setValue(column, row, Double.NaN);
-		if (stringColumns==null)
-			stringColumns = new Hashtable();
-		ArrayList stringColumn = (ArrayList)stringColumns.get(new Integer(column));
-		if (stringColumn==null) {
-			stringColumn = new ArrayList();
-			stringColumns.put(new Integer(column), stringColumn);
-		}
-		int size = stringColumn.size();
-		if (row>=size) {
-			for (int i=size; i<row; i++)
-				stringColumn.add(i, "");
-		}
-		if (row==stringColumn.size())
-			stringColumn.add(row, value);
-		else
-			stringColumn.set(row, value);
+		columns[column].setString(row, value);
 	}
 
 	/** Returns a tab or comma delimited string containing the column headings. */
@@ -501,7 +472,7 @@ public class ResultsTable implements Cloneable {
 		if (headingSet && !rowLabelHeading.equals("")) { // workaround setHeading() bug
 			for (int i=0; i<=lastColumn; i++) {
 				if (columns[i]!=null && rowLabelHeading.equals(headings[i]))
-					{headings[i]=null; columns[i]=null;}
+					{setHeading2(i, null); columns[i]=null;}
 			}
 			headingSet = false;
 		}
@@ -560,13 +531,18 @@ public class ResultsTable implements Cloneable {
 			sb = new StringBuilder(200);
 		else
 			sb.setLength(0);
+		appendRow(sb, row);
+		return new String(sb);
+	}
+
+	private void appendRow(StringBuilder sb, int row) {
 		if (showRowNumbers) {
-			sb.append(Integer.toString(row+1));
+			sb.append(row+1);
 			sb.append(delimiter);
 		}
 		if (rowLabels!=null) {
-			if (rowLabels[row]!=null) {
-				String label = rowLabels[row];
+			if (rowLabels.getString(row)!=null) {
+				String label = rowLabels.getString(row);
 				if (delimiter==',')
 					label = label.replaceAll(",", ";");
 				sb.append(label);
@@ -574,36 +550,85 @@ public class ResultsTable implements Cloneable {
 			sb.append(delimiter);
 		}
 		for (int i=0; i<=lastColumn; i++) {
-			if (columns[i]!=null) {
-				String value = getValueAsString(i,row);
-				if (quoteCommas) {
-					if (value.contains(","))
-						value = "\""+value+"\"";
+			TableColumn c = columns[i];
+			if (c!=null) {
+				double value = c.get(row);
+				if (Double.isNaN(value) && c.hasStrings()) {
+					String s = getValueAsString(i,row);
+					if (quoteCommas && s.indexOf(',')>=0) {
+						sb.append('"');
+						sb.append(s);
+						sb.append('"');
+					} else
+						sb.append(s);
+				} else {
+					int places = decimalPlaces[i];
+					if (places==AUTO_FORMAT)
+						places = (int)value==value&&precision>=0?0:precision;
+					appendNumber(sb, value, places);
 				}
-				sb.append(value);
 				if (i!=lastColumn)
 					sb.append(delimiter);
 			}
 		}
-		return new String(sb);
 	}
-	
+
+	/* Appends d2s(n, decimalPlaces) without creating a String. Rounding is
+		done in double arithmetic and values that are close to a tie, very
+		large or very small, negative values that round to zero and numbers
+		shown in scientific notation are left to DecimalFormat. */
+	private static void appendNumber(StringBuilder sb, double n, int decimalPlaces) {
+		double np = n<0.0?-n:n;
+		if (decimalPlaces>9) decimalPlaces = 9;
+		if (decimalPlaces<0 || !(np<=999999999999d) || n==Float.MAX_VALUE
+		|| (np<0.001 && np!=0.0) || (n==0.0 && 1.0/n<0.0)) {
+			sb.append(d2s(n, decimalPlaces));
+			return;
+		}
+		long scale = POWERS_OF_TEN[decimalPlaces];
+		double scaled = np*scale;
+		double floor = Math.floor(scaled);
+		double fraction = scaled - floor;
+		if (scaled>=1e15 || Math.abs(fraction-0.5)<1e-6) {
+			sb.append(d2s(n, decimalPlaces));
+			return;
+		}
+		long rounded = (long)floor;
+		if (fraction>0.5)
+			rounded++;
+		if (n<0.0) {
+			if (rounded==0L) {
+				sb.append(d2s(n, decimalPlaces));
+				return;
+			}
+			sb.append('-');
+		}
+		sb.append(rounded/scale);
+		if (decimalPlaces>0) {
+			sb.append('.');
+			long digits = rounded%scale;
+			for (long p=scale/10; p>digits && p>1; p/=10)
+				sb.append('0');
+			sb.append(digits);
+		}
+	}
+
+	private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L,
+		1000000L, 10000000L, 100000000L, 1000000000L};
+
 	private String getValueAsString(int column, int row) { 
-		double value = columns[column][row];
-		//IJ.log("getValueAsString1: col="+column+ ", row= "+row+", value= "+value+", size="+stringColumns.size());
-		if (Double.isNaN(value) && stringColumns!=null) {
-			String string = "NaN";
-			ArrayList stringColumn = (ArrayList)stringColumns.get(new Integer(column));
-			if (stringColumn==null)
-				return string;
-			//IJ.log("getValueAsString2: "+column+ +row+" "+stringColumn.size());
-			if (row>=0 && row<stringColumn.size()) {
-				string = (String)stringColumn.get(row);
-				if (string!=null && string.contains("\n"))
+		TableColumn c = columns[column];
+		double value = c.get(row);
+		if (Double.isNaN(value) && c.hasStrings()) {
+			if (row>=0 && row<c.getStringCount()) {
+				String string = c.getString(row);
+				if (string==null)
+					string = "";
+				else if (string.contains("\n"))
 					string = string.replaceAll("\n", "\\\\n");
 				return string;
 			} else
-				return string;
+				return "NaN";
 		} else {
 			int places = decimalPlaces[column];
 			if (places==AUTO_FORMAT)
@@ -629,12 +654,9 @@ public class ResultsTable implements Cloneable {
 	public void setHeading(int column, String heading) {
 		if ((column<0) || (column>=headings.length))
 			throw new IllegalArgumentException("Column out of range: "+column);
-		headings[column] = heading;
-		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
-		}
+		setHeading2(column, heading);
+		if (columns[column]==null)
+			columns[column] = new TableColumn(NaNEmptyCells);
 		if (column>lastColumn) lastColumn = column;
 		headingSet = true;
 	}
@@ -642,7 +664,7 @@ public class ResultsTable implements Cloneable {
 	/** Sets the headings used by the Measure command ("Area", "Mean", etc.). */
 	public void setDefaultHeadings() {
 		for(int i=0; i<defaultHeadings.length; i++)
-				headings[i] = defaultHeadings[i];
+				setHeading2(i, defaultHeadings[i]);
 	}
 
 	/** Sets the decimal places (digits to the right of decimal point)
@@ -728,29 +750,18 @@ public class ResultsTable implements Cloneable {
 	/** Deletes the specified row. */
 	public synchronized void deleteRow(int row) {
 		if (counter==0 || row<0 || row>counter-1) return;
-		if (rowLabels!=null) {
-			rowLabels[row] = null;
-			for (int i=row; i<counter-1; i++)
-				rowLabels[i] = rowLabels[i+1];
-		}
+		if (rowLabels!=null)
+			rowLabels.delete(row, counter);
 		for (int col=0; col<=lastColumn; col++) {
-			if (columns[col]!=null) {
-				for (int i=row; i<counter-1; i++)
-					columns[col][i] = columns[col][i+1];
-				ArrayList stringColumn = stringColumns!=null?(ArrayList)stringColumns.get(new Integer(col)):null;
-				if (stringColumn!=null && stringColumn.size()==counter) {
-					for (int i=row; i<counter-1; i++)
-						stringColumn.set(i,stringColumn.get(i+1));
-					stringColumn.remove(counter-1);
-				}
-			}
+			if (columns[col]!=null)
+				columns[col].delete(row, counter);
 		}
 		counter--;
 	}
 	
 	public synchronized void reset() {
 		counter = 0;
-		maxRows = 100;
+		headingIndex.clear();
 		for (int i=0; i<maxColumns; i++) {
 			columns[i] = null;
 			headings[i] = null;
@@ -759,7 +770,6 @@ public class ResultsTable implements Cloneable {
 		}
 		lastColumn = -1;
 		rowLabels = null;
-		stringColumns = null;
 	}
 	
 	/** Returns the index of the last used column, or -1 if no columns are used. */
@@ -866,18 +876,16 @@ public class ResultsTable implements Cloneable {
 		for (int i=0; i<=last; i++) {
 			//IJ.log(i+"  "+rt2.getColumn(i)+"  "+columns[i]+"  "+rt2.getColumnHeading(i)+"  "+getColumnHeading(i));
 			if (rt2.getColumn(i)!=null && columns[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
-				headings[i] = rt2.getColumnHeading(i);
+				columns[i] = new TableColumn(NaNEmptyCells);
+				setHeading2(i, rt2.getColumnHeading(i));
 				if (i>lastColumn) lastColumn = i;
 			} else if (rt2.getColumn(i)==null && columns[i]!=null && !keep[i])
 				columns[i] = null;
 		}
-		if (rt2.getRowLabels()==null)
+		if (rt2.rowLabels==null)
 			rowLabels = null;
-		else if (rt2.getRowLabels()!=null && rowLabels==null) {
-			rowLabels = new String[maxRows];
+		else if (rt2.rowLabels!=null && rowLabels==null) {
+			rowLabels = new TableColumn(false);
 			rowLabelHeading = "Label";
 		}
 		if (size()>0) show("Results");
@@ -887,10 +895,6 @@ public class ResultsTable implements Cloneable {
 		return maxColumns;
 	}
 	
-	String[] getRowLabels() {
-		return rowLabels;
-	}
-	
 	/** Opens a tab or comma delimited text file and returns it 
 	* as a ResultsTable, without requiring a try/catch statement.
 	* Displays a file open dialog if 'path' is empty or null.
@@ -911,7 +915,6 @@ public class ResultsTable implements Cloneable {
 	* @see #open2(String)
 	*/
 	public static ResultsTable open(String path) throws IOException {
-		final String lineSeparator =  "\n";
 		if (path==null || path.equals("")) {
 			OpenDialog od = new OpenDialog("Open Table", "");
 			String dir = od.getDirectory();
@@ -920,28 +923,41 @@ public class ResultsTable implements Cloneable {
 				return null;
 			path = dir+name;
 		}
-		String text = IJ.openAsString(path);
-		if (text==null)
-			return null;
-		if (text.startsWith("Error:"))
+		File file = new File(path);
+		if (!file.exists())
 			throw new IOException("Error opening "+path);
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
-		String cellSeparator =  csv?",":"\t";
-		boolean commasReplaced = false;
-		if (csv && text.contains("\"")) {
-			text = replaceQuotedCommas(text);
-			commasReplaced = true;
+		TableReader reader = new TableReader(new FileReader(file), csv);
+		try {
+			return open(reader, csv);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/* Reads the table one line at a time. Numbers are parsed directly
+		from the line buffer of the TableReader, so only the headings,
+		labels and string cells are converted to Strings. Empty lines at
+		the end of the file are ignored. */
+	private static ResultsTable open(TableReader reader, boolean csv) throws IOException {
+		int emptyLines = 0;
+		boolean more = reader.next();
+		while (more && reader.isEmpty()) {
+			emptyLines++;
+			more = reader.next();
 		}
-		String commaSubstitute2 = ""+commaSubstitute;
-		String[] lines = text.split(lineSeparator);
-		if (lines.length==0)
+		if (!more && emptyLines>0)
 			throw new IOException("Table is empty or invalid");
-		String[] headings = lines[0].split(cellSeparator);
+		if (!more || emptyLines>0)
+			throw new IOException("This is not a tab or comma delimited text file.");
+		String[] headings = reader.getStrings();
 		if (headings.length==1)
 			throw new IOException("This is not a tab or comma delimited text file.");
+		String[] firstLine = headings.clone();
+		boolean leadingTab = reader.startsWithTab();
 		int numbersInHeadings = 0;
 		for (int i=0; i<headings.length; i++) {
-			if (headings[i].equals("NaN") || !Double.isNaN(Tools.parseDouble(headings[i])))
+			if (headings[i].equals("NaN") || !Double.isNaN(reader.getNumber(i)))
 				numbersInHeadings++;
 		}
 		boolean allNumericHeadings = numbersInHeadings==headings.length;
@@ -950,20 +966,22 @@ public class ResultsTable implements Cloneable {
 				headings[i] = "C"+(i+1);
 		}
 		int firstColumn = headings[0].equals(" ")?1:0;
-		for (int i=0; i<headings.length; i++) {
-			headings[i] = headings[i].trim();
-			if (commasReplaced) {
-				if (headings[i].startsWith("\"") && headings[i].endsWith("\""))
-					headings[i] = headings[i].substring(1, headings[i].length()-1);
-			}
-		}
-		int firstRow = allNumericHeadings?0:1;
+		for (int i=0; i<headings.length; i++)
+			headings[i] = unquote(headings[i].trim(), csv);
 		boolean labels = firstColumn==1 && headings[1].equals("Label");
-		int type=getTableType(path, lines, firstRow, cellSeparator);
-		//if (!labels && (type==1||type==2))
-		//	labels = true;
+		// the table type is determined by the second line
+		more = reader.next();
+		while (more && reader.isEmpty()) {
+			emptyLines++;
+			more = reader.next();
+		}
+		int type = 0;
+		if (emptyLines>0 && more)
+			type = 2; // the second line is empty
+		else if (more)
+			type = getTableType(reader);
 		int labelsIndex = (type==2)?0:1;
-		if (lines[0].startsWith("\t")) {
+		if (leadingTab) {
 			String[] headings2 = new String[headings.length+1];
 			headings2[0] = " ";
 			for (int i=0; i<headings.length; i++)
@@ -972,42 +990,69 @@ public class ResultsTable implements Cloneable {
 			firstColumn = 1;
 		}
 		ResultsTable rt = new ResultsTable();
-		for (int i=firstRow; i<lines.length; i++) {
+		int[] indexes = new int[headings.length];
+		Arrays.fill(indexes, COLUMN_NOT_FOUND);
+		if (allNumericHeadings) {
 			rt.incrementCounter();
-			String[] items=lines[i].split(cellSeparator);
-			for (int j=firstColumn; j<items.length; j++) {
-				if (j==labelsIndex&&labels)
-					rt.addLabel(headings[labelsIndex], items[labelsIndex]);
-				else if (j<headings.length) {
-					double value = Tools.parseDouble(items[j]);
-					if (Double.isNaN(value)) {
-						String item = items[j];
-						if (commasReplaced) {
-							item = item.replaceAll(commaSubstitute2, ",");
-							if (item.startsWith("\"") && item.endsWith("\""))
-								item = item.substring(1, item.length()-1);
-						}
-						rt.addValue(headings[j], item);
-					} else
-						rt.addValue(headings[j], value);
+			for (int j=firstColumn; j<firstLine.length && j<headings.length; j++)
+				rt.addCell(headings, indexes, j, Tools.parseDouble(firstLine[j]), firstLine[j], csv);
+		}
+		while (more) {
+			if (reader.isEmpty())
+				emptyLines++;
+			else {
+				for (; emptyLines>0; emptyLines--) {
+					rt.incrementCounter();
+					if (firstColumn==0)
+						rt.addCell(headings, indexes, 0, Double.NaN, "", csv);
+				}
+				rt.incrementCounter();
+				int n = reader.size();
+				for (int j=firstColumn; j<n; j++) {
+					if (j==labelsIndex&&labels)
+						rt.addLabel(headings[labelsIndex], reader.getString(labelsIndex));
+					else if (j<headings.length) {
+						double value = reader.getNumber(j);
+						rt.addCell(headings, indexes, j, value, Double.isNaN(value)?reader.getString(j):null, csv);
+					}
 				}
 			}
+			more = reader.next();
 		}
 		return rt;
 	}
-	
-	private static int getTableType(String path, String[] lines, int firstRow, String cellSeparator) {
-		if (lines.length<2) return 0;
-		String[] items=lines[1].split(cellSeparator);
+
+	/* Adds a number, or a string if 'value' is NaN, to the end of the column 'headings[j]'. */
+	private void addCell(String[] headings, int[] indexes, int j, double value, String item, boolean csv) {
+		int index = indexes[j];
+		if (index==COLUMN_NOT_FOUND) {
+			index = getColumnIndex(headings[j]);
+			if (index==COLUMN_NOT_FOUND)
+				index = getFreeColumn(headings[j]);
+			indexes[j] = index;
+		}
+		addValue(index, value);
+		if (Double.isNaN(value))
+			columns[index].setString(counter-1, unquote(item, csv));
+		keep[index] = true;
+	}
+
+	private static String unquote(String item, boolean csv) {
+		if (csv && item.length()>=2 && item.startsWith("\"") && item.endsWith("\""))
+			item = item.substring(1, item.length()-1);
+		return item;
+	}
+
+	private static int getTableType(TableReader reader) {
 		int nonNumericCount = 0;
 		int nonNumericIndex = 0;
-		for (int i=0; i<items.length; i++) {
-			if (!items[i].equals("NaN") && Double.isNaN(Tools.parseDouble(items[i]))) {
+		int n = reader.size();
+		for (int i=0; i<n; i++) {
+			if (Double.isNaN(reader.getNumber(i)) && !reader.getString(i).equals("NaN")) {
 				nonNumericCount++;
 				nonNumericIndex = i;
 			}
 		}
-		boolean csv = path.endsWith(".csv");
 		if (nonNumericCount==0)
 			return 0; // assume this is all-numeric table
 		if (nonNumericCount==1 && nonNumericIndex==1)
@@ -1017,18 +1062,6 @@ public class ResultsTable implements Cloneable {
 		return 3;
 	}
 	
-	private static String replaceQuotedCommas(String text) {
-		char[] c = text.toCharArray();
-		boolean inQuotes = false;
-		for (int i=0; i<c.length; i++) {
-			if (c[i]=='"')
-				inQuotes = !inQuotes;
-			if (inQuotes && c[i]==',')
-				c[i] = commaSubstitute;
-		}
-		return new String(c);
-	}
-	
 	/** Saves this ResultsTable as a tab or comma delimited text file. The table
 	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv".
 	     Displays a file save dialog if 'path' is empty or null. Does nothing if the
@@ -1053,26 +1086,60 @@ public class ResultsTable implements Cloneable {
 			if (file==null) return;
 			path = sd.getDirectory() + file;
 		}
+		write(path, 0, false);
+	}
+
+	/** Appends the rows starting with 'firstRow' to a tab or comma
+		delimited text file, so a table that grows can be saved as it
+		grows. The column headings are written only if the file does
+		not exist or is empty.
+		@see #saveAs(String)
+	*/
+	public void appendRows(String path, int firstRow) throws IOException {
+		if (firstRow<0)
+			firstRow = 0;
+		if (firstRow>=size())
+			return;
+		write(path, firstRow, new File(path).length()>0);
+	}
+
+	/* Writes the rows starting with 'firstRow' through a buffer that is
+		reused for all rows, so no String is created per row or cell. */
+	private synchronized void write(String path, int firstRow, boolean append) throws IOException {
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
 		delimiter = csv?',':'\t';
-		PrintWriter pw = null;
-		FileOutputStream fos = new FileOutputStream(path);
-		BufferedOutputStream bos = new BufferedOutputStream(fos);
-		pw = new PrintWriter(bos);
 		boolean saveShowRowNumbers = showRowNumbers;
 		if (Prefs.dontSaveRowNumbers)	
 			showRowNumbers = false;
-		if (!Prefs.dontSaveHeaders) {
-			String headings = getColumnHeadings();
-			pw.println(headings);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, append)), 65536);
+			String lineSeparator = System.getProperty("line.separator");
+			if (!Prefs.dontSaveHeaders && !append) {
+				writer.write(getColumnHeadings());
+				writer.write(lineSeparator);
+			}
+			quoteCommas = csv;
+			StringBuilder sb = new StringBuilder(200);
+			char[] chars = new char[200];
+			int n = size();
+			for (int i=firstRow; i<n; i++) {
+				sb.setLength(0);
+				appendRow(sb, i);
+				sb.append(lineSeparator);
+				int length = sb.length();
+				if (length>chars.length)
+					chars = new char[length*2];
+				sb.getChars(0, length, chars, 0);
+				writer.write(chars, 0, length);
+			}
+		} finally {
+			quoteCommas = false;
+			showRowNumbers = saveShowRowNumbers;
+			delimiter = '\t';
+			if (writer!=null)
+				writer.close();
 		}
-		quoteCommas = csv?true:false;
-		for (int i=0; i<size(); i++)
-			pw.println(getRowAsString(i));
-		quoteCommas = false;
-		showRowNumbers = saveShowRowNumbers;
-		pw.close();
-		delimiter = '\t';
 	}
 	
 	public static String getDefaultHeading(int index) {
@@ -1089,29 +1156,15 @@ public class ResultsTable implements Cloneable {
 			rt2.headings = new String[headings.length];
 			for (int i=0; i<=lastColumn; i++)
 				rt2.headings[i] = headings[i];
-			rt2.columns = new double[columns.length][];
+			rt2.headingIndex = new HashMap();
+			rt2.makeHeadingIndex();
+			rt2.columns = new TableColumn[columns.length];
 			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] data = new double[maxRows];
-					for (int j=0; j<counter; j++)
-						data[j] = columns[i][j];
-					rt2.columns[i] = data;
-				}
-			}
-			if (rowLabels!=null) {
-				rt2.rowLabels = new String[rowLabels.length];
-				for (int i=0; i<counter; i++)
-					rt2.rowLabels[i] = rowLabels[i];
-			}
-			if (stringColumns!=null) {
-				rt2.stringColumns = new Hashtable();
-				Set set = stringColumns.keySet();
-				for (Iterator i=set.iterator(); i.hasNext();) {
-					Integer column = (Integer)i.next();
-					ArrayList list = (ArrayList)stringColumns.get(column);
-					rt2.stringColumns.put(column, list.clone());
-				}
+				if (columns[i]!=null)
+					rt2.columns[i] = columns[i].copy(counter);
 			}
+			if (rowLabels!=null)
+				rt2.rowLabels = rowLabels.copy(counter);
 			return rt2;
 		}
 		catch (CloneNotSupportedException e) {return null;}
@@ -0,0 +1,213 @@
+package ij.measure;
+import java.util.*;
+
+/** A column of a ResultsTable. Numbers are stored as ints as long as all
+	values are integers, then as floats as long as all values can be
+	represented exactly as floats, and as doubles otherwise. Strings are
+	stored separately, with repeated strings shared. The values are held
+	in chunks of 4096 rows, so a column grows without copying its values.
+*/
+class TableColumn {
+	static final int INT=0, FLOAT=1, DOUBLE=2;
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1<<CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int FIRST_CHUNK_SIZE = 16;
+	private static final int MAX_SHARED_STRINGS = 1024;
+
+	private int type;
+	private boolean nanFill;
+	private Object[] chunks = new Object[4]; // int[], float[] or double[]
+	private int nChunks;
+	private int capacity;
+	private String[][] strings;
+	private int stringCount; // rows up to the last row with a string
+	private HashMap sharedStrings;
+
+	/** Creates a column of zeros, or of NaNs if 'nanFill' is true. */
+	TableColumn(boolean nanFill) {
+		this.nanFill = nanFill;
+		type = nanFill?FLOAT:INT;
+	}
+
+	int getType() {
+		return type;
+	}
+
+	double get(int row) {
+		if (row>=capacity)
+			return nanFill?Double.NaN:0.0;
+		Object chunk = chunks[row>>>CHUNK_BITS];
+		int i = row&CHUNK_MASK;
+		switch (type) {
+			case INT: return ((int[])chunk)[i];
+			case FLOAT: return ((float[])chunk)[i];
+			default: return ((double[])chunk)[i];
+		}
+	}
+
+	void set(int row, double value) {
+		if (type==INT && ((int)value!=value || (value==0.0 && 1.0/value<0.0)))
+			convert((float)value==value||Double.isNaN(value)?FLOAT:DOUBLE);
+		else if (type==FLOAT && (float)value!=value && !Double.isNaN(value))
+			convert(DOUBLE);
+		if (row>=capacity)
+			ensureCapacity(row+1);
+		Object chunk = chunks[row>>>CHUNK_BITS];
+		int i = row&CHUNK_MASK;
+		switch (type) {
+			case INT: ((int[])chunk)[i]=(int)value; break;
+			case FLOAT: ((float[])chunk)[i]=(float)value; break;
+			default: ((double[])chunk)[i]=value; break;
+		}
+	}
+
+	/* The first chunk starts small and grows to CHUNK_SIZE by doubling, so
+		small tables stay small. Later chunks are allocated at full size. */
+	private void ensureCapacity(int size) {
+		while (capacity<size) {
+			if (nChunks==1 && capacity<CHUNK_SIZE) {
+				int length = Math.min(capacity*2, CHUNK_SIZE);
+				Object chunk = newChunk(type, length);
+				System.arraycopy(chunks[0], 0, chunk, 0, capacity);
+				chunks[0] = chunk;
+				capacity = length;
+			} else {
+				if (nChunks==chunks.length)
+					chunks = Arrays.copyOf(chunks, nChunks*2);
+				int length = nChunks==0?FIRST_CHUNK_SIZE:CHUNK_SIZE;
+				chunks[nChunks++] = newChunk(type, length);
+				capacity += length;
+			}
+		}
+	}
+
+	private Object newChunk(int type, int length) {
+		switch (type) {
+			case INT:
+				return new int[length];
+			case FLOAT:
+				float[] f = new float[length];
+				if (nanFill) Arrays.fill(f, Float.NaN);
+				return f;
+			default:
+				double[] d = new double[length];
+				if (nanFill) Arrays.fill(d, Double.NaN);
+				return d;
+		}
+	}
+
+	private void convert(int newType) {
+		for (int c=0; c<nChunks; c++) {
+			Object chunk = chunks[c];
+			int length = c==0?Math.min(capacity,CHUNK_SIZE):CHUNK_SIZE;
+			Object chunk2 = newChunk(newType, length);
+			for (int i=0; i<length; i++) {
+				double v = type==INT?((int[])chunk)[i]:((float[])chunk)[i];
+				if (newType==FLOAT)
+					((float[])chunk2)[i] = (float)v;
+				else
+					((double[])chunk2)[i] = v;
+			}
+			chunks[c] = chunk2;
+		}
+		type = newType;
+	}
+
+	/** Returns the string in 'row', or null if none was set. */
+	String getString(int row) {
+		if (strings==null || row>=stringCount)
+			return null;
+		String[] chunk = strings[row>>>CHUNK_BITS];
+		return chunk!=null?chunk[row&CHUNK_MASK]:null;
+	}
+
+	void setString(int row, String value) {
+		int c = row>>>CHUNK_BITS;
+		if (strings==null)
+			strings = new String[c+4][];
+		else if (c>=strings.length)
+			strings = (String[][])Arrays.copyOf(strings, Math.max(c+1,strings.length*2));
+		if (strings[c]==null)
+			strings[c] = new String[CHUNK_SIZE];
+		if (value!=null) {
+			if (sharedStrings==null)
+				sharedStrings = new HashMap();
+			String shared = (String)sharedStrings.get(value);
+			if (shared!=null)
+				value = shared;
+			else if (sharedStrings.size()<MAX_SHARED_STRINGS)
+				sharedStrings.put(value, value);
+		}
+		strings[c][row&CHUNK_MASK] = value;
+		if (row>=stringCount)
+			stringCount = row + 1;
+	}
+
+	/** Returns 'true' if strings have been set. */
+	boolean hasStrings() {
+		return strings!=null;
+	}
+
+	/** Returns the number of rows up to and including the last row with a string. */
+	int getStringCount() {
+		return stringCount;
+	}
+
+	/** Removes 'row' and moves the following rows, up to 'size', up by one. */
+	void delete(int row, int size) {
+		for (int i=row; i<size-1; i++)
+			set(i, get(i+1));
+		if (size-1<capacity)
+			set(size-1, nanFill?Double.NaN:0.0);
+		if (strings!=null && row<stringCount) {
+			for (int i=row; i<stringCount-1; i++)
+				setString(i, getString(i+1));
+			strings[(stringCount-1)>>>CHUNK_BITS][(stringCount-1)&CHUNK_MASK] = null;
+			stringCount--;
+		}
+	}
+
+	/** Returns the first 'size' values. */
+	double[] getDoubles(int size) {
+		double[] values = new double[size];
+		int n = Math.min(size, capacity);
+		for (int c=0; c*CHUNK_SIZE<n; c++) {
+			Object chunk = chunks[c];
+			int offset = c*CHUNK_SIZE;
+			int length = Math.min(n-offset, CHUNK_SIZE);
+			if (type==DOUBLE)
+				System.arraycopy(chunk, 0, values, offset, length);
+			else if (type==FLOAT) {
+				float[] f = (float[])chunk;
+				for (int i=0; i<length; i++)
+					values[offset+i] = f[i];
+			} else {
+				int[] a = (int[])chunk;
+				for (int i=0; i<length; i++)
+					values[offset+i] = a[i];
+			}
+		}
+		if (nanFill && n<size)
+			Arrays.fill(values, n, size, Double.NaN);
+		return values;
+	}
+
+	/** Returns a copy of the first 'size' rows. */
+	TableColumn copy(int size) {
+		TableColumn c2 = new TableColumn(nanFill);
+		c2.type = type;
+		int n = Math.min(size, capacity);
+		if (n>0)
+			c2.ensureCapacity(n);
+		for (int c=0; c*CHUNK_SIZE<n; c++)
+			System.arraycopy(chunks[c], 0, c2.chunks[c], 0, Math.min(n-c*CHUNK_SIZE, CHUNK_SIZE));
+		int ns = Math.min(size, stringCount);
+		for (int i=0; i<ns; i++)
+			c2.setString(i, getString(i));
+		if (strings!=null && c2.strings==null)
+			c2.strings = new String[4][];
+		return c2;
+	}
+
+}
@@ -0,0 +1,208 @@
+package ij.measure;
+import java.io.*;
+
+/** Reads a tab or comma delimited text file line by line, splitting
+	each line into cells in place. Numbers are parsed directly from the
+	characters of the line; strings are only created for cells that are
+	used as strings. Lines are split like String.split() does, so trailing
+	empty cells are ignored. In CSV files, commas between double quotes
+	do not separate cells; the quotes are kept.
+*/
+class TableReader {
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+		1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private Reader reader;
+	private char separator;
+	private boolean csv;
+	private boolean inQuotes;
+	private char[] buffer = new char[65536];
+	private int bufferPos, bufferEnd;
+	private boolean eof;
+	private char[] line = new char[1024];
+	private int length;
+	private int[] starts = new int[64];
+	private int[] ends = new int[64];
+	private int count;
+
+	TableReader(Reader reader, boolean csv) {
+		this.reader = reader;
+		this.csv = csv;
+		separator = csv?',':'\t';
+	}
+
+	/** Reads the next line. Returns false at the end of the file. */
+	boolean next() throws IOException {
+		length = 0;
+		count = 0;
+		int start = 0;
+		boolean empty = true;
+		while (bufferPos<bufferEnd || fill()) {
+			char c = buffer[bufferPos++];
+			empty = false;
+			if (c=='\n')
+				break;
+			if (c=='\r') {
+				if ((bufferPos<bufferEnd || fill()) && buffer[bufferPos]=='\n')
+					bufferPos++;
+				break;
+			}
+			if (csv && c=='"')
+				inQuotes = !inQuotes;
+			if (c==separator && !(csv&&inQuotes)) {
+				addCell(start, length);
+				start = length + 1;
+			}
+			if (length==line.length) {
+				char[] line2 = new char[length*2];
+				System.arraycopy(line, 0, line2, 0, length);
+				line = line2;
+			}
+			line[length++] = c;
+		}
+		if (empty)
+			return false;
+		addCell(start, length);
+		// remove trailing empty cells, as String.split() does
+		if (length>0) {
+			while (count>0 && ends[count-1]==starts[count-1])
+				count--;
+		}
+		return true;
+	}
+
+	void close() throws IOException {
+		reader.close();
+	}
+
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		int n = reader.read(buffer, 0, buffer.length);
+		if (n<=0) {
+			eof = true;
+			return false;
+		}
+		bufferPos = 0;
+		bufferEnd = n;
+		return true;
+	}
+
+	private void addCell(int start, int end) {
+		if (count==starts.length) {
+			int[] starts2 = new int[count*2];
+			int[] ends2 = new int[count*2];
+			System.arraycopy(starts, 0, starts2, 0, count);
+			System.arraycopy(ends, 0, ends2, 0, count);
+			starts = starts2;
+			ends = ends2;
+		}
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+
+	/** Returns 'true' if the current line is empty. */
+	boolean isEmpty() {
+		return length==0;
+	}
+
+	/** Returns 'true' if the current line starts with a tab. */
+	boolean startsWithTab() {
+		return length>0 && line[0]=='\t';
+	}
+
+	/** Returns the number of cells in the current line. */
+	int size() {
+		return count;
+	}
+
+	/** Returns the cells of the current line. */
+	String[] getStrings() {
+		String[] cells = new String[count];
+		for (int i=0; i<count; i++)
+			cells[i] = getString(i);
+		return cells;
+	}
+
+	String getString(int cell) {
+		return new String(line, starts[cell], ends[cell]-starts[cell]);
+	}
+
+	/** Returns the number in a cell, or NaN if it is not a number,
+		like Tools.parseDouble(getString(cell)) does. */
+	double getNumber(int cell) {
+		int i = starts[cell];
+		int end = ends[cell];
+		while (i<end && line[i]<=' ') i++;
+		while (end>i && line[end-1]<=' ') end--;
+		int start = i;
+		boolean negative = false;
+		if (i<end && (line[i]=='-'||line[i]=='+')) {
+			negative = line[i]=='-';
+			i++;
+		}
+		long mantissa = 0L;
+		int digits = 0, exponent = 0;
+		boolean anyDigits = false;
+		while (i<end && line[i]>='0' && line[i]<='9') {
+			if (digits<18) {
+				mantissa = mantissa*10 + (line[i]-'0');
+				if (mantissa>0) digits++;
+			} else
+				exponent++;
+			anyDigits = true;
+			i++;
+		}
+		if (i<end && line[i]=='.') {
+			i++;
+			while (i<end && line[i]>='0' && line[i]<='9') {
+				if (digits<18) {
+					mantissa = mantissa*10 + (line[i]-'0');
+					if (mantissa>0) digits++;
+					exponent--;
+				}
+				anyDigits = true;
+				i++;
+			}
+		}
+		if (anyDigits && i<end && (line[i]=='e'||line[i]=='E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i<end && (line[i]=='-'||line[i]=='+')) {
+				negativeExponent = line[i]=='-';
+				i++;
+			}
+			int e = 0;
+			boolean exponentDigits = false;
+			while (i<end && line[i]>='0' && line[i]<='9') {
+				if (e<100000) e = e*10 + (line[i]-'0');
+				exponentDigits = true;
+				i++;
+			}
+			if (!exponentDigits)
+				return parse(start, end);
+			exponent += negativeExponent?-e:e;
+		}
+		if (!anyDigits || i!=end || digits>15 || exponent<-22 || exponent>22)
+			return parse(start, end);
+		double value = mantissa;
+		if (exponent<0)
+			value /= POWERS_OF_TEN[-exponent];
+		else if (exponent>0)
+			value *= POWERS_OF_TEN[exponent];
+		return negative?-value:value;
+	}
+
+	/* Handles what the fast path in getNumber() does not, such as long
+		mantissas, large exponents, "Infinity" and hexadecimal numbers. */
+	private double parse(int start, int end) {
+		if (start==end)
+			return Double.NaN;
+		try {
+			return Double.parseDouble(new String(line, start, end-start));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+}
@@ -4,8 +4,19 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/** Implements the Process/Filters/Gaussian Blur 3D command. The planes
+ *  are read one after the other and blurred in x and y; the z direction
+ *  is blurred with a sliding window of planes, so each plane is read
+ *  only once, also with virtual stacks. For large z sigma, the z lines
+ *  are blurred by GaussianBlur, which downscales them, after the x and
+ *  y blurring.
+ */
 public class GaussianBlur3D implements PlugIn {
+	private static final int BLOCK_SIZE = 4096;	//pixels per block for the z convolution
+	private static final double MAX_SLIDING_SIGMA_Z = 8.5;	//GaussianBlur downscales lines for larger sigma
 	private static double xsigma=2, ysigma=2, zsigma=2;
 
 	public void run(String arg) {
@@ -38,69 +49,173 @@ public class GaussianBlur3D implements PlugIn {
 	public static void blur(ImagePlus imp, double sigmaX, double sigmaY, double sigmaZ) {
 		imp.deleteRoi();
 		ImageStack stack = imp.getStack();
-		if (sigmaX>0.0 || sigmaY>0.0) {
-			GaussianBlur gb = new GaussianBlur();
-			int channels = stack.getProcessor(1).getNChannels();
-			gb.setNPasses(channels*imp.getStackSize());
-			for (int i=1; i<=imp.getStackSize(); i++) {
-				ImageProcessor ip = stack.getProcessor(i);
-				double accuracy = (imp.getBitDepth()==8||imp.getBitDepth()==24)?0.002:0.0002;
-				gb.blurGaussian(ip, sigmaX, sigmaY, accuracy);
+		ImageStack output = stack;
+		if (stack.isVirtual())	//planes of virtual stacks are read once, the result is a new stack
+			output = ImageStack.create(stack.getWidth(), stack.getHeight(), stack.getSize(), stack.getBitDepth());
+		if (imp.isHyperStack()) {
+			int channels = imp.getNChannels();
+			int timePoints = imp.getNSlices()==1 ? 1 : imp.getNFrames();
+			for (int c=1; c<=channels; c++) {
+				for (int t=1; t<=timePoints; t++)
+					blur(getVolume(imp, stack, c, t), getVolume(imp, output, c, t), sigmaX, sigmaY, sigmaZ);
 			}
+		} else
+			blur(stack, output, sigmaX, sigmaY, sigmaZ);
+		if (output!=stack) {
+			for (int i=1; i<=stack.getSize(); i++)
+				output.setSliceLabel(stack.getSliceLabel(i), i);
+			imp.setStack(output);
 		}
-		if (sigmaZ>0.0) {
-			if (imp.isHyperStack())
-				blurHyperStackZ(imp, sigmaZ);
-			else
-				blurZ(stack, sigmaZ);
-			imp.updateAndDraw();
-		}
+		imp.updateAndDraw();
 	}
 
-	private static void blurZ(ImageStack stack, double sigmaZ) {
+	/** Blurs the 'input' stack with a 3D Gaussian and writes the result
+	 *  to 'output', which may be the same as the input (unless the input
+	 *  is a virtual stack). The x and y directions are blurred by
+	 *  GaussianBlur; for the z direction, each input plane is read only
+	 *  once and kept as float data while needed, and the output planes
+	 *  are calculated from whole planes in blocks of pixels, using all
+	 *  threads. With a z sigma above 8.5, where the kernel would be
+	 *  long, the output is blurred in z by GaussianBlur instead, one row
+	 *  of z lines at a time. Sigma values are in pixels.
+	 */
+	public static void blur(ImageStack input, ImageStack output, double sigmaX, double sigmaY, double sigmaZ) {
+		final int w = input.getWidth(), h = input.getHeight(), d = input.getSize();
+		final int n = w*h;
+		int bitDepth = input.getBitDepth();
+		double accuracy = (bitDepth==8||bitDepth==24)?0.002:0.0002;
 		GaussianBlur gb = new GaussianBlur();
-		double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
-		int w=stack.getWidth(), h=stack.getHeight(), d=stack.getSize();
-		float[] zpixels = null;
-		FloatProcessor fp =null;
-		IJ.showStatus("Z blurring");
 		gb.showProgress(false);
+		boolean blurZ = sigmaZ>0.0 && d>1;
+		boolean downscaleZ = blurZ && sigmaZ>MAX_SLIDING_SIGMA_Z;
+		if (downscaleZ)
+			blurZ = false;
+		float[][] kernel = blurZ ? gb.makeGaussianKernel(sigmaZ, accuracy, d) : new float[][] {{1f}, {0f}};
+		int kRadius = kernel[0].length;
+		int channels = input.getProcessor(1).getNChannels();
+		int ringSize = Math.min(d, 2*kRadius-1);	//planes needed for one output plane
+		float[] outPixels = new float[n];
+		IJ.showStatus("3D blurring");
+		for (int channel=0; channel<channels; channel++) {
+			float[][] ring = new float[ringSize][];	//the planes z-kRadius+1 to z+kRadius-1, plane z at z%ringSize
+			float[] first = null, last = null;
+			FloatProcessor fp = null;
+			int nextPlane = 0;						//the next plane to read
+			for (int z=0; z<d; z++) {
+				if (Thread.currentThread().isInterrupted()) return;
+				IJ.showProgress(channel*d+z, channels*d);
+				for (; nextPlane<d && nextPlane<z+kRadius; nextPlane++) {
+					fp = input.getProcessor(nextPlane+1).toFloat(channel, fp);
+					float[] plane = ring[nextPlane%ringSize];
+					if (plane==null || plane==first)
+						plane = new float[n];		//keep the first plane for the edge
+					System.arraycopy((float[])fp.getPixels(), 0, plane, 0, n);
+					if (sigmaX>0.0 || sigmaY>0.0)
+						gb.blurFloat(new FloatProcessor(w, h, plane), sigmaX, sigmaY, accuracy);
+					ring[nextPlane%ringSize] = plane;
+					if (nextPlane==0) first = plane;
+					if (nextPlane==d-1) last = plane;
+				}
+				float[] result = blurZ ? outPixels : ring[z%ringSize];
+				if (blurZ)
+					convolveZ(ring, first, last, result, z, d, kernel);
+				ImageProcessor ip = output.getProcessor(z+1);
+				if (ip instanceof FloatProcessor)	//setPixels would replace the array, not write to the stack
+					System.arraycopy(result, 0, (float[])ip.getPixels(), 0, n);
+				else
+					ip.setPixels(channel, new FloatProcessor(w, h, result));
+			}
+		}
+		if (downscaleZ)
+			blurZ(output, sigmaZ, accuracy, gb);
+		IJ.showProgress(1.0);
+		IJ.showStatus("");
+	}
+
+	/* Blurs the stack in z with GaussianBlur.blur1Direction, which
+	 * downscales the lines for large sigma; the z lines are processed
+	 * one xz plane at a time. */
+	private static void blurZ(ImageStack stack, double sigmaZ, double accuracy, GaussianBlur gb) {
+		int w=stack.getWidth(), h=stack.getHeight(), d=stack.getSize();
 		int channels = stack.getProcessor(1).getNChannels();
+		float[] zpixels = null;
+		FloatProcessor fp = null;
 		for (int y=0; y<h; y++) {
-			IJ.showProgress(y, h-1);
+			if (Thread.currentThread().isInterrupted()) return;
+			IJ.showProgress(y, h);
 			for (int channel=0; channel<channels; channel++) {
 				zpixels = stack.getVoxels(0, y, 0, w, 1, d, zpixels, channel);
 				if (fp==null)
 					fp = new FloatProcessor(w, d, zpixels);
-				//if (y==h/2) new ImagePlus("before-"+h/2, fp.duplicate()).show();
 				gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
 				stack.setVoxels(0, y, 0, w, 1, d, zpixels, channel);
 			}
 		}
-		IJ.showStatus("");
 	}
 
-	private static void blurHyperStackZ(ImagePlus imp, double zsigma) {
-		int channels = imp.getNChannels();
-		int slices = imp.getNSlices();
-		int timePoints = imp.getNFrames();
-		int nVolumes = channels*timePoints;
-		for (int c=1; c<=channels; c++) {
-			if (slices==1) {
-				ImageStack stack = getVolume(imp, c, 1);
-				blurZ(stack, zsigma);
-			} else {
-				for (int t=1; t<=timePoints; t++) {
-					ImageStack stack = getVolume(imp, c, t);
-					blurZ(stack, zsigma);
-					//new ImagePlus("stack-"+c+"-"+t, stack).show();
+	/* Calculates output plane z as the convolution of the planes in the ring
+	 * buffer with the kernel of GaussianBlur.makeGaussianKernel. Out-of-stack
+	 * planes are replaced by the edge planes. The arithmetic is the same as in
+	 * the convolution of lines by GaussianBlur, but it is done for blocks of
+	 * pixels at a time, distributed among the threads. */
+	private static void convolveZ(final float[][] ring, final float[] first, final float[] last,
+			final float[] result, final int z, final int d, final float[][] kernel) {
+		final float[] kern = kernel[0];
+		final float[] kernSum = kernel[1];
+		final int kRadius = kern.length;
+		final int ringSize = ring.length;
+		final int n = result.length;
+		final float[] plane = ring[z%ringSize];
+		final boolean addFirst = z<kRadius;
+		final boolean addLast = z<Math.min(kRadius,d) ? z+kRadius>d : z+kRadius>=d;
+		final int nBlocks = (n+BLOCK_SIZE-1)/BLOCK_SIZE;
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), nBlocks));
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("GaussianBlur3D-"+t) {
+				public void run() {
+					for (int b=nextBlock.getAndIncrement(); b<nBlocks; b=nextBlock.getAndIncrement()) {
+						int i0 = b*BLOCK_SIZE;
+						int i1 = Math.min(i0+BLOCK_SIZE, n);
+						float k0 = kern[0];
+						for (int i=i0; i<i1; i++)
+							result[i] = plane[i]*k0;
+						if (addFirst) {
+							float kSum = kernSum[z];
+							for (int i=i0; i<i1; i++)
+								result[i] += kSum*first[i];
+						}
+						if (addLast) {
+							float kSum = kernSum[d-z-1];
+							for (int i=i0; i<i1; i++)
+								result[i] += kSum*last[i];
+						}
+						for (int k=1; k<kRadius; k++) {
+							float[] below = z-k>=0 ? ring[(z-k)%ringSize] : null;
+							float[] above = z+k<d ? ring[(z+k)%ringSize] : null;
+							float kk = kern[k];
+							if (below!=null && above!=null) {
+								for (int i=i0; i<i1; i++)
+									result[i] += kk*(below[i]+above[i]);
+							} else if (below!=null) {
+								for (int i=i0; i<i1; i++)
+									result[i] += kk*below[i];
+							} else if (above!=null) {
+								for (int i=i0; i<i1; i++)
+									result[i] += kk*above[i];
+							}
+						}
+					}
 				}
-			}
+			};
 		}
+		if (threads.length==1)
+			threads[0].run();
+		else
+			ThreadUtil.startAndJoin(threads);
 	}
 
-	private static ImageStack getVolume(ImagePlus imp, int c, int t) {
-		ImageStack stack1 = imp.getStack();
+	private static ImageStack getVolume(ImagePlus imp, ImageStack stack1, int c, int t) {
 		ImageStack stack2 = new ImageStack(imp.getWidth(), imp.getHeight());
 		if (imp.getNSlices()==1) {
 			for (t=1; t<=imp.getNFrames(); t++) {
@@ -8,11 +8,18 @@ import ij.plugin.frame.*;
 import ij.gui.GenericDialog;
 import java.io.*;
 import java.lang.reflect.*;
+import java.util.*;
 
 /** This class runs macros and scripts installed in the Plugins menu as well as
 	macros and scripts opened using the Plugins/Macros/Run command. */
 public class Macro_Runner implements PlugIn {
+	private static final long MIN_CACHE_AGE = 2000L; // ms
 	private static String filePath;
+	private static LinkedHashMap fileCache = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size()>16;
+		}
+	};
 	
 	/** Opens and runs the specified macro file (.txt or .ijm) or script file (.js, .bsh or .py)  
 		on the current thread. Displays a file open dialog if <code>name</code> 
@@ -123,12 +130,7 @@ public class Macro_Runner implements PlugIn {
 		}
 		filePath = path;
 		try {
-			int size = (int)f.length();
-			byte[] buffer = new byte[size];
-			FileInputStream in = new FileInputStream(f);
-			in.read(buffer, 0, size);
-			String macro = new String(buffer, 0, size, "ISO8859_1");
-			in.close();
+			String macro = readMacroFile(f);
 			if (name.endsWith(".js"))
 				return runJavaScript(macro, arg);
 			else if (name.endsWith(".bsh"))
@@ -145,6 +147,37 @@ public class Macro_Runner implements PlugIn {
 		}
 	}
 
+	/* Returns the contents of a macro file. The contents of recently read
+		files are cached and reused as long as the modification time and size
+		of the file do not change, so that Interpreter finds the tokenized
+		macro in its cache without reading the file again. Files modified
+		within the last two seconds are not cached, since some file systems
+		record the modification time with a resolution of one or two seconds
+		and an edit that does not change the size could otherwise go unnoticed. */
+	private static String readMacroFile(File f) throws IOException {
+		String path = f.getAbsolutePath();
+		long modified = f.lastModified();
+		int size = (int)f.length();
+		boolean cache = Math.abs(System.currentTimeMillis()-modified)>=MIN_CACHE_AGE;
+		synchronized (fileCache) {
+			Object[] entry = (Object[])fileCache.get(path);
+			if (cache && entry!=null && ((Long)entry[0]).longValue()==modified && ((String)entry[1]).length()==size)
+				return (String)entry[1];
+		}
+		byte[] buffer = new byte[size];
+		FileInputStream in = new FileInputStream(f);
+		in.read(buffer, 0, size);
+		String macro = new String(buffer, 0, size, "ISO8859_1");
+		in.close();
+		synchronized (fileCache) {
+			if (cache)
+				fileCache.put(path, new Object[] {new Long(modified), macro});
+			else
+				fileCache.remove(path);
+		}
+		return macro;
+	}
+
     /** Runs the specified macro on the current thread. Macros can retrieve 
     	the optional string argument by calling the getArgument() macro function. 
     	Returns the string value returned by the macro, null if the macro does not
@@ -260,6 +260,18 @@ public class Analyzer implements PlugInFilter, Measurements {
 			if (stats==null) return;
 		} else
 			stats = imp.getStatistics(measurements);
+		measure(stats, roi);
+	}
+
+	/** Adds the specified statistics of the image, measured with
+		the area selection 'roi', to the results table, as measure()
+		does after calculating them. */
+	public void measure(ImageStatistics stats, Roi roi) {
+		String lastHdr = rt.getColumnHeading(ResultsTable.LAST_HEADING);
+		if (lastHdr==null || lastHdr.charAt(0)!='M') {
+			if (!reset()) return;
+		}
+		firstParticle = lastParticle = 0;
 		if (!IJ.isResultsWindow() && IJ.getInstance()!=null)
 			reset();
 		saveResults(stats, roi);
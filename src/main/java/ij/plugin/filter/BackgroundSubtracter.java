@@ -4,7 +4,9 @@ import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** Implements ImageJ's Subtract Background command. Based on the concept of the
@@ -69,6 +71,8 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     private int pass;
     private int flags = DOES_ALL|FINAL_PROCESSING|KEEP_PREVIEW|PARALLELIZE_STACKS;
     private boolean calledAsPlugin;
+    private int numThreads = Prefs.getThreads();    // threads for processing one image
+    private RollingBall ball;           // the last ball used, reused for the next image with the same radius
 
 
     public int setup(String arg, ImagePlus imp) {
@@ -118,7 +122,10 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
             staticDoPresmooth = doPresmooth;
             Prefs.set("bs.background", lightBackground);
         }
-        return IJ.setupDialog(imp, flags);  //ask whether to process all slices of stack (if a stack)
+        flags = IJ.setupDialog(imp, flags); //ask whether to process all slices of stack (if a stack)
+        if ((flags&DOES_STACKS)!=0 && imp.getStackSize()>1)
+            numThreads = 1;                 //stack slices are processed in parallel anyhow
+        return flags;
     }
 
     public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
@@ -200,7 +207,7 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         boolean invertedLut = ip.isInvertedLut();
         boolean invert = (invertedLut && !lightBackground) || (!invertedLut && lightBackground);
         RollingBall ball = null;
-        if (!useParaboloid) ball = new RollingBall(radius);
+        if (!useParaboloid) ball = getBall(radius);
         FloatProcessor fp = null;
         for (int channelNumber=0; channelNumber<ip.getNChannels(); channelNumber++) {
             fp = ip.toFloat(channelNumber, fp);
@@ -316,11 +323,12 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
     /** Filter by subtracting a sliding parabola for all lines in one direction, x, y or one of
-     *  the two diagonal directions (diagonals are processed only for half the image per call). */
-    void filter1D(FloatProcessor fp, int direction, float coeff2, float[] cache, int[] nextPoint) {
-        float[] pixels = (float[])fp.getPixels();   //this will become the background
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+     *  the two diagonal directions (diagonals are processed only for half the image per call).
+     *  The lines are distributed among the threads. */
+    void filter1D(FloatProcessor fp, int direction, final float coeff2, float[] cache, int[] nextPoint) {
+        final float[] pixels = (float[])fp.getPixels();   //this will become the background
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
         int startLine = 0;          //index of the first line to handle
         int nLines = 0;             //index+1 of the last line to handle (initialized to avoid compile-time error)
         int lineInc = 0;            //increment from one line to the next in pixels array
@@ -363,21 +371,37 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
                 pointInc = width - 1;
             break;
         }
-        for (int i=startLine; i<nLines; i++) {
-            if (i%50==0) {
-                if (Thread.currentThread().isInterrupted()) return;
-                showProgress(i/(double)nLines);
-            }
-            int startPixel = i*lineInc;
-            if (direction == DIAGONAL_2B) startPixel += width-1;
-            switch (direction) {
-                case DIAGONAL_1A: length = Math.min(height, width-i); break;
-                case DIAGONAL_1B: length = Math.min(width, height-i); break;
-                case DIAGONAL_2A: length = Math.min(height, i+1);     break;
-                case DIAGONAL_2B: length = Math.min(width, height-i); break;
-            }
-            lineSlideParabola(pixels, startPixel, pointInc, length, coeff2, cache, nextPoint, null);
+        final int finalDirection = direction, finalStartLine = startLine, finalNLines = nLines;
+        final int finalLineInc = lineInc, finalPointInc = pointInc, finalLength = length;
+        final AtomicInteger nextLine = new AtomicInteger(startLine);
+        final Thread callingThread = Thread.currentThread();
+        Thread[] threads = newThreads(nLines-startLine);
+        for (int t=0; t<threads.length; t++) {
+            final boolean showProgress = t==0;
+            final float[] threadCache = t==0 ? cache : new float[cache.length];
+            final int[] threadNextPoint = t==0 ? nextPoint : new int[nextPoint.length];
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    for (int i=nextLine.getAndIncrement(); i<finalNLines; i=nextLine.getAndIncrement()) {
+                        if (i%50==0) {
+                            if (callingThread.isInterrupted()) return;
+                            if (showProgress) showProgress((i-finalStartLine)/(double)(finalNLines-finalStartLine));
+                        }
+                        int startPixel = i*finalLineInc;
+                        if (finalDirection == DIAGONAL_2B) startPixel += width-1;
+                        int length = finalLength;
+                        switch (finalDirection) {
+                            case DIAGONAL_1A: length = Math.min(height, width-i); break;
+                            case DIAGONAL_1B: length = Math.min(width, height-i); break;
+                            case DIAGONAL_2A: length = Math.min(height, i+1);     break;
+                            case DIAGONAL_2B: length = Math.min(width, height-i); break;
+                        }
+                        lineSlideParabola(pixels, startPixel, finalPointInc, length, coeff2, threadCache, threadNextPoint, null);
+                    }
+                }
+            };
         }
+        startAndJoin(threads);
         pass++;
     } //void filter1D
 
@@ -551,29 +575,37 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
     /** Creates a lower resolution image for ball-rolling. */
-    FloatProcessor shrinkImage(FloatProcessor ip, int shrinkFactor) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        float[] pixels = (float[])ip.getPixels();
-        int sWidth = (width+shrinkFactor-1)/shrinkFactor;
-        int sHeight = (height+shrinkFactor-1)/shrinkFactor;
+    FloatProcessor shrinkImage(FloatProcessor ip, final int shrinkFactor) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final float[] pixels = (float[])ip.getPixels();
+        final int sWidth = (width+shrinkFactor-1)/shrinkFactor;
+        final int sHeight = (height+shrinkFactor-1)/shrinkFactor;
         showProgress(0.1);
         FloatProcessor smallImage = new FloatProcessor(sWidth, sHeight);
-        float[] sPixels = (float[])smallImage.getPixels();
-        float min, thispixel;
-        for (int ySmall=0; ySmall<sHeight; ySmall++) {
-            for (int xSmall=0; xSmall<sWidth; xSmall++) {
-                min = Float.MAX_VALUE;
-                for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
-                    for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
-                        thispixel = pixels[x+y*width];
-                        if (thispixel<min)
-                            min = thispixel;
+        final float[] sPixels = (float[])smallImage.getPixels();
+        final AtomicInteger nextLine = new AtomicInteger(0);
+        Thread[] threads = newThreads(sHeight);
+        for (int t=0; t<threads.length; t++) {
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    for (int ySmall=nextLine.getAndIncrement(); ySmall<sHeight; ySmall=nextLine.getAndIncrement()) {
+                        for (int xSmall=0; xSmall<sWidth; xSmall++) {
+                            float min = Float.MAX_VALUE;
+                            for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
+                                for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
+                                    float thispixel = pixels[x+y*width];
+                                    if (thispixel<min)
+                                        min = thispixel;
+                                }
+                            }
+                            sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
+                        }
                     }
                 }
-                sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
-            }
+            };
         }
+        startAndJoin(threads);
         //new ImagePlus("smallImage", smallImage).show();
         return smallImage;
     }
@@ -591,101 +623,138 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         processing time increases with ball radius^2.
     */
     void rollBall(RollingBall ball, FloatProcessor fp) {
-        float[] pixels = (float[])fp.getPixels();   //the input pixels
-        int width = fp.getWidth();
-        int height = fp.getHeight();
-        float[] zBall = ball.data;
-        int ballWidth = ball.width;
-        int radius = ballWidth/2;
-        float[] cache = new float[width*ballWidth]; //temporarily stores the pixels we work on
-
-		Thread thread = Thread.currentThread();
-		long lastTime = System.currentTimeMillis();
-        for (int y=-radius; y<height+radius; y++) { //for all positions of the ball center:
-			long time = System.currentTimeMillis();
-			if (time-lastTime > 100) {
-				lastTime = time;
-				if (thread.isInterrupted()) return;
-				showProgress(0.1+0.8*y/(height+ballWidth));
-            }
-            int nextLineToWriteInCache = (y+radius)%ballWidth;
-            int nextLineToRead = y + radius;        //line of the input not touched yet
-            if (nextLineToRead<height) {
-                System.arraycopy(pixels, nextLineToRead*width, cache, nextLineToWriteInCache*width, width);
-                for (int x=0, p=nextLineToRead*width; x<width; x++,p++)
-                    pixels[p] = -Float.MAX_VALUE;   //unprocessed pixels start at minus infinity
-            }
-            int y0 = y-radius;                      //the first line to see whether the ball touches
-            if (y0 < 0) y0 = 0;
-            int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
-            int yend = y+radius;                    //the last line to see whether the ball touches
-            if (yend>=height) yend = height-1;
-            for (int x=-radius; x<width+radius; x++) {
-                float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
-                int x0 = x-radius;
-                if (x0 < 0) x0 = 0;
-                int xBall0 = x0-x+radius;
-                int xend = x+radius;
-                if (xend>=width) xend = width-1;
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
-                    int cachePointer = (yp%ballWidth)*width+x0;
-                    for (int xp=x0, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, cachePointer++, bp++) {
-                        float zReduced = cache[cachePointer] - zBall[bp];
-                        if (z > zReduced)           //does this point imply a greater height?
-                            z = zReduced;
+        final float[] pixels = (float[])fp.getPixels();   //the input pixels
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] zBall = ball.data;
+        final int ballWidth = ball.width;
+        final int radius = ballWidth/2;
+        /* The ball is rolled in two steps, each with the lines distributed among the threads:
+         * first the height of the ball for each position of its center (x, y from -radius to
+         * width+radius-1 and height+radius-1), then the pixels are raised to the highest ball
+         * surface at their position */
+        final int zWidth = width+2*radius;
+        final int zHeight = height+2*radius;
+        final float[] zCenter = new float[zWidth*zHeight];
+        final Thread callingThread = Thread.currentThread();
+        final AtomicInteger nextLine = new AtomicInteger(-radius);
+        Thread[] threads = newThreads(zHeight);
+        for (int t=0; t<threads.length; t++) {
+            final boolean showProgress = t==0;
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    for (int y=nextLine.getAndIncrement(); y<height+radius; y=nextLine.getAndIncrement()) {
+                        if (y%20==0) {
+                            if (callingThread.isInterrupted()) return;
+                            if (showProgress) showProgress(0.1+0.4*(y+radius)/zHeight);
+                        }
+                        int y0 = y-radius;                      //the first line to see whether the ball touches
+                        if (y0 < 0) y0 = 0;
+                        int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
+                        int yend = y+radius;                    //the last line to see whether the ball touches
+                        if (yend>=height) yend = height-1;
+                        for (int x=-radius, zp=(y+radius)*zWidth; x<width+radius; x++, zp++) {
+                            float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
+                            int x0 = x-radius;
+                            if (x0 < 0) x0 = 0;
+                            int xBall0 = x0-x+radius;
+                            int xend = x+radius;
+                            if (xend>=width) xend = width-1;
+                            for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
+                                for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
+                                    float zReduced = pixels[p] - zBall[bp];
+                                    if (z > zReduced)           //does this point imply a greater height?
+                                        z = zReduced;
+                                }
+                            }
+                            zCenter[zp] = z;
+                        }
                     }
                 }
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) //raise pixels to ball surface
-                    for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
-                        float zMin = z + zBall[bp];
-                        if (pixels[p] < zMin)
-                            pixels[p] = zMin;
+            };
+        }
+        startAndJoin(threads);
+        if (callingThread.isInterrupted()) return;
+        nextLine.set(0);
+        threads = newThreads(height);
+        for (int t=0; t<threads.length; t++) {
+            final boolean showProgress = t==0;
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    for (int yp=nextLine.getAndIncrement(); yp<height; yp=nextLine.getAndIncrement()) {
+                        if (yp%20==0) {
+                            if (callingThread.isInterrupted()) return;
+                            if (showProgress) showProgress(0.5+0.4*yp/height);
+                        }
+                        for (int xp=0, p=yp*width; xp<width; xp++, p++) {
+                            float zMax = -Float.MAX_VALUE;      //unprocessed pixels start at minus infinity
+                            for (int yBall=0; yBall<ballWidth; yBall++) {   //for all ball positions touching the pixel
+                                int zp = (yp-yBall+2*radius)*zWidth + xp+2*radius;
+                                for (int bp=yBall*ballWidth; bp<(yBall+1)*ballWidth; bp++, zp--) {
+                                    float zMin = zCenter[zp] + zBall[bp];
+                                    if (zMax < zMin)
+                                        zMax = zMin;
+                                }
+                            }
+                            pixels[p] = zMax;
+                        }
                     }
-            // if (x>=0&&y>=0&&x<width&&y<height) bgPixels[x+y*width] = z; //debug, ball height output
-            }
+                }
+            };
         }
-        
+        startAndJoin(threads);
         //new ImagePlus("bg rolled", fp.duplicate()).show();
     }
-    
+
     /** Uses bilinear interpolation to find the points in the full-scale background
         given the points from the shrunken image background. (At the edges, it is
         actually extrapolation.)
     */                                 
     void enlargeImage(FloatProcessor smallImage, FloatProcessor fp, int shrinkFactor) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
-        int smallWidth = smallImage.getWidth();
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final int smallWidth = smallImage.getWidth();
         int smallHeight = smallImage.getHeight();
-        float[] pixels = (float[])fp.getPixels();
-        float[] sPixels = (float[])smallImage.getPixels();
-        int[] xSmallIndices = new int[width];         //index of first point in smallImage
-        float[] xWeights = new float[width];        //weight of this point
+        final float[] pixels = (float[])fp.getPixels();
+        final float[] sPixels = (float[])smallImage.getPixels();
+        final int[] xSmallIndices = new int[width];         //index of first point in smallImage
+        final float[] xWeights = new float[width];        //weight of this point
         makeInterpolationArrays(xSmallIndices, xWeights, width, smallWidth, shrinkFactor);
-        int[] ySmallIndices = new int[height];
-        float[] yWeights = new float[height];
+        final int[] ySmallIndices = new int[height];
+        final float[] yWeights = new float[height];
         makeInterpolationArrays(ySmallIndices, yWeights, height, smallHeight, shrinkFactor);
-        float[] line0 = new float[width];
-        float[] line1 = new float[width];
-        for (int x=0; x<width; x++)                 //x-interpolation of the first smallImage line
-            line1[x] = sPixels[xSmallIndices[x]] * xWeights[x] +
-                    sPixels[xSmallIndices[x]+1] * (1f - xWeights[x]);
-        int ySmallLine0 = -1;                       //line0 corresponds to this y of smallImage
-        for (int y=0; y<height; y++) {
-            if (ySmallLine0 < ySmallIndices[y]) {
-                float[] swap = line0;               //previous line1 -> line0
-                line0 = line1;
-                line1 = swap;                       //keep the other array for filling with new data
-                ySmallLine0++;
-                int sYPointer = (ySmallIndices[y]+1)*smallWidth; //points to line0 + 1 in smallImage
-                for (int x=0; x<width; x++)         //x-interpolation of the new smallImage line -> line1
-                    line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
-                            sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
-            }
-            float weight = yWeights[y];
-            for (int x=0, p=y*width; x<width; x++,p++)
-                pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
+        final Thread[] threads = newThreads(height);
+        for (int t=0; t<threads.length; t++) {
+            final int yStart = (int)((long)height*t/threads.length);    //each thread does a band of lines
+            final int yEnd = (int)((long)height*(t+1)/threads.length);
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    float[] line0 = new float[width];
+                    float[] line1 = new float[width];
+                    int ySmallLine0 = ySmallIndices[yStart] - 1;    //line0 corresponds to this y of smallImage
+                    int sYPointer = ySmallIndices[yStart]*smallWidth;
+                    for (int x=0; x<width; x++)             //x-interpolation of the first smallImage line
+                        line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
+                                sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                    for (int y=yStart; y<yEnd; y++) {
+                        if (ySmallLine0 < ySmallIndices[y]) {
+                            float[] swap = line0;           //previous line1 -> line0
+                            line0 = line1;
+                            line1 = swap;                   //keep the other array for filling with new data
+                            ySmallLine0++;
+                            sYPointer = (ySmallIndices[y]+1)*smallWidth; //points to line0 + 1 in smallImage
+                            for (int x=0; x<width; x++)     //x-interpolation of the new smallImage line -> line1
+                                line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
+                                        sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                        }
+                        float weight = yWeights[y];
+                        for (int x=0, p=y*width; x<width; x++,p++)
+                            pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
+                    }
+                }
+            };
         }
+        startAndJoin(threads);
     }
 
     /** Create arrays of indices and weigths for interpolation.
@@ -715,15 +784,36 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
      *  When used as maximum filter, it returns the average change of the
      *  pixel value by this operation
      */
-    double filter3x3(FloatProcessor fp, int type) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+    double filter3x3(FloatProcessor fp, final int type) {
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] pixels = (float[])fp.getPixels();
+        final double[] lineShifts = new double[width+height];   //summed up in fixed order, independent of the threads
+        final AtomicInteger nextLine = new AtomicInteger(0);
+        Thread[] threads = newThreads(height);
+        for (int t=0; t<threads.length; t++) {
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    for (int y=nextLine.getAndIncrement(); y<height; y=nextLine.getAndIncrement())
+                        lineShifts[y] = filter3(pixels, width, y*width, 1, type);
+                }
+            };
+        }
+        startAndJoin(threads);
+        nextLine.set(0);
+        threads = newThreads(width);
+        for (int t=0; t<threads.length; t++) {
+            threads[t] = new Thread("BackgroundSubtracter-"+t) {
+                public void run() {
+                    for (int x=nextLine.getAndIncrement(); x<width; x=nextLine.getAndIncrement())
+                        lineShifts[height+x] = filter3(pixels, height, x, width, type);
+                }
+            };
+        }
+        startAndJoin(threads);
         double shiftBy = 0;
-        float[] pixels = (float[])fp.getPixels();
-        for (int y=0; y<height; y++)
-            shiftBy += filter3(pixels, width, y*width, 1, type);
-        for (int x=0; x<width; x++)
-            shiftBy += filter3(pixels, height, x, width, type);
+        for (int i=0; i<lineShifts.length; i++)
+            shiftBy += lineShifts[i];
         return shiftBy/width/height;
     }
 
@@ -758,6 +848,26 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         pass = 0;
     }
 
+    /** Returns the ball for the given radius; the last one is kept for the next image */
+    private synchronized RollingBall getBall(double radius) {
+        if (ball == null || ball.radius != radius)
+            ball = new RollingBall(radius);
+        return ball;
+    }
+
+    /** Creates the threads for processing 'nLines' lines, not more than lines */
+    private Thread[] newThreads(int nLines) {
+        return ThreadUtil.createThreadArray(Math.max(1, Math.min(numThreads, nLines)));
+    }
+
+    /** Starts the threads and waits until they have finished; a single thread runs in the calling thread */
+    private static void startAndJoin(Thread[] threads) {
+        if (threads.length == 1)
+            threads[0].run();
+        else
+            ThreadUtil.startAndJoin(threads);
+    }
+
     private void showProgress(double percent) {
         if (nPasses <= 0) return;
         percent = (double)pass/nPasses + percent/nPasses;
@@ -775,8 +885,10 @@ class RollingBall {
     float[] data;
     int width;
     int shrinkFactor;
+    double radius;
     
     RollingBall(double radius) {
+        this.radius = radius;
         int arcTrimPer;
         if (radius<=10) {
             shrinkFactor = 1;
@@ -10,6 +10,9 @@ import java.awt.*;
     Gabriel Landini contributed the clever binary fill algorithm
     that fills holes in objects by filling the background.
     Version 2009-06-23 preview added, interations can be aborted by escape (Michael Schmid)
+    Erode, dilate, open, close, outline and fill holes work on a PackedBinaryImage
+    with 64 pixels per long, using all threads.
+    skeletonize(ImageStack, int) creates 3D skeletons of stacks.
 */
 public class Binary implements ExtendedPlugInFilter, DialogListener {
     static final int MAX_ITERATIONS = 100;
@@ -31,6 +34,7 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
     int foreground, background;
     int flags = DOES_8G | DOES_8C | SUPPORTS_MASKING | PARALLELIZE_STACKS | KEEP_PREVIEW | KEEP_THRESHOLD;
     int nPasses;
+    int numThreads = Prefs.getThreads();   //threads for processing one image
 
     public int setup(String arg, ImagePlus imp) {
         this.arg = arg;
@@ -69,16 +73,24 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
                 dialogItemChanged(gd, null); //read dialog result
                 return DONE;
             }
-            return operation.equals(NO_OPERATION) ? DONE : IJ.setupDialog(imp, flags);
+            return operation.equals(NO_OPERATION) ? DONE : setupDialog(imp);
         } else {   //no dialog, 'arg' is operation type
             if (!((ByteProcessor)imp.getProcessor()).isBinary()) {
                 IJ.error("8-bit binary (black and white only) image required.");
                 return DONE;
             }
-            return IJ.setupDialog(imp, flags);
+            return setupDialog(imp);
         }
     }
 
+    /* asks whether to process all slices of a stack; stack slices are processed in parallel */
+    int setupDialog(ImagePlus imp) {
+        int flags = IJ.setupDialog(imp, this.flags);
+        if ((flags&DOES_STACKS)!=0 && imp.getStackSize()>1)
+            numThreads = 1;
+        return flags;
+    }
+
     public boolean dialogItemChanged (GenericDialog gd, AWTEvent e) {
         iterations = (int)gd.getNextNumber();
         count = (int)gd.getNextNumber();
@@ -118,41 +130,63 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
             fill(ip, foreground, background);
         else if (arg.startsWith("skel")) {
             ip.resetRoi(); skeletonize(ip);
-        } else if (arg.equals("erode") || arg.equals("dilate"))
-            doIterations((ByteProcessor)ip, arg);
-        else if (arg.equals("open")) {
-            doIterations(ip, "erode");
-            doIterations(ip, "dilate");
-        } else if (arg.equals("close")) {
-            doIterations(ip, "dilate");
-            doIterations(ip, "erode");
+        } else if (arg.equals("erode") || arg.equals("dilate") || arg.equals("open") || arg.equals("close")) {
+            PackedBinaryImage packed = newPackedImage(ip);
+            boolean done;
+            if (arg.equals("open"))
+                done = doIterations(packed, "erode") && doIterations(packed, "dilate");
+            else if (arg.equals("close"))
+                done = doIterations(packed, "dilate") && doIterations(packed, "erode");
+            else
+                done = doIterations(packed, arg);
+            if (done)
+                packed.copyTo((ByteProcessor)ip, foreground);
         }
         ip.setSnapshotCopyMode(false);
         ip.setBinaryThreshold();
     }
 
-    void doIterations (ImageProcessor ip, String mode) {
-        if (escapePressed) return;
+    PackedBinaryImage newPackedImage(ImageProcessor ip) {
+        PackedBinaryImage packed = new PackedBinaryImage((ByteProcessor)ip, foreground);
+        packed.setNumThreads(numThreads);
+        return packed;
+    }
+
+    /* Returns false if interrupted or aborted by escape */
+    boolean doIterations (PackedBinaryImage packed, String mode) {
+        if (escapePressed) return false;
+        boolean erode = mode.equals("erode");
+        /* With count=1, n iterations of erode or dilate are a minimum or maximum
+           with a square kernel of 2n+1 pixels, which is calculated in a time that
+           grows only with log(n). */
+        Rectangle roi = packed.getRoi();
+        if (count==1 && iterations>1 && roi.width==packed.getWidth() && roi.height==packed.getHeight()) {
+            if (erode)
+                packed.erodeSquare(iterations, Prefs.padEdges);
+            else
+                packed.dilateSquare(iterations);
+            return true;
+        }
         if (!previewing && iterations>1)
             IJ.showStatus(arg+"... press ESC to cancel");
         for (int i=0; i<iterations; i++) {
-            if (Thread.currentThread().isInterrupted()) return;
+            if (Thread.currentThread().isInterrupted()) return false;
             if (IJ.escapePressed()) {
                 escapePressed = true;
-                ip.reset();
-                return;
+                return false;
             }
-            if (mode.equals("erode"))
-                ((ByteProcessor)ip).erode(count, background);
+            if (erode)
+                packed.erode(count, Prefs.padEdges);
             else
-                ((ByteProcessor)ip).dilate(count, background);
+                packed.dilate(count);
         }
+        return true;
     }
-    
+
     void outline(ImageProcessor ip) {
-        if (Prefs.blackBackground) ip.invert();
-        ((ByteProcessor)ip).outline();
-        if (Prefs.blackBackground) ip.invert();
+        PackedBinaryImage packed = newPackedImage(ip);
+        packed.outline();
+        packed.copyTo((ByteProcessor)ip, foreground);
     }
 
     void skeletonize(ImageProcessor ip) {
@@ -205,36 +239,206 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
         if (hasEdgePixels) {
             int width = ip.getWidth();
             int height = ip.getHeight();
+            byte[] pixels = (byte[])ip.getPixels();
+            byte[] pixels2 = (byte[])ip2.getPixels();
             for (int y=0; y<height; y++)
-                for (int x=0; x<width; x++)
-                    ip.putPixel(x, y, ip2.getPixel(x+1, y+1));
+                System.arraycopy(pixels2, (y+1)*(width+2)+1, pixels, y*width, width);
         }
         return ip;
     }
 
     // Binary fill by Gabriel Landini, G.Landini at bham.ac.uk
     // 21/May/2008
+    // Fills the background that is not connected to the edges; the connected
+    // background is found by a flood fill of the PackedBinaryImage.
     void fill(ImageProcessor ip, int foreground, int background) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        FloodFiller ff = new FloodFiller(ip);
-        ip.setColor(127);
-        for (int y=0; y<height; y++) {
-            if (ip.getPixel(0,y)==background) ff.fill(0, y);
-            if (ip.getPixel(width-1,y)==background) ff.fill(width-1, y);
+        PackedBinaryImage packed = new PackedBinaryImage((ByteProcessor)ip, foreground);
+        packed.setNumThreads(numThreads);
+        packed.fillHoles();
+        packed.copyTo((ByteProcessor)ip, foreground);
+    }
+
+    /** Reduces the objects of an 8-bit binary stack (not a virtual stack) to
+     *  one voxel thick, 26-connected curve skeletons. In each iteration, voxels
+     *  are removed from the object borders facing each of the six directions in
+     *  turn, if this does not change the topology and they are not end points
+     *  (voxels with only one foreground neighbor); see Lee, Kashyap and Chu,
+     *  CVGIP: Graphical Models and Image Processing 56 (1994) 462-478.
+     *  Voxels outside the stack are background. Only border voxels are
+     *  examined; a voxel enters the border list when a neighbor is removed. */
+    public void skeletonize(ImageStack stack, int foreground) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int depth = stack.getSize();
+        int planeSize = width*height;
+        byte[][] voxels = new byte[depth][];
+        for (int z=0; z<depth; z++)
+            voxels[z] = (byte[])stack.getPixels(z+1);
+        byte fg = (byte)foreground, bg = (byte)(255-foreground);
+        byte[][] listed = new byte[depth][planeSize];
+        // z and index y*width+x of the voxels; stacks may have more than 2^31 voxels
+        int[] borderZ = new int[1024], borderI = new int[1024];
+        int nBorder = 0;
+        for (int z=0; z<depth; z++)
+            for (int y=0, i=0; y<height; y++)
+                for (int x=0; x<width; x++, i++)
+                    if (voxels[z][i]==fg && isBorder(voxels, x, y, z, width, height, fg)) {
+                        if (nBorder==borderZ.length) {
+                            borderZ = grow(borderZ);
+                            borderI = grow(borderI);
+                        }
+                        borderZ[nBorder] = z;
+                        borderI[nBorder++] = i;
+                        listed[z][i] = 1;
+                    }
+        int[] candidatesZ = new int[1024], candidatesI = new int[1024];
+        boolean removed = true;
+        while (removed) {
+            removed = false;
+            for (int direction=0; direction<6; direction++) {
+                if (Thread.currentThread().isInterrupted()) return;
+                int nCandidates = 0;
+                for (int j=0; j<nBorder; j++) {
+                    int z = borderZ[j], i = borderI[j];
+                    int x = i%width, y = i/width;
+                    int dx = DX[direction], dy = DY[direction], dz = DZ[direction];
+                    if (isInside(x+dx, y+dy, z+dz, width, height, depth) && voxels[z+dz][i+dx+dy*width]==fg)
+                        continue;
+                    int neighbors = getNeighbors(voxels, x, y, z, width, height, fg);
+                    if (isRemovable(neighbors)) {
+                        if (nCandidates==candidatesZ.length) {
+                            candidatesZ = grow(candidatesZ);
+                            candidatesI = grow(candidatesI);
+                        }
+                        candidatesZ[nCandidates] = z;
+                        candidatesI[nCandidates++] = i;
+                    }
+                }
+                // remove one by one, checking again with the voxels removed so far
+                for (int j=0; j<nCandidates; j++) {
+                    int z = candidatesZ[j], i = candidatesI[j];
+                    int x = i%width, y = i/width;
+                    if (!isRemovable(getNeighbors(voxels, x, y, z, width, height, fg)))
+                        continue;
+                    voxels[z][i] = bg;
+                    removed = true;
+                    for (int d=0; d<6; d++) {
+                        int x2 = x+DX[d], y2 = y+DY[d], z2 = z+DZ[d];
+                        int i2 = x2 + y2*width;
+                        if (isInside(x2, y2, z2, width, height, depth) && voxels[z2][i2]==fg && listed[z2][i2]==0) {
+                            if (nBorder==borderZ.length) {
+                                borderZ = grow(borderZ);
+                                borderI = grow(borderI);
+                            }
+                            borderZ[nBorder] = z2;
+                            borderI[nBorder++] = i2;
+                            listed[z2][i2] = 1;
+                        }
+                    }
+                }
+                int n = 0;  // remove the deleted voxels from the border list
+                for (int j=0; j<nBorder; j++)
+                    if (voxels[borderZ[j]][borderI[j]]==fg) {
+                        borderZ[n] = borderZ[j];
+                        borderI[n++] = borderI[j];
+                    }
+                nBorder = n;
+            }
         }
-        for (int x=0; x<width; x++){
-            if (ip.getPixel(x,0)==background) ff.fill(x, 0);
-            if (ip.getPixel(x,height-1)==background) ff.fill(x, height-1);
+    }
+
+    // the six directions: up, down, north, south, east, west
+    private static final int[] DX = {0, 0, 0, 0, 1, -1};
+    private static final int[] DY = {0, 0, -1, 1, 0, 0};
+    private static final int[] DZ = {-1, 1, 0, 0, 0, 0};
+    private static final int CENTER = 13;   // bit of the voxel itself in the 3x3x3 neighborhood
+    // for each bit of the 3x3x3 neighborhood, the 26-adjacent bits and the 6-adjacent bits within the 18-neighborhood
+    private static int[] adjacent26, adjacent6;
+    private static int face6, neighborhood18;
+
+    private static synchronized void makeAdjacencies() {
+        if (adjacent26!=null)
+            return;
+        int[] a26 = new int[27], a6 = new int[27];
+        for (int i=0; i<27; i++) {
+            if (i==CENTER) continue;
+            int distance = Math.abs(i%3-1) + Math.abs(i/3%3-1) + Math.abs(i/9-1);
+            if (distance==1) face6 |= 1<<i;
+            if (distance<=2) neighborhood18 |= 1<<i;
+            for (int j=0; j<27; j++) {
+                if (j==i || j==CENTER) continue;
+                int dx = Math.abs(i%3-j%3), dy = Math.abs(i/3%3-j/3%3), dz = Math.abs(i/9-j/9);
+                if (dx<=1 && dy<=1 && dz<=1)
+                    a26[i] |= 1<<j;
+                if (dx+dy+dz==1)
+                    a6[i] |= 1<<j;
+            }
         }
-        byte[] pixels = (byte[])ip.getPixels();
-        int n = width*height;
-        for (int i=0; i<n; i++) {
-        if (pixels[i]==127)
-            pixels[i] = (byte)background;
-        else
-            pixels[i] = (byte)foreground;
+        adjacent6 = a6;
+        adjacent26 = a26;
+    }
+
+    /* Whether a foreground voxel with the given 3x3x3 neighborhood can be removed: it must
+     * not be an end point, its foreground neighbors must form one 26-connected component,
+     * and the background 18-neighbors form one 6-connected component touching a face. */
+    private static boolean isRemovable(int neighbors) {
+        if (adjacent26==null)
+            makeAdjacencies();
+        int foreground = neighbors & ~(1<<CENTER);
+        if (Integer.bitCount(foreground)<=1)
+            return false;
+        if (fill(foreground, Integer.lowestOneBit(foreground), adjacent26) != foreground)
+            return false;
+        int background = ~neighbors & neighborhood18;
+        int faces = background & face6;
+        if (faces==0)
+            return false;
+        int component = fill(background, Integer.lowestOneBit(faces), adjacent6);
+        return (faces & ~component) == 0;
+    }
+
+    /* The bits of 'set' connected to 'seed' */
+    private static int fill(int set, int seed, int[] adjacent) {
+        int component = seed, added = seed;
+        while (added!=0) {
+            int next = 0;
+            for (int bits=added; bits!=0; bits&=bits-1)
+                next |= adjacent[Integer.numberOfTrailingZeros(bits)];
+            added = next & set & ~component;
+            component |= added;
         }
+        return component;
+    }
+
+    /* The 3x3x3 neighborhood as bits (z,y,x), 1 for foreground */
+    private static int getNeighbors(byte[][] voxels, int x, int y, int z, int width, int height, byte fg) {
+        int depth = voxels.length;
+        int neighbors = 0;
+        for (int dz=-1, bit=0; dz<=1; dz++)
+            for (int dy=-1; dy<=1; dy++)
+                for (int dx=-1; dx<=1; dx++, bit++)
+                    if (isInside(x+dx, y+dy, z+dz, width, height, depth) && voxels[z+dz][x+dx+(y+dy)*width]==fg)
+                        neighbors |= 1<<bit;
+        return neighbors;
+    }
+
+    private static boolean isBorder(byte[][] voxels, int x, int y, int z, int width, int height, byte fg) {
+        for (int d=0; d<6; d++) {
+            int x2 = x+DX[d], y2 = y+DY[d], z2 = z+DZ[d];
+            if (!isInside(x2, y2, z2, width, height, voxels.length) || voxels[z2][x2+y2*width]!=fg)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isInside(int x, int y, int z, int width, int height, int depth) {
+        return x>=0 && y>=0 && z>=0 && x<width && y<height && z<depth;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] array2 = new int[array.length*2];
+        System.arraycopy(array, 0, array2, 0, array.length);
+        return array2;
     }
 
 }
@@ -3,6 +3,9 @@ import ij.*;
 import ij.plugin.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This plugin implements the Euclidean Distance Map (EDM), Watershed,
@@ -32,19 +35,17 @@ import ij.gui.*;
  * "watershed" for watershed segmentation, "points" for ultimate eroded points and
  * "voronoi" for Voronoi segmentation of the background
  *
- * The EDM algorithm is similar to the 8SSEDT in
- *   F. Leymarie, M. D. Levine, in: CVGIP Image Understanding, vol. 55 (1992), pp 84-94
- *   http://dx.doi.org/10.1016/1049-9660(92)90008-Q
- *
- * The algorithm provides a fast approximation of the EDM, with the deviation from a
- * full calculation being between -0.09 and 0. The algorithm is exact for distances<13.
- * For d>=13, deviations from the true result can occur, but are very rare: typically
- * the fraction of pixels deviating from the exact result is in the 10^-5 range, with
- * most deviations between -0.03 and -0.04.
+ * The EDM is calculated exactly, with a separable algorithm: the distance to the nearest
+ * background pixel along y (z for stacks), then the lower envelope of parabolas along the
+ * other axes,
+ *   P. Felzenszwalb, D. Huttenlocher, in: Theory of Computing, vol. 8 (2012), pp 415-428
+ *   http://dx.doi.org/10.4086/toc.2012.v008a019
+ * Each pass is distributed among several threads. For stacks, makeFloatEDM(ImageStack, ...)
+ * creates a 3D EDM, with distances calculated from the voxel size; toWatershed(ImageStack, ...)
+ * does watershed segmentation in 3D.
  *
  * Limitations:
- * Maximum image diagonal for EDM: 46340 pixels (sqrt(2^31)); if the particles are
- * dense enough it also works for width, height <=65534.
+ * Distances are exact as long as their squares are below 2^24 (i.e., distance < 4096).
  *
  * Version 30-Apr-2008 Michael Schmid:  more accurate EDM algorithm,
  *                                      16-bit and float output possible,
@@ -79,6 +80,7 @@ public class EDM implements ExtendedPlugInFilter {
     private double progressDone;        //for progress bar, fraction of work done so far
     private int nPasses;                //for progress bar, how many images to process (sequentially or parallel threads)
     private boolean interrupted;        //whether watershed segmentation has been interrrupted by the user
+    private int numThreads = Prefs.getThreads(); //threads for the EDM of one image
 
     private boolean background255;      //whether background for EDM is 255, not zero
     private int flags = DOES_8G | PARALLELIZE_STACKS | FINAL_PROCESSING;
@@ -93,7 +95,7 @@ public class EDM implements ExtendedPlugInFilter {
     //prefixes for titles of separate output images; for each processType:
     private static final String[] TITLE_PREFIX = new String[] {
             "EDM of ", null, "UEPs of ", "Voronoi of "};
-    private static final int NO_POINT = -1; //no nearest point in array of nearest points
+    private static final int EDT_BLOCK = 64; //number of columns handled together in the first pass of the EDT
     private static final double MAXFINDER_TOLERANCE = 0.5; //reasonable values are 0.3 ... 0.8;
                                     //segmentation is more aggressive with smaller values
     /** Output type (BYTE_OVERWRITE, BYTE, SHORT or FLOAT) */
@@ -149,6 +151,8 @@ public class EDM implements ExtendedPlugInFilter {
         //ask whether to process all slices of stack & prepare stack
         //(if required) for writing into it in parallel threads
         flags = IJ.setupDialog(imp, flags);
+        if ((flags&DOES_STACKS)!=0 && imp.getStackSize()>1)
+            numThreads = 1;                     //stack slices are processed in parallel anyhow
         if ((flags&DOES_STACKS)!=0 && outImageType!=BYTE_OVERWRITE) {
             outStack = new ImageStack(width, height, imp.getStackSize());
             maxFinder.setNPasses(imp.getStackSize());
@@ -247,6 +251,26 @@ public class EDM implements ExtendedPlugInFilter {
         if (maxIp != null) ip.copyBits(maxIp, 0, 0, Blitter.AND);
     }
 
+    /** Do watershed segmentation in 3D, based on the 3D EDM of the foreground objects
+     *  (nonzero pixels) in an 8-bit stack. Particles are segmented by their shape;
+     *  segmentation lines added are background pixels (value = 0).
+     *  @param cal  Voxel width, height and depth; may be null for cubic voxels.
+     *  @return     false if the thread is interrupted.
+     */
+    public boolean toWatershed (ImageStack stack, Calibration cal) {
+        ImageStack edm = makeFloatEDM(stack, 0, false, cal);
+        if (edm == null) return false;
+        double voxelSize = cal==null ? 1.0 :
+                Math.min(cal.pixelWidth, Math.min(cal.pixelHeight, cal.pixelDepth));
+        ImageStack maxStack = maxFinder.findMaxima(edm, MAXFINDER_TOLERANCE*voxelSize,
+                0.5*voxelSize, MaximumFinder.SEGMENTED, false);    // the threshold excludes the background
+        if (maxStack == null) return false;
+        for (int z=1; z<=stack.getSize(); z++)
+            stack.getProcessor(z).copyBits(new ByteProcessor(stack.getWidth(), stack.getHeight(),
+                    (byte[])maxStack.getPixels(z)), 0, 0, Blitter.AND);
+        return true;
+    }
+
     /** Calculates a 16-bit grayscale Euclidean Distance Map for a binary 8-bit image.
      * Each foreground (nonzero) pixel in the binary image is assigned a value equal to
      * its distance from the nearest background (zero) pixel, multiplied by EDM.ONE.
@@ -271,124 +295,222 @@ public class EDM implements ExtendedPlugInFilter {
         int width = ip.getWidth();
         int height = ip.getHeight();
         FloatProcessor fp = new FloatProcessor(width, height);
-        byte[] bPixels = (byte[])ip.getPixels();
-        float[] fPixels = (float[])fp.getPixels();
-        final int progressInterval = 100;
-        int nProgressUpdates = height/progressInterval;  //how often the progress bar is updated when passing once through y range
-        double progressAddendum = (nProgressUpdates>0) ? 0.5/nProgressUpdates : 0;
-
-        for (int i=0; i<width*height; i++)
-            if (bPixels[i]!=backgroundValue) fPixels[i] = Float.MAX_VALUE;
+        byte[][] bPixels = new byte[][] {(byte[])ip.getPixels()};
+        float[][] fPixels = new float[][] {(float[])fp.getPixels()};
+        boolean ok = makeEDT(bPixels, fPixels, width, height, backgroundValue, edgesAreBackground,
+                new double[] {1.0, 1.0, 1.0});
+        return ok ? fp : null;
+    } //public FloatProcessor makeFloatEDM
 
-        int[][] pointBufs = new int[2][width];  //two buffers for two passes; low short contains x, high short y
-        int yDist = Integer.MAX_VALUE;          //this value is used only if edges are not background
-        // pass 1 & 2: increasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
-        for (int y=0; y<height; y++) {
-            if (edgesAreBackground) yDist = y+1; //distance to nearest background point (along y)
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
-            }
-        }
-        //pass 3 & 4: decreasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
+    /**
+     * Creates the 3D Euclidian Distance Map of a (binary) 8-bit stack.
+     * Distances are in calibrated units, taking the voxel size into account.
+     * @param stack             The input stack, not modified; must be 8-bit.
+     * @param backgroundValue   Voxels in the input with this value are interpreted as background.
+     *                          Note: for pixel value 255, write either -1 or (byte)255.
+     * @param edgesAreBackground Whether out-of-stack voxels are considered background
+     * @param cal               Voxel width, height and depth; may be null for distances in pixels.
+     * @return                  A 32-bit stack with the distances to the nearest background voxel.
+     *                          Returns null if the thread is interrupted.
+     */
+    public ImageStack makeFloatEDM (ImageStack stack, int backgroundValue, boolean edgesAreBackground, Calibration cal) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int depth = stack.getSize();
+        ImageStack outStack = new ImageStack(width, height);
+        byte[][] bPixels = new byte[depth][];
+        float[][] fPixels = new float[depth][];
+        for (int z=0; z<depth; z++) {
+            bPixels[z] = (byte[])stack.getPixels(z+1);
+            fPixels[z] = new float[width*height];
+            outStack.addSlice(stack.getSliceLabel(z+1), fPixels[z]);
         }
-        for (int y=height-1; y>=0; y--) {
-            if (edgesAreBackground) yDist = height-y;
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+        double[] voxelSize = cal==null ? new double[] {1.0, 1.0, 1.0} :
+                new double[] {cal.pixelWidth, cal.pixelHeight, cal.pixelDepth};
+        boolean ok = makeEDT(bPixels, fPixels, width, height, backgroundValue, edgesAreBackground, voxelSize);
+        return ok ? outStack : null;
+    } //public ImageStack makeFloatEDM
+
+    // Exact Euclidean distance transform, separable into passes along the axes. The first pass
+    // finds the distance to the nearest background pixel along the slowest axis (y, or z for
+    // stacks), sweeping through whole lines (or planes) for good cache efficiency. The following
+    // passes along the other axes find the lower envelope of the parabolas (dist^2 along the line
+    // plus squared distance from the previous passes) as described in
+    //   P. Felzenszwalb, D. Huttenlocher, Theory of Computing, vol. 8 (2012), pp 415-428
+    // Within each pass, the work is distributed among the threads.
+    // Returns false if the thread is interrupted.
+    private boolean makeEDT (final byte[][] bPixels, final float[][] fPixels, final int width,
+            final int height, final int backgroundValue, final boolean edgesAreBackground,
+            final double[] voxelSize) {
+        final int depth = bPixels.length;
+        final int nPasses = depth>1 ? 3 : 2;
+        final Thread callingThread = Thread.currentThread();
+        for (int pass=0; pass<nPasses; pass++) {
+            final int finalPass = pass;
+            final int nLines = pass==0 ? (depth>1 ? width*height : width)/EDT_BLOCK + 1 :
+                    (pass==1 && depth>1 ? width*depth : height*depth);
+            final AtomicInteger nextLine = new AtomicInteger(0);
+            int nThreads = Math.min(numThreads, nLines);
+            if (nThreads<=1)
+                edtLines(bPixels, fPixels, width, height, finalPass, nLines, nextLine,
+                        backgroundValue, edgesAreBackground, voxelSize, callingThread);
+            else {
+                Thread[] threads = ThreadUtil.createThreadArray(nThreads);
+                for (int t=0; t<threads.length; t++) {
+                    threads[t] = new Thread("EDM-"+t) {
+                        public void run() {
+                            edtLines(bPixels, fPixels, width, height, finalPass, nLines, nextLine,
+                                    backgroundValue, edgesAreBackground, voxelSize, callingThread);
+                        }
+                    };
+                }
+                ThreadUtil.startAndJoin(threads);
             }
+            if (callingThread.isInterrupted()) return false;
+            addProgress(1.0/nPasses);
         }
+        return true;
+    } //private boolean makeEDT
 
-        fp.sqrt();
-        return fp;
-    } //public FloatProcessor makeFloatEDM
-
-    // Handle a line; two passes: left-to-right and right-to-left
-    private void edmLine(byte[] bPixels, float[] fPixels, int[][] pointBufs, int width,
-            int offset, int y, int backgroundValue, int yDist) {
-        int[] points = pointBufs[0];        // the buffer for the left-to-right pass
-        int pPrev = NO_POINT;
-        int pDiag = NO_POINT;               // point at (-/+1, -/+1) to current one (-1,-1 in the first pass)
-        int pNextDiag;
-        boolean edgesAreBackground = yDist != Integer.MAX_VALUE;
-        int distSqr = Integer.MAX_VALUE;    // this value is used only if edges are not background
-        for (int x=0; x<width; x++, offset++) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (x+1 < yDist) ? (x+1)*(x+1) : yDist*yDist; //distance from edge
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    // Processes the lines of one pass of the EDT, as long as there are any left.
+    // Pass 0 handles blocks of EDT_BLOCK columns along y (2D) or z (3D), the envelope pass
+    // along x is the last one and takes the square root, i.e., fPixels then hold the distances.
+    private void edtLines (byte[][] bPixels, float[][] fPixels, int width, int height, int pass,
+            int nLines, AtomicInteger nextLine, int backgroundValue, boolean edgesAreBackground,
+            double[] voxelSize, Thread callingThread) {
+        int depth = bPixels.length;
+        boolean alongX = pass==(depth>1 ? 2 : 1);
+        int n = alongX ? width : height;
+        double[] f = new double[n];
+        double[] d = new double[n];
+        int[] v = new int[n];
+        double[] z = new double[n+1];
+        int[] dist = pass==0 ? new int[EDT_BLOCK] : null;
+        for (int line=nextLine.getAndIncrement(); line<nLines; line=nextLine.getAndIncrement()) {
+            if (line%16==0 && callingThread.isInterrupted()) return;
+            if (pass==0) {
+                int planeSize = depth>1 ? width*height : width;
+                int i0 = line*EDT_BLOCK;
+                int i1 = Math.min(i0+EDT_BLOCK, planeSize);
+                if (i0 < i1)
+                    distanceAlongColumns(bPixels, fPixels, width, height, i0, i1, dist,
+                            backgroundValue, edgesAreBackground, voxelSize[depth>1 ? 2 : 1]);
+                continue;
+            }
+            int plane, offset, increment;   // first pixel of the line and step along the line
+            if (alongX) {
+                plane = line/height; offset = (line%height)*width; increment = 1;
+            } else {
+                plane = line/width; offset = line%width; increment = width;
+            }
+            float[] pixels = fPixels[plane];
+            boolean allBackground = true;
+            for (int i=0, p=offset; i<n; i++, p+=increment) {
+                float value = pixels[p];
+                f[i] = value==Float.MAX_VALUE ? Double.POSITIVE_INFINITY : value;
+                if (value != 0f) allBackground = false;
+            }
+            if (allBackground) continue;    // nothing to do; the distances are 0
+            lowerEnvelope(f, n, voxelSize[alongX ? 0 : 1], edgesAreBackground, v, z, d);
+            for (int i=0, p=offset; i<n; i++, p+=increment) {
+                double dist2 = d[i];
+                if (alongX)                 // without background, the result is sqrt(2^31-1), as previously
+                    pixels[p] = (float)Math.sqrt(dist2==Double.POSITIVE_INFINITY ? (float)Integer.MAX_VALUE : (float)dist2);
+                else
+                    pixels[p] = dist2==Double.POSITIVE_INFINITY ? Float.MAX_VALUE : (float)dist2;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-        offset--; //now points to the last pixel in the line
-        points = pointBufs[1];              // the buffer for the right-to-left pass. Low short contains x, high short y
-        pPrev = NO_POINT;
-        pDiag = NO_POINT;
-        for (int x=width-1; x>=0; x--, offset--) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (width-x < yDist) ? (width-x)*(width-x) : yDist*yDist;
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    } //private void edtLines
+
+    // Squared distance to the nearest background pixel along y (for 2D) or z (for stacks),
+    // for the pixels i0 <= i < i1 of each line (2D) or plane (3D); Float.MAX_VALUE if there is none.
+    // 'w' is the pixel size along the axis; 'dist' is a buffer with a size of at least i1-i0.
+    private static void distanceAlongColumns (byte[][] bPixels, float[][] fPixels, int width, int height,
+            int i0, int i1, int[] dist, int backgroundValue, boolean edgesAreBackground, double w) {
+        boolean is3D = bPixels.length > 1;
+        int n = is3D ? bPixels.length : height;
+        int none = Integer.MAX_VALUE;
+        for (int pass=0; pass<2; pass++) {  // pass 0 with increasing, pass 1 with decreasing y (or z)
+            for (int i=0; i<i1-i0; i++)
+                dist[i] = edgesAreBackground ? 0 : none;
+            for (int k=0; k<n; k++) {
+                int s = pass==0 ? k : n-1-k;
+                byte[] bLine = is3D ? bPixels[s] : bPixels[0];
+                float[] fLine = is3D ? fPixels[s] : fPixels[0];
+                int offset = is3D ? 0 : s*width;
+                for (int i=i0, j=0; i<i1; i++, j++) {
+                    int dj = dist[j];
+                    if (bLine[offset+i] == backgroundValue)
+                        dj = 0;
+                    else if (dj != none)
+                        dj++;
+                    dist[j] = dj;
+                    if (pass==0)
+                        fLine[offset+i] = dj==none ? Float.MAX_VALUE : dj;
+                    else {
+                        float d1 = fLine[offset+i];
+                        double dMin = dj < d1 && dj != none ? dj : d1;
+                        fLine[offset+i] = dMin==Float.MAX_VALUE ? Float.MAX_VALUE : (float)((dMin*w)*(dMin*w));
+                    }
+                }
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-    } //private void edmLine
+    } //private static void distanceAlongColumns
 
-    // Calculates minimum distance^2 of x,y from the following three points:
-    //  - points[x] (nearest point found for previous line, same x)
-    //  - pPrev (nearest point found for same line, previous x), and
-    //  - pDiag (nearest point found for diagonal, i.e., previous line, previous x)
-    // Sets array element points[x] to the coordinates of the point having the minimum distance to x,y
-    // If the distSqr parameter is lower than the distance^2, then distSqr is used
-    // Returns to the minimum distance^2 obtained
-    private float minDist2 (int[] points, int pPrev, int pDiag, int x, int y, int distSqr) {
-        int p0 = points[x];              // the nearest background point for the same x in the previous line
-        int nearestPoint = p0;
-        if (p0 != NO_POINT) {
-            int x0 = p0& 0xffff; int y0 = (p0>>16)&0xffff;
-            int dist1Sqr = (x-x0)*(x-x0)+(y-y0)*(y-y0);
-            if (dist1Sqr < distSqr)
-                distSqr = dist1Sqr;
+    // Lower envelope of the parabolas (x-i)^2*w^2 + f[i], evaluated at x = 0 ... n-1 and written to d.
+    // Infinite values of f are ignored. With 'edgesAreBackground', there are also parabolas
+    // with f=0 at -1 and n. 'v' and 'z' are buffers for the envelope with size n and n+1.
+    private static void lowerEnvelope (double[] f, int n, double w, boolean edgesAreBackground,
+            int[] v, double[] z, double[] d) {
+        double w2 = w*w;
+        int k = -1;                         // index of the rightmost parabola in the envelope
+        double hLast = 0;                   // f + x^2*w^2 of the rightmost parabola
+        for (int q=0; q<n; q++) {
+            double fq = f[q];
+            if (fq == Double.POSITIVE_INFINITY) continue;
+            if (fq == 0 && q>0 && q<n-1 && f[q-1] == 0 && f[q+1] == 0)
+                continue;                   // inside a run of zeros, only the ends are needed
+            double h = fq + q*q*w2;
+            double num = 0, den = 1;        // intersection with the rightmost parabola is at num/den
+            while (k >= 0) {
+                int p = v[k];
+                num = h - hLast;
+                den = 2*w2*(q - p);
+                if (num <= z[k]*den) {      // the rightmost parabola is hidden
+                    k--;
+                    if (k >= 0) hLast = f[v[k]] + v[k]*v[k]*w2;
+                } else
+                    break;
+            }
+            k++;
+            v[k] = q;
+            z[k] = k==0 ? Double.NEGATIVE_INFINITY : num/den;
+            z[k+1] = Double.POSITIVE_INFINITY;
+            hLast = h;
         }
-        if (pDiag!=p0 && pDiag!=NO_POINT) {
-            int x1 = pDiag&0xffff; int y1 = (pDiag>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pDiag;
-                distSqr = dist1Sqr;
+        if (k < 0) {
+            for (int q=0; q<n; q++)
+                d[q] = Double.POSITIVE_INFINITY;
+        } else {
+            k = 0;
+            for (int q=0; q<n; q++) {
+                while (z[k+1] < q) k++;
+                if (f[q] == 0) {
+                    d[q] = 0;
+                    continue;
+                }
+                int dq = q - v[k];
+                d[q] = dq*dq*w2 + f[v[k]];
             }
         }
-        if (pPrev!=pDiag && pPrev!=NO_POINT) {
-            int x1 = pPrev& 0xffff; int y1 = (pPrev>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pPrev;
-                distSqr = dist1Sqr;
+        if (edgesAreBackground) {
+            for (int q=0; q<n; q++) {
+                int dq = Math.min(q+1, n-q);
+                double edgeDist2 = dq*dq*w2;
+                if (d[q] > edgeDist2) d[q] = edgeDist2;
             }
         }
-        points[x] = nearestPoint;
-        return (float)distSqr;
-    } //private float minDist2
+    } //private static void lowerEnvelope
 
     // overwrite ip with floatEdm converted to bytes
     private void byteFromFloat(ImageProcessor ip, FloatProcessor floatEdm) {
@@ -23,6 +23,11 @@ import java.awt.Rectangle;
  * - For increased speed, except for small blur radii, the lines (rows or
  * columns of the image) are downscaled before convolution and upscaled
  * to their original length thereafter.
+ * - If selected by setMethod, a recursive filter (Young & van Vliet) is
+ * used instead of convolution; its computing time does not depend on sigma, but it
+ * approximates the Gaussian less accurately. The edges are handled as
+ * described by Triggs & Sdika, i.e., also with out-of-image pixels equal
+ * to the edge pixels.
  * 
  * Version 03-Jun-2007 M. Schmid with preview, progressBar stack-aware,
  * snapshot via snapshot flag; restricted range for resetOutOfRoi
@@ -46,6 +51,10 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     private int pass;                        // Current pass
     private boolean noProgress;      // Do not show progress bar
     private boolean calledAsPlugin;
+    private int method = CONVOLUTION;   // convolution with a kernel or recursive filter
+
+    /** Method constants for setMethod */
+    public static final int CONVOLUTION=0, RECURSIVE=1;
     
     /** Method to return types supported
      * @param arg unused
@@ -114,6 +123,15 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         pass = 0;
     }
 
+    /** Selects convolution with a Gaussian kernel (CONVOLUTION, the default)
+     *  or the recursive filter (RECURSIVE). The computing time of the recursive
+     *  filter does not depend on sigma, but it is less accurate; it does not
+     *  depend on the accuracy value and is never used for sigma < 0.5.
+     */
+    public void setMethod(int method) {
+        this.method = method;
+    }
+
     /** This method is invoked for each slice during execution
      * @param ip The image subject to filtering. It must have a valid snapshot if
      * the height of the roi is less than the full image height.
@@ -236,8 +254,12 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final int numThreads = Math.min(Prefs.getThreads(), lineTo-lineFrom);
         final Thread[] lineThreads = new Thread[numThreads];
 
+        /* recursive filter: computing time independent of sigma, but less accurate */
+        final boolean recursive = sigma >= 0.5 && method == RECURSIVE;
+        final double[] recursiveCoeffs = recursive ? makeRecursiveCoefficients(sigma) : null;
+
         /* large radius (sigma): scale down, then convolve, then scale up */
-        final boolean doDownscaling = sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
+        final boolean doDownscaling = !recursive && sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
         final int reduceBy = doDownscaling ?                //downscale by this factor
                 Math.min((int)Math.floor(sigma/MIN_DOWNSCALED_SIGMA), length)
                 : 1;
@@ -251,7 +273,8 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final int maxLength = doDownscaling ?
                 (length+reduceBy-1)/reduceBy + 2*(UPSCALE_K_RADIUS + 1) //downscaled line can't be longer
                 : length;
-        final float[][] gaussKernel = makeGaussianKernel(sigmaGauss, accuracy, maxLength);
+        final float[][] gaussKernel = recursive ? new float[][] {new float[length]} :
+                makeGaussianKernel(sigmaGauss, accuracy, maxLength);
         final int kRadius = gaussKernel[0].length*reduceBy;             //Gaussian kernel radius after upscaling
         final int readFrom = (writeFrom-kRadius < 0) ? 0 : writeFrom-kRadius; //not including broadening by downscale&upscale
         final int readTo = (writeTo+kRadius > length) ? length : writeTo+kRadius;
@@ -266,8 +289,9 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
            
         for ( int t = 0; t < numThreads; ++t ) {
             final int ti = t;
-            final float[] cache1 = new float[newLength];  //holds data before convolution (after downscaling, if any)
+            final float[] cache1 = recursive ? null : new float[newLength];  //holds data before convolution (after downscaling, if any)
             final float[] cache2 = doDownscaling ? new float[newLength] : null;  //holds data after convolution
+            final double[] recursiveCache = recursive ? new double[length+3] : null; //holds data of the recursive filter
             
             final Thread thread = new Thread(
                     new Runnable() {
@@ -283,7 +307,9 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
                                     if (Thread.currentThread().isInterrupted()) return; // interruption for new parameters during preview?
                                     lastTime = time;
                                 }
-                                if (doDownscaling) {
+                                if (recursive) {
+                                    recursiveLine(pixels, recursiveCache, recursiveCoeffs, pixel0, length, pointInc, writeFrom, writeTo);
+                                } else if (doDownscaling) {
                                     downscaleLine(pixels, cache1, downscaleKernel, reduceBy, pixel0, unscaled0, length, pointInc, newLength);
                                     convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
                                     upscaleLine(cache2, pixels, upscaleKernel, reduceBy, pixel0, unscaled0, writeFrom, writeTo, pointInc);
@@ -512,6 +538,71 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         }
     }
 
+    /** Filter a line (row or column of a FloatProcessor) with the recursive Gaussian
+     * filter of Young & van Vliet: a causal (forward) and an anti-causal (backward)
+     * third-order filter. Out-of-line pixels are assumed equal to the edge pixels;
+     * the backward pass starts with the exact values for this case (Triggs & Sdika).
+     * @param pixels    Float array with the input data, also used for the output
+     * @param cache     Array of length+3, holds the result of the forward pass
+     * @param coeffs    Filter coefficients as created by makeRecursiveCoefficients
+     * @param pixel0    Array index of the first point of the line
+     * @param length    Length of the line
+     * @param pointInc  Increment of the pixels array index to the next point
+     * @param writeFrom Index of the first point in the line that should be written
+     * @param writeTo   Index+1 of the last point in the line that should be written
+     */
+    final static private void recursiveLine(final float[] pixels, final double[] cache, final double[] coeffs,
+            final int pixel0, final int length, final int pointInc, final int writeFrom, final int writeTo) {
+        final double a = coeffs[0], b1 = coeffs[1], b2 = coeffs[2], b3 = coeffs[3];
+        final double first = pixels[pixel0];
+        final double last = pixels[pixel0 + (length-1)*pointInc];
+        double w1 = first, w2 = first, w3 = first;  //the previous three values (steady state before the line)
+        for (int i=0, p=pixel0; i<length; i++, p+=pointInc) {
+            double w = a*pixels[p] + b1*w1 + b2*w2 + b3*w3;
+            cache[i] = w;
+            w3 = w2;
+            w2 = w1;
+            w1 = w;
+        }
+        double e0 = cache[length-1] - last;         //deviation from steady state at the end
+        double e1 = (length>1 ? cache[length-2] : first) - last;
+        double e2 = (length>2 ? cache[length-3] : first) - last;
+        double y1 = last + coeffs[4]*e0 + coeffs[5]*e1 + coeffs[6]*e2;  //output at length-1
+        double y2 = last + coeffs[7]*e0 + coeffs[8]*e1 + coeffs[9]*e2;  //(virtual) output at length
+        double y3 = last + coeffs[10]*e0 + coeffs[11]*e1 + coeffs[12]*e2;
+        cache[length-1] = y1;
+        for (int i=length-2; i>=writeFrom; i--) {
+            double y = a*cache[i] + b1*y1 + b2*y2 + b3*y3;
+            cache[i] = y;
+            y3 = y2;
+            y2 = y1;
+            y1 = y;
+        }
+        for (int i=writeFrom, p=pixel0+writeFrom*pointInc; i<writeTo; i++, p+=pointInc)
+            pixels[p] = (float)cache[i];
+    }
+
+    /** Coefficients of the recursive Gaussian filter: gain a, feedback b1, b2, b3
+     *  (Young, van Vliet & van Ginkel, 2002), and the 3x3 matrix for the initial
+     *  values of the backward pass (Triggs & Sdika, 2006) */
+    final static private double[] makeRecursiveCoefficients(final double sigma) {
+        final double m0 = 1.16680, m1 = 1.10783, m2 = 1.40586;
+        final double q = sigma >= 3.556 ?
+                0.9804*(sigma - 3.556) + 2.5091 :
+                0.0561*sigma*sigma + 0.5784*sigma - 0.2568;
+        final double scale = (m0 + q)*(m1*m1 + m2*m2 + 2*m1*q + q*q);
+        final double b1 = q*(2*m0*m1 + m1*m1 + m2*m2 + (2*m0 + 4*m1)*q + 3*q*q)/scale;
+        final double b2 = -q*q*(m0 + 2*m1 + 3*q)/scale;
+        final double b3 = q*q*q/scale;
+        final double a = 1.0 - (b1 + b2 + b3);
+        final double norm = a/((1.0 + b1 - b2 + b3)*(1.0 - b1 - b2 - b3)*(1.0 + b2 + (b1 - b3)*b3));
+        return new double[] {a, b1, b2, b3,
+            norm*(-b3*b1 + 1.0 - b3*b3 - b2),       norm*(b3 + b1)*(b2 + b3*b1),        norm*b3*(b1 + b3*b2),
+            norm*(b1 + b3*b2),                      norm*-(b2 - 1.0)*(b2 + b3*b1),      norm*-(b3*b1 + b3*b3 + b2 - 1.0)*b3,
+            norm*(b3*b1 + b2 + b1*b1 - b2*b2),      norm*(b1*b2 + b3*b2*b2 - b1*b3*b3 - b3*b3*b3 - b3*b2 + b3),
+                                                                                        norm*b3*(b1 + b3*b2)};
+    }
+
     /** Create a 1-dimensional normalized Gaussian kernel with standard deviation sigma
      *  and the running sum over the kernel
      *  Note: this is one side of the kernel only, not the full kernel as used by the
@@ -3,12 +3,17 @@ import ij.*;
 import ij.gui.*;
 import ij.process.*;
 import ij.macro.*;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements ImageJ's Process/Math submenu. */
 public class ImageMath implements ExtendedPlugInFilter, DialogListener {
 	
 	public static final String MACRO_KEY = "math.macro";
+	private static final String[] EXPRESSION_VARIABLES = {"v","x","y","z","w","h","a","d"};
+	private static final int V=0, X=1, Y=2, Z=3, W=4, H=5, A=6, D=7;
 	private int flags = DOES_ALL|SUPPORTS_MASKING|KEEP_PREVIEW|PARALLELIZE_STACKS;
 	private String arg;
 	private ImagePlus imp;
@@ -236,6 +241,17 @@ public class ImageMath implements ExtendedPlugInFilter, DialogListener {
 			"var v,x,y,z,w,h,d,a;\n"+
 			"function dummy() {}\n"+
 			macro+";\n"; // code starts at program counter location 'PCStart'
+		if (!hasGetPixel) {
+			PixelExpression pe = PixelExpression.compile((new Tokenizer()).tokenize(code), PCStart, EXPRESSION_VARIABLES);
+			if (pe!=null && !pe.assigns("y") && !pe.assigns("z") && !pe.assigns("w") && !pe.assigns("h")) {
+				Prefs.set(MACRO_KEY, macro);
+				applyExpression(ip, pe, hasX, hasA, hasD, showProgress);
+				if (showProgress)
+					IJ.showProgress(1.0);
+				WindowManager.setTempCurrentImage(temp);
+				return;
+			}
+		}
 		Interpreter interp = new Interpreter();
 		interp.run(code, null);
 		if (interp.wasError()) {
@@ -384,6 +400,117 @@ public class ImageMath implements ExtendedPlugInFilter, DialogListener {
 		WindowManager.setTempCurrentImage(temp);
 	}
 	
+	/* Multi-threaded version of applyMacro for code that PixelExpression can
+		compile. Each thread evaluates the expression for whole rows. */
+	private static void applyExpression(final ImageProcessor ip, final PixelExpression pe,
+	final boolean hasX, final boolean hasA, final boolean hasD, final boolean showProgress) {
+		final Rectangle r = ip.getRoi();
+		final int bitDepth = ip.getBitDepth();
+		final boolean signed16 = ip.isSigned16Bit();
+		final AtomicInteger nextRow = new AtomicInteger(r.y);
+		final int inc = Math.max(r.height/50, 1);
+		Thread[] threads = new Thread[Math.max(1, Math.min(Prefs.getThreads(), r.height/16))];
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("ImageMath-"+t) {
+				public void run() {
+					double[][] regs = pe.newRegisters(r.width);
+					double[] v = regs[V];
+					int w = ip.getWidth();
+					int h = ip.getHeight();
+					Arrays.fill(regs[Z], ip.getSliceNumber()-1);
+					Arrays.fill(regs[W], w);
+					Arrays.fill(regs[H], h);
+					Object pixels = ip.getPixels();
+					for (int y=nextRow.getAndIncrement(); y<r.y+r.height; y=nextRow.getAndIncrement()) {
+						if (showProgress && (y-r.y)%inc==0)
+							IJ.showProgress(y-r.y, r.height);
+						int offset = y*w + r.x;
+						if (bitDepth==24) {
+							int[] pixels2 = (int[])pixels;
+							setCoordinates(regs, r.x, y, w, h, hasX, hasA, hasD);
+							for (int shift=16; shift>=0; shift-=8) {
+								for (int i=0; i<r.width; i++)
+									v[i] = (pixels2[offset+i]>>shift)&255;
+								pe.evaluate(regs, r.width);
+								for (int i=0; i<r.width; i++) {
+									int c = (int)v[i];
+									if (c<0) c=0; if (c>255) c=255;
+									pixels2[offset+i] = 0xff000000 | (pixels2[offset+i]&~(255<<shift)) | (c<<shift);
+								}
+							}
+							continue;
+						}
+						if (signed16) {
+							for (int i=0; i<r.width; i++)
+								v[i] = ip.getPixelValue(r.x+i, y);
+						} else if (bitDepth==8) {
+							byte[] pixels2 = (byte[])pixels;
+							for (int i=0; i<r.width; i++)
+								v[i] = pixels2[offset+i]&255;
+						} else if (bitDepth==16) {
+							short[] pixels2 = (short[])pixels;
+							for (int i=0; i<r.width; i++)
+								v[i] = pixels2[offset+i]&65535;
+						} else {
+							float[] pixels2 = (float[])pixels;
+							for (int i=0; i<r.width; i++)
+								v[i] = pixels2[offset+i];
+						}
+						setCoordinates(regs, r.x, y, w, h, hasX, hasA, hasD);
+						pe.evaluate(regs, r.width);
+						if (signed16) {
+							for (int i=0; i<r.width; i++)
+								ip.putPixelValue(r.x+i, y, v[i]);
+						} else if (bitDepth==8) {
+							byte[] pixels2 = (byte[])pixels;
+							for (int i=0; i<r.width; i++) {
+								int v2 = (int)v[i];
+								if (v2<0) v2 = 0;
+								if (v2>255) v2 = 255;
+								pixels2[offset+i] = (byte)v2;
+							}
+						} else if (bitDepth==16) {
+							short[] pixels2 = (short[])pixels;
+							for (int i=0; i<r.width; i++) {
+								int v2 = (int)v[i];
+								if (v2<0) v2 = 0;
+								if (v2>65535) v2 = 65535;
+								pixels2[offset+i] = (short)v2;
+							}
+						} else {
+							float[] pixels2 = (float[])pixels;
+							for (int i=0; i<r.width; i++)
+								pixels2[offset+i] = (float)v[i];
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+
+	private static void setCoordinates(double[][] regs, int x0, int y, int w, int h, boolean hasX, boolean hasA, boolean hasD) {
+		int n = regs[V].length;
+		Arrays.fill(regs[Y], y);
+		if (hasX) {
+			double[] x = regs[X];
+			for (int i=0; i<n; i++)
+				x[i] = x0+i;
+		}
+		int w2 = w/2;
+		int h2 = h/2;
+		if (hasA) {
+			double[] a = regs[A];
+			for (int i=0; i<n; i++)
+				a[i] = getA((h-y-1)-h2, x0+i-w2);
+		}
+		if (hasD) {
+			double[] d = regs[D];
+			for (int i=0; i<n; i++)
+				d[i] = getD(x0+i-w2, y-h2);
+		}
+	}
+
 	private static final double getD(int dx, int dy) {
           return Math.sqrt(dx*dx + dy*dy);
 	}
@@ -5,8 +5,10 @@ import ij.gui.*;
 import ij.measure.*;
 import ij.process.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This ImageJ plug-in filter finds the maxima (or minima) of an image.
  * It can create a mask where the local maxima of the current image are
@@ -24,7 +26,8 @@ import java.util.*;
  *
  * Notes:
  * - When using one instance of MaximumFinder for more than one image in parallel threads,
- *   all must images have the same width and height.
+ *   all must images have the same width and height. This restriction does not apply to
+ *   findMaxima(ImageStack, ...) and getMaxima(ImageStack, ...), which find maxima in 3D.
  *
  * version 09-Nov-2006 Michael Schmid
  * version 21-Nov-2006 Wayne Rasband. Adds "Display Point Selection" option and "Count" output type.
@@ -355,6 +358,51 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     	return findMaxima(ip, tolerance, ImageProcessor.NO_THRESHOLD, outputType, excludeOnEdges, false);
     }
 
+    /** Finds the maxima of a stack in 3D, with 26-connected neighbors (8-connected if the stack
+     * has only one slice). Pixel values are used without calibration. Unlike the methods for
+     * single images, this method can be used for stacks of any size in parallel threads.
+     * With output type SEGMENTED, the watershed segmentation works directly on the pixel values,
+     * with a priority queue; pixels below the threshold are background.
+     * @param stack          The input stack, 8, 16 or 32-bit; not modified
+     * @param tolerance      Height tolerance: maxima are accepted only if protruding more than this value
+     *                       from the ridge to a higher maximum
+     * @param threshold      minimum height of a maximum; for no minimum height set it to
+     *                       ImageProcessor.NO_THRESHOLD
+     * @param outputType     What to mark in the output: SINGLE_POINTS, IN_TOLERANCE or SEGMENTED.
+     * @param excludeOnEdges Whether to exclude edge maxima (or, with SEGMENTED, particles of edge maxima)
+     * @return               A new 8-bit stack where the marked points are set to 255 (background 0).
+     *                       Returns null if the thread is interrupted.
+     */
+    public ImageStack findMaxima(ImageStack stack, double tolerance, double threshold,
+            int outputType, boolean excludeOnEdges) {
+        if (outputType!=SINGLE_POINTS && outputType!=IN_TOLERANCE && outputType!=SEGMENTED)
+            throw new IllegalArgumentException("Output type must be SINGLE_POINTS, IN_TOLERANCE or SEGMENTED");
+        StackMaxima maxima = new StackMaxima(stack);
+        boolean segment = outputType==SEGMENTED;
+        if (!maxima.findMaxima(tolerance, threshold, excludeOnEdges, segment))
+            return null;
+        if (segment && !maxima.segment(threshold))
+            return null;
+        return maxima.makeOutput(segment ? 0 : outputTypeMasks[outputType]);
+    }
+
+    /** Finds the maxima of a stack in 3D, with 26-connected neighbors (8-connected if the stack
+     * has only one slice). Can be used for stacks of any size in parallel threads.
+     * @param stack          The input stack, 8, 16 or 32-bit; not modified
+     * @param tolerance      Height tolerance: maxima are accepted only if protruding more than this value
+     *                       from the ridge to a higher maximum
+     * @param threshold      minimum height of a maximum or ImageProcessor.NO_THRESHOLD
+     * @param excludeOnEdges Whether to exclude edge maxima
+     * @return               Three arrays with the x, y and z coordinates of the maxima (z is the slice
+     *                       index, starting at 0), sorted by decreasing value. Null if interrupted.
+     */
+    public int[][] getMaxima(ImageStack stack, double tolerance, double threshold, boolean excludeOnEdges) {
+        StackMaxima maxima = new StackMaxima(stack);
+        if (!maxima.findMaxima(tolerance, threshold, excludeOnEdges, false))
+            return null;
+        return maxima.getMaxima();
+    }
+
    /** Here the processing is done: Find the maxima of an image (does not find minima).
      *
      * LIMITATIONS:          With outputType=SEGMENTED (watershed segmentation), some segmentation lines
@@ -375,7 +423,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      */
     public ByteProcessor findMaxima(ImageProcessor ip, double tolerance, double threshold,
             int outputType, boolean excludeOnEdges, boolean isEDM) {
-        if (dirOffset == null) makeDirectionOffsets(ip);
+        if (dirOffset == null || width != ip.getWidth() || height != ip.getHeight())
+            makeDirectionOffsets(ip);
         Rectangle roi = ip.getRoi();
         byte[] mask = ip.getMaskArray();
         if (threshold!=ImageProcessor.NO_THRESHOLD && ip.getCalibrationTable()!=null &&
@@ -456,43 +505,33 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      *                  is encoded in the upper 32 bits and the pixel offset in the lower 32 bit
      * Note: Do not use the positions of the points marked as MAXIMUM in typeP, they are invalid for images with a roi.
      */    
-    long[] getSortedMaxPoints(ImageProcessor ip, ByteProcessor typeP, boolean excludeEdgesNow,
-            boolean isEDM, float globalMin, float globalMax, double threshold) {
-        Rectangle roi = ip.getRoi();
-        byte[] types =  (byte[])typeP.getPixels();
+    long[] getSortedMaxPoints(final ImageProcessor ip, ByteProcessor typeP, final boolean excludeEdgesNow,
+            final boolean isEDM, final float globalMin, float globalMax, final double threshold) {
+        final Rectangle roi = ip.getRoi();
+        final byte[] types =  (byte[])typeP.getPixels();
         int nMax = 0;  //counts local maxima
-        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
-        Thread thread = Thread.currentThread();
+        final Thread thread = Thread.currentThread();
         //long t0 = System.currentTimeMillis();
-        for (int y=roi.y; y<roi.y+roi.height; y++) {         // find local maxima now
-            if (y%50==0 && thread.isInterrupted()) return null;
-            for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
-                float v = ip.getPixelValue(x,y);
-                float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
-                if (v==globalMin) continue;
-                if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
-                if (checkThreshold && v<threshold) continue;
-                boolean isMax = true;
-                /* check wheter we have a local maximum.
-                 Note: For an EDM, we need all maxima: those of the EDM-corrected values
-                 (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
-                boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
-                for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
-                    if (isInner || isWithin(x, y, d)) {
-                        float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
-                        float vNeighborTrue = isEDM ? trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) : vNeighbor;
-                        if (vNeighbor > v && vNeighborTrue > vTrue) {
-                            isMax = false;
-                            break;
-                        }
+        final AtomicInteger nextY = new AtomicInteger(roi.y);   // find local maxima now, lines distributed among threads
+        final int[] nMaxOfThread = new int[Math.max(1, Math.min(Prefs.getThreads(), roi.height/16))];
+        Thread[] threads = ThreadUtil.createThreadArray(nMaxOfThread.length);
+        for (int t=0; t<threads.length; t++) {
+            final int ti = t;
+            threads[t] = new Thread("MaximumFinder-"+t) {
+                public void run() {
+                    for (int y=nextY.getAndIncrement(); y<roi.y+roi.height; y=nextY.getAndIncrement()) {
+                        if (y%50==0 && thread.isInterrupted()) return;
+                        nMaxOfThread[ti] += markLocalMaxima(ip, types, y, roi, excludeEdgesNow, isEDM, globalMin, threshold);
                     }
                 }
-                if (isMax) {
-                    types[i] = MAXIMUM;
-                    nMax++;
-                }
-            } // for x
-        } // for y
+            };
+        }
+        if (threads.length==1)
+            threads[0].run();
+        else
+            ThreadUtil.startAndJoin(threads);
+        for (int t=0; t<nMaxOfThread.length; t++)
+            nMax += nMaxOfThread[t];
         if (thread.isInterrupted()) return null;
         //long t1 = System.currentTimeMillis();IJ.log("markMax:"+(t1-t0));
         
@@ -513,6 +552,40 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return maxPoints;
     } //getSortedMaxPoints
 
+    /** Marks the local maxima in line y of the roi as MAXIMUM in 'types'; returns the number of maxima */
+    int markLocalMaxima(ImageProcessor ip, byte[] types, int y, Rectangle roi, boolean excludeEdgesNow,
+            boolean isEDM, float globalMin, double threshold) {
+        int nMax = 0;
+        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
+        for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
+            float v = ip.getPixelValue(x,y);
+            float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
+            if (v==globalMin) continue;
+            if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
+            if (checkThreshold && v<threshold) continue;
+            boolean isMax = true;
+            /* check wheter we have a local maximum.
+             Note: For an EDM, we need all maxima: those of the EDM-corrected values
+             (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
+            boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
+            for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
+                if (isInner || isWithin(x, y, d)) {
+                    float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
+                    float vNeighborTrue = isEDM ? trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) : vNeighbor;
+                    if (vNeighbor > v && vNeighborTrue > vTrue) {
+                        isMax = false;
+                        break;
+                    }
+                }
+            }
+            if (isMax) {
+                types[i] = MAXIMUM;
+                nMax++;
+            }
+        } // for x
+        return nMax;
+    } //markLocalMaxima
+
    /** Check all maxima in list maxPoints, mark type of the points in typeP
     * @param ip             the image to be analyzed
     * @param typeP          8-bit image, here the point types are marked by type: MAX_POINT, etc.
@@ -1290,3 +1363,411 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
 }
 
 
+
+/** Finds maxima and does watershed segmentation of a stack in 3D (26-connected), or of a
+ *  single image (8-connected) if the stack has only one slice. All data of one call are held
+ *  in an instance of this class; thus MaximumFinder can use it for several stacks in parallel.
+ *  The pixel values are used as they are (8, 16 or 32-bit, without calibration).
+ *  The local maxima are searched with several threads; the maxima are sorted exactly (by
+ *  the float value), so there is no need to correct for sorting errors later.
+ *  Watershed segmentation floods from the areas within the tolerance around the maxima,
+ *  in the sequence of decreasing pixel values given by a priority queue (heap); pixels
+ *  where different particles would touch become segmentation lines.
+ */
+class StackMaxima {
+    private int width, height, depth, planeSize;
+    private float[][] values;           // pixel values of all slices
+    private byte[][] types;             // pixel types (see MaximumFinder), for all slices
+    private int[][] labels;             // for segmentation: particle number; 0 unlabeled, -1 line
+    private final static int QUEUED = -2; // label of pixels in the queue of the watershed
+    private int[] nbX, nbY, nbZ;        // offsets to all neighbors
+    private int numThreads = Prefs.getThreads();
+    private long[] maxPoints;           // sorted local maxima, value in the upper, index in the lower 32 bits
+    private int[] maxIndices = new int[64];  // maxima accepted (single points)
+    private int nMaxima;
+    private boolean[] edgeParticles;    // for segmentation: which particles have an edge maximum
+    private float globalMin = Float.MAX_VALUE;
+
+    /** Throws an IllegalArgumentException for RGB stacks or stacks with 2^31 pixels or more */
+    StackMaxima(ImageStack stack) {
+        if (stack.getBitDepth()==24)
+            throw new IllegalArgumentException("8, 16 or 32-bit stack required");
+        width = stack.getWidth();
+        height = stack.getHeight();
+        depth = stack.getSize();
+        planeSize = width*height;
+        if ((long)planeSize*depth >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Stack too large: "+width+"x"+height+"x"+depth);
+        values = new float[depth][];
+        types = new byte[depth][];
+        for (int z=0; z<depth; z++) {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            values[z] = ip instanceof FloatProcessor ? (float[])ip.getPixels() :
+                    (float[])ip.toFloat(0, null).getPixels();
+            types[z] = new byte[planeSize];
+            float[] v = values[z];
+            for (int i=0; i<planeSize; i++)
+                if (v[i] < globalMin) globalMin = v[i];
+        }
+        int n = 0;
+        int zRange = depth>1 ? 1 : 0;
+        nbX = new int[26]; nbY = new int[26]; nbZ = new int[26];
+        for (int dz=-zRange; dz<=zRange; dz++) {   // in each plane, same sequence as for 2D images
+            if (dz != 0) {
+                nbZ[n] = dz;
+                n++;
+            }
+            for (int d=0; d<8; d++) {
+                nbX[n] = MaximumFinder.DIR_X_OFFSET[d]; nbY[n] = MaximumFinder.DIR_Y_OFFSET[d]; nbZ[n] = dz;
+                n++;
+            }
+        }
+        nbX = Arrays.copyOf(nbX, n); nbY = Arrays.copyOf(nbY, n); nbZ = Arrays.copyOf(nbZ, n);
+    }
+
+    /** Finds the maxima; marks the points as MAX_POINT and the areas within the tolerance
+     *  as MAX_AREA. With 'segment', prepares the labels for watershed segmentation.
+     *  Returns false if interrupted. */
+    boolean findMaxima(double tolerance, double threshold, boolean excludeOnEdges, boolean segment) {
+        boolean excludeEdgesNow = excludeOnEdges && !segment;
+        IJ.showStatus("Getting sorted maxima...");
+        if (!findLocalMaxima(threshold, excludeEdgesNow)) return false;
+        IJ.showStatus("Analyzing  maxima...");
+        return analyzeMaxima(tolerance, excludeOnEdges, excludeEdgesNow, segment);
+    }
+
+    /* Marks all local maxima as MAXIMUM (distributing the lines among the threads)
+     * and creates the sorted array maxPoints */
+    private boolean findLocalMaxima(final double threshold, final boolean excludeEdgesNow) {
+        final int nLines = height*depth;
+        final int[] lineCounts = new int[nLines];
+        final AtomicInteger nextLine = new AtomicInteger(0);
+        final Thread callingThread = Thread.currentThread();
+        Thread[] threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(numThreads, nLines/16)));
+        for (int t=0; t<threads.length; t++) {
+            threads[t] = new Thread("MaximumFinder-"+t) {
+                public void run() {
+                    for (int line=nextLine.getAndIncrement(); line<nLines; line=nextLine.getAndIncrement()) {
+                        if (line%64==0 && callingThread.isInterrupted()) return;
+                        lineCounts[line] = findLocalMaxima(line/height, line%height, threshold, excludeEdgesNow);
+                    }
+                }
+            };
+        }
+        if (threads.length==1)
+            threads[0].run();
+        else
+            ThreadUtil.startAndJoin(threads);
+        if (callingThread.isInterrupted()) return false;
+        int nMax = 0;
+        for (int line=0; line<nLines; line++)
+            nMax += lineCounts[line];
+        maxPoints = new long[nMax];
+        int iMax = 0;
+        for (int z=0; z<depth; z++) {
+            byte[] t = types[z];
+            float[] v = values[z];
+            for (int i=0; i<planeSize; i++)
+                if (t[i]==MaximumFinder.MAXIMUM)
+                    maxPoints[iMax++] = (long)sortableInt(v[i])<<32 | (z*planeSize + i);
+        }
+        Arrays.sort(maxPoints);
+        return true;
+    }
+
+    /* Marks the local maxima in one line, returns the number of maxima */
+    private int findLocalMaxima(int z, int y, double threshold, boolean excludeEdgesNow) {
+        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
+        boolean edgeLine = y==0 || y==height-1 || (depth>1 && (z==0 || z==depth-1));
+        float[] v = values[z];
+        byte[] t = types[z];
+        int nMax = 0;
+        for (int x=0, i=y*width; x<width; x++, i++) {
+            float v0 = v[i];
+            if (v0==globalMin || v0!=v0) continue;      // minimum or NaN
+            boolean isEdge = edgeLine || x==0 || x==width-1;
+            if (excludeEdgesNow && isEdge) continue;
+            if (checkThreshold && v0<threshold) continue;
+            boolean isMax = true;
+            for (int d=0; d<nbX.length; d++) {
+                int x2 = x+nbX[d], y2 = y+nbY[d], z2 = z+nbZ[d];
+                if (isEdge && (x2<0 || x2>=width || y2<0 || y2>=height || z2<0 || z2>=depth))
+                    continue;
+                if (values[z2][x2+y2*width] > v0) {
+                    isMax = false;
+                    break;
+                }
+            }
+            if (isMax) {
+                t[i] = MaximumFinder.MAXIMUM;
+                nMax++;
+            }
+        }
+        return nMax;
+    }
+
+    /* Starting from the highest maximum, floods the area within the tolerance. Maxima that
+     * reach a higher point or a point processed before are no maxima. The area of a maximum
+     * is marked MAX_AREA, the point nearest to the center of the equal-height points MAX_POINT. */
+    private boolean analyzeMaxima(double tolerance, boolean excludeOnEdges, boolean excludeEdgesNow, boolean segment) {
+        int[] pList = new int[256];
+        if (segment) {
+            labels = new int[depth][planeSize];
+            edgeParticles = new boolean[64];
+        }
+        int nLabels = 0;
+        for (int iMax=maxPoints.length-1; iMax>=0; iMax--) {
+            if (iMax%1000 == 0 && Thread.currentThread().isInterrupted()) return false;
+            int index0 = (int)maxPoints[iMax];
+            int z0 = index0/planeSize, i0 = index0%planeSize;
+            if ((types[z0][i0]&MaximumFinder.PROCESSED)!=0)
+                continue;
+            float v0 = values[z0][i0];
+            pList[0] = index0;
+            types[z0][i0] |= MaximumFinder.EQUAL|MaximumFinder.LISTED;
+            int listLen = 1;
+            boolean isEdgeMaximum = isEdge(i0%width, i0/width, z0);
+            boolean maxPossible = true;
+            double xEqual = i0%width, yEqual = i0/width, zEqual = z0;
+            int nEqual = 1;
+            for (int listI=0; listI<listLen; listI++) {
+                int index = pList[listI];
+                int z = index/planeSize, i = index%planeSize;
+                int x = i%width, y = i/width;
+                boolean isEdge = isEdge(x, y, z);
+                for (int d=0; d<nbX.length; d++) {
+                    int x2 = x+nbX[d], y2 = y+nbY[d], z2 = z+nbZ[d];
+                    if (isEdge && (x2<0 || x2>=width || y2<0 || y2>=height || z2<0 || z2>=depth))
+                        continue;
+                    int i2 = x2 + y2*width;
+                    byte type2 = types[z2][i2];
+                    if ((type2&MaximumFinder.LISTED)!=0) continue;
+                    float v2 = values[z2][i2];
+                    if ((type2&MaximumFinder.PROCESSED)!=0 || v2 > v0) {
+                        maxPossible = false;    // reached a point processed before or a higher one
+                        break;
+                    } else if (v2 >= v0-(float)tolerance) {
+                        if (listLen==pList.length)
+                            pList = Arrays.copyOf(pList, listLen*2);
+                        pList[listLen++] = z2*planeSize + i2;
+                        types[z2][i2] |= MaximumFinder.LISTED;
+                        if (isEdge(x2, y2, z2)) {
+                            isEdgeMaximum = true;
+                            if (excludeEdgesNow) {
+                                maxPossible = false;
+                                break;
+                            }
+                        }
+                        if (v2==v0) {
+                            types[z2][i2] |= MaximumFinder.EQUAL;
+                            xEqual += x2; yEqual += y2; zEqual += z2;
+                            nEqual++;
+                        }
+                    }
+                }
+            }
+            int resetMask = ~(maxPossible ? MaximumFinder.LISTED : (MaximumFinder.LISTED|MaximumFinder.EQUAL));
+            xEqual /= nEqual; yEqual /= nEqual; zEqual /= nEqual;
+            double minDist2 = Double.MAX_VALUE;
+            int nearestIndex = index0;
+            if (maxPossible) nLabels++;
+            for (int listI=0; listI<listLen; listI++) {
+                int index = pList[listI];
+                int z = index/planeSize, i = index%planeSize;
+                types[z][i] &= resetMask;
+                types[z][i] |= MaximumFinder.PROCESSED;
+                if (maxPossible) {
+                    types[z][i] |= MaximumFinder.MAX_AREA;
+                    if (segment) labels[z][i] = nLabels;
+                    if ((types[z][i]&MaximumFinder.EQUAL)!=0) {
+                        double dx = xEqual - i%width, dy = yEqual - i/width, dz = zEqual - z;
+                        double dist2 = dx*dx + dy*dy + dz*dz;
+                        if (dist2 < minDist2) {
+                            minDist2 = dist2;
+                            nearestIndex = index;
+                        }
+                    }
+                }
+            }
+            if (maxPossible) {
+                types[nearestIndex/planeSize][nearestIndex%planeSize] |= MaximumFinder.MAX_POINT;
+                if (!(excludeOnEdges && isEdgeMaximum)) {
+                    if (nMaxima==maxIndices.length)
+                        maxIndices = Arrays.copyOf(maxIndices, nMaxima*2);
+                    maxIndices[nMaxima++] = nearestIndex;
+                }
+                if (segment) {
+                    if (nLabels>=edgeParticles.length)
+                        edgeParticles = Arrays.copyOf(edgeParticles, nLabels*2);
+                    edgeParticles[nLabels] = excludeOnEdges && isEdgeMaximum;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isEdge(int x, int y, int z) {
+        return x==0 || x==width-1 || y==0 || y==height-1 || (depth>1 && (z==0 || z==depth-1));
+    }
+
+    /** Watershed segmentation, flooding from the MAX_AREA areas of the maxima in the
+     *  sequence of decreasing pixel values. Pixels below the threshold are background.
+     *  Returns false if interrupted. */
+    boolean segment(double threshold) {
+        IJ.showStatus("Segmenting...");
+        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
+        int nNb = nbX.length;
+        int[] nbOffset = new int[nNb];          // offsets of the neighbors within their plane
+        for (int d=0; d<nNb; d++)
+            nbOffset[d] = nbX[d] + nbY[d]*width;
+        int[] newNb = new int[nNb];             // neighbors that may have to be queued
+        PixelHeap heap = new PixelHeap();
+        for (int z=0; z<depth; z++)             // start with the pixels of the maximum areas
+            for (int i=0; i<planeSize; i++)
+                if (labels[z][i]>0)
+                    heap.push(Integer.MAX_VALUE, z*planeSize + i);
+        int count = 0;
+        while (heap.size() > 0) {
+            if (++count%100000 == 0 && Thread.currentThread().isInterrupted()) return false;
+            int index = heap.pop();
+            int z = index/planeSize, i = index - z*planeSize;
+            int y = i/width, x = i - y*width;
+            boolean isEdge = isEdge(x, y, z);
+            int label = labels[z][i];           // maximum areas are labelled already
+            boolean isSeed = label > 0;
+            if (!isSeed) label = 0;
+            int nNew = 0;
+            for (int d=0; d<nNb; d++) {
+                int z2 = z+nbZ[d];
+                if (isEdge) {
+                    int x2 = x+nbX[d], y2 = y+nbY[d];
+                    if (x2<0 || x2>=width || y2<0 || y2>=height || z2<0 || z2>=depth)
+                        continue;
+                }
+                int i2 = i + nbOffset[d];
+                int label2 = labels[z2][i2];
+                if (label2 > 0) {
+                    if (label == 0)
+                        label = label2;
+                    else if (label2 != label && !isSeed) {
+                        label = -1;             // touches two particles: segmentation line
+                        break;
+                    }
+                } else if (label2 == 0)
+                    newNb[nNew++] = d;
+            }
+            labels[z][i] = label;
+            if (label <= 0) continue;
+            for (int k=0; k<nNew; k++) {        // queue the neighbors
+                int d = newNb[k];
+                int z2 = z+nbZ[d], i2 = i+nbOffset[d];
+                float v2 = values[z2][i2];
+                if (v2!=v2 || (checkThreshold && v2<threshold))
+                    continue;
+                labels[z2][i2] = QUEUED;
+                heap.push(sortableInt(v2), z2*planeSize + i2);
+            }
+        }
+        return true;
+    }
+
+    /** Returns an 8-bit stack with 255 for the pixels where the type has any bit of 'typeMask' set,
+     *  or, for segmentation (typeMask 0), for the particles. */
+    ImageStack makeOutput(int typeMask) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z=0; z<depth; z++) {
+            byte[] pixels = new byte[planeSize];
+            for (int i=0; i<planeSize; i++) {
+                boolean set = typeMask==0 ? labels[z][i]>0 && !edgeParticles[labels[z][i]] :
+                        (types[z][i]&typeMask)!=0;
+                if (set) pixels[i] = (byte)255;
+            }
+            stack.addSlice(null, pixels);
+        }
+        return stack;
+    }
+
+    /** Returns the x, y and z (slice index starting at 0) coordinates of the maxima,
+     *  sorted by decreasing value */
+    int[][] getMaxima() {
+        int[][] xyz = new int[3][nMaxima];
+        for (int n=0; n<nMaxima; n++) {
+            int index = maxIndices[n];
+            int i = index%planeSize;
+            xyz[0][n] = i%width;
+            xyz[1][n] = i/width;
+            xyz[2][n] = index/planeSize;
+        }
+        return xyz;
+    }
+
+    /* Converts a float into an int with the same sort order */
+    private static int sortableInt(float v) {
+        int bits = Float.floatToIntBits(v);
+        return bits>=0 ? bits : bits^0x7fffffff;
+    }
+
+    /* Priority queue of pixels, the highest value first; for equal values, the pixel queued first.
+     * Since the watershed floods downwards, this is a monotone queue: a pixel higher than the
+     * last one taken from the queue is queued with the value of that one. This allows using
+     * a radix heap: the entries are in buckets according to the highest bit where their key
+     * differs from the last key taken; only the entries of one bucket must be sorted into
+     * the lower buckets when taking an entry. */
+    private static class PixelHeap {
+        private long[][] keys = new long[65][];     // complement of (value<<32 | ~count), thus increasing
+        private int[][] indices = new int[65][];
+        private int[] sizes = new int[65];
+        private int size;
+        private int count;                  // number of pixels queued so far
+        private long last = Long.MIN_VALUE; // key of the last pixel taken
+        private int lastValue = Integer.MAX_VALUE;
+
+        int size() {
+            return size;
+        }
+
+        void push(int value, int index) {
+            if (value > lastValue)
+                value = lastValue;
+            long key = ~((long)value<<32 | (~count & 0xffffffffL));
+            count++;
+            add(key, index);
+            size++;
+        }
+
+        int pop() {
+            if (sizes[0] == 0) {
+                int b = 1;
+                while (sizes[b] == 0) b++;
+                long[] bKeys = keys[b];
+                int[] bIndices = indices[b];
+                int n = sizes[b];
+                long min = bKeys[0];
+                for (int i=1; i<n; i++)
+                    if (bKeys[i] < min) min = bKeys[i];
+                last = min;
+                lastValue = (int)(~min>>32);
+                sizes[b] = 0;
+                for (int i=0; i<n; i++)
+                    add(bKeys[i], bIndices[i]);
+            }
+            size--;
+            return indices[0][--sizes[0]];
+        }
+
+        private void add(long key, int index) {
+            int b = key==last ? 0 : 64-Long.numberOfLeadingZeros(key^last);
+            int n = sizes[b];
+            if (keys[b] == null) {
+                keys[b] = new long[256];
+                indices[b] = new int[256];
+            } else if (n == keys[b].length) {
+                keys[b] = Arrays.copyOf(keys[b], n*2);
+                indices[b] = Arrays.copyOf(indices[b], n*2);
+            }
+            keys[b][n] = key;
+            indices[b][n] = index;
+            sizes[b] = n+1;
+        }
+    }
+}
@@ -7,7 +7,9 @@ import ij.process.*;
 import ij.plugin.ContrastEnhancer;
 import java.awt.*;
 import java.awt.event.*;
+import ij.util.ThreadUtil;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Mean, Minimum, Maximum, Variance, Median, Open Maxima, Close Maxima,
  *	Remove Outliers, Remove NaNs and Despeckle commands.
@@ -22,6 +24,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	public static final int BRIGHT_OUTLIERS = 0, DARK_OUTLIERS = 1;
 	private static final String[] outlierStrings = {"Bright","Dark"};
 	private static int HIGHEST_FILTER = CLOSE;
+	// Median of integer images with at least this kernel radius is calculated with a histogram
+	private static final int HISTOGRAM_MEDIAN_RADIUS = 3;
 	// Filter parameters
 	private double radius;
 	private double threshold;
@@ -227,6 +231,144 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		}
 	}
 
+	/** Filters an image with a rectangular kernel of (2*xRadius+1)*(2*yRadius+1) pixels,
+	 *	or with a line if one of the radii is zero. Uses the van Herk/Gil-Werman algorithm,
+	 *	which needs about three comparisons per pixel and direction, independent of the
+	 *	kernel size. Pixels outside the image are ignored, which is equivalent to padding
+	 *	with the nearest edge pixels as rank() does.
+	 *	@param ip The image subject to filtering (all 4 types supported)
+	 *	@param filterType MIN, MAX, OPEN or CLOSE
+	 */
+	public void rankRectangle(ImageProcessor ip, int xRadius, int yRadius, int filterType) {
+		if (xRadius<0 || yRadius<0)
+			throw new IllegalArgumentException("Negative radius");
+		rankLines(ip, new int[] {1, 0, xRadius, 0, 1, yRadius}, filterType);
+	}
+
+	/** Filters an image with an octagon that approximates a circular kernel with the
+	 *	given radius. The octagon is made of a horizontal, a vertical and two diagonal
+	 *	line kernels, so the time per pixel does not depend on the radius. This is much
+	 *	faster than rank() with large radii, but the kernel shape is less round.
+	 *	@param ip The image subject to filtering (all 4 types supported)
+	 *	@param filterType MIN, MAX, OPEN or CLOSE
+	 */
+	public void rankOctagon(ImageProcessor ip, double radius, int filterType) {
+		if (radius<0)
+			throw new IllegalArgumentException("Negative radius");
+		// The two diagonal lines make a square rotated by 45 degrees that extends by
+		// 2*diagonalRadius along x and y. For a regular octagon with inner radius 'radius',
+		// its edges are as long as the horizontal and vertical edges.
+		int diagonalRadius = (int)Math.round(radius/(2.0+Math.sqrt(2.0)));
+		int radius1 = (int)Math.round(radius) - 2*diagonalRadius;
+		rankLines(ip, new int[] {1, 0, radius1, 0, 1, radius1, 1, 1, diagonalRadius, 1, -1, diagonalRadius}, filterType);
+	}
+
+	/* Min, max, open or close with a kernel composed of line kernels. 'lines'
+		holds the direction (dx, dy) and radius of each line kernel. */
+	private void rankLines(ImageProcessor ip, int[] lines, int filterType) {
+		if (filterType!=MIN && filterType!=MAX && filterType!=OPEN && filterType!=CLOSE)
+			throw new IllegalArgumentException("Filter type must be MIN, MAX, OPEN or CLOSE");
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle roi = ip.getRoi();
+		FloatProcessor fp = null;
+		for (int ch=0; ch<ip.getNChannels(); ch++) {
+			fp = ip.toFloat(ch, fp);
+			float[] pixels = (float[])fp.getPixels();
+			float[] filtered = (float[])pixels.clone();
+			boolean min = filterType==MIN || filterType==OPEN;
+			filterLines(filtered, width, height, lines, min?-1f:1f);
+			if (filterType==OPEN || filterType==CLOSE)
+				filterLines(filtered, width, height, lines, min?1f:-1f);
+			for (int y=roi.y; y<roi.y+roi.height; y++)
+				System.arraycopy(filtered, roi.x+y*width, pixels, roi.x+y*width, roi.width);
+			ip.setPixels(ch, fp);
+		}
+	}
+
+	/* Maximum (or minimum if 'sign' is -1) of 'pixels' with each of the line kernels,
+		one after the other. The lines of the image are distributed among the threads. */
+	private void filterLines(final float[] pixels, final int width, final int height, int[] lines, final float sign) {
+		if (sign<0)
+			for (int i=0; i<pixels.length; i++) pixels[i] = -pixels[i];
+		for (int k=0; k<lines.length; k+=3) {
+			final int dx=lines[k], dy=lines[k+1], radius=lines[k+2];
+			if (radius==0)
+				continue;
+			final int nLines = dy==0 ? height : (dx==0 ? width : width+height-1);
+			final AtomicInteger nextLine = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray(Math.min(numThreads, nLines));
+			for (int t=0; t<threads.length; t++) {
+				threads[t] = new Thread("RankFilters-"+t) {
+					public void run() {
+						int maxLength = Math.max(width, height);
+						float[] line = new float[maxLength];
+						float[] buf1 = new float[maxLength+2*radius];
+						float[] buf2 = new float[maxLength+2*radius];
+						for (int i=nextLine.getAndIncrement(); i<nLines; i=nextLine.getAndIncrement()) {
+							int x0, y0, length;		// start point and length of the line
+							if (dy==0) {
+								x0 = 0; y0 = i; length = width;
+							} else if (dx==0) {
+								x0 = i; y0 = 0; length = height;
+							} else if (dy>0) {		// diagonal from top left
+								x0 = i<width ? i : 0;
+								y0 = i<width ? 0 : i-width+1;
+								length = Math.min(width-x0, height-y0);
+							} else {				// diagonal from bottom left
+								x0 = i<width ? i : 0;
+								y0 = i<width ? height-1 : i-width;
+								length = Math.min(width-x0, y0+1);
+							}
+							int increment = dx + dy*width;
+							for (int j=0, p=x0+y0*width; j<length; j++, p+=increment)
+								line[j] = pixels[p];
+							lineMax(line, length, radius, buf1, buf2);
+							for (int j=0, p=x0+y0*width; j<length; j++, p+=increment)
+								pixels[p] = line[j];
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+		if (sign<0)
+			for (int i=0; i<pixels.length; i++) pixels[i] = -pixels[i];
+	}
+
+	/** Replaces each value of 'line' with the maximum of the 2*radius+1 values around it
+	 *	(van Herk/Gil-Werman algorithm). Values beyond the ends of the line and NaNs are ignored.
+	 *	The line is padded with 'radius' values at both ends and divided into blocks of
+	 *	2*radius+1 values; the maximum of a kernel is the maximum of the running maximum
+	 *	from the block end where the kernel starts and the running maximum from the block
+	 *	start where the kernel ends. 'forward' and 'backward' must hold length+2*radius values. */
+	private static void lineMax(float[] line, int length, int radius, float[] forward, float[] backward) {
+		int kSize = 2*radius+1;
+		int padded = length + 2*radius;
+		for (int j=0; j<padded; j++) {
+			float v = j>=radius && j<radius+length ? line[j-radius] : Float.NEGATIVE_INFINITY;
+			backward[j] = v==v ? v : Float.NEGATIVE_INFINITY;
+		}
+		for (int blockStart=0; blockStart<padded; blockStart+=kSize) {
+			int blockEnd = Math.min(blockStart+kSize, padded);
+			float max = Float.NEGATIVE_INFINITY;
+			for (int j=blockStart; j<blockEnd; j++) {
+				if (backward[j]>max) max = backward[j];
+				forward[j] = max;
+			}
+			max = Float.NEGATIVE_INFINITY;
+			for (int j=blockEnd-1; j>=blockStart; j--) {
+				if (backward[j]>max) max = backward[j];
+				backward[j] = max;
+			}
+		}
+		for (int i=0; i<length; i++) {
+			float v1 = backward[i];
+			float v2 = forward[i+2*radius];
+			line[i] = v1>v2 ? v1 : v2;
+		}
+	}
+
 	// Filter a grayscale image or one channel of an RGB image with several threads
 	// Implementation: each thread uses the same input buffer (cache), always works on the next unfiltered line
 	// Usually, one thread reads reads several lines into the cache, while the others are processing the data.
@@ -337,6 +479,15 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		double[] sums = sumFilter ? new double[2] : null;
 		float[] medianBuf1 = (medianFilter||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
 		float[] medianBuf2 = (medianFilter||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
+		// median of 8-bit, 16-bit and RGB images with large kernels: use a histogram
+		int[] histogram = null, coarseHistogram = null;
+		int coarseShift = 0;
+		if (filterType==MEDIAN && !(ip instanceof FloatProcessor) && kRadius>=HISTOGRAM_MEDIAN_RADIUS) {
+			int nValues = (int)ip.maxValue() + 1;
+			coarseShift = nValues>256 ? 8 : 4;
+			histogram = new int[nValues];
+			coarseHistogram = new int[nValues>>coarseShift];
+		}
 
 		boolean smallKernel = kRadius < 2;
 
@@ -427,9 +578,13 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			}
 
 			int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-			filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
-					sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
-					smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
+			if (histogram!=null)
+				filterLineHistogramMedian(values, cache, cachePointers, kNPoints, roi.width,
+						histogram, coarseHistogram, coarseShift);
+			else
+				filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
+						sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
+						smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
 			if (!isFloat)		//Float images: data are written already during 'filterLine'
 				writeLineToPixels(values, pixels, roi.x+y*width, roi.width, colorChannel);	// W R I T E
 			//IJ.log("thread "+threadNumber+" @y="+y+" line done");
@@ -517,6 +672,63 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			} // for x
 		}
 
+	/** Median filter of a line of an image with integer values, for large kernels.
+	 *	A histogram of the kernel area is updated with the pixels entering and leaving
+	 *	the kernel lines when moving by one pixel (Huang's algorithm), so the time per
+	 *	pixel grows with the kernel height, not with the kernel area. The histogram has
+	 *	a coarse level with the sums of 2^coarseShift bins, so that bins can be skipped
+	 *	quickly when searching for the median. */
+	private static void filterLineHistogramMedian(float[] values, float[] cache, int[] cachePointers, int kNPoints,
+			int roiWidth, int[] histogram, int[] coarseHistogram, int coarseShift) {
+		int half = kNPoints/2;
+		int binsPerCoarse = 1<<coarseShift;
+		int median = 0;		// the current median
+		int below = 0;		// number of values in the kernel area below 'median'
+		for (int kk=0; kk<cachePointers.length; kk+=2) {
+			for (int p=cachePointers[kk]; p<=cachePointers[kk+1]; p++) {
+				int v = (int)cache[p];
+				histogram[v]++;
+				coarseHistogram[v>>coarseShift]++;
+			}
+		}
+		for (int x=0; x<roiWidth; x++) {
+			if (x>0) {
+				for (int kk=0; kk<cachePointers.length; kk+=2) {
+					int vOut = (int)cache[cachePointers[kk]+x-1];
+					histogram[vOut]--;
+					coarseHistogram[vOut>>coarseShift]--;
+					if (vOut<median) below--;
+					int vIn = (int)cache[cachePointers[kk+1]+x];
+					histogram[vIn]++;
+					coarseHistogram[vIn>>coarseShift]++;
+					if (vIn<median) below++;
+				}
+			}
+			while (below>half) {
+				if ((median&(binsPerCoarse-1))==0 && below-coarseHistogram[(median>>coarseShift)-1]>half) {
+					median -= binsPerCoarse;
+					below -= coarseHistogram[median>>coarseShift];
+				} else
+					below -= histogram[--median];
+			}
+			while (below+histogram[median]<=half) {
+				if ((median&(binsPerCoarse-1))==0 && below+coarseHistogram[median>>coarseShift]<=half) {
+					below += coarseHistogram[median>>coarseShift];
+					median += binsPerCoarse;
+				} else
+					below += histogram[median++];
+			}
+			values[x] = median;
+		}
+		for (int kk=0; kk<cachePointers.length; kk+=2) {	// empty the histogram for the next line
+			for (int p=cachePointers[kk]+roiWidth-1; p<=cachePointers[kk+1]+roiWidth-1; p++) {
+				int v = (int)cache[p];
+				histogram[v]--;
+				coarseHistogram[v>>coarseShift]--;
+			}
+		}
+	}
+
 	/** Read a line into the cache (including padding in x).
 	 *	If y>=height, instead of reading new data, it duplicates the line y=height-1.
 	 *	If y==0, it also creates the data for y<0, as far as necessary, thus filling the cache with
@@ -6,6 +6,7 @@ import java.util.*;
 import java.awt.List;
 import java.util.zip.*;
 import java.awt.geom.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JList;
@@ -45,7 +46,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	private static int colorIndex = 4;
 	private JList list;
 	private DefaultListModel listModel;
-	private ArrayList rois = new ArrayList();
+	private RoiList rois = new RoiList();
 	private boolean canceled;
 	private boolean macro;
 	private boolean ignoreInterrupts;
@@ -726,6 +727,10 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			openZip(path);
 			return;
 		}
+		if (RoiSetFile.isRoiSetFile(path)) {
+			openRoiSet(path);
+			return;
+		}
 		Opener o = new Opener();
 		if (name==null) name = o.getName(path);
 		Roi roi = o.openRoi(path);
@@ -781,6 +786,27 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		updateShowAll();
 	} 
 
+	/** Opens a ".rois" file. The ROIs are decoded when they are first used. */
+	void openRoiSet(String path) {
+		RoiSetFile rs = null;
+		try {
+			rs = RoiSetFile.open(path);
+		} catch (IOException e) {
+			error(e.toString());
+			return;
+		}
+		int n = rs.size();
+		list.setModel(new DefaultListModel()); // avoid list updates while adding
+		for (int i=0; i<n; i++) {
+			listModel.addElement(rs.getName(i));
+			rois.add(new LazyRoi(rs, i));
+		}
+		list.setModel(listModel);
+		if (n==0)
+			error("This ROI set is empty");
+		updateShowAll();
+	}
+
 	boolean save() {
 		if (getCount()==0)
 			return error("The selection list is empty.");
@@ -823,7 +849,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			String name = sd.getFileName();
 			if (name == null)
 				return false;
-			if (!(name.endsWith(".zip") || name.endsWith(".ZIP")))
+			if (!(name.endsWith(".zip") || name.endsWith(".ZIP") || RoiSetFile.isRoiSetFile(name)))
 				name = name + ".zip";
 			String dir = sd.getDirectory();
 			path = dir+name;
@@ -832,21 +858,35 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		IJ.showStatus("Saving "+indexes.length+" ROIs "+" to "+path);
 		long t0 = System.currentTimeMillis();
 		String[] names = new String[listModel.size()];
-		for (int i=0; i<listModel.size(); i++)
+		HashMap nameCounts = new HashMap();
+		for (int i=0; i<listModel.size(); i++) {
 			names[i] = (String)listModel.getElementAt(i);
+			countName(nameCounts, names[i], 1);
+		}
+		if (RoiSetFile.isRoiSetFile(path))
+			return saveRoiSet(indexes, names, path, t0);
 		try {
 			ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
 			out = new DataOutputStream(new BufferedOutputStream(zos));
 			RoiEncoder re = new RoiEncoder(out);
 			for (int i=0; i<indexes.length; i++) {
 				IJ.showProgress(i, indexes.length);
-				String label = getUniqueName(names, indexes[i]);
-				Roi roi = (Roi)rois.get(indexes[i]);
+				String label = names[indexes[i]];
+				if (((Integer)nameCounts.get(label)).intValue()>1) {
+					countName(nameCounts, label, -1);
+					label = getUniqueName(names, indexes[i]);
+					countName(nameCounts, label, 1);
+				}
+				byte[] bytes = ((RoiList)rois).getEncodedRoi(indexes[i]);
+				Roi roi = bytes==null?(Roi)rois.get(indexes[i]):null;
 				if (IJ.debugMode) IJ.log("saveMultiple: "+i+"  "+label+"  "+roi);
-				if (roi==null) continue;
+				if (roi==null && bytes==null) continue;
 				if (!label.endsWith(".roi")) label += ".roi";
 				zos.putNextEntry(new ZipEntry(label));
-				re.write(roi);
+				if (bytes!=null)
+					out.write(bytes);
+				else
+					re.write(roi);
 				out.flush();
 			}
 			out.close();
@@ -865,6 +905,44 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return true;
 	}
 	
+	private static void countName(HashMap counts, String name, int increment) {
+		Integer count = (Integer)counts.get(name);
+		counts.put(name, new Integer((count!=null?count.intValue():0)+increment));
+	}
+
+	/* Saves the ROIs as a ".rois" file. ROIs that were read from a ".rois"
+		file and not used since are copied without being decoded. */
+	private boolean saveRoiSet(int[] indexes, String[] names, String path, long t0) {
+		RoiSetFile.Writer writer = null;
+		try {
+			writer = new RoiSetFile.Writer(path, true);
+			for (int i=0; i<indexes.length; i++) {
+				if (i%1000==0)
+					IJ.showProgress(i, indexes.length);
+				byte[] bytes = ((RoiList)rois).getEncodedRoi(indexes[i]);
+				if (bytes!=null)
+					writer.add(names[indexes[i]], bytes);
+				else {
+					Roi roi = (Roi)rois.get(indexes[i]);
+					if (roi!=null)
+						writer.add(names[indexes[i]], roi);
+				}
+			}
+			writer.close();
+		} catch (IOException e) {
+			if (writer!=null)
+				writer.abort();
+			error(""+e);
+			return false;
+		}
+		double time = (System.currentTimeMillis()-t0)/1000.0;
+		IJ.showProgress(1.0);
+		IJ.showStatus(IJ.d2s(time,3)+" seconds, "+indexes.length+" ROIs, "+path);
+		if (Recorder.record && !IJ.isMacro())
+			Recorder.record("roiManager", "Save", path);
+		return true;
+	}
+
 	String getUniqueName(String[] names, int index) {
 		String name = names[index];
 		int n = 1;
@@ -1048,6 +1126,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	}
 	
 	private static ResultsTable multiMeasure(ImagePlus imp, Roi[] rois, boolean appendResults) {
+		if (canMeasureInParallel(imp, rois))
+			return parallelMultiMeasure(imp, rois, appendResults);
 		int nSlices = imp.getStackSize();
 		Analyzer aSys = new Analyzer(imp); // System Analyzer
 		ResultsTable rtSys = Analyzer.getResultsTable();
@@ -1087,6 +1167,149 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return rtMulti;
 	}
 
+	/* The parallel engine only handles area selections measured on the image
+		itself, which must not be a composite image or a virtual stack, since
+		the workers read the pixels of the stack concurrently; everything else
+		goes through Analyzer.measure(). */
+	private static boolean canMeasureInParallel(ImagePlus imp, Roi[] rois) {
+		if (rois.length==0 || Analyzer.isRedirectImage() || imp.isComposite() || imp.getStack().isVirtual())
+			return false;
+		for (int i=0; i<rois.length; i++) {
+			if (rois[i]==null || !rois[i].isArea())
+				return false;
+		}
+		return true;
+	}
+
+	/** Multi-threaded version of multiMeasure(imp,rois,appendResults). Worker
+		threads, created once, measure the (slice x ROI) tasks with
+		ImagePlus.getStatistics(), like Analyzer.measure() does, each using its
+		own ImagePlus over the stack and its own copies of the ROIs. The calling
+		thread adds the statistics to the system results table and to the
+		multi-measure table in the same order as the single-threaded version,
+		while the workers measure at most 'window' tasks ahead of it.
+	*/
+	private static ResultsTable parallelMultiMeasure(final ImagePlus imp, Roi[] rois, boolean appendResults) {
+		final int nRois = rois.length;
+		final int nSlices = imp.getStackSize();
+		final int measurements = Analyzer.getMeasurements();
+		Analyzer aSys = new Analyzer(imp); // System Analyzer
+		ResultsTable rtSys = Analyzer.getResultsTable();
+		ResultsTable rtMulti = new ResultsTable();
+		if (appendResults && mmResults!=null)
+			rtMulti = mmResults;
+		rtSys.reset();
+		final int currentSlice = imp.getCurrentSlice();
+		ImageProcessor ip0 = imp.getProcessor();
+		double minThreshold = ip0.getMinThreshold();
+		double maxThreshold = ip0.getMaxThreshold();
+		final int nTasks = nSlices*nRois;
+		final int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nTasks));
+		final int window = Math.max(8*nThreads, nRois);
+		final ImageStatistics[] stats = new ImageStatistics[nTasks];
+		final int[] saved = new int[1]; // tasks added to the tables, guarded by 'stats'
+		final Throwable[] error = new Throwable[1];
+		final boolean[] aborted = new boolean[1];
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		Thread[] threads = new Thread[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final ImagePlus imp2 = new ImagePlus(imp.getTitle(), imp.getStack());
+			imp2.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+			imp2.setCalibration(imp.getCalibration());
+			if (minThreshold!=ImageProcessor.NO_THRESHOLD)
+				imp2.getProcessor().setThreshold(minThreshold, maxThreshold, ImageProcessor.NO_LUT_UPDATE);
+			final Roi[] rois2 = new Roi[nRois];
+			for (int i=0; i<nRois; i++)
+				rois2[i] = (Roi)rois[i].clone();
+			threads[t] = new Thread("MultiMeasure-"+t) {
+				public void run() {
+					try {
+						for (int task=nextTask.getAndIncrement(); task<nTasks; task=nextTask.getAndIncrement()) {
+							synchronized (stats) {
+								while (task>=saved[0]+window && !aborted[0])
+									stats.wait();
+								if (aborted[0])
+									return;
+							}
+							imp2.setSliceWithoutUpdate(nSlices==1?currentSlice:task/nRois+1);
+							imp2.setRoi(rois2[task%nRois], false);
+							ImageStatistics s = imp2.getStatistics(measurements);
+							synchronized (stats) {
+								stats[task] = s;
+								stats.notifyAll();
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (stats) {
+							if (error[0]==null)
+								error[0] = e;
+							aborted[0] = true;
+							stats.notifyAll();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for (int task=0; task<nTasks; task++) {
+				ImageStatistics s = null;
+				synchronized (stats) {
+					while (stats[task]==null && !aborted[0])
+						stats.wait();
+					if (aborted[0])
+						break;
+					s = stats[task];
+					stats[task] = null;
+					saved[0] = task + 1;
+					stats.notifyAll();
+				}
+				int slice = task/nRois + 1;
+				int i = task%nRois;
+				if (i==0) {
+					imp.setSliceWithoutUpdate(nSlices==1?currentSlice:slice);
+					rtMulti.incrementCounter();
+					if ((measurements&Measurements.LABELS)!=0)
+						rtMulti.addLabel("Label", imp.getTitle());
+				}
+				imp.setRoi(rois[i]);
+				Roi roi = imp.getRoi();
+				aSys.measure(s, roi);
+				String suffix = ""+(i+1);
+				if (roi!=null) {
+					String name = roi.getName();
+					if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
+						suffix = "("+name+")";
+				}
+				for (int j=0; j<=rtSys.getLastColumn(); j++) {
+					String head = rtSys.getColumnHeading(j);
+					if (head!=null && rtSys.columnExists(j) && !head.equals("Slice"))
+						rtMulti.addValue(head+suffix, rtSys.getValue(j,rtSys.getCounter()-1));
+				}
+				if (i==nRois-1 && nSlices>1) IJ.showProgress(slice, nSlices);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (stats) {
+				aborted[0] = true;
+				stats.notifyAll();
+			}
+			for (int t=0; t<nThreads; t++) {
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (error[0] instanceof RuntimeException)
+			throw (RuntimeException)error[0];
+		else if (error[0]!=null)
+			throw new RuntimeException(error[0]);
+		return rtMulti;
+	}
+
 	int getColumnCount(ImagePlus imp, int measurements) {
 		ImageStatistics stats = imp.getStatistics(measurements);
 		ResultsTable rt = new ResultsTable();
@@ -1518,7 +1741,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		for (int i=0; i<n; i++)
 			labels[i] = (String)listModel.get(i);
 		int[] indices = Tools.rank(labels);
-		Roi[] rois2 = getRoisAsArray();
+		Object[] rois2 = rois.toArrayNoDecode(); // sorting does not decode ROIs read from ".rois" files
 		listModel.removeAllElements();
 		rois.clear();
 		for (int i=0; i<labels.length; i++) {
@@ -2098,8 +2321,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	}
 
 	private boolean save(String name, boolean saveSelected) {
-		if (!name.endsWith(".zip") && !name.equals(""))
-			return error("Name must end with '.zip'");
+		if (!name.endsWith(".zip") && !RoiSetFile.isRoiSetFile(name) && !name.equals(""))
+			return error("Name must end with '.zip' or '.rois'");
 		if (getCount()==0)
 			return error("The selection list is empty.");
 		int[] indexes = null;
@@ -2466,5 +2689,108 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	}
 
 
-}
+	/* A list of ROIs in which the ROIs read from ".rois" files are only
+		decoded when they are first accessed. Methods that return elements
+		without get() decode all ROIs first, so "Show All", which adds all
+		ROIs to an overlay, decodes them as well. */
+	private static class RoiList extends ArrayList {
+
+		public Object get(int index) {
+			Object obj = super.get(index);
+			if (obj instanceof LazyRoi) {
+				synchronized (this) {
+					obj = super.get(index);
+					if (obj instanceof LazyRoi) {
+						obj = ((LazyRoi)obj).decode();
+						super.set(index, obj);
+					}
+				}
+			}
+			return obj;
+		}
 
+		public Object[] toArray(Object[] a) {
+			decodeAll();
+			return super.toArray(a);
+		}
+
+		public Object[] toArray() {
+			decodeAll();
+			return super.toArray();
+		}
+
+		public Iterator iterator() {
+			decodeAll();
+			return super.iterator();
+		}
+
+		public ListIterator listIterator() {
+			decodeAll();
+			return super.listIterator();
+		}
+
+		public ListIterator listIterator(int index) {
+			decodeAll();
+			return super.listIterator(index);
+		}
+
+		public java.util.List subList(int fromIndex, int toIndex) {
+			decodeAll();
+			return super.subList(fromIndex, toIndex);
+		}
+
+		public Object remove(int index) {
+			get(index);
+			return super.remove(index);
+		}
+
+		public Object set(int index, Object element) {
+			get(index);
+			return super.set(index, element);
+		}
+
+		/* Returns the elements, including ROIs that have not been decoded
+			yet, for rearranging the list. */
+		Object[] toArrayNoDecode() {
+			return super.toArray();
+		}
+
+		private void decodeAll() {
+			for (int i=0; i<size(); i++)
+				get(i);
+		}
+
+		/* Returns the RoiEncoder record of an ROI that has not been
+			decoded yet, or null. */
+		byte[] getEncodedRoi(int index) throws IOException {
+			Object obj = super.get(index);
+			return obj instanceof LazyRoi?((LazyRoi)obj).getBytes():null;
+		}
+
+	}
+
+	private static class LazyRoi {
+		private RoiSetFile file;
+		private int index;
+
+		LazyRoi(RoiSetFile file, int index) {
+			this.file = file;
+			this.index = index;
+		}
+
+		byte[] getBytes() throws IOException {
+			return file.getBytes(index);
+		}
+
+		Roi decode() {
+			try {
+				return file.getRoi(index);
+			} catch (IOException e) {
+				IJ.log("ROI Manager: "+file.getName(index)+": "+e.getMessage());
+				return null;
+			}
+		}
+
+	}
+
+}
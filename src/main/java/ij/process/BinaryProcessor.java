@@ -99,8 +99,6 @@ public class BinaryProcessor extends ByteProcessor {
 		"http://imagej.nih.gov/ij/images/skeletonize-table.gif".
 	*/
 	public void  skeletonize() {
-		int pass = 0;
-		int pixelsRemoved;
 		resetRoi();
 		setColor(Color.white);
 		moveTo(0,0); lineTo(0,height-1);
@@ -111,76 +109,99 @@ public class BinaryProcessor extends ByteProcessor {
 		boolean debug = ij.IJ.debugMode;
 		if (debug) movie = new ij.ImageStack(width, height);
 		if (debug) movie.addSlice("-", duplicate());
-		do {
-			snapshot();
-			pixelsRemoved = thin(pass++, table);
-			if (debug) movie.addSlice(""+(pass-1), duplicate());
-			snapshot();
-			pixelsRemoved += thin(pass++, table);
-			if (debug) movie.addSlice(""+(pass-1), duplicate());
-		} while (pixelsRemoved>0);
-		do { // use a second table to remove "stuck" pixels
-			snapshot();
-			pixelsRemoved = thin(pass++, table2);
-			if (debug) movie.addSlice("2-"+(pass-1), duplicate());
-			snapshot();
-			pixelsRemoved += thin(pass++, table2);
-			if (debug) movie.addSlice("2-"+(pass-1), duplicate());
-		} while (pixelsRemoved>0);
+		int pass = thin(0, table, movie, "");
+		thin(pass, table2, movie, "2-"); // use a second table to remove "stuck" pixels
 		if (debug) new ij.ImagePlus("Skel Movie", movie).show();
 	}
 
-	int thin(int pass, int[] table) {
-		int p1, p2, p3, p4, p5, p6, p7, p8, p9;
-		int bgColor = -1; //255
+	/* Repeats pairs of thinning passes with 'table' until a pair removes no pixels
+		and returns the number of the next pass. Whether a pixel is removed depends
+		only on its neighborhood and on the parity of the pass, so after a pixel has
+		been examined in two passes, it has to be examined again only if a neighbor
+		has been removed. Pixels with 8 foreground neighbors are never removed,
+		thus the first pass examines the object edges only. */
+	int thin(int pass, int[] table, ij.ImageStack movie, String label) {
+		byte bgColor = -1; //255
 		if (parent.isInvertedLut())
 			bgColor = 0;
-			
-		byte[] pixels2 = (byte[])getPixelsCopy();
-		int v, index, code;
-        int offset, rowOffset = width;
-        int pixelsRemoved = 0;
-        int count = 100;
+		int[] offsets = {-width-1, -width, -width+1, 1, width+1, width, width-1, -1};
+		int[] queued = new int[width*height];		// pass+1 when listed for the pass
+		int[] changed = new int[width*height];		// pass+1 when a neighbor was removed in the pass
+		int[] edge = new int[256];
+		int nEdge = 0;
 		for (int y=yMin; y<=yMax; y++) {
-			offset = xMin + y * width;
-			for (int x=xMin; x<=xMax; x++) {
-				p5 = pixels2[offset];
-				v = p5;
-				if (v!=bgColor) {
-					p1 = pixels2[offset-rowOffset-1];
-					p2 = pixels2[offset-rowOffset];
-					p3 = pixels2[offset-rowOffset+1];
-					p4 = pixels2[offset-1];
-					p6 = pixels2[offset+1];
-					p7 = pixels2[offset+rowOffset-1];
-					p8 = pixels2[offset+rowOffset];
-					p9 = pixels2[offset+rowOffset+1];
-					index = 0;
-					if (p1!=bgColor) index |= 1;
-					if (p2!=bgColor) index |= 2;
-					if (p3!=bgColor) index |= 4;
-					if (p6!=bgColor) index |= 8;
-					if (p9!=bgColor) index |= 16;
-					if (p8!=bgColor) index |= 32;
-					if (p7!=bgColor) index |= 64;
-					if (p4!=bgColor) index |= 128;
-					code = table[index];
-					if ((pass&1)==1) { //odd pass
-						if (code==2||code==3) {
-							v = bgColor;
-							pixelsRemoved++;
+			for (int x=xMin, offset=xMin+y*width; x<=xMax; x++, offset++) {
+				if (pixels[offset]!=bgColor && getIndex(offset, offsets, bgColor)!=255) {
+					if (nEdge==edge.length) edge = grow(edge);
+					edge[nEdge++] = offset;
+				}
+			}
+		}
+		int[] previous = edge, beforePrevious = edge;	// neighbors of pixels removed in the last two passes
+		int nPrevious = nEdge, nBeforePrevious = nEdge;
+		int[] candidates = new int[256], removed = new int[256];
+		int pixelsRemoved;
+		do {
+			pixelsRemoved = 0;
+			for (int i=0; i<2; i++) {
+				int nCandidates = 0;
+				for (int list=0; list<2; list++) {
+					int[] offsetList = list==0 ? beforePrevious : previous;
+					int n = list==0 ? nBeforePrevious : nPrevious;
+					for (int j=0; j<n; j++) {
+						int offset = offsetList[j];
+						if (queued[offset]!=pass+1 && pixels[offset]!=bgColor) {
+							queued[offset] = pass + 1;
+							if (nCandidates==candidates.length) candidates = grow(candidates);
+							candidates[nCandidates++] = offset;
 						}
-					} else { //even pass
-						if (code==1||code==3) {
-							v = bgColor;
-							pixelsRemoved++;
+					}
+				}
+				int nRemoved = 0;
+				int removeCode = (pass&1)==1 ? 2 : 1; //odd pass: 2, even pass: 1
+				for (int j=0; j<nCandidates; j++) {
+					int code = table[getIndex(candidates[j], offsets, bgColor)];
+					if (code==removeCode || code==3) {
+						if (nRemoved==removed.length) removed = grow(removed);
+						removed[nRemoved++] = candidates[j];
+					}
+				}
+				int[] neighbors = beforePrevious==edge ? new int[256] : beforePrevious;
+				int nNeighbors = 0;
+				for (int j=0; j<nRemoved; j++)
+					pixels[removed[j]] = bgColor;
+				for (int j=0; j<nRemoved; j++) {
+					for (int k=0; k<8; k++) {
+						int offset = removed[j] + offsets[k];
+						if (pixels[offset]!=bgColor && changed[offset]!=pass+1) {
+							changed[offset] = pass + 1;
+							if (nNeighbors==neighbors.length) neighbors = grow(neighbors);
+							neighbors[nNeighbors++] = offset;
 						}
 					}
 				}
-				pixels[offset++] = (byte)v;
+				pixelsRemoved += nRemoved;
+				beforePrevious = previous; nBeforePrevious = nPrevious;
+				previous = neighbors; nPrevious = nNeighbors;
+				pass++;
+				if (movie!=null) movie.addSlice(label+(pass-1), duplicate());
 			}
-		}
-		return pixelsRemoved;
+		} while (pixelsRemoved>0);
+		return pass;
+	}
+
+	/* The table index of the 3x3 neighborhood of a pixel (not at the image edge) */
+	private int getIndex(int offset, int[] offsets, byte bgColor) {
+		int index = 0;
+		for (int k=0; k<8; k++)
+			if (pixels[offset+offsets[k]]!=bgColor) index |= 1<<k;
+		return index;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] array2 = new int[array.length*2];
+		System.arraycopy(array, 0, array2, 0, array.length);
+		return array2;
 	}
 	
 	public void outline() {
@@ -0,0 +1,514 @@
+package ij.process;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A binary image with 64 pixels per long, for fast binary morphology.
+	Each row starts with a new long; the pixel at x is bit x%64 of long x/64.
+	Erosion and dilation work on 64 pixels at a time and all operations
+	distribute the rows among the threads. Erode, dilate and outline only
+	modify the pixels inside the roi rectangle, like the corresponding
+	ByteProcessor operations; the outside pixels are used as neighbors.
+*/
+public class PackedBinaryImage {
+	private int width, height;
+	private int wordsPerRow;
+	private long lastWordMask;			// the bits of the last word of a row that are inside the image
+	private long[] bits;
+	private long[] bits2;				// buffer for the result of an operation
+	private Rectangle roi;
+	private int numThreads = Prefs.getThreads();
+
+	/** Creates a blank (all background) image. */
+	public PackedBinaryImage(int width, int height) {
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width+63)/64;
+		lastWordMask = (width&63)==0 ? -1L : (1L<<(width&63))-1;
+		bits = new long[wordsPerRow*height];
+		roi = new Rectangle(0, 0, width, height);
+	}
+
+	/** Creates a packed binary image from a ByteProcessor, where pixels with
+		value 'foreground' are set and all others are background. The roi
+		rectangle of the ByteProcessor is taken as roi. */
+	public PackedBinaryImage(ByteProcessor ip, int foreground) {
+		this(ip.getWidth(), ip.getHeight());
+		roi = new Rectangle(ip.getRoi());
+		final byte[] pixels = (byte[])ip.getPixels();
+		final byte fg = (byte)foreground;
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Thread[] threads = newThreads();
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("PackedBinaryImage-"+t) {
+				public void run() {
+					for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+						for (int i=0, p=y*width; i<wordsPerRow; i++, p+=64) {
+							int n = Math.min(64, width-64*i);
+							long word = 0L;
+							for (int bit=0; bit<n; bit++) {
+								int d = pixels[p+bit]^fg;		// no branch: bit set where d==0
+								word |= (long)(((d-1)&~d)>>>31)<<bit;
+							}
+							bits[y*wordsPerRow+i] = word;
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns whether the pixel at (x, y) is set (foreground). */
+	public boolean get(int x, int y) {
+		return (bits[y*wordsPerRow+(x>>6)]&(1L<<x))!=0;
+	}
+
+	public void set(int x, int y, boolean value) {
+		if (value)
+			bits[y*wordsPerRow+(x>>6)] |= 1L<<x;
+		else
+			bits[y*wordsPerRow+(x>>6)] &= ~(1L<<x);
+	}
+
+	/** Sets the rectangle where erode, dilate and outline modify pixels;
+		null for the whole image. */
+	public void setRoi(Rectangle roi) {
+		this.roi = roi==null ? new Rectangle(0, 0, width, height) : roi.intersection(new Rectangle(0, 0, width, height));
+	}
+
+	public Rectangle getRoi() {
+		return roi;
+	}
+
+	/** Sets the number of threads; the default is Prefs.getThreads(). */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	/** Writes the image to 'ip', which must have the same size, with value
+		'foreground' for set pixels and 255-foreground for the others. */
+	public void copyTo(ByteProcessor ip, final int foreground) {
+		final byte[] pixels = (byte[])ip.getPixels();
+		final byte fg = (byte)foreground, bg = (byte)(255-foreground);
+		final int diff = fg^bg;
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Thread[] threads = newThreads();
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("PackedBinaryImage-"+t) {
+				public void run() {
+					for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+						for (int i=0, p=y*width; i<wordsPerRow; i++, p+=64) {
+							int n = Math.min(64, width-64*i);
+							long word = bits[y*wordsPerRow+i];
+							for (int bit=0; bit<n; bit++)
+								pixels[p+bit] = (byte)(bg^(diff&-(int)((word>>>bit)&1L)));
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+	}
+
+	/** Returns a ByteProcessor with value 'foreground' for set pixels and
+		255-foreground for the others. */
+	public ByteProcessor toByteProcessor(int foreground) {
+		ByteProcessor ip = new ByteProcessor(width, height);
+		copyTo(ip, foreground);
+		return ip;
+	}
+
+	/** Removes foreground pixels with at least 'count' background pixels
+		among the 8 nearest neighbors. Pixels outside the image are foreground
+		if 'padEdges' is true, background otherwise. Same as ByteProcessor.erode(count, background). */
+	public void erode(int count, boolean padEdges) {
+		filter3x3(true, count, padEdges ? -1L : 0L);
+	}
+
+	/** Sets background pixels with at least 'count' foreground pixels among
+		the 8 nearest neighbors. Pixels outside the image are background.
+		Same as ByteProcessor.dilate(count, background). */
+	public void dilate(int count) {
+		filter3x3(false, count, 0L);
+	}
+
+	/** Erodes with a square of 2*radius+1 pixels; the same as 'radius'
+		iterations of erode(1, padEdges), but the computing time grows only
+		with the logarithm of the radius. Ignores the roi. */
+	public void erodeSquare(int radius, boolean padEdges) {
+		filterSquare(true, radius, padEdges ? -1L : 0L);
+	}
+
+	/** Dilates with a square of 2*radius+1 pixels; the same as 'radius'
+		iterations of dilate(1). Ignores the roi. */
+	public void dilateSquare(int radius) {
+		filterSquare(false, radius, 0L);
+	}
+
+	/** Removes the foreground pixels that have no background pixels among
+		the 8 nearest neighbors. Pixels at the image edges are not modified.
+		Same as ByteProcessor.outline(). */
+	public void outline() {
+		final Rectangle r = roi.intersection(new Rectangle(1, 1, width-2, height-2));
+		final long[] rowMask = makeRowMask(r);
+		final long[] src = bits;
+		final long[] dst = getBuffer();
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Thread[] threads = newThreads();
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("PackedBinaryImage-"+t) {
+				public void run() {
+					for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+						int offset = y*wordsPerRow;
+						if (y<r.y || y>=r.y+r.height) {
+							System.arraycopy(src, offset, dst, offset, wordsPerRow);
+							continue;
+						}
+						for (int i=0; i<wordsPerRow; i++) {
+							long inner = -1L;		// pixels with only foreground neighbors
+							for (int dy=-1; dy<=1; dy++) {
+								int rowOffset = offset+dy*wordsPerRow;
+								long left = word(src, rowOffset, i-1, 0L), center = word(src, rowOffset, i, 0L), right = word(src, rowOffset, i+1, 0L);
+								inner &= center & (center<<1 | left>>>63) & (center>>>1 | right<<63);
+							}
+							long v = src[offset+i];
+							dst[offset+i] = v & ~(inner&rowMask[i]);
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+		swapBuffers();
+	}
+
+	/** Sets all background pixels that are not 4-connected to background
+		pixels at the image edge, i.e., fills the holes of 8-connected
+		foreground particles. Ignores the roi. */
+	public void fillHoles() {
+		final long[] reached = getBuffer();	// background connected to the edge
+		for (int y=0; y<height; y++) {
+			int offset = y*wordsPerRow;
+			boolean edgeRow = y==0 || y==height-1;
+			for (int i=0; i<wordsPerRow; i++) {
+				long edgeBits = edgeRow ? -1L : (i==0 ? 1L : 0L) | (i==wordsPerRow-1 ? (lastWordMask>>>1)+1 : 0L);
+				reached[offset+i] = ~bits[offset+i] & edgeBits & (i==wordsPerRow-1 ? lastWordMask : -1L);
+			}
+		}
+		/* Each thread sweeps down and up its band of rows, spreading the reached background
+		 * along the rows and from the rows above and below. Only rows next to a changed row
+		 * are processed again, until there are none in the band; this is repeated until no
+		 * band changes any more. Reached pixels are never removed, so reading rows of other
+		 * bands while they are modified can only delay the end, not change the result. */
+		final int nBands = Math.min(numThreads, height);
+		final boolean[] changed = new boolean[nBands];
+		final boolean[] dirty = new boolean[height];
+		boolean anyChange = true;
+		while (anyChange) {
+			Arrays.fill(dirty, true);
+			Thread[] threads = ThreadUtil.createThreadArray(nBands);
+			for (int t=0; t<nBands; t++) {
+				final int band = t;
+				final int y0 = (int)((long)height*t/nBands), y1 = (int)((long)height*(t+1)/nBands);
+				threads[t] = new Thread("PackedBinaryImage-"+t) {
+					public void run() {
+						long[] row = new long[wordsPerRow];
+						boolean bandChanged = false;
+						boolean anyDirty = true;
+						for (boolean down=true; anyDirty; down=!down) {
+							anyDirty = false;
+							for (int y=down?y0:y1-1; y>=y0 && y<y1; y+=down?1:-1) {
+								if (!dirty[y])
+									continue;
+								dirty[y] = false;
+								if (spreadBackground(reached, y, row)) {
+									bandChanged = true;
+									if (y>y0) dirty[y-1] = anyDirty = true;
+									if (y<y1-1) dirty[y+1] = anyDirty = true;
+								}
+							}
+						}
+						changed[band] = bandChanged;
+					}
+				};
+			}
+			startAndJoin(threads);
+			anyChange = false;
+			for (int t=0; t<nBands; t++)
+				anyChange |= changed[t] && nBands>1;
+		}
+		for (int i=0; i<bits.length; i++)
+			bits[i] = ~reached[i];
+		for (int offset=wordsPerRow-1; offset<bits.length; offset+=wordsPerRow)
+			bits[offset] &= lastWordMask;
+	}
+
+	/* Adds the background pixels of row y that are connected to the reached pixels of row
+	 * y or the rows above and below to the reached pixels. Returns whether row y has changed. */
+	private boolean spreadBackground(long[] reached, int y, long[] row) {
+		int offset = y*wordsPerRow;
+		boolean any = false;
+		for (int i=0; i<wordsPerRow; i++) {
+			long neighbors = 0L;
+			if (y>0)
+				neighbors |= reached[offset-wordsPerRow+i];
+			if (y<height-1)
+				neighbors |= reached[offset+wordsPerRow+i];
+			long seeds = reached[offset+i] | neighbors & ~bits[offset+i];
+			row[i] = seeds;
+			any |= seeds!=0;
+		}
+		if (!any)
+			return false;
+		long carry = 0L;						// spread towards higher x
+		for (int i=0; i<wordsPerRow; i++) {
+			long mask = ~bits[offset+i] & (i==wordsPerRow-1 ? lastWordMask : -1L);
+			long seeds = row[i] | (carry & mask & 1L);
+			long filled = mask & (((mask + seeds) ^ mask) | seeds);
+			row[i] = filled;
+			carry = filled>>>63;
+		}
+		carry = 0L;								// spread towards lower x
+		for (int i=wordsPerRow-1; i>=0; i--) {
+			long mask = Long.reverse(~bits[offset+i] & (i==wordsPerRow-1 ? lastWordMask : -1L));
+			long seeds = Long.reverse(row[i]) | (carry & mask & 1L);
+			long filled = mask & (((mask + seeds) ^ mask) | seeds);
+			row[i] = Long.reverse(filled);
+			carry = filled>>>63;
+		}
+		boolean rowChanged = false;
+		for (int i=0; i<wordsPerRow; i++) {
+			if (row[i]!=reached[offset+i]) {
+				reached[offset+i] = row[i];
+				rowChanged = true;
+			}
+		}
+		return rowChanged;
+	}
+
+	/* Erosion or dilation with the 3x3 neighborhood. For count>1, the number of
+	 * background (erosion) or foreground (dilation) neighbors is counted for 64 pixels
+	 * at a time in four bit planes. 'outside' is the value of out-of-image pixels. */
+	private void filter3x3(final boolean erode, final int count, final long outside) {
+		final long[] rowMask = makeRowMask(roi);
+		final long[] src = bits;
+		final long[] dst = getBuffer();
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Thread[] threads = newThreads();
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("PackedBinaryImage-"+t) {
+				public void run() {
+					long[] neighbors = new long[8];
+					for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+						int offset = y*wordsPerRow;
+						if (y<roi.y || y>=roi.y+roi.height) {
+							System.arraycopy(src, offset, dst, offset, wordsPerRow);
+							continue;
+						}
+						for (int i=0; i<wordsPerRow; i++) {
+							int n = 0;
+							for (int dy=-1; dy<=1; dy++) {
+								int yy = y+dy;
+								int rowOffset = yy*wordsPerRow;
+								boolean inside = yy>=0 && yy<height;
+								long left = inside ? word(src, rowOffset, i-1, outside) : outside;
+								long center = inside ? word(src, rowOffset, i, outside) : outside;
+								long right = inside ? word(src, rowOffset, i+1, outside) : outside;
+								neighbors[n++] = center<<1 | left>>>63;		// pixels at x-1
+								neighbors[n++] = center>>>1 | right<<63;	// pixels at x+1
+								if (dy!=0) neighbors[n++] = center;
+							}
+							long v = src[offset+i];
+							long changed;						// pixels with enough neighbors of the other kind
+							if (count<=1) {
+								long any = 0L;
+								for (int k=0; k<8; k++)
+									any |= erode ? ~neighbors[k] : neighbors[k];
+								changed = any;
+							} else
+								changed = countAtLeast(neighbors, erode, count);
+							long result = erode ? v & ~changed : v | changed;
+							result = (result & rowMask[i]) | (v & ~rowMask[i]);
+							if (i==wordsPerRow-1)
+								result &= lastWordMask;
+							dst[offset+i] = result;
+						}
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+		swapBuffers();
+	}
+
+	/* Returns the bits where at least 'count' of the 8 neighbors are background
+	 * (if 'background') or foreground. */
+	private static long countAtLeast(long[] neighbors, boolean background, int count) {
+		long c0 = 0L, c1 = 0L, c2 = 0L, c3 = 0L;	// bit planes of the count
+		for (int k=0; k<8; k++) {
+			long carry = background ? ~neighbors[k] : neighbors[k];
+			long sum = c0 ^ carry; carry &= c0; c0 = sum;
+			sum = c1 ^ carry; carry &= c1; c1 = sum;
+			sum = c2 ^ carry; carry &= c2; c2 = sum;
+			c3 |= carry;
+		}
+		long[] planes = {c0, c1, c2, c3};
+		long equal = -1L, greater = 0L;			// compare with 'count', from the highest bit
+		for (int b=3; b>=0; b--) {
+			if ((count&(1<<b))!=0)
+				equal &= planes[b];
+			else {
+				greater |= equal & planes[b];
+				equal &= ~planes[b];
+			}
+		}
+		return greater | equal;
+	}
+
+	/* Minimum (erode) or maximum of a (2*radius+1)^2 square. Each direction is done as the
+	 * combination of two half windows, x to x+radius and x-radius to x; these are calculated
+	 * by repeatedly combining a window with the same window shifted by its length. */
+	private void filterSquare(final boolean erode, final int radius, final long outside) {
+		if (radius<1) return;
+		final long[] input = bits;
+		final long[] forward = getBuffer();
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Thread[] threads = newThreads();
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread("PackedBinaryImage-"+t) {
+				public void run() {
+					long[] cur = new long[wordsPerRow], shifted = new long[wordsPerRow], result = new long[wordsPerRow];
+					for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+						int offset = y*wordsPerRow;
+						for (int direction=1; direction>=-1; direction-=2) {
+							System.arraycopy(input, offset, cur, 0, wordsPerRow);
+							for (int len=1; len<=radius; ) {
+								int shift = Math.min(len, radius+1-len);	// the window length is len, we need radius+1
+								shiftRow(cur, shifted, direction*shift, outside);
+								for (int i=0; i<wordsPerRow; i++)
+									cur[i] = erode ? cur[i]&shifted[i] : cur[i]|shifted[i];
+								len += shift;
+							}
+							if (direction==1)
+								System.arraycopy(cur, 0, result, 0, wordsPerRow);
+							else for (int i=0; i<wordsPerRow; i++)
+								result[i] = erode ? result[i]&cur[i] : result[i]|cur[i];
+						}
+						result[wordsPerRow-1] &= lastWordMask;
+						System.arraycopy(result, 0, forward, offset, wordsPerRow);
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+		// vertical: the input is not needed any more and serves as a buffer
+		long[] down = halfWindowY(forward, radius, 1, erode, outside, input);
+		long[] up = halfWindowY(forward, radius, -1, erode, outside, null);
+		for (int i=0; i<down.length; i++)
+			down[i] = erode ? down[i]&up[i] : down[i]|up[i];
+		bits = down;
+		bits2 = null;
+	}
+
+	/* Returns the combination of rows y to y+radius*direction. Uses 'spare' (if not null)
+	 * as a buffer; 'src' is not modified. */
+	private long[] halfWindowY(long[] src, final int radius, final int direction, final boolean erode,
+			final long outside, long[] spare) {
+		long[] cur = src;
+		for (int len=1; len<=radius; ) {
+			final int shift = Math.min(len, radius+1-len);
+			final long[] from = cur;
+			final long[] to = spare!=null ? spare : new long[src.length];
+			final AtomicInteger nextRow = new AtomicInteger(0);
+			Thread[] threads = newThreads();
+			for (int t=0; t<threads.length; t++) {
+				threads[t] = new Thread("PackedBinaryImage-"+t) {
+					public void run() {
+						for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+							int offset = y*wordsPerRow;
+							int y2 = y+direction*shift;
+							if (y2<0 || y2>=height) {
+								for (int i=0; i<wordsPerRow; i++)
+									to[offset+i] = erode ? from[offset+i]&outside : from[offset+i]|outside;
+								to[offset+wordsPerRow-1] &= lastWordMask;
+							} else {
+								int offset2 = y2*wordsPerRow;
+								for (int i=0; i<wordsPerRow; i++)
+									to[offset+i] = erode ? from[offset+i]&from[offset2+i] : from[offset+i]|from[offset2+i];
+							}
+						}
+					}
+				};
+			}
+			startAndJoin(threads);
+			spare = from!=src ? from : null;		// the previous intermediate result is not needed any more
+			cur = to;
+			len += shift;
+		}
+		return cur==src ? (long[])src.clone() : cur;
+	}
+
+	/* Writes row 'src' shifted by 'shift' pixels to 'dst': dst(x) = src(x+shift);
+	 * 'outside' is used for pixels out of the image. */
+	private void shiftRow(long[] src, long[] dst, int shift, long outside) {
+		int wordShift = shift>>6;				// floor division, also for negative shifts
+		int bitShift = shift&63;
+		for (int i=0; i<wordsPerRow; i++) {
+			long low = word(src, 0, i+wordShift, outside);
+			dst[i] = bitShift==0 ? low : low>>>bitShift | word(src, 0, i+wordShift+1, outside)<<(64-bitShift);
+		}
+	}
+
+	/* Returns word i of the row starting at 'offset', with 'outside' for bits out of the image */
+	private long word(long[] data, int offset, int i, long outside) {
+		if (i<0 || i>=wordsPerRow)
+			return outside;
+		else if (i==wordsPerRow-1)
+			return (data[offset+i]&lastWordMask) | (outside&~lastWordMask);
+		else
+			return data[offset+i];
+	}
+
+	/* Bits of the words of a row inside the rectangle */
+	private long[] makeRowMask(Rectangle r) {
+		long[] mask = new long[wordsPerRow];
+		for (int x=r.x; x<r.x+r.width; x++)
+			mask[x>>6] |= 1L<<x;
+		return mask;
+	}
+
+	private long[] getBuffer() {
+		if (bits2==null)
+			bits2 = new long[bits.length];
+		return bits2;
+	}
+
+	private void swapBuffers() {
+		long[] swap = bits;
+		bits = bits2;
+		bits2 = swap;
+	}
+
+	private Thread[] newThreads() {
+		return ThreadUtil.createThreadArray(Math.max(1, Math.min(numThreads, height)));
+	}
+
+	private static void startAndJoin(Thread[] threads) {
+		if (threads.length==1)
+			threads[0].run();
+		else
+			ThreadUtil.startAndJoin(threads);
+	}
+
+}
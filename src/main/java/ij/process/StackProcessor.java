@@ -3,8 +3,8 @@ import java.awt.*;
 import ij.*;
 import ij.process.*;
 import ij.macro.Interpreter;
-import ij.util.ArrayUtil;
 import ij.plugin.Filters3D;
+import ij.plugin.filter.RankFilters;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -19,7 +19,6 @@ public class StackProcessor {
 	double xScale, yScale;
 	int[] table;
 	double fillValue;
-	float[] voxels;
 	    
     /** Constructs a StackProcessor from a stack. */
     public StackProcessor(ImageStack stack) {
@@ -274,96 +273,391 @@ public class StackProcessor {
      * @param filter
      */
     public void filter3D(ImageStack out, float radx, float rady, float radz, int zmin, int zmax, int filter) {
-        int[] ker = this.createKernelEllipsoid(radx, rady, radz);
-        int nb = 0;
-        for (int i=0; i<ker.length; i++)
-            nb += ker[i];
+        int[] lines = makeLineRadii(radx, rady, radz);
+        int nLines = lines.length/3;
+        int vz = (int) Math.ceil(radz);
         if (zmin<0)
             zmin = 0;
         if (zmax>stack.getSize())
             zmax = stack.getSize();
         int sizex = stack.getWidth();
         int sizey = stack.getHeight();
-        double value;
+        int sizez = stack.getSize();
+        float[][] planes = new float[sizez][];
+        float[][] linePixels = new float[nLines][];
+        int[] lineOffsets = new int[nLines];
+        int[] lineRadii = new int[nLines];
+        float[] aboveBuf=null, belowBuf=null;
+        int[] histogram = null;
+        int bitDepth = stack.getBitDepth();
+        if (filter==FILTER_MEDIAN && (bitDepth==8||bitDepth==16))
+            histogram = new int[bitDepth==8?256:65536];
+        else if (filter==FILTER_MEDIAN) {
+            int maxPoints = 0;
+            for (int i=0; i<nLines; i++)
+                maxPoints += 2*lines[3*i+2] + 1;
+            aboveBuf = new float[maxPoints];
+            belowBuf = new float[maxPoints];
+        }
+        double[] values = new double[sizex];
         for (int z=zmin; z<zmax; z++) {
             if (zmin==0) IJ.showProgress(z+1, zmax);
+            updatePlaneCache(planes, z, vz);
+            Object outPixels = out.getPixels(z+1);
             for (int y=0; y<sizey; y++) {
-                for (int x=0; x<sizex; x++) {
-                    ArrayUtil tab = getNeighborhood(ker, nb, x, y, z, radx, rady, radz);
-                    switch (filter) {
-						case FILTER_MEAN:
-							out.setVoxel(x, y, z, tab.getMean()); break;
-						case FILTER_MEDIAN:
-							out.setVoxel(x, y, z, tab.medianSort()); break;
-						case FILTER_MIN:
-							out.setVoxel(x, y, z, tab.getMinimum()); break;
-						case FILTER_MAX:
-							out.setVoxel(x, y, z, tab.getMaximum()); break;
-						case FILTER_VAR:
-							out.setVoxel(x, y, z, tab.getVariance()); break;
-						case FILTER_MAXLOCAL:
-							value = stack.getVoxel(x, y, z);
-							if (tab.isMaximum(value))
-								out.setVoxel(x, y, z, value);
-							else
-								out.setVoxel(x, y, z, 0);
-							break;
-                    } //switch
-                }  //x
+                // the parts of the kernel lines that are inside the stack
+                int n = 0;
+                for (int i=0; i<nLines; i++) {
+                    int zz = z + lines[3*i];
+                    int yy = y + lines[3*i+1];
+                    if (zz>=0 && zz<sizez && yy>=0 && yy<sizey) {
+                        linePixels[n] = planes[zz];
+                        lineOffsets[n] = yy*sizex;
+                        lineRadii[n] = lines[3*i+2];
+                        n++;
+                    }
+                }
+                switch (filter) {
+                    case FILTER_MEAN: case FILTER_VAR:
+                        filterLineMeanVar(linePixels, lineOffsets, lineRadii, n, sizex, values, filter==FILTER_VAR);
+                        break;
+                    case FILTER_MEDIAN:
+                        if (histogram!=null)
+                            filterLineMedian(linePixels, lineOffsets, lineRadii, n, sizex, values, histogram);
+                        else
+                            filterLineMedian(linePixels, lineOffsets, lineRadii, n, sizex, values, aboveBuf, belowBuf);
+                        break;
+                    case FILTER_MIN: case FILTER_MAX: case FILTER_MAXLOCAL:
+                        filterLineMax(linePixels, lineOffsets, lineRadii, n, sizex, values, filter==FILTER_MIN?-1f:1f);
+                        if (filter==FILTER_MAXLOCAL) {
+                            float[] pixels = planes[z];
+                            for (int x=0, p=y*sizex; x<sizex; x++, p++)
+                                values[x] = values[x]<=pixels[p]?pixels[p]:0.0;
+                        }
+                        break;
+                }
+                setLine(outPixels, y*sizex, values, sizex);
             } //y
         } //z
     }
 
-    /*
-    private ArrayUtil getNeighborhood(int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        int vx = (int)Math.ceil(radx);
-        int vy = (int)Math.ceil(rady);
-        int vz = (int)Math.ceil(radz);
-        int x0=x-vx, y0=y-vy, z0=z-vz;
-        int w=vx*2, h=vy*2, d=vz*2;
-		if (x0<0 || x0+w>stack.getWidth() || y0<0 || y0+h>stack.getHeight() || z0<0 || z0+d>stack.getSize())
-			return getEdgeNeighborhood(ker, nbval, x, y, z, radx, rady, radz);
-        voxels = stack.getVoxels(x0, y0, z0, w, h, d, voxels);
-		return new ArrayUtil(voxels);
-    }
-    */
-
-    /**
-     * Gets the neighboring attribute of the Image3D with a kernel as a array
-     *
-     * @param ker The kernel array (>0 ok)
-     * @param nbval The number of non-zero values
-     * @param x Coordinate x of the pixel
-     * @param y Coordinate y of the pixel
-     * @param z Coordinate z of the pixel
-     * @param radx Radius x of the neighboring
-     * @param radz Radius y of the neighboring
-     * @param rady Radius z of the neighboring
-     * @return The values of the nieghbor pixels inside an array
-     */
-    private ArrayUtil getNeighborhood(int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        ArrayUtil pix = new ArrayUtil(nbval);
+    /* Returns the kernel as lines along x, with three values per line:
+        the z and y offsets and the radius of the line in x. */
+    private int[] makeLineRadii(float radx, float rady, float radz) {
+        int[] ker = createKernelEllipsoid(radx, rady, radz);
         int vx = (int) Math.ceil(radx);
         int vy = (int) Math.ceil(rady);
         int vz = (int) Math.ceil(radz);
-        int index = 0;
-        int c = 0;
-        int sizex = stack.getWidth();
-        int sizey = stack.getHeight();
-        int sizez = stack.getSize();
-        for (int k = z - vz; k <= z + vz; k++) {
-            for (int j = y - vy; j <= y + vy; j++) {
-                for (int i = x - vx; i <= x + vx; i++) {
-					if (ker[c]>0 && i>=0 && j>=0 && k>=0 && i<sizex && j<sizey && k<sizez) {
-						pix.putValue(index, (float)stack.getVoxel(i, j, k));
-						index++;
-					}
+        int[] lines = new int[3*(2*vy+1)*(2*vz+1)];
+        int n = 0, c = 0;
+        for (int k=-vz; k<=vz; k++) {
+            for (int j=-vy; j<=vy; j++) {
+                int r = -1;
+                for (int i=-vx; i<=vx; i++) {
+                    if (ker[c]>0 && r<0)
+                        r = -i;
                     c++;
                 }
+                if (r>=0) {
+                    lines[n++] = k;
+                    lines[n++] = j;
+                    lines[n++] = r;
+                }
+            }
+        }
+        int[] lines2 = new int[n];
+        System.arraycopy(lines, 0, lines2, 0, n);
+        return lines2;
+    }
+
+    /* Keeps the slices z-vz to z+vz as float arrays. The array of a
+        slice that is no longer needed is reused for the next slice. */
+    private void updatePlaneCache(float[][] planes, int z, int vz) {
+        int sizez = planes.length;
+        float[] free = null;
+        for (int i=0; i<sizez; i++) {
+            if (planes[i]!=null && (i<z-vz || i>z+vz)) {
+                free = planes[i];
+                planes[i] = null;
+            }
+        }
+        for (int i=Math.max(z-vz,0); i<=Math.min(z+vz,sizez-1); i++) {
+            if (planes[i]==null) {
+                planes[i] = toFloat(stack.getPixels(i+1), free);
+                free = null;
+            }
+        }
+    }
+
+    private static float[] toFloat(Object pixels, float[] buf) {
+        int size = java.lang.reflect.Array.getLength(pixels);
+        if (buf==null || buf.length!=size)
+            buf = new float[size];
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[])pixels;
+            for (int i=0; i<size; i++)
+                buf[i] = bytes[i]&0xff;
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            for (int i=0; i<size; i++)
+                buf[i] = shorts[i]&0xffff;
+        } else if (pixels instanceof float[])
+            System.arraycopy(pixels, 0, buf, 0, size);
+        else {
+            int[] ints = (int[])pixels;
+            for (int i=0; i<size; i++)
+                buf[i] = ints[i];
+        }
+        return buf;
+    }
+
+    /* Writes a line of values, rounded and clamped as ImageStack.setVoxel() does. */
+    private static void setLine(Object pixels, int offset, double[] values, int width) {
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[])pixels;
+            for (int x=0; x<width; x++) {
+                double value = values[x];
+                if (value>255.0)
+                    value = 255.0;
+                else if (value<0.0)
+                    value = 0.0;
+                bytes[offset+x] = (byte)(value+0.5);
+            }
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            for (int x=0; x<width; x++) {
+                double value = values[x];
+                if (value>65535.0)
+                    value = 65535.0;
+                else if (value<0.0)
+                    value = 0.0;
+                shorts[offset+x] = (short)(value+0.5);
             }
+        } else if (pixels instanceof float[]) {
+            float[] floats = (float[])pixels;
+            for (int x=0; x<width; x++)
+                floats[offset+x] = (float)values[x];
+        } else {
+            int[] ints = (int[])pixels;
+            for (int x=0; x<width; x++)
+                ints[offset+x] = (int)values[x];
         }
-        pix.setSize(index);
-        return pix;
     }
-    
+
+    /* Mean or variance along a line. The sums are updated at the ends
+        of the kernel lines when the kernel moves by one pixel. NaNs are
+        counted separately so they do not remain in the sums. */
+    private static void filterLineMeanVar(float[][] linePixels, int[] lineOffsets, int[] lineRadii, int nLines,
+            int width, double[] values, boolean variance) {
+        double sum = 0.0, sum2 = 0.0;
+        int n = 0, nNaN = 0;
+        for (int i=0; i<nLines; i++) {
+            float[] pixels = linePixels[i];
+            int offset = lineOffsets[i];
+            int r = lineRadii[i];
+            for (int x=0; x<=r && x<width; x++) {
+                float v = pixels[offset+x];
+                if (v!=v)
+                    nNaN++;
+                else {
+                    sum += v;
+                    sum2 += v*v;
+                }
+                n++;
+            }
+        }
+        for (int x=0; x<width; x++) {
+            if (x>0) {
+                for (int i=0; i<nLines; i++) {
+                    float[] pixels = linePixels[i];
+                    int offset = lineOffsets[i];
+                    int r = lineRadii[i];
+                    if (x-r-1>=0) {
+                        float v = pixels[offset+x-r-1];
+                        if (v!=v)
+                            nNaN--;
+                        else {
+                            sum -= v;
+                            sum2 -= v*v;
+                        }
+                        n--;
+                    }
+                    if (x+r<width) {
+                        float v = pixels[offset+x+r];
+                        if (v!=v)
+                            nNaN++;
+                        else {
+                            sum += v;
+                            sum2 += v*v;
+                        }
+                        n++;
+                    }
+                }
+            }
+            if (nNaN>0)
+                values[x] = Double.NaN;
+            else if (variance)
+                values[x] = n==1?0.0:(sum2-sum*sum/n)/(n-1);
+            else
+                values[x] = sum/n;
+        }
+    }
+
+    /* Maximum along a line, or minimum if 'sign' is -1. The maximum is
+        updated with the values entering the kernel and only recalculated
+        when a value equal to it leaves the kernel. NaNs are ignored. */
+    private static void filterLineMax(float[][] linePixels, int[] lineOffsets, int[] lineRadii, int nLines,
+            int width, double[] values, float sign) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int x=0; x<width; x++) {
+            boolean fullCalculation = x==0;
+            if (x>0) {
+                for (int i=0; i<nLines; i++) {
+                    int xOut = x - lineRadii[i] - 1;
+                    if (xOut>=0 && sign*linePixels[i][lineOffsets[i]+xOut]>=max) {
+                        fullCalculation = true;
+                        break;
+                    }
+                }
+            }
+            if (fullCalculation) {
+                max = Float.NEGATIVE_INFINITY;
+                for (int i=0; i<nLines; i++) {
+                    float[] pixels = linePixels[i];
+                    int offset = lineOffsets[i];
+                    int r = lineRadii[i];
+                    for (int xx=Math.max(x-r,0); xx<=x+r && xx<width; xx++) {
+                        float v = sign*pixels[offset+xx];
+                        if (v>max) max = v;
+                    }
+                }
+            } else {
+                for (int i=0; i<nLines; i++) {
+                    int xIn = x + lineRadii[i];
+                    if (xIn<width) {
+                        float v = sign*linePixels[i][lineOffsets[i]+xIn];
+                        if (v>max) max = v;
+                    }
+                }
+            }
+            values[x] = sign*max;
+        }
+    }
+
+    /* Median along a line. The values of the neighborhood are split into
+        the values above and below the previous median, so only the smaller
+        part has to be searched. NaNs are sorted to the end, as Arrays.sort() does. */
+    private static void filterLineMedian(float[][] linePixels, int[] lineOffsets, int[] lineRadii, int nLines,
+            int width, double[] values, float[] aboveBuf, float[] belowBuf) {
+        float guess = 0f;
+        for (int x=0; x<width; x++) {
+            int nAbove = 0, nBelow = 0, n = 0;
+            boolean nan = false;
+            for (int i=0; i<nLines; i++) {
+                float[] pixels = linePixels[i];
+                int offset = lineOffsets[i];
+                int r = lineRadii[i];
+                int xmax = Math.min(x+r, width-1);
+                for (int xx=Math.max(x-r,0); xx<=xmax; xx++) {
+                    float v = pixels[offset+xx];
+                    if (v>guess)
+                        aboveBuf[nAbove++] = v;
+                    else if (v<guess)
+                        belowBuf[nBelow++] = v;
+                    else if (v!=v)
+                        nan = true;
+                }
+                n += xmax - Math.max(x-r,0) + 1;
+            }
+            float median;
+            if (nan) {
+                int k = 0;
+                for (int i=0; i<nLines; i++) {
+                    float[] pixels = linePixels[i];
+                    int offset = lineOffsets[i];
+                    int r = lineRadii[i];
+                    for (int xx=Math.max(x-r,0); xx<=x+r && xx<width; xx++)
+                        aboveBuf[k++] = pixels[offset+xx];
+                }
+                java.util.Arrays.sort(aboveBuf, 0, n);
+                median = n%2==1?aboveBuf[n/2]:0.5f*(aboveBuf[n/2-1]+aboveBuf[n/2]);
+            } else if (n%2==1)
+                median = getNthLowest(aboveBuf, nAbove, belowBuf, nBelow, n, n/2, guess);
+            else {
+                float upper = getNthLowest(aboveBuf, nAbove, belowBuf, nBelow, n, n/2, guess);
+                float lower = getNthLowest(aboveBuf, nAbove, belowBuf, nBelow, n, n/2-1, guess);
+                median = 0.5f*(lower+upper);
+            }
+            values[x] = median;
+            if (!Float.isNaN(median))
+                guess = median;
+        }
+    }
+
+    /* Median along a line of an 8 or 16-bit stack, using a histogram that is
+        updated at the ends of the kernel lines. 'median' is the current guess
+        and 'below' the number of values in the kernel that are less than it. */
+    private static void filterLineMedian(float[][] linePixels, int[] lineOffsets, int[] lineRadii, int nLines,
+            int width, double[] values, int[] histogram) {
+        int n = 0, median = 0, below = 0;
+        for (int x=0; x<width; x++) {
+            for (int i=0; i<nLines; i++) {
+                float[] pixels = linePixels[i];
+                int offset = lineOffsets[i];
+                int r = lineRadii[i];
+                int xOut = x - r - 1;
+                if (x==0) {
+                    for (int xx=0; xx<=r && xx<width; xx++) {
+                        int v = (int)pixels[offset+xx];
+                        histogram[v]++;
+                        if (v<median) below++;
+                        n++;
+                    }
+                    continue;
+                }
+                if (xOut>=0) {
+                    int v = (int)pixels[offset+xOut];
+                    histogram[v]--;
+                    if (v<median) below--;
+                    n--;
+                }
+                if (x+r<width) {
+                    int v = (int)pixels[offset+x+r];
+                    histogram[v]++;
+                    if (v<median) below++;
+                    n++;
+                }
+            }
+            // move 'median' to the value with index n/2 in the sorted kernel values
+            int half = n/2;
+            while (below>half)
+                below -= histogram[--median];
+            while (below+histogram[median]<=half)
+                below += histogram[median++];
+            if (n%2==1 || below<half)
+                values[x] = median;
+            else {
+                int lower = median - 1;
+                while (histogram[lower]==0)
+                    lower--;
+                values[x] = 0.5f*(lower+median);
+            }
+        }
+        // empty the histogram for the next line
+        int x = width - 1;
+        for (int i=0; i<nLines; i++) {
+            for (int xx=Math.max(x-lineRadii[i],0); xx<width; xx++)
+                histogram[(int)linePixels[i][lineOffsets[i]+xx]]--;
+        }
+    }
+
+    private static float getNthLowest(float[] aboveBuf, int nAbove, float[] belowBuf, int nBelow, int n, int k, float guess) {
+        if (k<nBelow)
+            return RankFilters.findNthLowestNumber(belowBuf, nBelow, k);
+        else if (k>=n-nAbove)
+            return RankFilters.findNthLowestNumber(aboveBuf, nAbove, k-(n-nAbove));
+        else
+            return guess;
+    }
+
  }